@@ -1,18 +1,28 @@
 import gui.TiltShearUI;
 
+import impl.AlignmentManager;
 import impl.DefinedRoutines;
 
 import java.awt.Font;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
+import java.util.Set;
 
 import javax.swing.JFrame;
 import javax.swing.SwingUtilities;
 
+import net.CommandServer;
+import net.RoutineCommands;
+
+import util.EventTrace;
 import util.MemoryWarningSystem;
+import util.MetricsRegistry;
 
 import data.AlignmentMath;
+import data.Config;
+import data.ConfigListener;
+import data.ConfigWatcher;
 import data.SetupData;
 import xenimaq.NativeImage;
 import xenimaq.NativeImageImpl;
@@ -29,7 +39,10 @@ import agilis.AgilisException;
  * CommandServer mode is supposed to serve as a model of how TiltShearTool could be
  * implemented remotely over a terminal or client program using TCP sockets.  This mode
  * is designed to allow a limited functionality and only pre-defined routines can be 
- * executed.
+ * executed.  It is started with the '-server' argument.
+ * 
+ * With the '-array' argument every beam line listed in the setup value 'beamLines'
+ * is aligned at once by an {@link AlignmentManager}, then the program exits.
  * 
  * TiltShearUI mode opens up a GUI designed to be run from the computer the frame grabbers and
  * Agilis controller are connected to. This mode offers more control of the mounts and would
@@ -54,6 +67,14 @@ final public class TiltShearMain {
 	String agilisControllerDevice;
 	String tiltCameraDevice;
 	String shearCameraDevice;
+	
+	CommandServer cmdServer;
+	ConfigWatcher configWatcher;
+	
+	/** Setup values only read when the devices are opened */
+	private static final String[] restartKeys = {
+		"agilisControllerDevice", "tiltCameraDevice", "shearCameraDevice", "cmdServerPort"
+	};
 
 	
 	/**Default constructor, no setup file is used, default setup values 
@@ -72,6 +93,30 @@ final public class TiltShearMain {
 		SetupData.readConfigFile(setupFile);
 		updateVars();
 		System.out.println("Read Setup File!");
+		startConfigWatcher(setupFile);
+	}
+	
+	/** Reload the setup file when it is edited, it is polled every 'configPollMs'
+	 * (1000 ms), 0 disables reloading.
+	 */
+	public void startConfigWatcher(String setupFile){
+		long poll = (long)SetupData.getConfig().getDouble("configPollMs", ConfigWatcher.DEFAULT_POLL_MS);
+		if(poll<=0){
+			return;
+		}
+		
+		SetupData.addConfigListener(new ConfigListener(){
+			public void configChanged(Config old, Config cfg, Set<String> changed){
+				for(String key : restartKeys){
+					if(changed.contains(key)){
+						System.out.println("Setup value '"+key+"' changed, takes effect after a restart");
+					}
+				}
+			}
+		});
+		
+		configWatcher = new ConfigWatcher(setupFile, poll);
+		configWatcher.start();
 	}
 	
 	/** Method used to acquire the setup values from SetupData and store into
@@ -79,9 +124,10 @@ final public class TiltShearMain {
 	 * setup values in SetupData. 
 	 */
 	public void updateVars(){
-		agilisControllerDevice = (String)SetupData.vart.get("agilisControllerDevice");
-		tiltCameraDevice = (String)SetupData.vart.get("tiltCameraDevice");
-		shearCameraDevice = (String)SetupData.vart.get("shearCameraDevice");
+		Config cfg = SetupData.getConfig();
+		agilisControllerDevice = cfg.agilisControllerDevice;
+		tiltCameraDevice = cfg.tiltCameraDevice;
+		shearCameraDevice = cfg.shearCameraDevice;
 
 		AlignmentMath.updateVars();
 	}
@@ -166,17 +212,56 @@ final public class TiltShearMain {
 			shearImg.termImage();
 		}
 		
+		if(cmdServer!=null){
+			cmdServer.stop();
+		}
+		
+		if(configWatcher!=null){
+			configWatcher.stop();
+		}
+		
 		if(ai!=null){
 			ai.disconnect();
 		}
 	}
 	
-	/** Start CommandServer mode.
+	/** Start CommandServer mode, the port is read from the setup
+	 * value 'cmdServerPort'.
 	 */
 	public void startCmdServer(){
-		DefinedRoutines serv = new DefinedRoutines(ai,shearImg,tiltImg);
-//		serv.agilisTest();
-		serv.getStepSizesNoCoadd();
+		DefinedRoutines routines = new DefinedRoutines(ai,shearImg,tiltImg);
+//		routines.agilisTest();
+		
+		int port = (int)SetupData.getConfig().getDouble("cmdServerPort", CommandServer.DEFAULT_PORT);
+		
+		cmdServer = new CommandServer(port, new RoutineCommands(routines));
+		try{
+			cmdServer.start();
+		}catch(IOException ex){
+			System.err.println("[startCmdServer()]: "+ex.getMessage());
+			terminate();
+			System.exit(1);
+		}
+	}
+	
+	/** Align all beam lines of the setup value 'beamLines' and exit. */
+	public static void alignArray(){
+		AlignmentManager manager = null;
+		boolean aligned = false;
+		try{
+			manager = AlignmentManager.fromSetup();
+			aligned = manager.alignAll().get();
+		}catch(Exception ex){
+			System.err.println("[alignArray()]: "+ex.getMessage());
+		}
+		if(manager!=null){
+			for(String s : manager.getBeamLineStatus()){
+				System.out.println(s);
+			}
+			System.out.println(manager.getStatus());
+			manager.shutdown();
+		}
+		System.exit(aligned ? 0:1);
 	}
 	
 	public static void main(String[] args){
@@ -185,6 +270,14 @@ final public class TiltShearMain {
 		 * the GUI.
 		 */
 		boolean useGUI=true;
+		boolean array=false;
+		for(String arg : args){
+			if(arg.equals("-server")){
+				useGUI = false;
+			}else if(arg.equals("-array")){
+				array = true;
+			}
+		}
 		
 		final TiltShearMain main = new TiltShearMain("./setup.txt");
 		
@@ -199,8 +292,15 @@ final public class TiltShearMain {
 	        MemoryWarningSystem.setPercentageUsageThreshold(0.8);
 	      }
 	    });
+	    
+	    //Control loop latency histograms and counters are published next to
+	    //the memory pools, see MetricsRegistry
+	    MetricsRegistry.registerMBeans();
+	    EventTrace.registerMBean();
 
-		if(useGUI){
+		if(array){
+			alignArray();
+		}else if(useGUI){
 			main.initDevices(true);
 			
 			Runnable thread = new Runnable(){
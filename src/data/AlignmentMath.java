@@ -5,9 +5,9 @@ import static java.lang.Math.pow;
 import static java.lang.Math.sqrt;
 
 import java.awt.geom.Point2D;
-import java.util.Hashtable;
 
 import util.NumberObserver;
+import util.TelemetryHub;
 
 /**<pre>
  * This class implements all mathematical operations that used
@@ -51,6 +51,12 @@ final public class AlignmentMath {
 	public static NumberObserver Hxds = new NumberObserver();
 	public static NumberObserver Hyds = new NumberObserver();
 	
+	/* the same offsets in detector pixels, before scaling and sign flips */
+	public static NumberObserver Hxdt_pix = new NumberObserver();
+	public static NumberObserver Hydt_pix = new NumberObserver();
+	public static NumberObserver Hxds_pix = new NumberObserver();
+	public static NumberObserver Hyds_pix = new NumberObserver();
+	
 	public static NumberObserver Hxdt_r = new NumberObserver();
 	public static NumberObserver Hydt_r = new NumberObserver();
 	public static NumberObserver Hxds_r = new NumberObserver();
@@ -79,55 +85,74 @@ final public class AlignmentMath {
 	
 	/* ******************** */
 	
-	/** Distance between SY mirrors 1 and 2 */
-	private static double Ls2;  
+	/** Snapshot of the last correction.  Every computation reads the geometry, pixel size
+	 * and channels from one snapshot, so a reload in the middle of a correction can't mix
+	 * old and new values. */
+	private static volatile Config config;
 	
-	//Tilt Detector
-	/** Distance from SY mirror 2 to the lens (included distance traveled to going from BC mirrors 1 and 2)*/
-	private static double Ll;
-	/**Distance from the lens to the tilt detector*/
-	private static double Ld;  
-	/**Focal length of the lens in the tilt detector*/
-	private static double F;
-
-	//Shear Detector
-	/** Distance from SY mirror 2 to the beam splitter in the shear detector */
-	private static double Lbs;  
-	/** Distance from the beam splitter to the beam compressor */
-	private static double Lc;
-	/** Magnification of the beam compressor*/
-	private static double M;
-	/** Distance from the beam compressor to the shear detector */
-	private static double Lr;
+	/** Optical profile compared against the active one, null if none */
+	private static volatile String compareProfile;
+	private static volatile ModelComparison comparison;
 
-	//Pixel Size
-	/** pixel length in x-direction in mm */
-	private static double xpix;  
-	/** pixel length in y-direction in mm */
-	private static double ypix;
+	/** Pick up the latest setup values from SetupData, see {@link #snapshot()}. */
+	public static void updateVars() {
+		snapshot();
+	}
 	
-	//
-	static int chM1;
-	static int chM2;
-
-	/** Retrieve latest setup values from SetupData class and store
-	 * to corresponding local variables.  
+	/**
+	 * Latest configuration published by SetupData.  Called once per computation, the
+	 * result is used for the whole computation.  A new configuration also updates the
+	 * model comparison.
 	 */
-	public static void updateVars() {
-		Hashtable<String,Object> vart = SetupData.vart;
-		Ls2 =(Double) vart.get("Ls2");
-		Ll=(Double) vart.get("Ll");
-		Ld=(Double) vart.get("Ld");
-		F = (Double) vart.get("F");
-		Lbs = (Double) vart.get("Lbs");
-		Lc = (Double) vart.get("Lc");
-		M = (Double) vart.get("M");
-		Lr = (Double) vart.get("Lr");
-		xpix = (Double) vart.get("xpix");
-		ypix = (Double) vart.get("ypix");
-		
-		chM1 = ((Double) vart.get("chM1")).intValue();
-		chM2 = ((Double) vart.get("chM2")).intValue();
+	private static Config snapshot(){
+		Config cfg = SetupData.getConfig();
+		if(cfg==config){
+			return cfg;
+		}
+		
+		String name = compareProfile;
+		if(name!=null){
+			OpticalModel m = cfg.getOpticalModel(name);
+			ModelComparison c = comparison;
+			if(m==null){
+				System.out.println("Optical profile "+name+" removed, comparison stopped");
+				compareProfile = null;
+				comparison = null;
+			}else if(c==null || !m.sameAs(c.getModel())){
+				comparison = new ModelComparison(m);
+			}
+		}
+		config = cfg;
+		return cfg;
+	}
+	
+	/**
+	 * Compute every theta correction with optical profile 'name' as well, see
+	 * {@link ModelComparison}.
+	 * @param name Profile to compare, null to stop comparing.
+	 * @return the comparison that was running, null if none
+	 * @throws IllegalArgumentException if there is no profile 'name'
+	 */
+	public static synchronized ModelComparison setCompareProfile(String name){
+		ModelComparison old = comparison;
+		if(name==null){
+			compareProfile = null;
+			comparison = null;
+			return old;
+		}
+		OpticalModel m = SetupData.getConfig().getOpticalModel(name);
+		if(m==null){
+			throw new IllegalArgumentException("No optical profile "+name+", have "
+					+SetupData.getConfig().getOpticalProfiles());
+		}
+		compareProfile = name;
+		comparison = new ModelComparison(m);
+		return old;
+	}
+	
+	/** Running comparison, null if none. */
+	public static ModelComparison getComparison(){
+		return comparison;
 	}
 	
 	/**<pre>
@@ -137,6 +162,9 @@ final public class AlignmentMath {
 	 * </pre>
 	 * */
 	public static void printThetaCorrectionEqns(){
+		OpticalModel o = snapshot().optics;
+		double Ls2 = o.Ls2, Ll = o.Ll, Ld = o.Ld, F = o.F;
+		double Lbs = o.Lbs, Lc = o.Lc, M = o.M, Lr = o.Lr;
 		double cf = 180.0/Math.PI;  //%Conversion factor to convert the angles from radians to degrees
 	
 		double den = Ls2*(Ld*(Lr*pow(M,2) - Ll + F + Lbs + Lc) + F*(Ll - Lr*pow(M,2) - Lc - Lbs));
@@ -189,204 +217,76 @@ final public class AlignmentMath {
 	/** Scaled Working Algorithm -Sam **/
 	public static void computeThetaCorrectionPowerScaled(Point2D.Double tref, Point2D.Double talign, 
 			Point2D.Double sref, Point2D.Double salign) {
-		updateVars();
-		//Ls2*=-1; 
-		double Ref_xt = tref.x;  //%the x location of the tilt reference beam in pixels
-		double Ref_yt = tref.y;  //%the y location of the tilt reference beam in pixels
-		double Ref_xs = sref.x;  //%the x location of the shear reference beam in pixels
-		double Ref_ys = sref.y;  //%the y location of the shear reference beam in pixels
-
-		double Align_xt = talign.x;  //%the x location of the tilt detector beam needing alignment in pixels
-		double Align_yt = talign.y;  //%the y location of the tilt detector beam needing alignment in pixels
-		double Align_xs = salign.x;  //%the x location of the shear detector beam needing alignment in pixels
-		double Align_ys = salign.y;  //%the y location of the shear detector beam needing alignment in pixels
-		
-		//compute offsets in Pixels
-		double Hxdt_pix = (Align_xt - Ref_xt);  //%the x offset from the reference beam in the tilt detector in pixels
-		double Hydt_pix = (Align_yt - Ref_yt);  //%the y offset from the reference beam in the tilt detector in pixels
-		double Hxds_pix = (Align_xs - Ref_xs);  //%the x offset from the reference beam in the shear detector in pixels
-		double Hyds_pix = (Align_ys - Ref_ys);  //%the y offset from the reference beam in the shear detector in pixels
-		
-		//compute offset in mm
-		double Hxdt = Hxdt_pix * xpix;  //%the x offset from the reference beam in the tilt detector in mm
-		double Hydt = Hydt_pix * ypix;  //%the y offset from the reference beam in the tilt detector in mm
-		double Hxds = Hxds_pix * xpix;  //%the x offset from the reference beam in the shear detector in mm
-		double Hyds = Hyds_pix * ypix;  //%the y offset from the reference beam in the shear detector in mm
-		
-		double cf = 180.0/Math.PI;  //%Conversion factor to convert the angles from radians to degrees
-
-		double den = Ls2*( Ld*(Lr*pow(M,2) - Ll + F + Lbs + Lc) + F*(Ll - Lr*pow(M,2) - Lc - Lbs));
-
-		double xnum_s1_a = F*(Lc + Lbs + Lr*pow(M,2));
-		double xnum_s1_b = M*(Ld*Ll - Ld*F - Ll*F);
-		
-		double xnum_s2_a = F*(Lc + Lbs + Lr*pow(M,2) + Ls2);
-		double xnum_s2_b = M*(Ld*Ll - Ld*F - Ll*F - Ls2*F + Ls2*Ld);
-		 
-		double ynum_s1_a = F*(Lc + Lbs + Lr*pow(M,2));
-		double ynum_s1_b = M*(Ld*Ll - Ld*F - Ll*F);
-		
-		double ynum_s2_a = F*(Lc + Lbs + Lr*pow(M,2) + Ls2);
-		double ynum_s2_b = M*(Ld*Ll - Ld*F - Ll*F - Ls2*F + Ls2*Ld);
-		
-		//Sets to correct orientation for calculating corrections for mirror 1
-		Hxdt *= -1; 
-		Hydt *= 1;  
-		Hxds *= -1; 
-		Hyds *= -1; 
-		
-			//Calculates corrections
-		double theta_xs1 = -0.5*( xnum_s1_a*Hydt + xnum_s1_b*Hyds)/den; 
-		double theta_ys1 = 0.5*( ynum_s1_a*Hxdt + ynum_s1_b*Hxds )/den;
-		
-		//Changes orientation to calculated corrections for mirror 2 
-		Hxdt *= -1; 
-		Hydt *=  1; 
-		Hxds *= -1; 
-		Hyds *=  1; 
-		
-			//Calculates corrections
-		double theta_xs2 = -0.5*( xnum_s2_a*Hydt + xnum_s2_b*Hyds )/den;
-		double theta_ys2 = 0.5*( ynum_s2_a*Hxdt + ynum_s2_b*Hxds )/den;
-		
+		Config cfg = snapshot();
 		double POW = 0.75; 
 		
-		theta_xs1 = Math.pow(Math.abs(theta_xs1),POW)*theta_xs1/Math.abs(theta_xs1);
-		theta_ys1 = Math.pow(Math.abs(theta_ys1),POW)*theta_ys1/Math.abs(theta_ys1);
-		theta_xs2 = Math.pow(Math.abs(theta_xs2),POW)*theta_xs2/Math.abs(theta_xs2);
-		theta_ys2 = Math.pow(Math.abs(theta_ys2),POW)*theta_ys2/Math.abs(theta_ys2);
-		
-		//Performs rotations to mirror system
-		double theta_xs1_r = (1*sqrt(2)/2)*(theta_xs1 - theta_ys1);
-		double theta_ys1_r = (1*sqrt(2)/2)*(theta_xs1 + theta_ys1);
-		double theta_xs2_r = (1*sqrt(2)/2)*(theta_xs2 - theta_ys2);
-		double theta_ys2_r = (1*sqrt(2)/2)*(theta_xs2 + theta_ys2);
-		
-		//%%% Report Back angular corrections in degrees in the structure 'corrections_rot' in the mount frame %%%
-		double theta_xs1_rot_deg = theta_xs1_r*cf;  
-		double theta_xs2_rot_deg = theta_xs2_r*cf;  
-		double theta_ys1_rot_deg = theta_ys1_r*cf;  
-		double theta_ys2_rot_deg = theta_ys2_r*cf;  
-	
-		Hdt.x = Hxdt_pix;
-		Hdt.y = Hydt_pix;
-		Hds.x = Hxds_pix;
-		Hds.y = Hyds_pix;	
-		
-		//This stores the calculated values to the global fields
-		acm1x=-1*theta_xs1_rot_deg; 
-		acm1y=-1*theta_ys1_rot_deg; 
-		acm2x=-1*theta_xs2_rot_deg;
-		acm2y=-1*theta_ys2_rot_deg;
-		
-		AlignmentMath.Hxdt.setNumber(Hxdt);
-		AlignmentMath.Hydt.setNumber(Hydt);
-		AlignmentMath.Hxds.setNumber(Hxds);
-		AlignmentMath.Hyds.setNumber(Hyds);
-		
-		if (AlignmentMath.Hxdt_r.getDouble() == 0 && AlignmentMath.Hydt_r.getDouble()==0 &&
-				AlignmentMath.Hxds_r.getDouble() == 0 && AlignmentMath.Hyds_r.getDouble() == 0 ){
-			AlignmentMath.Hxdt_r.setNumber(Hxdt);
-			AlignmentMath.Hydt_r.setNumber(Hydt);
-			AlignmentMath.Hxds_r.setNumber(Hxds);
-			AlignmentMath.Hyds_r.setNumber(Hyds);
+		//compute offsets in Pixels
+		double Hxdt_pix = (talign.x - tref.x);  //%the x offset from the reference beam in the tilt detector in pixels
+		double Hydt_pix = (talign.y - tref.y);  //%the y offset from the reference beam in the tilt detector in pixels
+		double Hxds_pix = (salign.x - sref.x);  //%the x offset from the reference beam in the shear detector in pixels
+		double Hyds_pix = (salign.y - sref.y);  //%the y offset from the reference beam in the shear detector in pixels
+		
+		//angles scaled in the mirror frame, then rotated to the mounts
+		double[] acm = new double[4];
+		cfg.optics.correctionsScaled(Hxdt_pix, Hydt_pix, Hxds_pix, Hyds_pix, POW, acm);
+		
+		ModelComparison c = comparison;
+		if(c!=null){
+			c.updateScaled(Hxdt_pix, Hydt_pix, Hxds_pix, Hyds_pix, POW, acm);
 		}
-
-		acm1xObs.setNumber(acm1x);
-		acm1yObs.setNumber(acm1y);
-		acm2xObs.setNumber(acm2x);
-		acm2yObs.setNumber(acm2y);
+		setCorrection(cfg, Hxdt_pix, Hydt_pix, Hxds_pix, Hyds_pix, acm);
 	}
 	
 	public static void computeThetaCorrection(Point2D.Double tref, Point2D.Double talign, 
 			Point2D.Double sref, Point2D.Double salign) {
-		updateVars();
-		//Ls2*=-1; 
-		double Ref_xt = tref.x;  //%the x location of the tilt reference beam in pixels
-		double Ref_yt = tref.y;  //%the y location of the tilt reference beam in pixels
-		double Ref_xs = sref.x;  //%the x location of the shear reference beam in pixels
-		double Ref_ys = sref.y;  //%the y location of the shear reference beam in pixels
-
-		double Align_xt = talign.x;  //%the x location of the tilt detector beam needing alignment in pixels
-		double Align_yt = talign.y;  //%the y location of the tilt detector beam needing alignment in pixels
-		double Align_xs = salign.x;  //%the x location of the shear detector beam needing alignment in pixels
-		double Align_ys = salign.y;  //%the y location of the shear detector beam needing alignment in pixels
+		Config cfg = snapshot();
 		
 		//compute offsets in Pixels
-		double Hxdt_pix = (Align_xt - Ref_xt);  //%the x offset from the reference beam in the tilt detector in pixels
-		double Hydt_pix = (Align_yt - Ref_yt);  //%the y offset from the reference beam in the tilt detector in pixels
-		double Hxds_pix = (Align_xs - Ref_xs);  //%the x offset from the reference beam in the shear detector in pixels
-		double Hyds_pix = (Align_ys - Ref_ys);  //%the y offset from the reference beam in the shear detector in pixels
-		
-		//compute offset in mm
-		double Hxdt = Hxdt_pix * xpix;  //%the x offset from the reference beam in the tilt detector in mm
-		double Hydt = Hydt_pix * ypix;  //%the y offset from the reference beam in the tilt detector in mm
-		double Hxds = Hxds_pix * xpix;  //%the x offset from the reference beam in the shear detector in mm
-		double Hyds = Hyds_pix * ypix;  //%the y offset from the reference beam in the shear detector in mm
-		
-		double cf = 180.0/Math.PI;  //%Conversion factor to convert the angles from radians to degrees
-
-		double den = Ls2*( Ld*(Lr*pow(M,2) - Ll + F + Lbs + Lc) + F*(Ll - Lr*pow(M,2) - Lc - Lbs));
-
-		double xnum_s1_a = F*(Lc + Lbs + Lr*pow(M,2));
-		double xnum_s1_b = M*(Ld*Ll - Ld*F - Ll*F);
-		
-		double xnum_s2_a = F*(Lc + Lbs + Lr*pow(M,2) + Ls2);
-		double xnum_s2_b = M*(Ld*Ll - Ld*F - Ll*F - Ls2*F + Ls2*Ld);
-		 
-		double ynum_s1_a = F*(Lc + Lbs + Lr*pow(M,2));
-		double ynum_s1_b = M*(Ld*Ll - Ld*F - Ll*F);
-		
-		double ynum_s2_a = F*(Lc + Lbs + Lr*pow(M,2) + Ls2);
-		double ynum_s2_b = M*(Ld*Ll - Ld*F - Ll*F - Ls2*F + Ls2*Ld);
-		
-		//Sets to correct orientation for calculating corrections for mirror 1
-		Hxdt *= -1; 
-		Hydt *= 1;  
-		Hxds *= -1; 
-		Hyds *= -1; 
-		
-			//Calculates corrections
-		double theta_xs1 = -0.5*( xnum_s1_a*Hydt + xnum_s1_b*Hyds)/den; 
-		double theta_ys1 = 0.5*( ynum_s1_a*Hxdt + ynum_s1_b*Hxds )/den;
-		
-		//Changes orientation to calculated corrections for mirror 2 
-		Hxdt *= -1; 
-		Hydt *=  1; 
-		Hxds *= -1; 
-		Hyds *=  1; 
-		
-			//Calculates corrections
-		double theta_xs2 = -0.5*( xnum_s2_a*Hydt + xnum_s2_b*Hyds )/den;
-		double theta_ys2 = 0.5*( ynum_s2_a*Hxdt + ynum_s2_b*Hxds )/den;
-		
-		//Performs rotations to mirror system after other calculations
-		double theta_xs1_r = (1*sqrt(2)/2)*(theta_xs1 - theta_ys1);
-		double theta_ys1_r = (1*sqrt(2)/2)*(theta_xs1 + theta_ys1);
-		double theta_xs2_r = (1*sqrt(2)/2)*(theta_xs2 - theta_ys2);
-		double theta_ys2_r = (1*sqrt(2)/2)*(theta_xs2 + theta_ys2);
-		
-		//%%% Report Back angular corrections in degrees in the structure 'corrections_rot' in the mount frame %%%
-		double theta_xs1_rot_deg = theta_xs1_r*cf;  
-		double theta_xs2_rot_deg = theta_xs2_r*cf;  
-		double theta_ys1_rot_deg = theta_ys1_r*cf;  
-		double theta_ys2_rot_deg = theta_ys2_r*cf;  
+		double Hxdt_pix = (talign.x - tref.x);  //%the x offset from the reference beam in the tilt detector in pixels
+		double Hydt_pix = (talign.y - tref.y);  //%the y offset from the reference beam in the tilt detector in pixels
+		double Hxds_pix = (salign.x - sref.x);  //%the x offset from the reference beam in the shear detector in pixels
+		double Hyds_pix = (salign.y - sref.y);  //%the y offset from the reference beam in the shear detector in pixels
+		
+		//precomputed theta correction equations of the active profile, see OpticalModel
+		//per call, corrections of several loops can run at once
+		double[] acm = new double[4];
+		cfg.optics.corrections(Hxdt_pix, Hydt_pix, Hxds_pix, Hyds_pix, acm);
+		
+		ModelComparison c = comparison;
+		if(c!=null){
+			c.update(Hxdt_pix, Hydt_pix, Hxds_pix, Hyds_pix, acm);
+		}
+		setCorrection(cfg, Hxdt_pix, Hydt_pix, Hxds_pix, Hyds_pix, acm);
+	}
 	
+	/** Store the offsets and the corrections in 'acm' to the global fields and observers. */
+	private static void setCorrection(Config cfg, double Hxdt_pix, double Hydt_pix, double Hxds_pix, double Hyds_pix,
+			double[] acm){
+		//offsets in mm, the shear y offset in the mirror 2 orientation
+		double Hxdt = Hxdt_pix * cfg.xpix;
+		double Hydt = Hydt_pix * cfg.ypix;
+		double Hxds = Hxds_pix * cfg.xpix;
+		double Hyds = -Hyds_pix * cfg.ypix;
+		
 		Hdt.x = Hxdt_pix;
 		Hdt.y = Hydt_pix;
 		Hds.x = Hxds_pix;
 		Hds.y = Hyds_pix;	
 		
 		//This stores the calculated values to the global fields
-		acm1x=-1*theta_xs1_rot_deg; 
-		acm1y=-1*theta_ys1_rot_deg; 
-		acm2x=-1*theta_xs2_rot_deg;
-		acm2y=-1*theta_ys2_rot_deg;
+		acm1x=acm[0]; 
+		acm1y=acm[1]; 
+		acm2x=acm[2];
+		acm2y=acm[3];
 		
 		AlignmentMath.Hxdt.setNumber(Hxdt);
 		AlignmentMath.Hydt.setNumber(Hydt);
 		AlignmentMath.Hxds.setNumber(Hxds);
 		AlignmentMath.Hyds.setNumber(Hyds);
+		AlignmentMath.Hxdt_pix.setNumber(Hxdt_pix);
+		AlignmentMath.Hydt_pix.setNumber(Hydt_pix);
+		AlignmentMath.Hxds_pix.setNumber(Hxds_pix);
+		AlignmentMath.Hyds_pix.setNumber(Hyds_pix);
 		
 		if (AlignmentMath.Hxdt_r.getDouble() == 0 && AlignmentMath.Hydt_r.getDouble()==0 &&
 				AlignmentMath.Hxds_r.getDouble() == 0 && AlignmentMath.Hyds_r.getDouble() == 0 ){
@@ -400,6 +300,9 @@ final public class AlignmentMath {
 		acm1yObs.setNumber(acm1y);
 		acm2xObs.setNumber(acm2x);
 		acm2yObs.setNumber(acm2y);
+		
+		TelemetryHub.publish(TelemetryHub.OFFSETS, Hxdt, Hydt, Hxds, Hyds);
+		TelemetryHub.publish(TelemetryHub.THETAS, acm1x, acm1y, acm2x, acm2y);
 	}
 	
 	/**<pre>
@@ -430,42 +333,28 @@ final public class AlignmentMath {
 	 */
 
 	public static void computeStepCorrection(double acm1X, double acm1Y, double acm2X, double acm2Y){
-			if(acm1X>0){
-				//SY1 1-
-				scm1ax1 = -1*(int)Math.round( abs(acm1X)/ssm1ax1n );
-			}else{
-				//SY1 1+
-				scm1ax1 = 1*(int)Math.round( abs(acm1X)/ssm1ax1p );
-			}
+			//SY1 1- or 1+
+			scm1ax1 = BeamLineMath.steps(acm1X, ssm1ax1n, ssm1ax1p);
+			//SY1 2- or 2+
+			scm1ax2 = BeamLineMath.steps(acm1Y, ssm1ax2n, ssm1ax2p);
+			//SY2 1- or 1+
+			scm2ax1 = BeamLineMath.steps(acm2Y, ssm2ax1n, ssm2ax1p);
+			//SY2 2- or 2+
+			scm2ax2 = BeamLineMath.steps(acm2X, ssm2ax2n, ssm2ax2p);
 			
-			if(acm1Y>0){
-				//SY1 2-
-				scm1ax2 = -1*(int)Math.round( abs(acm1Y)/ssm1ax2n );
-			}else{
-				//SY1 2+
-				scm1ax2 = 1*(int)Math.round( abs(acm1Y)/ssm1ax2p );
-			}
+			scm1ax1Obs.setNumber(scm1ax1);
+			scm1ax2Obs.setNumber(scm1ax2);
+			scm2ax1Obs.setNumber(scm2ax1);
+			scm2ax2Obs.setNumber(scm2ax2);
 			
-			if(acm2Y>0){
-				//SY2 1-
-				scm2ax1 = -1*(int)Math.round( abs(acm2Y)/ssm2ax1n );
-			}else{
-				//SY2 1+
-				scm2ax1 = 1*(int)Math.round( abs(acm2Y)/ssm2ax1p );
-			}
-			
-			if(acm2X>0){
-				//SY2 2-
-				scm2ax2 = -1*(int)Math.round( abs(acm2X)/ssm2ax2n );
-			}else{
-				//SY2 2+
-				scm2ax2 = 1*(int)Math.round( abs(acm2X)/ssm2ax2p );
-				}
+			TelemetryHub.publish(TelemetryHub.STEPS, scm1ax1, scm1ax2, scm2ax1, scm2ax2);
 	}
 	public static double theta;	
 	public static void computeAngularExtent(Point2D.Double tref, Point2D.Double toff){		
-		double dx = (toff.x - tref.x)*xpix; //offset in mm
-		double dy = (toff.y - tref.y)*ypix; //offset in mm
+		Config cfg = snapshot();
+		double F = cfg.optics.F;
+		double dx = (toff.x - tref.x)*cfg.xpix; //offset in mm
+		double dy = (toff.y - tref.y)*cfg.ypix; //offset in mm
 		
 		dx*=1;
 		dy*=-1;
@@ -492,8 +381,9 @@ final public class AlignmentMath {
 	}
 	
 	public static void computeStepSize(int mirror, int nax1, int nax2){
+		Config cfg = snapshot();
 		
-		if(mirror==chM1){
+		if(mirror==cfg.chM1){
 			//Only compute when the axis was actually moved,
 			//i.e., nonzero n value
 			if(nax1!=0){
@@ -511,7 +401,7 @@ final public class AlignmentMath {
 					ssm1ax2n = abs(theta/nax2);
 				}
 			}
-		}else if(mirror == chM2){
+		}else if(mirror == cfg.chM2){
 			if(nax1!=0){
 				if(nax1>0){
 					ssm2ax1p = abs(theta/nax1);
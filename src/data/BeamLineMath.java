@@ -0,0 +1,134 @@
+package data;
+
+import java.awt.geom.Point2D;
+
+/**<pre>
+ * The loop math of {@link AlignmentMath} for one beam line of many.
+ *
+ * AlignmentMath keeps the state of the beam line the GUI and the command server
+ * work on in static fields.  A BeamLineMath keeps the same state in an instance,
+ * with the configuration and the optical model of its own beam line, so any number
+ * of loops can run side by side.  Nothing is published to the observers or to
+ * TelemetryHub, those show the main beam line only.
+ *
+ * The step sizes are the setup values of the beam line named as the AlignmentMath
+ * fields, ssm1ax1p ... ssm2ax2n [deg/step].  Until all of them are set, or measured
+ * with {@link #setStepSize(int, int, double, int)}, {@link #hasStepSizes()} is false.
+ *</pre>
+ */
+public class BeamLineMath {
+	public final Config config;
+	private final OpticalModel optics;
+
+	/** Setup values of the step sizes, in the order of {@link #stepSizes}. */
+	public static final String[] STEP_SIZE_KEYS = {"ssm1ax1p", "ssm1ax1n", "ssm1ax2p", "ssm1ax2n",
+		"ssm2ax1p", "ssm2ax1n", "ssm2ax2p", "ssm2ax2n"};
+
+	/** Step sizes [deg/step] as AlignmentMath.ssm*: m1ax1p, m1ax1n, m1ax2p, m1ax2n, m2ax1p ... m2ax2n, NaN if unknown */
+	public final double[] stepSizes = new double[8];
+	/** Last correction acm1x, acm1y, acm2x, acm2y [deg] */
+	public final double[] acm = new double[4];
+	/** Last PI output em1X, em1Y, em2X, em2Y [deg] */
+	public final double[] em = new double[4];
+	/** Last step correction scm1ax1, scm1ax2, scm2ax1, scm2ax2 */
+	public final int[] steps = new int[4];
+
+	private final PIDMath[] loops = new PIDMath[4];
+	private final double pgain, igain;
+
+	public BeamLineMath(Config config, double pgain, double igain){
+		this.config = config;
+		this.optics = config.optics;
+		this.pgain = pgain;
+		this.igain = igain;
+		for(int i=0;i<stepSizes.length;i++){
+			double ss = config.getDouble(STEP_SIZE_KEYS[i], Double.NaN);
+			stepSizes[i] = (ss>0) ? ss:Double.NaN;
+		}
+		resetLoops();
+	}
+
+	/** True once every step size is known. */
+	public boolean hasStepSizes(){
+		for(double ss : stepSizes){
+			if(!(ss>0)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Correction of {@link #acm} a mount axis moves, axes as in
+	 * {@link #computeStepCorrection()}.
+	 * @param mount 1 or 2
+	 * @param axis 1 or 2
+	 */
+	public static int correctionIndex(int mount, int axis){
+		if(mount==1){
+			return axis-1;
+		}
+		return (axis==1) ? 3:2;
+	}
+
+	/**
+	 * Step size of a mount axis from a calibration move, as
+	 * {@link AlignmentMath#computeStepSize}.
+	 * @param mount 1 or 2
+	 * @param axis 1 or 2
+	 * @param delta Change of the correction of the axis the move caused [deg].
+	 * @param n Steps moved, the sign is the direction.
+	 * @return The step size [deg/step].
+	 */
+	public double setStepSize(int mount, int axis, double delta, int n){
+		double ss = Math.abs(delta/n);
+		stepSizes[(mount-1)*4+(axis-1)*2+((n>0) ? 0:1)] = ss;
+		return ss;
+	}
+
+	/** Clear the integrators, done when a loop starts. */
+	public void resetLoops(){
+		for(int i=0;i<loops.length;i++){
+			loops[i] = new PIDMath(pgain, igain);
+		}
+	}
+
+	/** Theta correction to {@link #acm}, as {@link AlignmentMath#computeThetaCorrection}. */
+	public void computeThetaCorrection(Point2D.Double tref, Point2D.Double talign,
+			Point2D.Double sref, Point2D.Double salign){
+		optics.corrections(talign.x-tref.x, talign.y-tref.y, salign.x-sref.x, salign.y-sref.y, acm);
+	}
+
+	/** PI update of the last correction, then the step correction to {@link #steps}. */
+	public void computeStepCorrection(){
+		for(int i=0;i<4;i++){
+			em[i] = -loops[i].updatePID(0, acm[i]);
+		}
+
+		//axes as in AlignmentMath.computeStepCorrection
+		steps[0] = steps(em[0], stepSizes[1], stepSizes[0]);
+		steps[1] = steps(em[1], stepSizes[3], stepSizes[2]);
+		steps[2] = steps(em[3], stepSizes[5], stepSizes[4]);
+		steps[3] = steps(em[2], stepSizes[7], stepSizes[6]);
+	}
+
+	/** Largest absolute correction of the last iteration [deg]. */
+	public double maxCorrection(){
+		double m = 0;
+		for(double d : acm){
+			m = Math.max(m, Math.abs(d));
+		}
+		return m;
+	}
+
+	/**
+	 * Steps for a correction 'angle' [deg]: a positive angle is corrected with
+	 * negative steps of size 'ssNeg', a negative angle with positive steps of 'ssPos'.
+	 */
+	static int steps(double angle, double ssNeg, double ssPos){
+		if(angle>0){
+			return -1*(int)Math.round( Math.abs(angle)/ssNeg );
+		}
+		return (int)Math.round( Math.abs(angle)/ssPos );
+	}
+}
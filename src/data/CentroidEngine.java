@@ -0,0 +1,587 @@
+package data;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import util.Counter;
+import util.LatencyHistogram;
+import util.MetricsRegistry;
+
+/**<pre>
+ * Centroid of the laser spot in a raw 16 bit camera frame, computed in Java.
+ *
+ * NativeImageImpl computes the centroids of the live images inside the native
+ * library.  This engine does the same on frame buffers we hold, e.g. recorded frames
+ * or simulated ones, so the algorithm can be tuned, timed and run in parallel.
+ *
+ * Per frame:
+ *  - the spot is searched in the tracking window centred on the last centroid, the
+ *  whole frame until a spot is found (see Tracking).
+ *  - background and noise are the mean and standard deviation of the ROI border.
+ *  - a spot is found if at least 'minPixels' pixels are above background +
+ *  'threshold' * noise.  Its centroid, flux [counts] and FWHM [pixel] are computed by
+ *  the {@link CentroidEstimator}, by default the thresholded centre of gravity, see
+ *  {@link CentroidEstimators} for the others.
+ *  - SNR is the peak signal over the noise, the noise taken as at least one count.
+ *
+ * Tracking:
+ *  - the window is 'roiFwhm' FWHM of the spot plus four times its last move, within
+ *  'minRoi' and 'maxRoi' pixels.  It shrinks to that size by halves.
+ *  - if the spot is missed, or touches the window edge (the centroid of a cut spot
+ *  is pulled inwards, {@link Spot#edge}), the frame is measured again in a window of
+ *  twice the size, and in the whole frame once the window is 'maxRoi' or the
+ *  misses reach 'maxMisses'.  A spot on a window edge is never returned.
+ *  - a spot missed in the whole frame ends the tracking.
+ *  - 'maxRoi' 0 turns tracking off.
+ *  The times per frame go to "centroid.full" and "centroid.tracked", the pixels
+ *  summed to the counter "centroid.pixels", the lost spots to "centroid.lost".
+ *
+ * An engine keeps the tracking state of one camera and is used by one thread at a
+ * time.  {@link #measure(CentroidEngine, Frame, Spot, CentroidEngine, Frame, Spot)}
+ * measures a tilt and a shear frame in parallel.  The time per frame goes to the
+ * histogram "centroid.frame".
+ *
+ * main() benchmarks the engine on synthetic frames of several sizes, then tracks a
+ * spot that wanders and jumps every 'jump' frames:
+ *   CentroidEngine [sizes=320x256,...] [track=640x480] [fps=100] [frames=200] [jump=20]
+ *</pre>
+ */
+public class CentroidEngine {
+	/** A frame of unsigned 16 bit pixels, row by row. */
+	public static class Frame {
+		public final ShortBuffer pixels;
+		public final int width, height;
+
+		public Frame(ShortBuffer pixels, int width, int height){
+			if(width<=0 || height<=0 || pixels.capacity()<width*height){
+				throw new IllegalArgumentException("frame "+width+"x"+height+" in "+pixels.capacity()+" pixels");
+			}
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+		}
+
+		public static Frame wrap(short[] pixels, int width, int height){
+			return new Frame(ShortBuffer.wrap(pixels), width, height);
+		}
+
+		/** Pixels in the byte order of 'buf', e.g. a direct buffer of the grabber. */
+		public static Frame wrap(ByteBuffer buf, int width, int height){
+			return new Frame(buf.asShortBuffer(), width, height);
+		}
+
+		/** A raw little endian frame from a file, into a direct buffer. */
+		public static Frame load(String path, int width, int height) throws IOException{
+			FileInputStream in = new FileInputStream(path);
+			try{
+				FileChannel ch = in.getChannel();
+				ByteBuffer buf = ByteBuffer.allocateDirect(width*height*2).order(ByteOrder.LITTLE_ENDIAN);
+				while(buf.hasRemaining()){
+					if(ch.read(buf)<0){
+						throw new IOException(path+": shorter than a "+width+"x"+height+" frame");
+					}
+				}
+				buf.flip();
+				return wrap(buf, width, height);
+			}finally{
+				in.close();
+			}
+		}
+	}
+
+	/** Result of one frame. */
+	public static class Spot {
+		/** Centroid [pixel] */
+		public double x, y;
+		public double flux, fwhm, snr;
+		/** Background and noise [counts] */
+		public double background, noise;
+		/** Peak signal above the background [counts] */
+		public double peak;
+		/** Pixels above the threshold */
+		public int pixels;
+		/** False if no spot was found, the other values are then undefined. */
+		public boolean valid;
+		/** ROI searched */
+		public int roiX, roiY, roiWidth, roiHeight;
+		/** The spot touches an edge of the ROI that is not an edge of the frame. */
+		public boolean edge;
+
+		@Override
+		public String toString(){
+			if(!valid){
+				return String.format(Locale.US, "valid=false background=%.1f noise=%.1f", background, noise);
+			}
+			return String.format(Locale.US, "x=%.3f y=%.3f flux=%.0f fwhm=%.2f snr=%.1f pixels=%d",
+					x, y, flux, fwhm, snr, pixels);
+		}
+	}
+
+	/** The part of a frame searched for the spot, handed to the estimator. */
+	public static class Roi {
+		ShortBuffer pixels;
+		/** Frame size */
+		public int width, height;
+		/** x0 <= x < x1, y0 <= y < y1 */
+		public int x0, y0, x1, y1;
+		/** Background and noise from the border [counts] */
+		public double background, noise;
+		/** Pixels above 'cut' belong to the spot, at least 'minPixels' of them. */
+		public int cut, minPixels;
+		private short[] line = new short[0];
+
+		/**
+		 * Pixels x0..x1-1 of row 'y' at 0.., valid until the next call.  A bulk copy
+		 * out of a direct buffer is much faster than a get() per pixel.
+		 */
+		public short[] row(int y){
+			pixels.position(y*width+x0);
+			pixels.get(line, 0, x1-x0);
+			return line;
+		}
+
+		/** True if (x, y) is within 'r' of an edge of the ROI that is not an edge of the frame. */
+		public boolean nearEdge(double x, double y, double r){
+			return (x0>0 && x-x0<r) || (x1<width && x1-1-x<r) || (y0>0 && y-y0<r) || (y1<height && y1-1-y<r);
+		}
+	}
+
+	static final LatencyHistogram frameHist = MetricsRegistry.histogram("centroid.frame");
+	static final LatencyHistogram fullHist = MetricsRegistry.histogram("centroid.full");
+	static final LatencyHistogram trackedHist = MetricsRegistry.histogram("centroid.tracked");
+	static final Counter pixelCount = MetricsRegistry.counter("centroid.pixels");
+	static final Counter lostCount = MetricsRegistry.counter("centroid.lost");
+	static final double FWHM_PER_SIGMA = 2*Math.sqrt(2*Math.log(2));
+
+	private static ExecutorService pool;
+
+	public final String name;
+	private int minRoi = 16, maxRoi = 256;
+	private double roiFwhm = 6;
+	private int maxMisses = 3;
+	private double threshold = 5;
+	private int minPixels = 3;
+	/* tracking state */
+	private boolean tracking;
+	private int cx, cy, window;
+	private long frames, fullFrames, pixels;
+	private final Roi roi = new Roi();
+	private CentroidEstimator estimator = new CentroidEstimators.ThresholdedCog();
+
+	public CentroidEngine(String name){
+		this.name = name;
+	}
+
+	/**
+	 * An engine with 'centroidMinRoi', 'centroidMaxRoi', 'centroidRoiFwhm',
+	 * 'centroidMaxMisses', 'centroidThreshold' and 'centroidMinPixels' of the setup.
+	 * The estimator is '&lt;name&gt;.centroidEstimator', else 'centroidEstimator', so
+	 * each camera can have its own.
+	 */
+	public static CentroidEngine fromConfig(String name, Config cfg){
+		CentroidEngine e = new CentroidEngine(name);
+		e.setEstimator(CentroidEstimators.forName(cfg.getString(name+".centroidEstimator",
+				cfg.getString("centroidEstimator", e.estimator.getName()))));
+		e.setRoiLimits((int)cfg.getDouble("centroidMinRoi", e.minRoi), (int)cfg.getDouble("centroidMaxRoi", e.maxRoi));
+		e.setRoiFwhm(cfg.getDouble("centroidRoiFwhm", e.roiFwhm));
+		e.setMaxMisses((int)cfg.getDouble("centroidMaxMisses", e.maxMisses));
+		e.setThreshold(cfg.getDouble("centroidThreshold", e.threshold));
+		e.setMinPixels((int)cfg.getDouble("centroidMinPixels", e.minPixels));
+		return e;
+	}
+
+	/** Smallest and largest side of the tracking window [pixel], 'max' 0 to always search the whole frame. */
+	public void setRoiLimits(int min, int max){
+		if(max>0 && (min<3 || min>max)){
+			throw new IllegalArgumentException("window "+min+".."+max);
+		}
+		this.minRoi = min;
+		this.maxRoi = max;
+	}
+
+	/** Side of the tracking window in FWHM of the spot. */
+	public void setRoiFwhm(double roiFwhm){
+		this.roiFwhm = roiFwhm;
+	}
+
+	/** Misses in a frame before the whole frame is searched. */
+	public void setMaxMisses(int maxMisses){
+		this.maxMisses = maxMisses;
+	}
+
+	/** Side of the current tracking window, 0 if not tracking. */
+	public int getWindow(){
+		return tracking ? window:0;
+	}
+
+	/** Threshold above the background [noise sigma]. */
+	public void setThreshold(double threshold){
+		this.threshold = threshold;
+	}
+
+	public double getThreshold(){
+		return threshold;
+	}
+
+	/** Fewest pixels above the threshold of a spot. */
+	public void setMinPixels(int minPixels){
+		this.minPixels = minPixels;
+	}
+
+	public void setEstimator(CentroidEstimator estimator){
+		this.estimator = estimator;
+	}
+
+	public CentroidEstimator getEstimator(){
+		return estimator;
+	}
+
+	/** Forget the spot, the next frame is searched whole. */
+	public void reset(){
+		tracking = false;
+	}
+
+	public boolean isTracking(){
+		return tracking;
+	}
+
+	/** Centroid of 'f' into 's', the window follows the spot. */
+	public void measure(Frame f, Spot s){
+		long t0 = System.nanoTime();
+		int w = (tracking && maxRoi>0) ? window:0;
+		boolean full = (w==0);
+		long area = search(f, s, w);
+		int misses = 0;
+		while(w>0 && !(s.valid && !s.edge)){
+			//missed or cut by the window, grow it
+			if(!s.valid){
+				lostCount.increment();
+				misses++;
+			}
+			w = (w>=maxRoi || misses>=maxMisses) ? 0 : Math.min(maxRoi, w*2);
+			full |= (w==0);
+			area += search(f, s, w);
+		}
+		track(s, w);
+
+		long dt = System.nanoTime()-t0;
+		frameHist.record(dt);
+		pixelCount.add(area);
+		synchronized(this){
+			frames++;
+			pixels += area;
+			if(full){
+				fullHist.record(dt);
+				fullFrames++;
+			}else{
+				trackedHist.record(dt);
+			}
+		}
+	}
+
+	/**
+	 * Centroid of 'f' in the window of side 'w' around the last centroid, the whole
+	 * frame if 'w' is 0.
+	 * @return The pixels of the window.
+	 */
+	private long search(Frame f, Spot s, int w){
+		int x0 = 0, y0 = 0, x1 = f.width, y1 = f.height;
+		if(w>0){
+			x0 = Math.max(0, Math.min(cx-w/2, f.width-w));
+			y0 = Math.max(0, Math.min(cy-w/2, f.height-w));
+			x1 = Math.min(f.width, x0+w);
+			y1 = Math.min(f.height, y0+w);
+		}
+		s.roiX = x0;
+		s.roiY = y0;
+		s.roiWidth = x1-x0;
+		s.roiHeight = y1-y0;
+		roi.pixels = f.pixels.duplicate();
+		roi.width = f.width;
+		roi.height = f.height;
+		roi.x0 = x0;
+		roi.y0 = y0;
+		roi.x1 = x1;
+		roi.y1 = y1;
+		if(roi.line.length<x1-x0){
+			roi.line = new short[x1-x0];
+		}
+		background(roi);
+		roi.cut = (int)Math.floor(roi.background+Math.max(1, threshold*roi.noise));
+		roi.minPixels = minPixels;
+		s.background = roi.background;
+		s.noise = roi.noise;
+		estimator.estimate(roi, s);
+		if(s.valid){
+			s.snr = s.peak/Math.max(1, roi.noise);
+		}
+		return (long)(x1-x0)*(y1-y0);
+	}
+
+	/** Move and size the window for the next frame, 'w' the window the spot was found in, 0 for the whole frame. */
+	private void track(Spot s, int w){
+		if(!s.valid){
+			//not in the whole frame
+			tracking = false;
+			return;
+		}
+		int x = (int)Math.round(s.x), y = (int)Math.round(s.y);
+		double moved = (tracking && w>0) ? Math.hypot(x-cx, y-cy) : 0;
+		int size = (int)Math.ceil(roiFwhm*s.fwhm+4*moved);
+		size = Math.max(minRoi, Math.min(maxRoi, size));
+		if(w>0 && size<w){
+			window = Math.max(size, w/2);
+		}else{
+			window = size;
+		}
+		cx = x;
+		cy = y;
+		tracking = true;
+	}
+
+	/** Mean and standard deviation of the ROI border. */
+	private static void background(Roi r){
+		long sb = 0, sbb = 0;
+		int nb = 0;
+		int len = r.x1-r.x0;
+		for(int y=r.y0;y<r.y1;y++){
+			int row = y*r.width;
+			int step = (y==r.y0 || y==r.y1-1) ? 1 : Math.max(1, len-1);
+			for(int x=r.x0;x<r.x1;x+=step){
+				int v = r.pixels.get(row+x)&0xFFFF;
+				sb += v;
+				sbb += (long)v*v;
+				nb++;
+			}
+		}
+		r.background = (double)sb/nb;
+		r.noise = Math.sqrt(Math.max(0, (double)sbb/nb-r.background*r.background));
+	}
+
+	/** "name estimator=... tracking=... window=... frames=... fullFrames=... pixelsPerFrame=..." */
+	public synchronized String getStatus(){
+		return String.format(Locale.US, "%s estimator=%s tracking=%b window=%d frames=%d fullFrames=%d pixelsPerFrame=%.0f",
+				name, estimator.getName(), tracking, getWindow(), frames, fullFrames, (frames==0) ? 0 : (double)pixels/frames);
+	}
+
+	/**
+	 * Measure a tilt and a shear frame in parallel, the shear frame on the pool and the
+	 * tilt frame on the calling thread.
+	 */
+	public static void measure(CentroidEngine tilt, Frame tiltFrame, Spot tiltSpot,
+			final CentroidEngine shear, final Frame shearFrame, final Spot shearSpot) throws InterruptedException{
+		Future<?> f = pool().submit(new Runnable(){
+			public void run(){
+				shear.measure(shearFrame, shearSpot);
+			}
+		});
+		tilt.measure(tiltFrame, tiltSpot);
+		try{
+			f.get();
+		}catch(ExecutionException ex){
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+
+	private static synchronized ExecutorService pool(){
+		if(pool==null){
+			pool = Executors.newCachedThreadPool(new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r,"Centroid");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+/* * * * * * * * * * * * * * * */
+/* benchmark */
+
+	/**
+	 * A Gaussian spot of 'sigma' [pixel] and 'peak' counts at (x, y) on a background
+	 * of 1000 counts with Gaussian noise of 'noise' counts.
+	 */
+	static void spot(short[] px, int width, int height, double x, double y, double sigma,
+			double peak, double noise, Random r){
+		for(int j=0;j<height;j++){
+			for(int i=0;i<width;i++){
+				double dx = i-x, dy = j-y;
+				double v = 1000+peak*Math.exp(-(dx*dx+dy*dy)/(2*sigma*sigma))+noise*r.nextGaussian();
+				px[j*width+i] = (short)Math.max(0, Math.min(65535, (int)Math.round(v)));
+			}
+		}
+	}
+
+	/** Mean time per call of 'r' [ms], after a warm up. */
+	private static double time(Runnable r, int n){
+		for(int i=0;i<Math.max(10, n/4);i++){
+			r.run();
+		}
+		long t0 = System.nanoTime();
+		for(int i=0;i<n;i++){
+			r.run();
+		}
+		return (System.nanoTime()-t0)*1E-6/n;
+	}
+
+	public static void main(String[] args) throws Exception{
+		String[] sizes = {"320x256", "640x512", "1024x1024", "2048x2048"};
+		String track = "640x480";
+		double fps = 100;
+		int frames = 200;
+		int jump = 20;
+		for(String arg : args){
+			String[] kv = arg.split("=");
+			if(kv.length!=2){
+				throw new IllegalArgumentException("Bad option: "+arg);
+			}
+			if(kv[0].equals("sizes")){
+				sizes = kv[1].split(",");
+			}else if(kv[0].equals("track")){
+				track = kv[1];
+			}else if(kv[0].equals("fps")){
+				fps = Double.parseDouble(kv[1]);
+			}else if(kv[0].equals("frames")){
+				frames = Integer.parseInt(kv[1]);
+			}else if(kv[0].equals("jump")){
+				jump = Integer.parseInt(kv[1]);
+			}else{
+				throw new IllegalArgumentException("Unknown option: "+kv[0]);
+			}
+		}
+
+		Random r = new Random(1);
+		System.out.format(Locale.US, "%-10s %9s %9s %9s %9s %9s %9s  %s%n", "frame",
+				"full[ms]", "direct", "roi", "pair seq", "pair par", "err[px]", "at "+fps+" fps");
+		for(String size : sizes){
+			String[] wh = size.split("x");
+			final int w = Integer.parseInt(wh[0]), h = Integer.parseInt(wh[1]);
+			double x = w*(0.3+0.4*r.nextDouble()), y = h*(0.3+0.4*r.nextDouble());
+			short[] px = new short[w*h];
+			spot(px, w, h, x, y, 3, 20000, 20, r);
+			final Frame heap = Frame.wrap(px, w, h);
+			ByteBuffer buf = ByteBuffer.allocateDirect(w*h*2).order(ByteOrder.nativeOrder());
+			buf.asShortBuffer().put(px);
+			final Frame direct = Frame.wrap(buf, w, h);
+
+			final CentroidEngine tilt = new CentroidEngine("tilt");
+			final CentroidEngine shear = new CentroidEngine("shear");
+			final Spot ts = new Spot(), ss = new Spot();
+			int n = (int)Math.max(10, Math.min(frames, 2E8/(w*h)));
+
+			double full = time(new Runnable(){
+				public void run(){
+					tilt.reset();
+					tilt.measure(heap, ts);
+				}
+			}, n);
+			double err = Math.hypot(ts.x-x, ts.y-y);
+			double fullDirect = time(new Runnable(){
+				public void run(){
+					tilt.reset();
+					tilt.measure(direct, ts);
+				}
+			}, n);
+			double roi = time(new Runnable(){
+				public void run(){
+					tilt.measure(heap, ts);
+				}
+			}, frames*10);
+			double seq = time(new Runnable(){
+				public void run(){
+					tilt.reset();
+					shear.reset();
+					tilt.measure(heap, ts);
+					shear.measure(direct, ss);
+				}
+			}, n);
+			double par = time(new Runnable(){
+				public void run(){
+					tilt.reset();
+					shear.reset();
+					try{
+						measure(tilt, heap, ts, shear, direct, ss);
+					}catch(InterruptedException ex){
+						throw new RuntimeException(ex);
+					}
+				}
+			}, n);
+			String keepUp = (par<=1000/fps) ? "full frame" : (roi*2<=1000/fps) ? "roi only" : "no";
+			System.out.format(Locale.US, "%-10s %9.3f %9.3f %9.4f %9.3f %9.3f %9.4f  %s%n",
+					size, full, fullDirect, roi, seq, par, err, keepUp);
+		}
+
+		//a spot wandering a few pixels per frame, with a jump now and then
+		String[] wh = track.split("x");
+		int w = Integer.parseInt(wh[0]), h = Integer.parseInt(wh[1]);
+		Frame[] movie = new Frame[3*jump];
+		double[] truth = new double[2*movie.length];
+		double x = w/2, y = h/2;
+		for(int i=0;i<movie.length;i++){
+			if(i%jump==jump-1){
+				x = w*(0.2+0.6*r.nextDouble());
+				y = h*(0.2+0.6*r.nextDouble());
+			}else{
+				x = Math.max(20, Math.min(w-20, x+3*r.nextGaussian()));
+				y = Math.max(20, Math.min(h-20, y+3*r.nextGaussian()));
+			}
+			short[] px = new short[w*h];
+			spot(px, w, h, x, y, 3, 20000, 20, r);
+			movie[i] = Frame.wrap(px, w, h);
+			truth[2*i] = x;
+			truth[2*i+1] = y;
+		}
+		System.out.format(Locale.US, "%ntracking %s, %d frames, jump every %d:%n", track, movie.length, jump);
+		CentroidEngine full = new CentroidEngine("full");
+		full.setRoiLimits(0, 0);
+		CentroidEngine tracked = new CentroidEngine("tracked");
+		double tf = replay(full, movie, truth, frames);
+		double tt = replay(tracked, movie, truth, frames);
+		System.out.format(Locale.US, "  full %.4f ms/frame, tracked %.4f ms/frame, %.1fx less%n", tf, tt, tf/tt);
+		System.out.println("  "+full.getStatus());
+		System.out.println("  "+tracked.getStatus());
+		System.out.println(fullHist);
+		System.out.println(trackedHist);
+		System.out.println(lostCount.getName()+": "+lostCount.getCount());
+	}
+
+	/** Mean time per frame of 'e' on 'movie' played 'n' times [ms], reports the misses and the error. */
+	private static double replay(CentroidEngine e, Frame[] movie, double[] truth, int n){
+		Spot s = new Spot();
+		int missed = 0, k = 0;
+		double err2 = 0;
+		long t = 0;
+		for(int pass=0;pass<n/movie.length+2;pass++){
+			for(int i=0;i<movie.length;i++){
+				long t0 = System.nanoTime();
+				e.measure(movie[i], s);
+				if(pass>0){
+					//first pass warms up
+					t += System.nanoTime()-t0;
+					k++;
+					if(!s.valid){
+						missed++;
+					}else{
+						err2 += Math.pow(s.x-truth[2*i], 2)+Math.pow(s.y-truth[2*i+1], 2);
+					}
+				}
+			}
+		}
+		System.out.format(Locale.US, "  %s: missed %d of %d, rms error %.4f px%n", e.name, missed, k,
+				Math.sqrt(err2/Math.max(1, k-missed)));
+		return t*1E-6/k;
+	}
+}
@@ -0,0 +1,17 @@
+package data;
+
+/**
+ * Sub-pixel position of the spot in the ROI of a frame, for {@link CentroidEngine}.
+ * The engine picks the ROI and measures the background, the estimator finds the spot
+ * in it.  An estimator may keep scratch state, it belongs to one engine.
+ */
+public interface CentroidEstimator {
+	/** Name as in the setup value 'centroidEstimator'. */
+	public String getName();
+
+	/**
+	 * The spot in 'roi' into 's': valid, x, y, flux, fwhm, peak, pixels and edge.
+	 * The spot is valid if at least 'roi.minPixels' pixels are above 'roi.cut'.
+	 */
+	public void estimate(CentroidEngine.Roi roi, CentroidEngine.Spot s);
+}
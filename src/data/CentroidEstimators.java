@@ -0,0 +1,463 @@
+package data;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import data.CentroidEngine.Frame;
+import data.CentroidEngine.Roi;
+import data.CentroidEngine.Spot;
+
+/**<pre>
+ * The {@link CentroidEstimator}s, by name:
+ *  cog    centre of gravity of the pixels above the threshold.  Fastest, but the
+ *         noise of the pixels near the threshold, which come and go, scatters it.
+ *  wcog   centre of gravity of all pixels weighted with a Gaussian at the cog,
+ *         corrected for the pull towards the weight centre.  Assumes a Gaussian spot.
+ *  iwcog  centre of gravity of all pixels in a window of 'radius' FWHM, the window
+ *         recentred until the centroid moves less than 0.001 pixel.
+ *  gauss  least squares fit of a round 2D Gaussian (peak, x, y, sigma) on the fixed
+ *         background, Gauss-Newton from the cog.  Slowest, best at low SNR.
+ * All start from the cog, which also decides whether there is a spot.
+ *
+ * main() measures speed, bias and scatter of each on synthetic spots at known
+ * positions, to pick the estimator for a camera ('centroidEstimator').
+ *</pre>
+ */
+public class CentroidEstimators {
+	public static final String[] NAMES = {"cog", "wcog", "iwcog", "gauss"};
+
+	static final double FWHM_PER_SIGMA = CentroidEngine.FWHM_PER_SIGMA;
+
+	/** A new estimator of the given name. */
+	public static CentroidEstimator forName(String name){
+		if(name.equals("cog")){
+			return new ThresholdedCog();
+		}else if(name.equals("wcog")){
+			return new WeightedCog();
+		}else if(name.equals("iwcog")){
+			return new WindowedCog(1.5);
+		}else if(name.equals("gauss")){
+			return new GaussFit();
+		}
+		throw new IllegalArgumentException("centroidEstimator: no '"+name+"', have cog, wcog, iwcog, gauss");
+	}
+
+	/** Centre of gravity and second moments of the pixels above the threshold. */
+	public static class ThresholdedCog implements CentroidEstimator {
+		public String getName(){
+			return "cog";
+		}
+
+		public void estimate(Roi r, Spot s){
+			int len = r.x1-r.x0;
+			int cut = r.cut;
+			int b = (int)Math.round(r.background);
+			long sum = 0, sx = 0, sy = 0, sxx = 0, syy = 0;
+			int n = 0, peak = 0;
+			//edges of the ROI inside the frame
+			boolean left = r.x0>0, right = r.x1<r.width;
+			boolean edge = false;
+			for(int y=r.y0;y<r.y1;y++){
+				short[] line = r.row(y);
+				if((left && (line[0]&0xFFFF)>cut) || (right && (line[len-1]&0xFFFF)>cut)){
+					edge = true;
+				}
+				long sr = 0, sxr = 0, sxxr = 0;
+				for(int rx=0;rx<len;rx++){
+					int v = line[rx]&0xFFFF;
+					if(v>cut){
+						long d = v-b;
+						sr += d;
+						sxr += d*rx;
+						sxxr += d*rx*rx;
+						n++;
+						if(v>peak){
+							peak = v;
+						}
+					}
+				}
+				if(sr>0 && ((y==r.y0 && r.y0>0) || (y==r.y1-1 && r.y1<r.height))){
+					edge = true;
+				}
+				long ry = y-r.y0;
+				sum += sr;
+				sx += sxr;
+				sxx += sxxr;
+				sy += sr*ry;
+				syy += sr*ry*ry;
+			}
+
+			s.pixels = n;
+			s.edge = edge;
+			s.valid = n>=r.minPixels && sum>0;
+			if(!s.valid){
+				return;
+			}
+			double mx = (double)sx/sum, my = (double)sy/sum;
+			double vx = Math.max(0, (double)sxx/sum-mx*mx);
+			double vy = Math.max(0, (double)syy/sum-my*my);
+			s.x = r.x0+mx;
+			s.y = r.y0+my;
+			s.flux = sum;
+			s.fwhm = FWHM_PER_SIGMA*Math.sqrt((vx+vy)/2);
+			s.peak = peak-r.background;
+		}
+	}
+
+	/**
+	 * Centre of gravity weighted with a Gaussian of the spot's size at the cog.  For a
+	 * Gaussian spot of variance ss^2 the weighted moments have the variance
+	 * vw = ss^2 sw^2/(ss^2+sw^2) and the centre moved by sw^2/(ss^2+sw^2) towards the
+	 * weight centre, both are solved for the spot.
+	 */
+	public static class WeightedCog implements CentroidEstimator {
+		private final ThresholdedCog first = new ThresholdedCog();
+		private double[] wx = new double[0];
+
+		public String getName(){
+			return "wcog";
+		}
+
+		public void estimate(Roi r, Spot s){
+			first.estimate(r, s);
+			if(!s.valid){
+				return;
+			}
+			double cx = s.x, cy = s.y;
+			double sw = Math.max(1, s.fwhm/FWHM_PER_SIGMA);
+			int h = (int)Math.ceil(4*sw);
+			int xa = Math.max(r.x0, (int)cx-h), xb = Math.min(r.x1-1, (int)cx+h+1);
+			int ya = Math.max(r.y0, (int)cy-h), yb = Math.min(r.y1-1, (int)cy+h+1);
+			if(wx.length<xb-xa+1){
+				wx = new double[xb-xa+1];
+			}
+			double c = -1/(2*sw*sw);
+			for(int x=xa;x<=xb;x++){
+				wx[x-xa] = Math.exp(c*(x-cx)*(x-cx));
+			}
+			double bg = r.background;
+			double w0 = 0, w1x = 0, w1y = 0, w2 = 0;
+			for(int y=ya;y<=yb;y++){
+				short[] line = r.row(y);
+				double dy = y-cy;
+				double wy = Math.exp(c*dy*dy);
+				double sr = 0, sxr = 0, sxxr = 0;
+				for(int x=xa;x<=xb;x++){
+					double dx = x-cx;
+					double d = ((line[x-r.x0]&0xFFFF)-bg)*wx[x-xa];
+					sr += d;
+					sxr += d*dx;
+					sxxr += d*dx*dx;
+				}
+				w0 += sr*wy;
+				w1x += sxr*wy;
+				w1y += sr*wy*dy;
+				w2 += (sxxr+sr*dy*dy)*wy;
+			}
+			if(w0<=0){
+				return;
+			}
+			double mx = w1x/w0, my = w1y/w0;
+			double vw = (w2/w0-mx*mx-my*my)/2;
+			double sw2 = sw*sw;
+			//(ss^2+sw^2)/sw^2, 2 for a spot as large as the weight
+			double k = 2;
+			if(vw>0 && vw<0.95*sw2){
+				k = sw2/(sw2-vw);
+				s.fwhm = FWHM_PER_SIGMA*Math.sqrt(vw*k);
+			}
+			s.x = cx+k*mx;
+			s.y = cy+k*my;
+			s.edge |= r.nearEdge(s.x, s.y, h);
+		}
+	}
+
+	/** Centre of gravity in a window of 'radius' FWHM, recentred until it settles. */
+	public static class WindowedCog implements CentroidEstimator {
+		static final int MAX_ITERATIONS = 20;
+		private final ThresholdedCog first = new ThresholdedCog();
+		private final double radius;
+
+		public WindowedCog(double radius){
+			this.radius = radius;
+		}
+
+		public String getName(){
+			return "iwcog";
+		}
+
+		public void estimate(Roi r, Spot s){
+			first.estimate(r, s);
+			if(!s.valid){
+				return;
+			}
+			double x = s.x, y = s.y;
+			double h = Math.max(2, radius*s.fwhm);
+			double bg = r.background;
+			for(int i=0;i<MAX_ITERATIONS;i++){
+				int xa = Math.max(r.x0, (int)Math.ceil(x-h)), xb = Math.min(r.x1-1, (int)Math.floor(x+h));
+				int ya = Math.max(r.y0, (int)Math.ceil(y-h)), yb = Math.min(r.y1-1, (int)Math.floor(y+h));
+				double sum = 0, sx = 0, sy = 0;
+				for(int yy=ya;yy<=yb;yy++){
+					short[] line = r.row(yy);
+					double sr = 0, sxr = 0;
+					for(int xx=xa;xx<=xb;xx++){
+						double d = (line[xx-r.x0]&0xFFFF)-bg;
+						sr += d;
+						sxr += d*xx;
+					}
+					sum += sr;
+					sx += sxr;
+					sy += sr*yy;
+				}
+				if(sum<=0){
+					break;
+				}
+				double nx = sx/sum, ny = sy/sum;
+				double moved = Math.hypot(nx-x, ny-y);
+				x = nx;
+				y = ny;
+				if(moved<1E-3){
+					break;
+				}
+			}
+			s.x = x;
+			s.y = y;
+			s.edge |= r.nearEdge(x, y, h);
+		}
+	}
+
+	/**
+	 * Least squares fit of peak * exp(-((x-x0)^2+(y-y0)^2)/(2 sigma^2)) to the
+	 * pixels within 3 sigma of the cog, background fixed.
+	 */
+	public static class GaussFit implements CentroidEstimator {
+		static final int MAX_ITERATIONS = 10;
+		private final ThresholdedCog first = new ThresholdedCog();
+		private double[] d = new double[0], ex = new double[0], ey = new double[0];
+		private final double[] a = new double[16], b = new double[4];
+
+		public String getName(){
+			return "gauss";
+		}
+
+		public void estimate(Roi r, Spot s){
+			first.estimate(r, s);
+			if(!s.valid){
+				return;
+			}
+			double pk = s.peak, x = s.x, y = s.y;
+			double sg = Math.max(0.7, s.fwhm/FWHM_PER_SIGMA);
+			int h = (int)Math.ceil(3*sg)+1;
+			int xa = Math.max(r.x0, (int)Math.round(x)-h), xb = Math.min(r.x1-1, (int)Math.round(x)+h);
+			int ya = Math.max(r.y0, (int)Math.round(y)-h), yb = Math.min(r.y1-1, (int)Math.round(y)+h);
+			int nx = xb-xa+1, ny = yb-ya+1;
+			if(d.length<nx*ny){
+				d = new double[nx*ny];
+			}
+			if(ex.length<nx){
+				ex = new double[nx];
+			}
+			if(ey.length<ny){
+				ey = new double[ny];
+			}
+			for(int j=0;j<ny;j++){
+				short[] line = r.row(ya+j);
+				for(int i=0;i<nx;i++){
+					d[j*nx+i] = (line[xa+i-r.x0]&0xFFFF)-r.background;
+				}
+			}
+
+			for(int it=0;it<MAX_ITERATIONS;it++){
+				double c = -1/(2*sg*sg), s2 = 1/(sg*sg);
+				for(int i=0;i<nx;i++){
+					ex[i] = Math.exp(c*(xa+i-x)*(xa+i-x));
+				}
+				for(int j=0;j<ny;j++){
+					ey[j] = Math.exp(c*(ya+j-y)*(ya+j-y));
+				}
+				Arrays.fill(a, 0);
+				Arrays.fill(b, 0);
+				for(int j=0;j<ny;j++){
+					double dy = ya+j-y;
+					for(int i=0;i<nx;i++){
+						double dx = xa+i-x;
+						double e = ex[i]*ey[j];
+						double f = pk*e;
+						double j0 = e, j1 = f*dx*s2, j2 = f*dy*s2, j3 = f*(dx*dx+dy*dy)*s2/sg;
+						double res = d[j*nx+i]-f;
+						a[0] += j0*j0; a[1] += j0*j1; a[2] += j0*j2; a[3] += j0*j3;
+						a[5] += j1*j1; a[6] += j1*j2; a[7] += j1*j3;
+						a[10] += j2*j2; a[11] += j2*j3;
+						a[15] += j3*j3;
+						b[0] += j0*res; b[1] += j1*res; b[2] += j2*res; b[3] += j3*res;
+					}
+				}
+				a[4] = a[1]; a[8] = a[2]; a[9] = a[6]; a[12] = a[3]; a[13] = a[7]; a[14] = a[11];
+				for(int k=0;k<4;k++){
+					a[k*5] *= 1+1E-6;
+				}
+				if(!solve(a, b)){
+					return;
+				}
+				pk += b[0];
+				x += b[1];
+				y += b[2];
+				sg += b[3];
+				if(pk<=0 || sg<0.3 || Math.abs(x-s.x)>h || Math.abs(y-s.y)>h){
+					//diverged, keep the cog
+					return;
+				}
+				if(Math.abs(b[1])<1E-4 && Math.abs(b[2])<1E-4){
+					break;
+				}
+			}
+			s.x = x;
+			s.y = y;
+			s.peak = pk;
+			s.fwhm = FWHM_PER_SIGMA*sg;
+			s.flux = 2*Math.PI*pk*sg*sg;
+			s.edge |= r.nearEdge(x, y, 3*sg);
+		}
+
+		/** Solve a x = b for 4x4 row major 'a' in place, the solution into 'b'. */
+		private static boolean solve(double[] a, double[] b){
+			for(int col=0;col<4;col++){
+				int p = col;
+				for(int row=col+1;row<4;row++){
+					if(Math.abs(a[row*4+col])>Math.abs(a[p*4+col])){
+						p = row;
+					}
+				}
+				if(a[p*4+col]==0){
+					return false;
+				}
+				for(int j=0;j<4;j++){
+					double t = a[col*4+j]; a[col*4+j] = a[p*4+j]; a[p*4+j] = t;
+				}
+				double t = b[col]; b[col] = b[p]; b[p] = t;
+				for(int row=col+1;row<4;row++){
+					double f = a[row*4+col]/a[col*4+col];
+					for(int j=col;j<4;j++){
+						a[row*4+j] -= f*a[col*4+j];
+					}
+					b[row] -= f*b[col];
+				}
+			}
+			for(int row=3;row>=0;row--){
+				double v = b[row];
+				for(int j=row+1;j<4;j++){
+					v -= a[row*4+j]*b[j];
+				}
+				b[row] = v/a[row*4+row];
+			}
+			return true;
+		}
+	}
+
+/* * * * * * * * * * * * * * * */
+/* benchmark */
+
+	public static void main(String[] args){
+		double sigma = 1.5, peak = 4000;
+		double[] noises = {2, 10, 40, 200};
+		int trials = 400, size = 32;
+		String[] names = NAMES;
+		for(String arg : args){
+			String[] kv = arg.split("=");
+			if(kv.length!=2){
+				throw new IllegalArgumentException("Bad option: "+arg);
+			}
+			if(kv[0].equals("sigma")){
+				sigma = Double.parseDouble(kv[1]);
+			}else if(kv[0].equals("peak")){
+				peak = Double.parseDouble(kv[1]);
+			}else if(kv[0].equals("noise")){
+				String[] n = kv[1].split(",");
+				noises = new double[n.length];
+				for(int i=0;i<n.length;i++){
+					noises[i] = Double.parseDouble(n[i]);
+				}
+			}else if(kv[0].equals("trials")){
+				trials = Integer.parseInt(kv[1]);
+			}else if(kv[0].equals("size")){
+				size = Integer.parseInt(kv[1]);
+			}else if(kv[0].equals("estimators")){
+				names = kv[1].split(",");
+			}else{
+				throw new IllegalArgumentException("Unknown option: "+kv[0]);
+			}
+		}
+
+		Random r = new Random(1);
+		System.out.format(Locale.US, "%dx%d frames, spot sigma %.2f px, peak %.0f, %d positions%n",
+				size, size, sigma, peak, trials);
+		System.out.format(Locale.US, "%6s %7s %-6s %9s %9s %9s %9s %7s%n",
+				"noise", "snr", "est", "bias[px]", "std[px]", "rms[px]", "time[us]", "missed");
+		for(double noise : noises){
+			Frame[] frames = new Frame[trials];
+			double[] truth = new double[2*trials];
+			for(int i=0;i<trials;i++){
+				double x = size/2+4*(r.nextDouble()-0.5), y = size/2+4*(r.nextDouble()-0.5);
+				short[] px = new short[size*size];
+				CentroidEngine.spot(px, size, size, x, y, sigma, peak, noise, r);
+				frames[i] = Frame.wrap(px, size, size);
+				truth[2*i] = x;
+				truth[2*i+1] = y;
+			}
+
+			double bestRms = Double.MAX_VALUE;
+			double[] rms = new double[names.length], us = new double[names.length];
+			for(int k=0;k<names.length;k++){
+				CentroidEngine e = new CentroidEngine("bench");
+				e.setRoiLimits(0, 0);
+				e.setEstimator(forName(names[k]));
+				Spot s = new Spot();
+				int reps = Math.max(4, 40000/trials);
+				int missed = 0;
+				double mx = 0, my = 0, mxx = 0, myy = 0;
+				long t = 0;
+				for(int rep=0;rep<reps;rep++){
+					long t0 = System.nanoTime();
+					for(int i=0;i<trials;i++){
+						e.measure(frames[i], s);
+						if(rep==reps-1){
+							if(!s.valid){
+								missed++;
+								continue;
+							}
+							double dx = s.x-truth[2*i], dy = s.y-truth[2*i+1];
+							mx += dx;
+							my += dy;
+							mxx += dx*dx;
+							myy += dy*dy;
+						}
+					}
+					if(rep>=reps/2){
+						//first half warms up
+						t += System.nanoTime()-t0;
+					}
+				}
+				int n = Math.max(1, trials-missed);
+				mx /= n;
+				my /= n;
+				double bias = Math.hypot(mx, my);
+				double std = Math.sqrt(Math.max(0, mxx/n-mx*mx+myy/n-my*my));
+				rms[k] = Math.sqrt(bias*bias+std*std);
+				us[k] = t*1E-3/((reps-reps/2)*(double)trials);
+				bestRms = Math.min(bestRms, rms[k]);
+				System.out.format(Locale.US, "%6.0f %7.1f %-6s %9.4f %9.4f %9.4f %9.2f %7d%n",
+						noise, peak/noise, names[k], bias, std, rms[k], us[k], missed);
+			}
+			//fastest within 10% of the most accurate
+			int pick = -1;
+			for(int k=0;k<names.length;k++){
+				if(rms[k]<=1.1*bestRms && (pick<0 || us[k]<us[pick])){
+					pick = k;
+				}
+			}
+			System.out.format(Locale.US, "%6s %7s pick %s%n%n", "", "", names[pick]);
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package data;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**<pre>
+ * Immutable, validated snapshot of the setup values in {@link SetupData#vart}.
+ *
+ * SetupData parses the table into a Config once and publishes it with a single
+ * reference swap, see {@link SetupData#getConfig()} and {@link SetupData#publishConfig()}.
+ * Readers take one snapshot and use its fields, so every value they see comes from the
+ * same configuration even while a new one is being published.  As in the table, the
+ * field names match the hash key names.
+ *
+ * Values without a field, e.g. optional GUI settings, are read with
+ * {@link #getDouble(String, double)} and {@link #getString(String, String)}.
+ *
+ * The optical distances are read into an {@link OpticalModel} per profile, all
+ * models are built here so switching profiles costs nothing in the control loop.
+ * 'opticalProfile' selects the active one, "setup" by default.
+ *</pre>
+ */
+final public class Config {
+	public final String wdir;
+	public final boolean debug;
+
+	public final String tiltCameraDevice;
+	public final String shearCameraDevice;
+	public final String tiltCalibFile;
+	public final String shearCalibFile;
+	public final String xenicsColorProfile;
+	public final String agilisControllerDevice;
+
+	/** Agilis controller channels of SY mirror 1 and 2 */
+	public final int chM1, chM2;
+
+	/** Pixel size [mm] */
+	public final double xpix, ypix;
+
+	/** Name of the active optical profile */
+	public final String opticalProfile;
+	/** Theta correction of the active optical profile */
+	public final OpticalModel optics;
+
+	private final Map<String,OpticalModel> profiles;
+	private final Map<String,Object> values;
+	private final StringBuilder errors = new StringBuilder();
+
+	private Config(Map<String,Object> t){
+		values = Collections.unmodifiableMap(new HashMap<String,Object>(t));
+
+		wdir = string("wdir");
+		debug = "true".equals(string("debug"));
+		tiltCameraDevice = string("tiltCameraDevice");
+		shearCameraDevice = string("shearCameraDevice");
+		tiltCalibFile = string("tiltCalibFile");
+		shearCalibFile = string("shearCalibFile");
+		xenicsColorProfile = string("xenicsColorProfile");
+		agilisControllerDevice = string("agilisControllerDevice");
+
+		chM1 = channel("chM1");
+		chM2 = channel("chM2");
+		if(chM1==chM2){
+			error("chM1, chM2: both mirrors on channel "+chM1);
+		}
+
+		xpix = number("xpix");
+		ypix = number("ypix");
+		positive("xpix", xpix);
+		positive("ypix", ypix);
+
+		Map<String,OpticalModel> p = new TreeMap<String,OpticalModel>();
+		if(values.containsKey("Ls2")){
+			profile(p, "setup", "");
+		}
+		for(String key : values.keySet()){
+			int dot = key.indexOf('.');
+			if(dot>0 && key.substring(dot+1).equals("Ls2")){
+				String name = key.substring(0,dot);
+				profile(p, name, name+".");
+			}
+		}
+		profiles = Collections.unmodifiableMap(p);
+
+		opticalProfile = getString("opticalProfile", "setup");
+		optics = p.get(opticalProfile);
+		if(optics==null){
+			error("opticalProfile: no profile '"+opticalProfile+"', have "+p.keySet());
+		}
+	}
+
+	private void profile(Map<String,OpticalModel> p, String name, String prefix){
+		double[] d = new double[OpticalModel.KEYS.length];
+		int n = errors.length();
+		for(int i=0;i<d.length;i++){
+			d[i] = number(prefix+OpticalModel.KEYS[i]);
+		}
+		positive(prefix+"Ls2", d[0]);
+		positive(prefix+"F", d[3]);
+		positive(prefix+"M", d[6]);
+		if(errors.length()>n || !(xpix>0 && ypix>0)){
+			return;
+		}
+		try{
+			p.put(name, new OpticalModel(name, d, xpix, ypix));
+		}catch(IllegalArgumentException ex){
+			error(ex.getMessage());
+		}
+	}
+
+	/**
+	 * Parse and validate a setup table.
+	 * @throws IllegalArgumentException listing every missing or invalid value
+	 */
+	public static Config parse(Map<String,Object> table){
+		Config c = new Config(table);
+		if(c.errors.length()>0){
+			throw new IllegalArgumentException(c.errors.toString());
+		}
+		return c;
+	}
+
+	private void error(String msg){
+		if(errors.length()>0){
+			errors.append("; ");
+		}
+		errors.append(msg);
+	}
+
+	private String string(String key){
+		Object v = values.get(key);
+		if(!(v instanceof String)){
+			error(key+": "+((v==null) ? "missing":"expected a string"));
+			return "";
+		}
+		return (String)v;
+	}
+
+	private double number(String key){
+		Object v = values.get(key);
+		if(!(v instanceof Double)){
+			error(key+": "+((v==null) ? "missing":"expected a number"));
+			return Double.NaN;
+		}
+		double d = (Double)v;
+		if(Double.isNaN(d) || Double.isInfinite(d)){
+			error(key+": not finite");
+		}
+		return d;
+	}
+
+	private int channel(String key){
+		double d = number(key);
+		if(!Double.isNaN(d) && (d!=Math.rint(d) || d<1 || d>4)){
+			error(key+": channel must be 1..4");
+		}
+		return (int)d;
+	}
+
+	private void positive(String key, double d){
+		if(d<=0){
+			error(key+": must be > 0");
+		}
+	}
+
+	/** Model of optical profile 'name', null if there is none. */
+	public OpticalModel getOpticalModel(String name){
+		return profiles.get(name);
+	}
+
+	/** Names of the optical profiles, sorted. */
+	public Set<String> getOpticalProfiles(){
+		return profiles.keySet();
+	}
+
+	/** Raw value of 'key', null if not set. */
+	public Object get(String key){
+		return values.get(key);
+	}
+
+	/** Numeric value of 'key', 'def' if not set or not a number. */
+	public double getDouble(String key, double def){
+		Object v = values.get(key);
+		return (v instanceof Double) ? (Double)v:def;
+	}
+
+	/** String value of 'key', 'def' if not set or not a string. */
+	public String getString(String key, String def){
+		Object v = values.get(key);
+		return (v instanceof String) ? (String)v:def;
+	}
+
+	/** Keys whose values differ from 'old', all keys if 'old' is null. */
+	public Set<String> changedKeys(Config old){
+		Set<String> s = new TreeSet<String>();
+		if(old==null){
+			s.addAll(values.keySet());
+			return s;
+		}
+		for(Map.Entry<String,Object> e : values.entrySet()){
+			if(!e.getValue().equals(old.values.get(e.getKey()))){
+				s.add(e.getKey());
+			}
+		}
+		for(String k : old.values.keySet()){
+			if(!values.containsKey(k)){
+				s.add(k);
+			}
+		}
+		return s;
+	}
+
+	/** All values, unmodifiable. */
+	public Map<String,Object> getValues(){
+		return values;
+	}
+}
@@ -0,0 +1,13 @@
+package data;
+
+import java.util.Set;
+
+/** Notified by {@link SetupData#publishConfig()} when setup values change. */
+public interface ConfigListener {
+	/**
+	 * Called on the publishing thread, hand longer work to another thread.
+	 * @param old Configuration before the change.
+	 * @param changed Keys whose values differ between 'old' and 'cfg'.
+	 */
+	public void configChanged(Config old, Config cfg, Set<String> changed);
+}
@@ -0,0 +1,96 @@
+package data;
+
+import java.io.File;
+
+/**<pre>
+ * Re-reads the setup file when it is edited while the program runs.
+ *
+ * The file is polled for a new modification time or size.  It is read once it has
+ * stayed unchanged for one more poll, so a half written file is not picked up.
+ * {@link SetupData#readConfigFile(String)} applies only the values that changed and
+ * nothing at all if the new values are invalid; the {@link ConfigListener}s then
+ * update the subsystems that depend on the changed keys.
+ *</pre>
+ */
+public class ConfigWatcher implements Runnable {
+	public static final long DEFAULT_POLL_MS = 1000;
+
+	private final File file;
+	private final long pollMs;
+	private volatile Thread thread;
+
+	private long lastModified, length;
+	private boolean pending;
+	private int reloads;
+
+	public ConfigWatcher(String path, long pollMs){
+		this.file = new File(path);
+		this.pollMs = pollMs;
+		lastModified = file.lastModified();
+		length = file.length();
+	}
+
+	public synchronized void start(){
+		if(thread!=null){
+			return;
+		}
+		thread = new Thread(this,"ConfigWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop(){
+		Thread t = thread;
+		thread = null;
+		if(t!=null){
+			t.interrupt();
+		}
+	}
+
+	public void run(){
+		try{
+			while(thread==Thread.currentThread()){
+				Thread.sleep(pollMs);
+				check();
+			}
+		}catch(InterruptedException ex){
+			//stopped
+		}
+	}
+
+	/**
+	 * Poll the file once.
+	 * @return true if the file was read and its values applied
+	 */
+	public synchronized boolean check(){
+		long m = file.lastModified();
+		long n = file.length();
+		if(m!=lastModified || n!=length){
+			//changed, wait until the writer is done
+			lastModified = m;
+			length = n;
+			pending = true;
+			return false;
+		}
+		if(!pending || m==0){
+			return false;
+		}
+
+		pending = false;
+		System.out.println("Setup file "+file.getPath()+" changed, reloading");
+		if(SetupData.readConfigFile(file.getPath())){
+			reloads++;
+			return true;
+		}
+		return false;
+	}
+
+	/** Number of times the file was reloaded successfully. */
+	public synchronized int getReloads(){
+		return reloads;
+	}
+
+	public String getPath(){
+		return file.getPath();
+	}
+}
@@ -0,0 +1,73 @@
+package data;
+
+import util.TelemetryHub;
+
+/**<pre>
+ * A/B comparison of a second optical profile against the active one.
+ *
+ * Every theta correction is also computed with the compared model, from the same
+ * offsets, and published on the "compare" telemetry stream next to "thetas".  The
+ * RMS and largest difference of each correction are kept, so a new model can be
+ * checked against live data before it is made active.
+ *</pre>
+ */
+final public class ModelComparison {
+	private final OpticalModel model;
+	private final double[] acm = new double[4];
+	private final double[] sumSq = new double[4];
+	private final double[] maxAbs = new double[4];
+	private long count;
+
+	public ModelComparison(OpticalModel model){
+		this.model = model;
+	}
+
+	public OpticalModel getModel(){
+		return model;
+	}
+
+	/** Compare with the linear correction 'active' of the active model. */
+	synchronized void update(double Hxdt_pix, double Hydt_pix, double Hxds_pix, double Hyds_pix, double[] active){
+		model.corrections(Hxdt_pix, Hydt_pix, Hxds_pix, Hyds_pix, acm);
+		add(active);
+	}
+
+	/** Compare with the scaled correction 'active' of the active model. */
+	synchronized void updateScaled(double Hxdt_pix, double Hydt_pix, double Hxds_pix, double Hyds_pix,
+			double pow, double[] active){
+		model.correctionsScaled(Hxdt_pix, Hydt_pix, Hxds_pix, Hyds_pix, pow, acm);
+		add(active);
+	}
+
+	private void add(double[] active){
+		for(int i=0;i<4;i++){
+			double d = acm[i]-active[i];
+			if(!Double.isNaN(d)){
+				sumSq[i] += d*d;
+				maxAbs[i] = Math.max(maxAbs[i], Math.abs(d));
+			}
+		}
+		count++;
+		TelemetryHub.publish(TelemetryHub.COMPARE, acm[0], acm[1], acm[2], acm[3]);
+	}
+
+	public synchronized long getCount(){
+		return count;
+	}
+
+	/** RMS difference of acm1x, acm1y, acm2x, acm2y [deg]. */
+	public synchronized double[] getRms(){
+		double[] r = new double[4];
+		for(int i=0;i<4;i++){
+			r[i] = (count>0) ? Math.sqrt(sumSq[i]/count):0;
+		}
+		return r;
+	}
+
+	/** "compare=name n=count rms=a,b,c,d max=a,b,c,d" */
+	public synchronized String getStatus(){
+		double[] r = getRms();
+		return String.format("compare=%s n=%d rms=%.3g,%.3g,%.3g,%.3g max=%.3g,%.3g,%.3g,%.3g",
+				model.name, count, r[0], r[1], r[2], r[3], maxAbs[0], maxAbs[1], maxAbs[2], maxAbs[3]);
+	}
+}
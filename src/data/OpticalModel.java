@@ -0,0 +1,145 @@
+package data;
+
+import java.util.Arrays;
+
+/**<pre>
+ * Theta correction of one optical setup, precomputed.
+ *
+ * The angular corrections of the switchyard mirrors are linear in the beam offsets
+ * measured by the tilt and shear detectors, with coefficients that depend only on
+ * the distances of the setup.  See report: "Re-Evaluation of the Automated Alignment
+ * System" by Kristina Nyland.  A model computes the coefficients once, a correction
+ * is then a 4x4 matrix times the pixel offsets.
+ *
+ * {@link Config} builds a model for every optical profile in the setup values.  The
+ * unprefixed distances Ls2 ... Lr form the profile "setup", 'name.Ls2' ...
+ * 'name.Lr' form the profile 'name'.  The pixel size is the same for all profiles.
+ *</pre>
+ */
+final public class OpticalModel {
+	/** Distances of a profile, in constructor order */
+	public static final String[] KEYS = {"Ls2", "Ll", "Ld", "F", "Lbs", "Lc", "M", "Lr"};
+
+	/** Conversion factor to convert the angles from radians to degrees */
+	private static final double cf = 180.0/Math.PI;
+	/** Rotation from the mirror frame to the mount frame */
+	private static final double rot = Math.sqrt(2)/2;
+
+	public final String name;
+	/** Distances [mm] and magnification, see {@link AlignmentMath} */
+	public final double Ls2, Ll, Ld, F, Lbs, Lc, M, Lr;
+	/** Pixel size [mm] */
+	public final double xpix, ypix;
+
+	private final double den;
+	/** pixel offsets to theta_xs1, theta_ys1, theta_xs2, theta_ys2 [rad], row major */
+	private final double[] t = new double[16];
+	/** pixel offsets to acm1x, acm1y, acm2x, acm2y [deg], row major */
+	private final double[] k = new double[16];
+
+	/**
+	 * @param d Distances in {@link #KEYS} order.
+	 * @throws IllegalArgumentException if the distances give no correction
+	 */
+	public OpticalModel(String name, double[] d, double xpix, double ypix){
+		this.name = name;
+		Ls2 = d[0];
+		Ll = d[1];
+		Ld = d[2];
+		F = d[3];
+		Lbs = d[4];
+		Lc = d[5];
+		M = d[6];
+		Lr = d[7];
+		this.xpix = xpix;
+		this.ypix = ypix;
+
+		den = Ls2*( Ld*(Lr*M*M - Ll + F + Lbs + Lc) + F*(Ll - Lr*M*M - Lc - Lbs));
+		if(den==0 || Double.isNaN(den) || Double.isInfinite(den)){
+			throw new IllegalArgumentException(name+": distances give a singular theta correction");
+		}
+
+		//column j is the response to a one pixel offset in Hxdt, Hydt, Hxds, Hyds
+		double[] th = new double[4];
+		for(int j=0;j<4;j++){
+			equations((j==0) ? xpix:0, (j==1) ? ypix:0, (j==2) ? xpix:0, (j==3) ? ypix:0, th);
+			for(int i=0;i<4;i++){
+				t[i*4+j] = th[i];
+			}
+		}
+		for(int j=0;j<4;j++){
+			k[j]    = -cf*rot*(t[j]   - t[4+j]);
+			k[4+j]  = -cf*rot*(t[j]   + t[4+j]);
+			k[8+j]  = -cf*rot*(t[8+j] - t[12+j]);
+			k[12+j] = -cf*rot*(t[8+j] + t[12+j]);
+		}
+	}
+
+	/** The theta correction equations for offsets in mm, angles in the mirror frame [rad]. */
+	private void equations(double Hxdt, double Hydt, double Hxds, double Hyds, double[] th){
+		double s1_a = F*(Lc + Lbs + Lr*M*M);
+		double s1_b = M*(Ld*Ll - Ld*F - Ll*F);
+		double s2_a = F*(Lc + Lbs + Lr*M*M + Ls2);
+		double s2_b = M*(Ld*Ll - Ld*F - Ll*F - Ls2*F + Ls2*Ld);
+
+		//mirror 1 orientation: Hxdt, Hxds and Hyds flipped
+		th[0] = -0.5*( s1_a*Hydt - s1_b*Hyds )/den;
+		th[1] = 0.5*( -s1_a*Hxdt - s1_b*Hxds )/den;
+		//mirror 2 orientation: Hyds flipped
+		th[2] = -0.5*( s2_a*Hydt - s2_b*Hyds )/den;
+		th[3] = 0.5*( s2_a*Hxdt + s2_b*Hxds )/den;
+	}
+
+	private static void multiply(double[] m, double x0, double x1, double x2, double x3, double[] out){
+		for(int i=0;i<4;i++){
+			out[i] = m[i*4]*x0 + m[i*4+1]*x1 + m[i*4+2]*x2 + m[i*4+3]*x3;
+		}
+	}
+
+	/**
+	 * Mount corrections for the offsets from the reference centroids.
+	 * @param acm Receives acm1x, acm1y, acm2x, acm2y [deg].
+	 */
+	public void corrections(double Hxdt_pix, double Hydt_pix, double Hxds_pix, double Hyds_pix, double[] acm){
+		multiply(k, Hxdt_pix, Hydt_pix, Hxds_pix, Hyds_pix, acm);
+	}
+
+	/**
+	 * Mount corrections with the mirror frame angles scaled to |theta|^pow, keeping
+	 * the sign, as in {@link AlignmentMath#computeThetaCorrectionPowerScaled}.
+	 * @param acm Receives acm1x, acm1y, acm2x, acm2y [deg].
+	 */
+	public void correctionsScaled(double Hxdt_pix, double Hydt_pix, double Hxds_pix, double Hyds_pix,
+			double pow, double[] acm){
+		multiply(t, Hxdt_pix, Hydt_pix, Hxds_pix, Hyds_pix, acm);
+		double xs1 = Math.pow(Math.abs(acm[0]),pow)*acm[0]/Math.abs(acm[0]);
+		double ys1 = Math.pow(Math.abs(acm[1]),pow)*acm[1]/Math.abs(acm[1]);
+		double xs2 = Math.pow(Math.abs(acm[2]),pow)*acm[2]/Math.abs(acm[2]);
+		double ys2 = Math.pow(Math.abs(acm[3]),pow)*acm[3]/Math.abs(acm[3]);
+
+		acm[0] = -cf*rot*(xs1 - ys1);
+		acm[1] = -cf*rot*(xs1 + ys1);
+		acm[2] = -cf*rot*(xs2 - ys2);
+		acm[3] = -cf*rot*(xs2 + ys2);
+	}
+
+	/** Distances in {@link #KEYS} order. */
+	public double[] distances(){
+		return new double[]{Ls2, Ll, Ld, F, Lbs, Lc, M, Lr};
+	}
+
+	/** True if 'o' gives the same corrections, the name is ignored. */
+	public boolean sameAs(OpticalModel o){
+		return o!=null && Arrays.equals(distances(), o.distances()) && xpix==o.xpix && ypix==o.ypix;
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder s = new StringBuilder(name);
+		double[] d = distances();
+		for(int i=0;i<KEYS.length;i++){
+			s.append(' ').append(KEYS[i]).append('=').append(d[i]);
+		}
+		return s.toString();
+	}
+}
@@ -2,7 +2,12 @@
 
 import java.io.*;
 import java.util.Calendar;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * SetupData class is used to keep track of all values that might need to be changed
@@ -16,6 +21,13 @@ import java.util.Hashtable;
  * 
  * To reduce programming confusion, any code that accesses a value in the Hashtable should
  * make the field name match the hash key name. 
+ * 
+ * Code that runs often should not read the Hashtable, it reads the typed, validated
+ * snapshot {@link #getConfig()} instead.  Code that changes {@link #vart} calls
+ * {@link #publishConfig()} to make the change visible to all readers at once.
+ * {@link ConfigListener}s are told which keys changed, so a subsystem only
+ * restarts what depends on them.  {@link ConfigWatcher} re-reads the setup file
+ * when it is edited while the program runs.
  */
 final public class SetupData {
 	public final static String pathsep=System.getProperty("file.separator");
@@ -25,6 +37,15 @@ final public class SetupData {
 	
 	public static Hashtable<String,Object> vart=new Hashtable<String,Object>(0);
 	
+	private static volatile Config config;
+	private static final List<ConfigListener> listeners=new CopyOnWriteArrayList<ConfigListener>();
+	/** Setup file last read, null if none */
+	private static volatile String setupFile;
+	/** Values before any setup file is read, a key dropped from the setup file returns to its default */
+	private static final Hashtable<String,Object> defaults;
+	/** Keys set by the setup file last applied */
+	private static Set<String> fileKeys=new HashSet<String>();
+	
 	public static boolean debug=false;
 	
 	public static int currentMountStepAmplitude = 0;
@@ -48,7 +69,8 @@ final public class SetupData {
 		vart.put("chM1", new Double(1));
 		vart.put("chM2", new Double(2));
 //      -------------------
-//      These are the office setup values
+//      Optical profile "setup", the distances of the setup file. 
+//      Defaults are the office setup values
 		vart.put("Ls2",new Double(390)); //
 		vart.put("Ll",new Double(650)); //
 		vart.put("Ld",new Double(80)); //
@@ -57,35 +79,157 @@ final public class SetupData {
 		vart.put("Lc",new Double(0));//	(No beam compressor attached)
 		vart.put("M",new Double(1)); //(No beam compressor attached)
 		vart.put("Lr",new Double(60));//
+		vart.put("opticalProfile","setup");
 //		-------------------
-//		These are the lab setup values 
-//		vart.put("Ls2",new Double(696));
-//		vart.put("Ll",new Double(4439.79));
-//		vart.put("Ld",new Double(155));
-//		vart.put("F",new Double(150));
-//		vart.put("Lbs",new Double(4324.79));
-//		vart.put("Lc",new Double(75));
-//		vart.put("M",new Double(3));
-//		vart.put("Lr",new Double(150));
-//		----------------
-//		Use these to compare with Zemax model
-//		vart.put("Ls2",new Double(250));
-//		vart.put("Ll",new Double(3993.29));
-//		vart.put("Ld",new Double(150));
-//		vart.put("F",new Double(150));
-//		vart.put("Lbs",new Double(3893.29));
-//		vart.put("Lc",new Double(50));
-//		vart.put("M",new Double(2.5));
-//		vart.put("Lr",new Double(50));
+//		Named optical profiles, selected with 'opticalProfile', see OpticalModel
+		putProfile("office", 390, 650, 80, 150, 540, 0, 1, 60);
+		putProfile("lab", 696, 4439.79, 155, 150, 4324.79, 75, 3, 150);
+//		Use this to compare with Zemax model
+		putProfile("zemax", 250, 3993.29, 150, 150, 3893.29, 50, 2.5, 50);
 //		----------------
 		vart.put("xpix",new Double(0.010));
 		vart.put("ypix",new Double(0.010));
 		vart.put("debug","false");
 //		makeDir(dataDir);
+		
+		defaults=new Hashtable<String,Object>(vart);
+		config=Config.parse(vart);
+	}
+	
+	/** Values 'name.Ls2' ... 'name.Lr' of an optical profile, in {@link OpticalModel#KEYS} order. */
+	private static void putProfile(String name, double... d){
+		for(int i=0;i<d.length;i++){
+			vart.put(name+"."+OpticalModel.KEYS[i],new Double(d[i]));
+		}
+	}
+	
+	/**
+	 * Make optical profile 'name' the active one, the control loop uses it from the
+	 * next correction on.  The selection is also written to the setup file last read,
+	 * so reloading the file keeps it.
+	 * @return false if there is no profile 'name'
+	 */
+	public static synchronized boolean setOpticalProfile(String name){
+		if(config.getOpticalModel(name)==null){
+			System.err.format("[SetupData.setOpticalProfile(%s)]: No such profile, have %s%n",name,config.getOpticalProfiles());
+			return false;
+		}
+		vart.put("opticalProfile",name);
+		if(!publishConfig()){
+			return false;
+		}
+		
+		String path=setupFile;
+		if(path!=null){
+			writeSetupValue(path,"opticalProfile","\""+name+"\"");
+		}
+		return true;
+	}
+	
+	/**
+	 * Replace the line of 'key' in the setup file at 'path' by "key=value;", or append
+	 * it if the file has none.  The file is written to a temporary file first.
+	 * @param value Value as written in the file, strings in quotes.
+	 */
+	private static boolean writeSetupValue(String path, String key, String value){
+		File file=new File(path);
+		File tmp=new File(path+".tmp");
+		BufferedReader in=null;
+		PrintWriter out=null;
+		boolean found=false;
+		
+		try{
+			in=new BufferedReader(new FileReader(file));
+			out=new PrintWriter(new BufferedWriter(new FileWriter(tmp)));
+			String s;
+			while((s=in.readLine())!=null){
+				int eq=s.indexOf('=');
+				if(s.length()>0 && s.charAt(0)!='%' && eq>0 && s.substring(0,eq).trim().equals(key)){
+					s=key+"="+value+";";
+					found=true;
+				}
+				out.println(s);
+			}
+			if(!found){
+				out.println(key+"="+value+";");
+			}
+			if(out.checkError()){
+				throw new IOException("write failed");
+			}
+		}catch(IOException e){
+			System.err.format("[SetupData.writeSetupValue(%s)]: Error writing %s: %s%n",path,key,e.getMessage());
+			return false;
+		}finally{
+			try{
+				if(in!=null) in.close();
+			}catch(IOException e){
+				//only read
+			}
+			if(out!=null) out.close();
+		}
+		
+		if(!tmp.renameTo(file)){
+			//Windows doesn't replace an existing file
+			file.delete();
+			if(!tmp.renameTo(file)){
+				System.err.format("[SetupData.writeSetupValue(%s)]: Can't replace the file%n",path);
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/** Latest published setup values, never null. */
+	public static Config getConfig(){
+		return config;
+	}
+	
+	/**
+	 * Parse and validate {@link #vart} and publish the result as the new {@link #getConfig()}.
+	 * @return false if the table is invalid, the error is printed and the previous
+	 *         configuration stays in effect
+	 */
+	@SuppressWarnings("unchecked")
+	public static synchronized boolean publishConfig(){
+		Config old=config;
+		try{
+			config=Config.parse((Hashtable<String,Object>)vart.clone());
+		}catch(IllegalArgumentException e){
+			System.err.format("[SetupData.publishConfig()]: Invalid setup values: %s%n",e.getMessage());
+			return false;
+		}
+		
+		Set<String> changed=config.changedKeys(old);
+		if(!changed.isEmpty()){
+			if(debug) System.out.println("Setup values changed: "+changed);
+			for(ConfigListener l : listeners){
+				try{
+					l.configChanged(old,config,changed);
+				}catch(RuntimeException e){
+					System.err.format("[SetupData.publishConfig()]: Listener failed: %s%n",e);
+				}
+			}
+		}
+		return true;
+	}
+	
+	/** Called by {@link #publishConfig()} with the keys that changed, in publishing order. */
+	public static void addConfigListener(ConfigListener l){
+		listeners.add(l);
+	}
+	
+	public static void removeConfigListener(ConfigListener l){
+		listeners.remove(l);
+	}
+	
+	/** Path of the setup file last read by {@link #readConfigFile(String)}, null if none. */
+	public static String getSetupFile(){
+		return setupFile;
 	}
 	
 	public static void updateVars(){
-		wdir=(String)vart.get("wdir");
+		Config cfg=config;
+		wdir=cfg.wdir;
 		
 		if(pathsep.equals("\\")){
 			dataDir=String.format("%s\\%2$tm%2$td20%2$ty",wdir,Calendar.getInstance());
@@ -93,8 +237,7 @@ final public class SetupData {
 			dataDir=String.format("%s/%2$tm%2$td20%2$ty",wdir,Calendar.getInstance());
 		}
 		
-		String dbg = (String)vart.get("debug");
-		debug = (dbg.equals("true")) ? true:false;
+		debug = cfg.debug;
 	}
 	
 	public static void makeDir(String path){
@@ -108,11 +251,39 @@ final public class SetupData {
 		}
 	}
 	
-	/** */
+	/**
+	 * Read a setup file and apply the values that differ from {@link #vart}.  Keys the
+	 * previously applied file had but this one hasn't go back to their default, or are
+	 * removed if they have none.  Nothing is applied if the file can't be parsed or the
+	 * result is not a valid configuration.
+	 */
 	public static boolean readConfigFile(String path){
+		Hashtable<String,Object> t=readTable(path);
+		return t!=null && applyChanges(path,t);
+	}
+	
+	/**
+	 * Configuration of another beam line: the values of the setup file at 'path'
+	 * over the current setup values, nothing is published.
+	 * @throws IllegalArgumentException if the file can't be read or the values are invalid
+	 */
+	@SuppressWarnings("unchecked")
+	public static Config loadConfig(String path){
+		Hashtable<String,Object> t=readTable(path);
+		if(t==null){
+			throw new IllegalArgumentException(path+": not readable");
+		}
+		Hashtable<String,Object> merged=(Hashtable<String,Object>)vart.clone();
+		merged.putAll(t);
+		return Config.parse(merged);
+	}
+	
+	/** Values of a setup file, null if it can't be read or parsed. */
+	private static Hashtable<String,Object> readTable(String path){
 		boolean ret=true;
 		BufferedReader in=null;
 		String s;
+		Hashtable<String,Object> t=new Hashtable<String,Object>();
 		
 		try{
 			in=new BufferedReader(new FileReader(path));
@@ -130,13 +301,13 @@ final public class SetupData {
 					
 					if(val.matches("\".*\"")){
 						//System.out.println("string: "+var+"="+val+";");
-						vart.put(var,val.substring(1,val.length()-1));
+						t.put(var,val.substring(1,val.length()-1));
 					}else{
 						try{
 							//System.out.format("double: %s=%f;%n",var,Double.parseDouble(val));
-							vart.put(var,Double.parseDouble(val));
+							t.put(var,Double.parseDouble(val));
 						}catch (NumberFormatException e) {
-							System.err.format("[SetupData.readConfigFile(%s)]: Error parsing value: %s: %s%n",path,e.getMessage());
+							System.err.format("[SetupData.readConfigFile(%s)]: Error parsing value: %s: %s%n",path,var,e.getMessage());
 							ret=false;
 							break;
 						}
@@ -153,7 +324,53 @@ final public class SetupData {
 			ret=false;
 		}
 		
-		return ret;
+		return ret ? t:null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static synchronized boolean applyChanges(String path, Map<String,Object> t){
+		Hashtable<String,Object> changed=new Hashtable<String,Object>();
+		for(Map.Entry<String,Object> e : t.entrySet()){
+			if(!e.getValue().equals(vart.get(e.getKey()))){
+				changed.put(e.getKey(),e.getValue());
+			}
+		}
+		
+		//keys taken out of the file
+		Set<String> removed=new HashSet<String>();
+		for(String k : fileKeys){
+			if(t.containsKey(k)){
+				continue;
+			}
+			Object d=defaults.get(k);
+			if(d==null){
+				if(vart.containsKey(k)){
+					removed.add(k);
+				}
+			}else if(!d.equals(vart.get(k))){
+				changed.put(k,d);
+			}
+		}
+		
+		setupFile=path;
+		if(changed.isEmpty() && removed.isEmpty()){
+			fileKeys=new HashSet<String>(t.keySet());
+			return true;
+		}
+		
+		Hashtable<String,Object> candidate=(Hashtable<String,Object>)vart.clone();
+		candidate.putAll(changed);
+		candidate.keySet().removeAll(removed);
+		try{
+			Config.parse(candidate);
+		}catch(IllegalArgumentException e){
+			System.err.format("[SetupData.readConfigFile(%s)]: Invalid setup values: %s%n",path,e.getMessage());
+			return false;
+		}
+		vart.putAll(changed);
+		vart.keySet().removeAll(removed);
+		fileKeys=new HashSet<String>(t.keySet());
+		return publishConfig();
 	}
 	
 	/** */
@@ -230,6 +447,21 @@ final public class SetupData {
 			out.println("%%Distance from the beam compressor to the shear detector ");
 			out.format("Lr = %f;%n",(Double)vart.get("Lr"));
 			out.println();
+			out.println("%%Optical profile used by the theta correction: \"setup\" for the");
+			out.println("%%distances above, or the name of one of the profiles below.");
+			out.format("opticalProfile=\"%s\";%n",(String)vart.get("opticalProfile"));
+			out.println();
+			for(String name : config.getOpticalProfiles()){
+				if(name.equals("setup")){
+					continue;
+				}
+				double[] d=config.getOpticalModel(name).distances();
+				out.format("%%%%Optical profile %s%n",name);
+				for(int i=0;i<d.length;i++){
+					out.format("%s.%s = %f;%n",name,OpticalModel.KEYS[i],d[i]);
+				}
+				out.println();
+			}
 			out.println("%%pixel length in x-direction in mm ");
 			out.format("xpix = %f;%n",(Double)vart.get("xpix"));
 			out.println();
@@ -1,5 +1,6 @@
 package gui;
 
+import impl.CommandArbiter;
 import impl.Logger;
 import impl.MeanStepSizeCalculator;
 import impl.PIControl;
@@ -24,6 +25,7 @@ import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.LayoutStyle;
+import javax.swing.SwingUtilities;
 
 import data.AlignmentMath;
 import data.SetupData;
@@ -427,15 +429,52 @@ final public class AlignPanel extends JPanel implements ActionListener, Property
 	public void startPILoop(){
 		pictrl.setupLoop( ((Number)pgain.getValue()).doubleValue(),
 				((Number)igain.getValue()).doubleValue() );
-		if(!autoPILoop){
-			try{
-				pictrl.startManualLoop( ((Number)ampl.getValue()).intValue(), coadd );
-			}catch(NativeImageException ex){
-				JOptionPane.showMessageDialog(null, ex.getMessage());
+		final int stepAmpl = ((Number)ampl.getValue()).intValue();
+		final boolean auto = autoPILoop;
+		
+		//waiting for the actuator can take seconds, keep the EDT free meanwhile
+		startpi.setEnabled(false);
+		Thread t = new Thread(new Runnable(){
+			public void run(){
+				boolean granted = false;
+				try{
+					granted = pictrl.takeLease();
+				}catch(InterruptedException ex){
+					//not granted
+				}
+				
+				final boolean ok = granted;
+				SwingUtilities.invokeLater(new Runnable(){
+					public void run(){
+						startpi.setEnabled(true);
+						if(ok){
+							startPILoop(stepAmpl, auto);
+						}else{
+							JOptionPane.showMessageDialog(null, "Actuator busy: "+CommandArbiter.getDefault().getStatus());
+						}
+					}
+				});
 			}
-		}else{
-			pictrl.startAutoLoop( ((Number)ampl.getValue()).intValue(), coadd );
-		}	
+		},"PILoopStart");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/** Start the loop once the lease is held, runs on the EDT. */
+	private void startPILoop(int stepAmpl, boolean auto){
+		try{
+			if(!auto){
+				pictrl.startManualLoop( stepAmpl, coadd );
+			}else{
+				pictrl.startAutoLoop( stepAmpl, coadd );
+			}
+		}catch(NativeImageException ex){
+			pictrl.releaseLease();
+			JOptionPane.showMessageDialog(null, ex.getMessage());
+		}catch(IllegalStateException ex){
+			pictrl.releaseLease();
+			JOptionPane.showMessageDialog(null, ex.getMessage());
+		}
 	}
 	
 	public void stepPILoop(){
@@ -460,6 +499,10 @@ final public class AlignPanel extends JPanel implements ActionListener, Property
 		return coadd;
 	}
 	
+	public boolean isPILoopRunning(){
+		return pictrl!=null && pictrl.isLoopRunning();
+	}
+	
 	public void terminate(){
 		stopStepCalc();
 		stopPILoop();
@@ -25,14 +25,16 @@ import javax.swing.SwingUtilities;
 import javax.swing.filechooser.*;
 
 import data.AlignmentMath;
+import data.Config;
 import data.SetupData;
 import xenimaq.NativeImageException;
 import xenimaq.NativeImageImpl;
 import java.util.Hashtable;
 
 /*This class creates a panel to change the configuration files for the tilt and shear xenics cameras.
- * It does this by changing the configuration file and the internal program settings.  To change to 
- * the new settings after changing presets, one simply must capture the image again.  
+ * It does this by changing the configuration file and the internal program settings.  A running 
+ * camera is restarted with the new calibration by TiltShearUI, the other camera keeps running.  
+ * The setup file is the one the program was started with, see SetupData.getSetupFile().
  * */
 final public class CameraPanel extends JPanel implements ActionListener, PropertyChangeListener {
 	
@@ -47,13 +49,14 @@ final public class CameraPanel extends JPanel implements ActionListener, Propert
 	File dirS;
 	
 	public CameraPanel(NativeImageImpl tiltImg, NativeImageImpl shearImg){
-		dirT = new File("/home/mroi/workspace/Xenics-IMAQ/Calibrations/Bobcat2478_1000us_highgain_2478.xca");
-		dirS = new File("/home/mroi/workspace/Xenics-IMAQ/Calibrations/Bobcat2486_1000us_highgain_2486.xca");
+		Config cfg = SetupData.getConfig();
+		dirT = calibFile(cfg.tiltCalibFile);
+		dirS = calibFile(cfg.shearCalibFile);
 		this.tiltImg = tiltImg;
 		this.shearImg = shearImg;
 		fc = new JFileChooser();
-	    TiltLabel = new JLabel(getSetupData("tilt",dirT));
-		ShearLabel = new JLabel(getSetupData("shear",dirS));
+	    TiltLabel = new JLabel(getSetupData("tilt"));
+		ShearLabel = new JLabel(getSetupData("shear"));
 		openShearButton = new JButton("Change Shear Calibration File");
 		openShearButton.addActionListener(this);
 		openTiltButton = new JButton("Change Tilt Calibration File");
@@ -83,32 +86,16 @@ final public class CameraPanel extends JPanel implements ActionListener, Propert
 						.addComponent(openShearButton).addComponent(ShearLabel))
 			 );
 	}
-	public String getSetupData(String option, File file){
-		 BufferedReader br = null;
-		 
-		 	String line = "";
-            String info = "";
-            SetupData.vart.put(option + "CalibFile", file.getPath());
-            try {
-                FileReader fr = new FileReader("/home/mroi/workspace/TiltShearTool/setup.txt");
-                br = new BufferedReader(fr);
-                while ((line = br.readLine()) != null) {
-                    if (line.contains(option+ "CalibFile")&&!line.contains("%")){
-                        info = line;
-                    }
-                }    
-            } 
-            catch (Exception e) {
-                return info;
-            } finally {
-                try {
-                   if(br != null)
-                      br.close();
-               } catch (IOException e) {
-                   return info;
-               }
-            }
-            return info;
+	/** Calibration files are relative to the working directory. */
+	private static File calibFile(String path){
+		File f = new File(path);
+		if(!f.isAbsolute()){
+			f = new File(SetupData.wdir, path);
+		}
+		return f;
+	}
+	public String getSetupData(String option){
+		return option + "CalibFile=\"" + SetupData.getConfig().getString(option + "CalibFile", "") + "\";";
 	}
 	public void changeSetupData(String option, File file){
 		 BufferedReader br = null;
@@ -117,14 +104,22 @@ final public class CameraPanel extends JPanel implements ActionListener, Propert
              String line = "";
              String totalfile = "";
              SetupData.vart.put(option + "CalibFile", file.getPath());
+             SetupData.publishConfig();
+             
+             String setupFile = SetupData.getSetupFile();
+             if (setupFile == null) {
+                 //no setup file, the change lasts until the program exits
+                 return;
+             }
+             String tmpFile = setupFile + ".tmp";
              try {
-                 FileReader fr = new FileReader("/home/mroi/workspace/TiltShearTool/setup.txt");
+                 FileReader fr = new FileReader(setupFile);
                  br = new BufferedReader(fr);
-                 FileWriter fw = new FileWriter("/home/mroi/workspace/TiltShearTool/setup_tmp.txt");
+                 FileWriter fw = new FileWriter(tmpFile);
                  bw = new BufferedWriter(fw);
                  while ((line = br.readLine()) != null) {
                      if (line.contains(option+ "CalibFile")&&!line.contains("%")){
-                         line = option + "CalibFile=\""+file.getPath()+"\"";}
+                         line = option + "CalibFile=\""+file.getPath()+"\";";}
                      totalfile = totalfile + line + "\n";
                  }    
                  bw.write(totalfile);
@@ -145,10 +140,10 @@ final public class CameraPanel extends JPanel implements ActionListener, Propert
                     //
                 }
              }
-             File oldFile = new File("/home/mroi/workspace/TiltShearTool/setup.txt");
+             File oldFile = new File(setupFile);
              oldFile.delete();
 
-             File newFile = new File("/home/mroi/workspace/TiltShearTool/setup_tmp.txt");
+             File newFile = new File(tmpFile);
              newFile.renameTo(oldFile);
 	}
 	@Override
@@ -161,8 +156,9 @@ final public class CameraPanel extends JPanel implements ActionListener, Propert
     		 File file = fc.getSelectedFile();
     		 if (returnVal == JFileChooser.APPROVE_OPTION) {
     			 changeSetupData("shear",file);
+    			 dirS = file;
     		 }
-    	     ShearLabel.setText(getSetupData("shear",dirS));
+    	     ShearLabel.setText(getSetupData("shear"));
              
         }
         if (e.getSource() == openTiltButton) {
@@ -171,8 +167,9 @@ final public class CameraPanel extends JPanel implements ActionListener, Propert
        	 	File file = fc.getSelectedFile();
        	 	if (returnVal == JFileChooser.APPROVE_OPTION) {
        	 		changeSetupData("tilt",file);
+       	 		dirT = file;
        	 	}	
-       	    TiltLabel.setText(getSetupData("tilt",dirT));
+       	    TiltLabel.setText(getSetupData("tilt"));
             
        }
 	}
@@ -0,0 +1,132 @@
+package gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+
+/**<pre>
+ * Read only text area used as the program console.
+ *
+ * Text can be added from any thread with {@link #appendText(String)}.  It is
+ * collected in a pending buffer and appended to the document in a single batch
+ * on the EDT, at most once every {@link #getUpdateInterval()} ms, no matter how
+ * fast the loops print.
+ *
+ * The document is trimmed from the top to {@link #getMaxLines()} lines after each
+ * batch, so memory use and repaint cost stay flat during long runs.  When auto scroll
+ * is on the caret is moved to the end after each batch.
+ *</pre>
+ */
+public class ConsoleTextArea extends JTextArea {
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_MAX_LINES = 5000;
+	public static final int DEFAULT_UPDATE_INTERVAL = 100;
+
+	private final StringBuilder pending = new StringBuilder();
+	private boolean scheduled = false;
+	private final Timer timer;
+
+	private volatile int maxLines;
+	private volatile boolean autoScroll = true;
+
+	public ConsoleTextArea(){
+		this(DEFAULT_MAX_LINES);
+	}
+
+	public ConsoleTextArea(int maxLines){
+		this.maxLines = maxLines;
+		setEditable(false);
+
+		timer = new Timer(DEFAULT_UPDATE_INTERVAL, new ActionListener(){
+			public void actionPerformed(ActionEvent e){
+				flushPending();
+			}
+		});
+		timer.setRepeats(false);
+	}
+
+	/** Queue text to be appended on the EDT, can be called from any thread. */
+	public void appendText(String text){
+		synchronized(pending){
+			pending.append(text);
+
+			//nothing beyond maxLines will survive the trim, don't keep it around
+			int cap = maxLines*256;
+			if(pending.length()>cap){
+				int cut = pending.indexOf("\n",pending.length()-cap);
+				pending.delete(0,(cut<0) ? pending.length()-cap:cut+1);
+			}
+
+			if(scheduled){
+				return;
+			}
+			scheduled = true;
+		}
+		timer.restart();
+	}
+
+	private void flushPending(){
+		String text;
+		synchronized(pending){
+			text = pending.toString();
+			pending.setLength(0);
+			scheduled = false;
+		}
+
+		if(text.length()==0){
+			return;
+		}
+
+		append(text);
+		trim();
+
+		if(autoScroll){
+			setCaretPosition(getDocument().getLength());
+		}
+	}
+
+	private void trim(){
+		Element root = getDocument().getDefaultRootElement();
+		int excess = root.getElementCount() - maxLines;
+		if(excess<=0){
+			return;
+		}
+
+		try{
+			getDocument().remove(0,root.getElement(excess-1).getEndOffset());
+		}catch(BadLocationException ex){
+			throw new RuntimeException(ex);
+		}
+	}
+
+	public int getMaxLines(){
+		return maxLines;
+	}
+
+	public void setMaxLines(int maxLines){
+		this.maxLines = Math.max(1,maxLines);
+	}
+
+	public int getUpdateInterval(){
+		return timer.getInitialDelay();
+	}
+
+	/** Minimum time between two batches, in ms. */
+	public void setUpdateInterval(int ms){
+		timer.setInitialDelay(ms);
+	}
+
+	public boolean isAutoScroll(){
+		return autoScroll;
+	}
+
+	/** Keep the end of the text in view after every batch. */
+	public void setAutoScroll(boolean autoScroll){
+		this.autoScroll = autoScroll;
+	}
+}
@@ -44,6 +44,7 @@ import data.AlignmentMath;
 public class CorrectionTest extends JPanel implements ActionListener{
 	private JTable table;
 	private JScrollPane tableSP;
+	private RefreshDriver.Client refresher;
 	
 	Double thetaXs1=new Double(0);
 	Double thetaYs1=new Double(0);
@@ -60,20 +61,19 @@ public class CorrectionTest extends JPanel implements ActionListener{
 		
 		buildTable();
 		
-		Thread t = new Thread(new Runnable(){
-			public void run(){
-				while(true){
-					try{
-						Thread.sleep(1000);					
-					}catch(InterruptedException ex){
-						
-					}
-					repaint();
-				}
-			}
-		});
-		
-		t.start();
+		refresher = new RefreshDriver.ObserverCells((AbstractTableModel)table.getModel());
+	}
+	
+	@Override
+	public void addNotify(){
+		super.addNotify();
+		RefreshDriver.getDefault().subscribe(refresher);
+	}
+	
+	@Override
+	public void removeNotify(){
+		RefreshDriver.getDefault().unsubscribe(refresher);
+		super.removeNotify();
 	}
 	
 	public void buildTable(){
@@ -0,0 +1,118 @@
+package gui;
+
+import javax.swing.table.AbstractTableModel;
+
+import util.StreamDecimator;
+
+/**<pre>
+ * Table model showing a {@link StreamDecimator} level, one row per window:
+ * window start, sample count, then min, mean and max of every channel.
+ *
+ * {@link #refresh(StreamDecimator, String[], int)} picks the level that fits the
+ * whole session into about the requested number of rows and copies it, including
+ * the window still being accumulated.  EDT only.
+ *</pre>
+ */
+public class DecimatedTableModel extends AbstractTableModel {
+	private static final long serialVersionUID = 1L;
+	private static final String[] STATS = {"min", "mean", "max"};
+
+	private StreamDecimator source;
+	private String[] names = new String[0];
+	private int nch;
+	private int level = -1;
+	private long windowMs;
+
+	private long[] start = new long[0];
+	private int[] count = new int[0];
+	private double[] min = new double[0], mean = new double[0], max = new double[0];
+	private int size;
+
+	/**
+	 * Reload the rows from a decimator.
+	 * @param channelNames Name of each decimator channel.
+	 * @param rows Number of rows the view shows, used to pick the level.
+	 */
+	public void refresh(StreamDecimator d, String[] channelNames, int rows){
+		boolean structure = (d!=source || channelNames!=names);
+		if(structure){
+			source = d;
+			names = channelNames;
+			nch = d.getChannelCount();
+		}
+
+		level = d.selectLevel(d.getSpanMs(), Math.max(rows,1));
+		windowMs = d.getWindowMs(level);
+
+		int cap = d.size(level)+1;
+		if(start.length<cap || structure){
+			cap = Math.max(cap, start.length);
+			start = new long[cap];
+			count = new int[cap];
+			min = new double[cap*nch];
+			mean = new double[cap*nch];
+			max = new double[cap*nch];
+		}
+		size = d.query(level, cap, true, start, count, min, max, mean, null);
+
+		if(structure){
+			fireTableStructureChanged();
+		}else{
+			fireTableDataChanged();
+		}
+	}
+
+	/** Level shown since the last refresh, -1 before the first one. */
+	public int getLevel(){
+		return level;
+	}
+
+	public long getWindowMs(){
+		return windowMs;
+	}
+
+	public int getRowCount(){
+		return size;
+	}
+
+	public int getColumnCount(){
+		return 2+nch*STATS.length;
+	}
+
+	public String getColumnName(int col){
+		if(col==0) return "Window";
+		if(col==1) return "n";
+		int c = (col-2)/STATS.length;
+		String name = (c<names.length) ? names[c]:("ch"+c);
+		return name+" "+STATS[(col-2)%STATS.length];
+	}
+
+	public Class<?> getColumnClass(int col){
+		if(col==0) return Object.class;
+		if(col==1) return Integer.class;
+		return Double.class;
+	}
+
+	public Object getValueAt(int row, int col){
+		if(col==0){
+			return String.format("%tT", start[row]);
+		}
+		if(col==1){
+			return Integer.valueOf(count[row]);
+		}
+		int c = (col-2)/STATS.length;
+		int k = row*nch+c;
+		switch((col-2)%STATS.length){
+		case 0:
+			return Double.valueOf(min[k]);
+		case 1:
+			return Double.valueOf(mean[k]);
+		default:
+			return Double.valueOf(max[k]);
+		}
+	}
+
+	public boolean isCellEditable(int row, int col){
+		return false;
+	}
+}
@@ -0,0 +1,153 @@
+package gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.swing.JComponent;
+import javax.swing.RepaintManager;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import util.Counter;
+import util.MetricsRegistry;
+
+/**<pre>
+ * RepaintManager that limits how often the camera images are painted.
+ *
+ * The camera components request a repaint for every frame they receive.  Repaints
+ * of the components added with {@link #addComponent(JComponent)} are not passed on
+ * right away, they only mark the component dirty.  A Swing timer running at the
+ * target display rate then passes one repaint per dirty component on, so all frames
+ * received in between are skipped.  Frame grabbing and centroiding are not affected,
+ * only painting on the EDT.
+ *
+ * A tick is dropped when the EDT is behind: the tick itself is late by more than a
+ * period, or the repaint passed on by the previous tick has not been processed yet.
+ *
+ * In minimized mode, used while the PI loop runs, the rate drops to {@link #MINIMIZED_FPS}.
+ *
+ * Counters: display.frames (repaints passed on), display.skipped (frames never
+ * painted) and display.dropped (ticks dropped because the EDT was behind).
+ *</pre>
+ */
+public class DisplayThrottle extends RepaintManager {
+	public static final double DEFAULT_FPS = 8;
+	public static final double MINIMIZED_FPS = 1;
+
+	static final Counter framesCounter = MetricsRegistry.counter("display.frames");
+	static final Counter skippedCounter = MetricsRegistry.counter("display.skipped");
+	static final Counter droppedCounter = MetricsRegistry.counter("display.dropped");
+
+	/** Throttling state of one component. */
+	private static class Target {
+		final JComponent comp;
+		volatile boolean dirty;
+		volatile boolean inFlight;
+
+		Target(JComponent comp){
+			this.comp = comp;
+		}
+	}
+
+	private final CopyOnWriteArrayList<Target> targets = new CopyOnWriteArrayList<Target>();
+	private final Timer timer;
+	private volatile double fps;
+	private volatile boolean minimized = false;
+	private long lastTick;
+
+	public DisplayThrottle(double fps){
+		timer = new Timer(1000, new ActionListener(){
+			public void actionPerformed(ActionEvent e){
+				tick();
+			}
+		});
+		timer.setCoalesce(true);
+		setFps(fps);
+	}
+
+	/** Make this the current RepaintManager and start the display timer. */
+	public void install(){
+		RepaintManager.setCurrentManager(this);
+		lastTick = System.nanoTime();
+		timer.start();
+	}
+
+	/** Throttle repaints of 'c', typically a camera image component. */
+	public void addComponent(JComponent c){
+		targets.addIfAbsent(new Target(c));
+	}
+
+	/** Target display rate in frames per second, limited to the camera frame rate. */
+	public void setFps(double fps){
+		this.fps = Math.max(0.1, Math.min(RefreshDriver.MAX_RATE, fps));
+		updateDelay();
+	}
+
+	public double getFps(){
+		return fps;
+	}
+
+	/** Drop to {@link #MINIMIZED_FPS} while 'on', e.g. while the PI loop runs. */
+	public void setMinimized(boolean on){
+		if(on!=minimized){
+			minimized = on;
+			updateDelay();
+		}
+	}
+
+	public boolean isMinimized(){
+		return minimized;
+	}
+
+	private void updateDelay(){
+		double rate = minimized ? Math.min(fps,MINIMIZED_FPS):fps;
+		int ms = (int)Math.round(1000/rate);
+		timer.setDelay(ms);
+		timer.setInitialDelay(ms);
+	}
+
+	@Override
+	public void addDirtyRegion(JComponent c, int x, int y, int w, int h){
+		for(Target t : targets){
+			if(t.comp==c){
+				if(t.dirty){
+					skippedCounter.increment();
+				}
+				t.dirty = true;
+				return;
+			}
+		}
+		super.addDirtyRegion(c, x, y, w, h);
+	}
+
+	/** Runs on the EDT at the display rate. */
+	private void tick(){
+		long now = System.nanoTime();
+		long late = now-lastTick-timer.getDelay()*1000000L;
+		lastTick = now;
+		boolean behind = late > timer.getDelay()*1000000L;
+
+		for(final Target t : targets){
+			if(!t.dirty){
+				continue;
+			}
+			if(behind || t.inFlight){
+				droppedCounter.increment();
+				continue;
+			}
+
+			t.dirty = false;
+			t.inFlight = true;
+			super.addDirtyRegion(t.comp, 0, 0, t.comp.getWidth(), t.comp.getHeight());
+			framesCounter.increment();
+
+			//queued behind the paint request, runs once the EDT has caught up
+			SwingUtilities.invokeLater(new Runnable(){
+				public void run(){
+					t.inFlight = false;
+				}
+			});
+		}
+	}
+}
@@ -16,7 +16,7 @@ import javax.swing.JPanel;
 
 final public class LogPanel extends JPanel implements ActionListener{
 	
-	JCheckBox centroids, pixOffsets, thetaCorr, stepSizes, piStatus;
+	JCheckBox centroids, pixOffsets, thetaCorr, stepSizes, piStatus, metrics, logFile, trace;
 	JFormattedTextField centroidsRate, pixOffsetsRate, thetaCorrRate;
 	
 	Logger log;
@@ -42,6 +42,12 @@ final public class LogPanel extends JPanel implements ActionListener{
 		stepSizes.addActionListener(this);
 		piStatus= new JCheckBox("PI loop status");
 		piStatus.addActionListener(this);	
+		metrics= new JCheckBox("Loop metrics");
+		metrics.addActionListener(this);
+		logFile= new JCheckBox("Log to file");
+		logFile.addActionListener(this);
+		trace= new JCheckBox("Record event trace");
+		trace.addActionListener(this);
 		
 		NumberFormat f = NumberFormat.getNumberInstance();
 		centroidsRate = new JFormattedTextField(f);
@@ -71,6 +77,9 @@ final public class LogPanel extends JPanel implements ActionListener{
 					.addComponent(thetaCorr)
 					.addComponent(stepSizes)
 					.addComponent(piStatus)
+					.addComponent(metrics)
+					.addComponent(logFile)
+					.addComponent(trace)
 				)
 				.addGroup(layout.createParallelGroup(GroupLayout.Alignment.LEADING)
 					.addComponent(centroidsRate,GroupLayout.PREFERRED_SIZE, 
@@ -92,6 +101,9 @@ final public class LogPanel extends JPanel implements ActionListener{
 					.addComponent(thetaCorr).addComponent(thetaCorrRate))
 				.addComponent(stepSizes)
 				.addComponent(piStatus)
+				.addComponent(metrics)
+				.addComponent(logFile)
+				.addComponent(trace)
 		);
 		
 	}
@@ -128,6 +140,13 @@ final public class LogPanel extends JPanel implements ActionListener{
 		}else if(src == piStatus){
 			log.getPIStatus();
 			piStatus.setSelected(false);
+		}else if(src == metrics){
+			log.getMetrics();
+			metrics.setSelected(false);
+		}else if(src == logFile){
+			log.setupLogFile(logFile.isSelected());
+		}else if(src == trace){
+			log.setupTrace(trace.isSelected());
 		}
 		
 	}
@@ -136,6 +155,8 @@ final public class LogPanel extends JPanel implements ActionListener{
 		log.setupCentroids(0,false);
 		log.setupPixOffs(0,false);
 		log.setupThetaCorrs(0,false);
+		log.setupLogFile(false);
+		log.setupTrace(false);
 	}
 	
 	public static void main(String[] args){
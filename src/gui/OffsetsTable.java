@@ -27,6 +27,7 @@ import data.AlignmentMath;
 public class OffsetsTable extends JPanel{
 	private JTable table;
 	private JScrollPane tableSP;
+	private RefreshDriver.Client refresher;
 	
 //	private JComboBox unitList;
 	
@@ -34,20 +35,20 @@ public class OffsetsTable extends JPanel{
 		super();
 		buildTable();
 		
-		Thread t = new Thread(new Runnable(){
-			public void run(){
-				while(true){
-					try{
-						Thread.sleep(1000);					
-					}catch(InterruptedException ex){
-						
-					}
-					repaint();
-				}
-			}
-		});
-		
-		t.start();
+		refresher = new RefreshDriver.ObserverCells((AbstractTableModel)table.getModel());
+	}
+	
+	/* Only refresh while shown, a disposed frame leaves nothing running */
+	@Override
+	public void addNotify(){
+		super.addNotify();
+		RefreshDriver.getDefault().subscribe(refresher);
+	}
+	
+	@Override
+	public void removeNotify(){
+		RefreshDriver.getDefault().unsubscribe(refresher);
+		super.removeNotify();
 	}
 	
 	public void buildTable(){
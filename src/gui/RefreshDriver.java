@@ -0,0 +1,126 @@
+package gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+
+import util.NumberObserver;
+
+/**<pre>
+ * Single Swing timer that refreshes every live data view in the program.
+ *
+ * Views subscribe a {@link Client} when they are added to a window and unsubscribe
+ * it when they are removed (addNotify/removeNotify), so a disposed frame leaves
+ * nothing running.  The timer only runs while there are clients and calls all of
+ * them on the EDT once per tick.
+ *
+ * {@link ObserverCells} is a client for tables whose cells hold NumberObservers,
+ * it fires fireTableCellUpdated only for the cells whose observer version changed
+ * since the last tick.
+ *
+ * The rate defaults to {@link #DEFAULT_RATE} and is capped at {@link #MAX_RATE}, the
+ * camera frame rate, since the displayed values can't change faster than that.
+ *</pre>
+ */
+final public class RefreshDriver {
+	public static final double DEFAULT_RATE = 1;
+	public static final double MAX_RATE = 30;
+
+	/** Something refreshed on every tick, always called on the EDT. */
+	public interface Client {
+		public void refresh();
+	}
+
+	private static RefreshDriver defaultDriver;
+
+	private final CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<Client>();
+	private final Timer timer;
+
+	public RefreshDriver(double rate){
+		timer = new Timer(periodOf(rate), new ActionListener(){
+			public void actionPerformed(ActionEvent e){
+				for(Client c : clients){
+					c.refresh();
+				}
+			}
+		});
+		timer.setCoalesce(true);
+	}
+
+	/** Driver shared by all panels. */
+	public static synchronized RefreshDriver getDefault(){
+		if(defaultDriver==null){
+			defaultDriver = new RefreshDriver(DEFAULT_RATE);
+		}
+		return defaultDriver;
+	}
+
+	private static int periodOf(double rate){
+		rate = Math.max(0.1, Math.min(MAX_RATE, rate));
+		return (int)Math.round(1000/rate);
+	}
+
+	/** Set the refresh rate in Hz, limited to 0.1 - {@link #MAX_RATE}. */
+	public void setRate(double rate){
+		int ms = periodOf(rate);
+		timer.setDelay(ms);
+		timer.setInitialDelay(ms);
+	}
+
+	public double getRate(){
+		return 1000.0/timer.getDelay();
+	}
+
+	public synchronized void subscribe(Client c){
+		if(clients.addIfAbsent(c) && !timer.isRunning()){
+			timer.start();
+		}
+	}
+
+	public synchronized void unsubscribe(Client c){
+		if(clients.remove(c) && clients.isEmpty()){
+			timer.stop();
+		}
+	}
+
+	public int getClientCount(){
+		return clients.size();
+	}
+
+	/**
+	 * Refreshes the NumberObserver cells of a table model.  The cells are
+	 * scanned on every tick, which is cheap for the small tables it is used for.
+	 */
+	public static class ObserverCells implements Client {
+		private final AbstractTableModel model;
+		private int[] versions = new int[0];
+
+		public ObserverCells(AbstractTableModel model){
+			this.model = model;
+		}
+
+		public void refresh(){
+			int rows = model.getRowCount();
+			int cols = model.getColumnCount();
+			if(versions.length!=rows*cols){
+				versions = new int[rows*cols];
+			}
+
+			for(int r=0;r<rows;r++){
+				for(int c=0;c<cols;c++){
+					Object v = model.getValueAt(r,c);
+					if(v instanceof NumberObserver){
+						int ver = ((NumberObserver)v).getVersion();
+						if(ver!=versions[r*cols+c]){
+							versions[r*cols+c] = ver;
+							model.fireTableCellUpdated(r,c);
+						}
+					}
+				}
+			}
+		}
+	}
+}
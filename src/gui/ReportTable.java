@@ -7,10 +7,14 @@ import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Rectangle;
 import java.awt.SystemColor;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.text.NumberFormat;
@@ -21,15 +25,19 @@ import java.util.Vector;
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingConstants;
-import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.border.EtchedBorder;
 import javax.swing.border.LineBorder;
 import javax.swing.event.ChangeEvent;
@@ -41,16 +49,21 @@ import javax.swing.event.TableModelEvent;
 import javax.swing.event.TableModelListener;
 import javax.swing.table.AbstractTableModel;
 import javax.swing.table.DefaultTableCellRenderer;
-import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableCellRenderer;
 import javax.swing.text.JTextComponent;
 
 import util.NumberObserver;
+import util.StreamDecimator;
 
 import data.AlignmentMath;
+import data.SetupData;
 
 public class ReportTable extends JPanel{
+	private static final Color oddRowColor=Color.getHSBColor(.0f,.0f,1.0f);
+	private static final Color evenRowColor=Color.getHSBColor(.0f,.0f,.96f);
+	
 	JTable table;
+	RingTableModel model;
 	JScrollPane tableSP;
 	
 	NumberObserver[] dataObservers;
@@ -60,6 +73,20 @@ public class ReportTable extends JPanel{
 	
 	boolean accessLock = false;
 	
+	/* Decimated history of all numeric columns, the raw table only 
+	 * holds the latest rows while the decimator keeps the whole session */
+	StreamDecimator decimator;
+	String[] decimatorNames;
+	double[] rowValues;
+	
+	/* Summary view, shows the decimator level that fits the session in the visible rows */
+	DecimatedTableModel summaryModel;
+	Timer summaryTimer;
+	JComboBox viewList;
+	JComboBox exportLevel;
+	JButton exportb;
+	JCheckBox spillcb;
+	
 	public ReportTable(String[] columnNames){
 		buildTable(columnNames);
 	}
@@ -67,13 +94,14 @@ public class ReportTable extends JPanel{
 	private void buildTable(String[] columnNames){
 		
 		//configure the actual JTable
-		table = new JTable(new TableModel(columnNames)){
+		model = new RingTableModel(columnNames);
+		table = new JTable(model){
 			@Override
 			public Component prepareRenderer(TableCellRenderer renderer, int row, int column){
 				Component comp = super.prepareRenderer(renderer, row, column);
 				
 				if(!isCellSelected(row,column)){
-					comp.setBackground(((TableModel)table.getModel()).getRowColor(row));	
+					comp.setBackground(getRowColor(row));	
 				}
 				
 				return comp;
@@ -101,10 +129,10 @@ public class ReportTable extends JPanel{
 				
 		table.setSelectionMode(ListSelectionModel.SINGLE_INTERVAL_SELECTION);
         table.setCellSelectionEnabled(true);
-//        table.setDefaultRenderer(Object.class, new Renderer());
-        for(int i=0;i<table.getColumnCount();i++){
-        	table.getColumnModel().getColumn(i).setCellRenderer(new Renderer());
-        }
+        //default renderers survive the column changes done by resetTable()
+        Renderer renderer = new Renderer();
+        table.setDefaultRenderer(Object.class, renderer);
+        table.setDefaultRenderer(Double.class, renderer);
       
         //Make table cell start the editor when typing started over editable cell
         table.setSurrendersFocusOnKeystroke(true);
@@ -112,6 +140,15 @@ public class ReportTable extends JPanel{
         table.getTableHeader().setReorderingAllowed(false);
         
         table.getColumnModel().addColumnModelListener( new ColumnChangeListener() );
+        
+        //Rows arrive in one batch per frame, follow the last row once per batch
+        model.addTableModelListener(new TableModelListener(){
+        	public void tableChanged(TableModelEvent e){
+        		if(e.getType()==TableModelEvent.INSERT && !scrollPanePaused){
+        			table.scrollRectToVisible(table.getCellRect(model.getRowCount()-1,0,false));
+        		}
+        	}
+        });
         //done
         
         //Add the table to a scroll panel
@@ -140,13 +177,175 @@ public class ReportTable extends JPanel{
         tableSP.getVerticalScrollBar().addMouseListener(mouseAdapter);
 //    	tableSP.getVerticalScrollBar().addMouseWheelListener(mouseAdapter);
     	
+        summaryModel = new DecimatedTableModel();
+        summaryTimer = new Timer(1000, new ActionListener(){
+        	public void actionPerformed(ActionEvent e){
+        		refreshSummary();
+        	}
+        });
+        
+        viewList = new JComboBox(new String[] {"Rows", "Summary"});
+        viewList.setToolTipText("Latest rows, or min/mean/max of the whole session at the resolution that fits the table");
+        viewList.addActionListener(new ActionListener(){
+        	public void actionPerformed(ActionEvent e){
+        		setSummaryView(viewList.getSelectedIndex()==1);
+        	}
+        });
+        
+        exportLevel = new JComboBox(StreamDecimator.DEFAULT_WINDOW_NAMES);
+        exportb = new JButton("Export");
+        exportb.setToolTipText("Export min/max/mean/std of every column at the selected resolution");
+        exportb.addActionListener(new ActionListener(){
+        	public void actionPerformed(ActionEvent e){
+        		exportSummary();
+        	}
+        });
+        
+        spillcb = new JCheckBox("Keep history on disk");
+        spillcb.setToolTipText("Append rows dropped from the table to a CSV file in the data directory");
+        spillcb.addActionListener(new ActionListener(){
+        	public void actionPerformed(ActionEvent e){
+        		setSpill(spillcb.isSelected());
+        	}
+        });
+        
+        JPanel exportPanel = new JPanel();
+        exportPanel.add(new JLabel("View:"));
+        exportPanel.add(viewList);
+        exportPanel.add(new JLabel("Resolution:"));
+        exportPanel.add(exportLevel);
+        exportPanel.add(exportb);
+        exportPanel.add(spillcb);
+        
+        resetDecimator(columnNames);
+        
         //Add components to main JPanel
         setLayout( new BoxLayout(this,BoxLayout.Y_AXIS) );
         add(tableSP);        
+        add(exportPanel);
 	}
 	
 	public void resetTable(String[] colNames){
-		((TableModel)table.getModel()).setDataVector(new Object[0][colNames.length],colNames);
+		model.setColumns(colNames);
+		resetDecimator(colNames);
+	}
+	
+	private Color getRowColor(int row){
+		//use the row sequence so colors don't flip as rows drop off the top
+		long seq = (table.getModel()==model) ? model.getRowSequence(row):row;
+		if( (seq % 2) == 0 ){
+			return evenRowColor;
+		}else{
+			return oddRowColor;
+		}
+	}
+	
+	/** Switch between the latest rows and the decimated summary of the session. */
+	private void setSummaryView(boolean on){
+		if(on){
+			table.setModel(summaryModel);
+			refreshSummary();
+			summaryTimer.start();
+		}else{
+			summaryTimer.stop();
+			table.setModel(model);
+			table.scrollRectToVisible(table.getCellRect(model.getRowCount()-1,0,false));
+		}
+	}
+	
+	/** Reload the summary view at the level whose windows fill the visible rows, EDT only. */
+	private void refreshSummary(){
+		int rows = tableSP.getViewport().getExtentSize().height / Math.max(table.getRowHeight(),1);
+		StreamDecimator d;
+		String[] names;
+		synchronized(this){
+			d = decimator;
+			names = decimatorNames;
+		}
+		summaryModel.refresh(d, names, rows);
+		
+		if(!scrollPanePaused){
+			table.scrollRectToVisible(table.getCellRect(summaryModel.getRowCount()-1,0,false));
+		}
+	}
+	
+	/** Start/stop writing the rows dropped from the table to the data directory. */
+	private void setSpill(boolean on){
+		String path = null;
+		if(on){
+			SetupData.makeDir(SetupData.dataDir);
+			path = String.format("%s%sreport_%tH%<tM%<tS.csv",
+					SetupData.dataDir,SetupData.pathsep,System.currentTimeMillis());
+		}
+		
+		try{
+			model.setSpillFile(path);
+		}catch(IOException ex){
+			JOptionPane.showMessageDialog(null, "Error opening history file: "+ex.getMessage());
+			spillcb.setSelected(false);
+		}
+	}
+	
+	/** The first column holds the row label, every other column is decimated. */
+	private synchronized void resetDecimator(String[] colNames){
+		int n = Math.max(colNames.length-1,0);
+		decimatorNames = new String[n];
+		System.arraycopy(colNames,1,decimatorNames,0,n);
+		decimator = new StreamDecimator(n);
+		rowValues = new double[n];
+	}
+	
+	/** Decimated history of the current table columns. */
+	public synchronized StreamDecimator getDecimator(){
+		return decimator;
+	}
+	
+	public synchronized String[] getDecimatorNames(){
+		return decimatorNames;
+	}
+	
+	private synchronized void addObjectRow(Object[] rowData){
+		int n = Math.min(rowValues.length, rowData.length-1);
+		for(int i=0;i<n;i++){
+			Object v = rowData[1+i];
+			rowValues[i] = (v instanceof Number) ? ((Number)v).doubleValue():Double.NaN;
+		}
+		decimator.add(System.currentTimeMillis(), rowValues);
+		model.addRow(rowData[0], rowValues);
+	}
+	
+	private synchronized void addObserverRow(String rowLabel){
+		int n = Math.min(rowValues.length, dataObservers.length);
+		for(int i=0;i<n;i++){
+			rowValues[i] = dataObservers[i].getDouble();
+		}
+		decimator.add(System.currentTimeMillis(), rowValues);
+		model.addRow(rowLabel, rowValues);
+	}
+	
+	/** Ask for a file and write the decimated history at the selected resolution. */
+	private void exportSummary(){
+		JFileChooser fc = new JFileChooser();
+		if(fc.showSaveDialog(this)!=JFileChooser.APPROVE_OPTION){
+			return;
+		}
+		
+		String path = fc.getSelectedFile().getPath();
+		FileWriter out = null;
+		try{
+			out = new FileWriter(path);
+			getDecimator().writeCsv(exportLevel.getSelectedIndex(), getDecimatorNames(), out);
+		}catch(IOException ex){
+			JOptionPane.showMessageDialog(null, "Error exporting table: "+ex.getMessage());
+		}finally{
+			if(out!=null){
+				try{
+					out.close();
+				}catch(IOException ex){
+					//nothing left to do
+				}
+			}
+		}
 	}
 	
 	public void setDataObservers(NumberObserver[] dataObservers){
@@ -160,23 +359,7 @@ public class ReportTable extends JPanel{
 	 * @param rowLabel
 	 */
 	public void updateTable(String rowLabel){
-		Object[] rowData=new Object[1+dataObservers.length];
-		
-		rowData[0]=rowLabel;
-		for(int i=1;i<rowData.length;i++){
-			rowData[i] = new Double(dataObservers[i-1].getDouble());
-		}
-		
-		((TableModel)table.getModel()).addRow(rowData);
-		if(!scrollPanePaused){
-			Runnable updateScrollPane = new Runnable(){
-				public void run(){
-					table.scrollRectToVisible( 
-							table.getCellRect( ((TableModel)table.getModel()).getRowCount()-1,0,false) );
-				}
-			};
-			SwingUtilities.invokeLater( updateScrollPane ); 
-		}
+		addObserverRow(rowLabel);
 	}
 	
 	/**
@@ -185,16 +368,17 @@ public class ReportTable extends JPanel{
 	 * @param rowData Column data to use for this row. 
 	 */
 	public void updateTable(Object[] rowData){
-		((TableModel)table.getModel()).addRow(rowData);
-		if(!scrollPanePaused){
-			Runnable updateScrollPane = new Runnable(){
-				public void run(){
-					table.scrollRectToVisible( 
-							table.getCellRect( ((TableModel)table.getModel()).getRowCount()-1,0,false) );
-				}
-			};
-			SwingUtilities.invokeLater( updateScrollPane ); 
-		}
+		addObjectRow(rowData);
+	}
+	
+	/**
+	 * Add a row of numeric data to the table without boxing the values.
+	 * @param rowLabel First column value.
+	 * @param values Remaining column values, copied before returning.
+	 */
+	public synchronized void updateTable(Object rowLabel, double[] values){
+		decimator.add(System.currentTimeMillis(), values);
+		model.addRow(rowLabel, values);
 	}
 		
 	private class Renderer extends DefaultTableCellRenderer{
@@ -227,51 +411,6 @@ public class ReportTable extends JPanel{
 		}
 	}
 	
-	private class TableModel extends DefaultTableModel{
-		private Color oddRowColor=Color.getHSBColor(.0f,.0f,1.0f);
-		private Color evenRowColor=Color.getHSBColor(.0f,.0f,.96f);
-			
-		public TableModel(String[] columnNames){
-			super(new Object[0][columnNames.length], columnNames);
-		}		
-		
-		public void resetTable(Object[][] data, Object[][] columnNames){
-			synchronized(table){
-				super.setDataVector(data,columnNames);
-			}
-		}
-		
-		public void setColumnNames(String[] columnNames){
-			super.setColumnIdentifiers(columnNames);
-		}
-		
-		public Color getRowColor(int row) {
-			if( (row % 2) == 0 ){
-				return evenRowColor;
-			}else{
-				return oddRowColor;
-			}
-		}
-
-        /* JTable uses this method to determine the default renderer/
-         * editor for each cell.
-         */
-        public Class<?> getColumnClass(int c) {
-            return getValueAt(0, c).getClass();
-        }
-
-        public boolean isCellEditable(int row, int col) {
-        	return false;
-        }
-
-        @Override
-        public void addRow(Object[] rowData) {
-        	synchronized(table){
-        		super.addRow(rowData);
-        	}
-        }
-	}
-	
 	private class ColumnChangeListener implements TableColumnModelListener{
 		@Override
 		public void columnAdded(TableColumnModelEvent evt) {
@@ -0,0 +1,306 @@
+package gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+
+import util.AsyncLog;
+
+/**<pre>
+ * Table model holding the latest rows of a numeric report in a fixed size ring.
+ *
+ * Every row has a label (first column) followed by a fixed number of double values,
+ * stored in one primitive array so a row costs no objects besides its label.
+ *
+ * Rows can be added from any thread with {@link #addRow(Object, double[])}.  They are
+ * staged in a pending ring and moved into the table on the EDT at most once per frame
+ * ({@link #FRAME_MS}), firing a single fireTableRowsInserted for the whole batch.
+ * Once the table is full the oldest rows are dropped from the top.
+ *
+ * With {@link #setSpillFile(String)} every row dropped from the table is appended to
+ * a CSV file by a background AsyncLog, so the full history is kept on disk while the
+ * table itself stays small.
+ *</pre>
+ */
+public class RingTableModel extends AbstractTableModel {
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_CAPACITY = 10000;
+	public static final int FRAME_MS = 50;
+	private static final int SPILL_CAPACITY = 1<<16;
+
+	private final int capacity;
+
+	/* table contents, EDT only */
+	private String[] columnNames;
+	private int nval;
+	private Object[] labels;
+	private double[] values;
+	private long first;		//sequence number of the first visible row
+	private int size;
+
+	/* rows waiting for the next frame, guarded by 'this' */
+	private String[] pendingNames;
+	private int pendingNval;
+	private Object[] pendingLabels;
+	private double[] pendingValues;
+	private int pendingHead, pendingCount;
+	private boolean scheduled = false;
+
+	/* scratch copy of the pending rows, EDT only */
+	private Object[] batchLabels;
+	private double[] batchValues;
+
+	private final Timer frameTimer;
+
+	private AsyncLog spillLog;
+	private AsyncLog.FileSink spillSink;
+	private final StringBuilder spillLine = new StringBuilder(256);
+
+	public RingTableModel(String[] columnNames){
+		this(columnNames, DEFAULT_CAPACITY);
+	}
+
+	public RingTableModel(String[] columnNames, int capacity){
+		this.capacity = capacity;
+		allocate(columnNames);
+		allocatePending(columnNames.length-1);
+
+		frameTimer = new Timer(FRAME_MS, new ActionListener(){
+			public void actionPerformed(ActionEvent e){
+				flushPending();
+			}
+		});
+		frameTimer.setRepeats(false);
+	}
+
+	private void allocate(String[] names){
+		columnNames = names.clone();
+		nval = Math.max(names.length-1,0);
+		labels = new Object[capacity];
+		values = new double[capacity*nval];
+		batchLabels = new Object[capacity];
+		batchValues = new double[capacity*nval];
+		first = 0;
+		size = 0;
+	}
+
+	private void allocatePending(int n){
+		n = Math.max(n,0);
+		pendingNval = n;
+		pendingLabels = new Object[capacity];
+		pendingValues = new double[capacity*n];
+		pendingHead = 0;
+		pendingCount = 0;
+	}
+
+	public int getCapacity(){
+		return capacity;
+	}
+
+	/**
+	 * Replace the columns and discard all rows.  Can be called from any thread, rows
+	 * added afterwards are added to the new columns.
+	 */
+	public void setColumns(String[] names){
+		synchronized(this){
+			pendingNames = names.clone();
+			allocatePending(names.length-1);
+		}
+		schedule();
+	}
+
+	/**
+	 * Queue a row, can be called from any thread.
+	 * @param label Value of the first column.
+	 * @param rowValues Values of the remaining columns, copied before returning.
+	 */
+	public void addRow(Object label, double[] rowValues){
+		synchronized(this){
+			if(pendingCount==capacity){
+				//EDT is far behind, the oldest pending row would never be shown
+				int slot = pendingHead;
+				spill(pendingLabels[slot], pendingValues, slot*pendingNval, pendingNval);
+				pendingHead = (pendingHead+1) % capacity;
+				pendingCount--;
+			}
+
+			int slot = (pendingHead+pendingCount) % capacity;
+			pendingLabels[slot] = label;
+			int n = Math.min(pendingNval, rowValues.length);
+			System.arraycopy(rowValues, 0, pendingValues, slot*pendingNval, n);
+			for(int i=n;i<pendingNval;i++){
+				pendingValues[slot*pendingNval+i] = Double.NaN;
+			}
+			pendingCount++;
+
+			if(scheduled){
+				return;
+			}
+			scheduled = true;
+		}
+		frameTimer.restart();
+	}
+
+	private void schedule(){
+		synchronized(this){
+			if(scheduled){
+				return;
+			}
+			scheduled = true;
+		}
+		frameTimer.restart();
+	}
+
+	/** Move the pending rows into the table, runs on the EDT once per frame. */
+	private void flushPending(){
+		String[] names;
+		int m;
+
+		synchronized(this){
+			names = pendingNames;
+			pendingNames = null;
+
+			if(names!=null){
+				for(int i=0;i<size;i++){
+					int slot = (int)((first+i) % capacity);
+					spill(labels[slot], values, slot*nval, nval);
+				}
+				allocate(names);
+			}
+
+			m = pendingCount;
+			for(int i=0;i<m;i++){
+				int slot = (pendingHead+i) % capacity;
+				batchLabels[i] = pendingLabels[slot];
+				pendingLabels[slot] = null;
+				System.arraycopy(pendingValues, slot*nval, batchValues, i*nval, nval);
+			}
+			pendingHead = 0;
+			pendingCount = 0;
+			scheduled = false;
+		}
+
+		if(names!=null){
+			fireTableStructureChanged();
+			if(spillLog!=null){
+				spillHeader();
+			}
+		}
+
+		if(m==0){
+			return;
+		}
+
+		//make room at the top
+		int evict = Math.max(0, size+m-capacity);
+		if(evict>0){
+			for(int i=0;i<evict;i++){
+				int slot = (int)((first+i) % capacity);
+				spill(labels[slot], values, slot*nval, nval);
+				labels[slot] = null;
+			}
+			first += evict;
+			size -= evict;
+			fireTableRowsDeleted(0, evict-1);
+		}
+
+		for(int i=0;i<m;i++){
+			int slot = (int)((first+size+i) % capacity);
+			labels[slot] = batchLabels[i];
+			batchLabels[i] = null;
+			System.arraycopy(batchValues, i*nval, values, slot*nval, nval);
+		}
+		size += m;
+		fireTableRowsInserted(size-m, size-1);
+	}
+
+	/** Sequence number of a row since the last column change, stable while rows scroll off the top. */
+	public long getRowSequence(int row){
+		return first+row;
+	}
+
+	public int getRowCount(){
+		return size;
+	}
+
+	public int getColumnCount(){
+		return columnNames.length;
+	}
+
+	public String getColumnName(int col){
+		return columnNames[col];
+	}
+
+	public Class<?> getColumnClass(int col){
+		return (col==0) ? Object.class:Double.class;
+	}
+
+	public Object getValueAt(int row, int col){
+		int slot = (int)((first+row) % capacity);
+		if(col==0){
+			return labels[slot];
+		}
+		return Double.valueOf(values[slot*nval+col-1]);
+	}
+
+	/** Primitive access to a value column, 'col' counts the label column. */
+	public double getDoubleAt(int row, int col){
+		return values[(int)((first+row) % capacity)*nval+col-1];
+	}
+
+	public boolean isCellEditable(int row, int col){
+		return false;
+	}
+
+	/**
+	 * Start/stop writing rows dropped from the table to a CSV file.
+	 * @param path File to append to, null to stop.
+	 */
+	public synchronized void setSpillFile(String path) throws IOException{
+		if(spillLog!=null){
+			spillLog.close();
+			spillSink.close();
+			spillLog = null;
+			spillSink = null;
+		}
+
+		if(path!=null){
+			spillSink = new AsyncLog.FileSink(path);
+			spillLog = new AsyncLog(SPILL_CAPACITY);
+			spillLog.addSink(spillSink);
+			spillHeader();
+		}
+	}
+
+	public synchronized boolean isSpilling(){
+		return spillLog!=null;
+	}
+
+	private synchronized void spillHeader(){
+		String[] names = (pendingNames!=null) ? pendingNames:columnNames;
+		spillLine.setLength(0);
+		spillLine.append('#');
+		for(int i=0;i<names.length;i++){
+			if(i>0) spillLine.append(',');
+			spillLine.append(names[i]);
+		}
+		spillLog.println(spillLine.toString());
+	}
+
+	private synchronized void spill(Object label, double[] src, int off, int n){
+		if(spillLog==null){
+			return;
+		}
+
+		spillLine.setLength(0);
+		spillLine.append(label);
+		for(int i=0;i<n;i++){
+			spillLine.append(',').append(src[off+i]);
+		}
+		spillLog.println(spillLine.toString());
+	}
+}
@@ -0,0 +1,357 @@
+package gui;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Container;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+
+import util.NumberObserver;
+
+import data.AlignmentMath;
+
+/**<pre>
+ * Strip charts of the centroid offsets in pixels, angular corrections and commanded steps.
+ *
+ * A render thread samples the AlignmentMath observers at the camera frame rate,
+ * a sample is stored whenever one of the observers was set since the last frame.
+ * Samples are kept in a fixed size ring of primitive arrays.
+ *
+ * Each frame is rendered off the EDT into a reusable BufferedImage: the samples in
+ * the visible time span are reduced to a min/max envelope per pixel column, so the
+ * cost of a frame depends on the width of the panel, not on the number of samples,
+ * and nothing is allocated per point.  The finished image is swapped with the one
+ * shown by paintComponent.
+ *
+ * The render thread only runs while the panel is displayed.
+ *</pre>
+ */
+public class StripChartPanel extends JPanel {
+	private static final long serialVersionUID = 1L;
+
+	public static final int CAPACITY = 1<<16;
+	public static final long[] SPANS_MS = {10000, 60000, 600000};
+	public static final String[] SPAN_NAMES = {"10 s", "1 min", "10 min"};
+
+	private static final NumberObserver[] sources = {
+		AlignmentMath.Hxdt_pix, AlignmentMath.Hydt_pix, AlignmentMath.Hxds_pix, AlignmentMath.Hyds_pix,
+		AlignmentMath.acm1xObs, AlignmentMath.acm1yObs, AlignmentMath.acm2xObs, AlignmentMath.acm2yObs,
+		AlignmentMath.scm1ax1Obs, AlignmentMath.scm1ax2Obs, AlignmentMath.scm2ax1Obs, AlignmentMath.scm2ax2Obs
+	};
+	private static final String[] names = {
+		"Hxdt", "Hydt", "Hxds", "Hyds",
+		"\u03b8x_s1", "\u03b8y_s1", "\u03b8x_s2", "\u03b8y_s2",
+		"N_s1ax1", "N_s1ax2", "N_s2ax1", "N_s2ax2"
+	};
+	private static final int[] group = {0,0,0,0, 1,1,1,1, 2,2,2,2};
+	private static final String[] groupNames = {"Offsets [px]", "Angle corrections [deg]", "Steps"};
+	private static final Color[] colors = {
+		new Color(0x1f77b4), new Color(0xd62728), new Color(0x2ca02c), new Color(0xff7f0e)
+	};
+
+	private static final int NCH = sources.length;
+	private static final int NGROUPS = groupNames.length;
+	private static final int MARGIN_LEFT = 70;
+	private static final int LEGEND_HEIGHT = 14;
+
+	/* sample ring, render thread only */
+	private final long[] time = new long[CAPACITY];
+	private final double[] values = new double[CAPACITY*NCH];
+	private int head, size;
+	private final int[] versions = new int[NCH];
+
+	/* per pixel column envelope, render thread only */
+	private int columns = -1;
+	private double[] colMin, colMax, colFirst, colLast;
+
+	private BufferedImage front, back;
+	private final Object imageLock = new Object();
+
+	private final Chart chart = new Chart();
+	private final JComboBox spanList = new JComboBox(SPAN_NAMES);
+	private final JCheckBox pausecb = new JCheckBox("Pause");
+
+	private volatile Thread renderThread;
+	private volatile int spanIndex = 1;
+	private volatile boolean paused = false;
+
+	public StripChartPanel(){
+		super(new BorderLayout());
+
+		spanList.setSelectedIndex(spanIndex);
+		ActionListener l = new ActionListener(){
+			public void actionPerformed(ActionEvent e){
+				spanIndex = spanList.getSelectedIndex();
+				paused = pausecb.isSelected();
+			}
+		};
+		spanList.addActionListener(l);
+		pausecb.addActionListener(l);
+
+		JPanel controls = new JPanel();
+		controls.add(new JLabel("Span:"));
+		controls.add(spanList);
+		controls.add(pausecb);
+
+		chart.setPreferredSize(new Dimension(700,450));
+		add(chart, BorderLayout.CENTER);
+		add(controls, BorderLayout.SOUTH);
+	}
+
+	@Override
+	public void addNotify(){
+		super.addNotify();
+		renderThread = new Thread(new Renderer(),"StripChart");
+		renderThread.setDaemon(true);
+		renderThread.start();
+	}
+
+	@Override
+	public void removeNotify(){
+		Thread t = renderThread;
+		renderThread = null;
+		if(t!=null){
+			t.interrupt();
+		}
+		super.removeNotify();
+	}
+
+	/** Store a sample if any observer was set since the last call. */
+	private void sample(long now){
+		boolean changed = false;
+		for(int c=0;c<NCH;c++){
+			int v = sources[c].getVersion();
+			if(v!=versions[c]){
+				versions[c] = v;
+				changed = true;
+			}
+		}
+		if(!changed){
+			return;
+		}
+
+		time[head] = now;
+		int base = head*NCH;
+		for(int c=0;c<NCH;c++){
+			values[base+c] = sources[c].getDouble();
+		}
+		head = (head+1) % CAPACITY;
+		if(size<CAPACITY){
+			size++;
+		}
+	}
+
+	/** Reduce the samples from 'start' to 'start+span' to a min/max envelope per pixel column. */
+	private void reduce(long start, long span, int w){
+		if(w!=columns){
+			columns = w;
+			colMin = new double[w*NCH];
+			colMax = new double[w*NCH];
+			colFirst = new double[w*NCH];
+			colLast = new double[w*NCH];
+		}
+		Arrays.fill(colMin, Double.NaN);
+
+		//newest to oldest, stop at the first sample outside the span
+		for(int i=0;i<size;i++){
+			int slot = (head-1-i+CAPACITY) % CAPACITY;
+			long t = time[slot];
+			if(t<start){
+				break;
+			}
+
+			int x = (int)((t-start)*(w-1)/span);
+			int base = slot*NCH;
+			for(int c=0;c<NCH;c++){
+				double v = values[base+c];
+				int k = x*NCH+c;
+				if(Double.isNaN(colMin[k])){
+					colMin[k] = colMax[k] = colFirst[k] = colLast[k] = v;
+				}else{
+					if(v<colMin[k]) colMin[k] = v;
+					if(v>colMax[k]) colMax[k] = v;
+					colFirst[k] = v;	//walking backwards in time
+				}
+			}
+		}
+	}
+
+	private void render(Graphics2D g, int w, int h, long now){
+		g.setColor(Color.white);
+		g.fillRect(0,0,w,h);
+
+		int plotW = w-MARGIN_LEFT-10;
+		if(plotW<10){
+			return;
+		}
+
+		long span = SPANS_MS[spanIndex];
+		reduce(now-span, span, plotW);
+
+		int plotH = h/NGROUPS;
+		for(int gi=0;gi<NGROUPS;gi++){
+			int y0 = gi*plotH+LEGEND_HEIGHT+2;
+			int ph = plotH-LEGEND_HEIGHT-8;
+			if(ph<10){
+				continue;
+			}
+
+			//common y range of the group
+			double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+			for(int c=0;c<NCH;c++){
+				if(group[c]!=gi){
+					continue;
+				}
+				for(int x=0;x<plotW;x++){
+					int k = x*NCH+c;
+					if(!Double.isNaN(colMin[k])){
+						if(colMin[k]<lo) lo = colMin[k];
+						if(colMax[k]>hi) hi = colMax[k];
+					}
+				}
+			}
+			if(lo>hi){
+				lo = -1; hi = 1;
+			}else if(hi-lo < 1E-12){
+				double d = Math.max(Math.abs(hi)*0.1, 1E-9);
+				lo -= d; hi += d;
+			}
+
+			g.setColor(Color.lightGray);
+			g.drawRect(MARGIN_LEFT, y0, plotW-1, ph);
+			if(lo<0 && hi>0){
+				int yz = y0+ph-(int)((0-lo)/(hi-lo)*ph);
+				g.drawLine(MARGIN_LEFT, yz, MARGIN_LEFT+plotW-1, yz);
+			}
+
+			g.setColor(Color.black);
+			g.drawString(groupNames[gi], 4, y0-3);
+			g.drawString(String.format("%.4g",hi), 4, y0+10);
+			g.drawString(String.format("%.4g",lo), 4, y0+ph);
+
+			int lx = MARGIN_LEFT+150;
+			int ci = 0;
+			for(int c=0;c<NCH;c++){
+				if(group[c]!=gi){
+					continue;
+				}
+				Color col = colors[ci++ % colors.length];
+
+				g.setColor(col);
+				g.drawString(names[c], lx, y0-3);
+				lx += 70;
+
+				int prevX = -1;
+				double prev = 0;
+				for(int x=0;x<plotW;x++){
+					int k = x*NCH+c;
+					if(Double.isNaN(colMin[k])){
+						continue;
+					}
+					int sx = MARGIN_LEFT+x;
+					int ymin = y0+ph-(int)((colMin[k]-lo)/(hi-lo)*ph);
+					int ymax = y0+ph-(int)((colMax[k]-lo)/(hi-lo)*ph);
+					g.drawLine(sx, ymax, sx, ymin);
+					if(prevX>=0){
+						g.drawLine(prevX, y0+ph-(int)((prev-lo)/(hi-lo)*ph),
+								sx, y0+ph-(int)((colFirst[k]-lo)/(hi-lo)*ph));
+					}
+					prevX = sx;
+					prev = colLast[k];
+				}
+			}
+		}
+	}
+
+	private class Renderer implements Runnable {
+		public void run(){
+			long period = (long)(1000/RefreshDriver.MAX_RATE);
+
+			while(renderThread==Thread.currentThread()){
+				long now = System.currentTimeMillis();
+				sample(now);
+
+				int w = chart.getWidth();
+				int h = chart.getHeight();
+				if(w>0 && h>0 && !paused){
+					if(back==null || back.getWidth()!=w || back.getHeight()!=h){
+						back = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+					}
+
+					Graphics2D g = back.createGraphics();
+					try{
+						render(g, w, h, now);
+					}finally{
+						g.dispose();
+					}
+
+					synchronized(imageLock){
+						BufferedImage t = front;
+						front = back;
+						back = t;
+					}
+					chart.repaint();
+				}
+
+				try{
+					Thread.sleep(Math.max(1, period-(System.currentTimeMillis()-now)));
+				}catch(InterruptedException ex){
+					break;
+				}
+			}
+		}
+	}
+
+	private class Chart extends JComponent {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void paintComponent(Graphics g){
+			synchronized(imageLock){
+				if(front!=null){
+					g.drawImage(front, 0, 0, null);
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args){
+		JFrame frame = new JFrame("Strip Chart");
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+		Container mcp = frame.getContentPane();
+		mcp.add(new StripChartPanel());
+
+		frame.pack();
+		frame.setVisible(true);
+
+		for(int i=0;;i++){
+			double t = i*0.033;
+			AlignmentMath.Hxdt_pix.setNumber(20*Math.sin(t));
+			AlignmentMath.Hydt_pix.setNumber(20*Math.cos(t));
+			AlignmentMath.Hxds_pix.setNumber(10*Math.sin(3*t));
+			AlignmentMath.Hyds_pix.setNumber(Math.random()-0.5);
+			AlignmentMath.acm1xObs.setNumber(Math.sin(t)*1E-3);
+			AlignmentMath.acm1yObs.setNumber(Math.cos(t)*1E-3);
+			AlignmentMath.scm1ax1Obs.setNumber((int)(20*Math.sin(t)));
+			AlignmentMath.scm2ax2Obs.setNumber((int)(10*Math.cos(2*t)));
+			try{
+				Thread.sleep(33);
+			}catch(InterruptedException ex){
+				break;
+			}
+		}
+	}
+}
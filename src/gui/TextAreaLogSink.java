@@ -0,0 +1,24 @@
+package gui;
+
+import util.AsyncLog;
+
+/**
+ * AsyncLog sink that appends each formatted batch to a {@link ConsoleTextArea}.
+ *
+ * The batch is copied to a String and queued on the console, which coalesces it
+ * with stdout output and appends it on the EDT.
+ */
+public class TextAreaLogSink implements AsyncLog.Sink {
+	private final ConsoleTextArea console;
+
+	public TextAreaLogSink(ConsoleTextArea console){
+		this.console = console;
+	}
+
+	public void write(CharSequence batch){
+		console.appendText(batch.toString());
+	}
+
+	public void flush(){
+	}
+}
@@ -2,41 +2,110 @@ package gui;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import javax.swing.JTextArea;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
 /**
-* An output stream that writes its output to a javax.swing.JTextArea
-* control.
-* 
-* Copied from: http://www.jcreator.com/forums/index.php?showtopic=773
+* An output stream that writes its output to a {@link ConsoleTextArea}.
+*
+* Bytes are buffered until a full line has been written, decoded as UTF-8 and
+* handed to the console, which appends them in batches on the EDT.  Lines longer
+* than the buffer are passed on in pieces.
+*
+* Originally based on: http://www.jcreator.com/forums/index.php?showtopic=773
 * @author  Ranganath Kini
-* @see      javax.swing.JTextArea
+* @see      ConsoleTextArea
 */
 public class TextAreaOutputStream extends OutputStream {
-    private JTextArea textArea;
-    
-    /**
-     * Creates a new instance of TextAreaOutputStream which writes
-     * to the specified instance of javax.swing.JTextArea control.
-     *
-     * @param control   A reference to the javax.swing.JTextArea
-     *                  control to which the output must be redirected
-     *                  to.
-     */
-    public TextAreaOutputStream( JTextArea control ) {
-        textArea = control;
-    }
-    
-    
-    /**
-     * Writes the specified byte as a character to the 
-     * javax.swing.JTextArea.
-     *
-     * @param   b   The byte to be written as character to the 
-     *              JTextArea.
-     */
-    public void write( int b ) throws IOException {
-        // append the data as characters to the JTextArea control
-        textArea.append( String.valueOf( ( char )b ) );
-    }   
-}
\ No newline at end of file
+	private static final int BUFFER_SIZE = 8192;
+
+	private final ConsoleTextArea console;
+	private final CharsetDecoder decoder;
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+	private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+	/**
+	 * Creates a new instance of TextAreaOutputStream which writes
+	 * to the specified console.
+	 *
+	 * @param console   The console to which the output must be
+	 *                  redirected to.
+	 */
+	public TextAreaOutputStream( ConsoleTextArea console ) {
+		this.console = console;
+		decoder = Charset.forName("UTF-8").newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * Buffers the specified byte, the line is passed to the console
+	 * once it is complete.
+	 */
+	public synchronized void write( int b ) throws IOException {
+		bytes.put((byte)b);
+		if(b=='\n' || !bytes.hasRemaining()){
+			emit(b=='\n');
+		}
+	}
+
+	public synchronized void write( byte[] b, int off, int len ) throws IOException {
+		int end = off+len;
+		int nl = -1;
+
+		while(off<end){
+			int n = Math.min(end-off, bytes.remaining());
+			bytes.put(b, off, n);
+
+			for(int i=off;i<off+n;i++){
+				if(b[i]=='\n'){
+					nl = i;
+				}
+			}
+			off += n;
+
+			if(!bytes.hasRemaining()){
+				emit(nl==off-1);
+			}
+		}
+
+		if(nl>=0 && bytes.position()>0){
+			//pass on complete lines only, keep the partial line buffered
+			int tail = end-1-nl;
+			if(tail<bytes.position()){
+				bytes.position(bytes.position()-tail);
+				emit(true);
+				bytes.put(b, end-tail, tail);
+			}
+		}
+	}
+
+	/** Pass on any buffered text, including an incomplete last line. */
+	public synchronized void close() throws IOException {
+		emit(true);
+	}
+
+	/**
+	 * Decode the buffered bytes and pass them to the console.
+	 * @param endOfInput false if the buffer may end inside a multi byte character,
+	 *                   the incomplete character is then kept for the next call.
+	 */
+	private void emit(boolean endOfInput){
+		bytes.flip();
+		chars.clear();
+		decoder.decode(bytes, chars, endOfInput);
+		if(endOfInput){
+			decoder.flush(chars);
+			decoder.reset();
+		}
+		bytes.compact();
+
+		chars.flip();
+		if(chars.hasRemaining()){
+			console.appendText(chars.toString());
+		}
+	}
+}
@@ -24,25 +24,25 @@ import data.AlignmentMath;
 public class ThetasTable extends JPanel{
 	private JTable table;
 	private JScrollPane tableSP;
+	private RefreshDriver.Client refresher;
 	
 	public ThetasTable(){
 		super();
 		buildTable();
 		
-		Thread t = new Thread(new Runnable(){
-			public void run(){
-				while(true){
-					try{
-						Thread.sleep(1000);					
-					}catch(InterruptedException ex){
-						
-					}
-					repaint();
-				}
-			}
-		});
-		
-		t.start();
+		refresher = new RefreshDriver.ObserverCells((AbstractTableModel)table.getModel());
+	}
+	
+	@Override
+	public void addNotify(){
+		super.addNotify();
+		RefreshDriver.getDefault().subscribe(refresher);
+	}
+	
+	@Override
+	public void removeNotify(){
+		RefreshDriver.getDefault().unsubscribe(refresher);
+		super.removeNotify();
 	}
 	
 	public void buildTable(){
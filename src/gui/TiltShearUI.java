@@ -7,7 +7,6 @@ import java.awt.Color;
 import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.Font;
-import java.awt.Graphics;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -17,20 +16,25 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
+import java.text.NumberFormat;
+import java.util.Set;
 
 import javax.swing.BoxLayout;
 import javax.swing.GroupLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JFormattedTextField;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
 import javax.swing.JToggleButton;
 import javax.swing.LayoutStyle;
 import javax.swing.SwingUtilities;
@@ -38,7 +42,12 @@ import javax.swing.GroupLayout.SequentialGroup;
 import javax.swing.border.LineBorder;
 import javax.swing.event.MouseInputAdapter;
 
+import util.AsyncLog;
+
 import data.AlignmentMath;
+import data.Config;
+import data.ConfigListener;
+import data.ModelComparison;
 import data.SetupData;
 
 import xenimaq.NativeImage;
@@ -71,9 +80,9 @@ final public class TiltShearUI extends JFrame implements ActionListener {
 	String colorProfile;
 	
 	JToggleButton grabb;
-	JCheckBox tiltCB, shearCB, alignPanelCB, actuatorPanelCB, logPanelCB, corrTestCB, cameraPanelCB;
+	JCheckBox tiltCB, shearCB, alignPanelCB, actuatorPanelCB, logPanelCB, corrTestCB, cameraPanelCB, stripChartCB, minimizeDisplayCB;
 	
-	JTextArea outTextArea;
+	ConsoleTextArea outTextArea;
 	JScrollPane outScrollPane;
 	
 	ActuatorPanel actuatorPanel;
@@ -91,6 +100,13 @@ final public class TiltShearUI extends JFrame implements ActionListener {
 	
 	CorrectionTest corrTest;
 	JFrame corrTestFrame;
+	
+	JFrame stripChartFrame;
+	
+	DisplayThrottle displayThrottle;
+	JFormattedTextField displayFps;
+	JComboBox opticsBox, compareBox;
+	private boolean updatingOptics;
 	DefinedRoutines routines;
 	
 	boolean scrollPaneFocus=false;
@@ -112,6 +128,16 @@ final public class TiltShearUI extends JFrame implements ActionListener {
 		
 		updateVars();
 		routines = new DefinedRoutines(ai,shearImg,tiltImg);
+		
+		SetupData.addConfigListener(new ConfigListener(){
+			public void configChanged(Config old, final Config cfg, final Set<String> changed){
+				SwingUtilities.invokeLater(new Runnable(){
+					public void run(){
+						applyConfig(cfg, changed);
+					}
+				});
+			}
+		});
 	}
 	
 	/** Method used to acquire the setup values from SetupData and store into
@@ -119,9 +145,81 @@ final public class TiltShearUI extends JFrame implements ActionListener {
 	 * setup values in SetupData. 
 	 */
 	public void updateVars(){
-		tiltCalibFile = (String)SetupData.vart.get("tiltCalibFile");
-		shearCalibFile = (String)SetupData.vart.get("shearCalibFile");
-		colorProfile = (String)SetupData.vart.get("xenicsColorProfile");
+		Config cfg = SetupData.getConfig();
+		tiltCalibFile = cfg.tiltCalibFile;
+		shearCalibFile = cfg.shearCalibFile;
+		colorProfile = cfg.xenicsColorProfile;
+		
+		double rate = cfg.getDouble("uiRefreshRate", Double.NaN);
+		if(!Double.isNaN(rate)){
+			RefreshDriver.getDefault().setRate(rate);
+		}
+	}
+	
+	/** Apply setup values changed while running, only what depends on them is restarted. */
+	void applyConfig(Config cfg, Set<String> changed){
+		updateVars();
+		
+		if(changed.contains("displayFps") && displayThrottle!=null){
+			displayThrottle.setFps(cfg.getDouble("displayFps", DisplayThrottle.DEFAULT_FPS));
+			displayFps.setValue(new Double(displayThrottle.getFps()));
+		}
+		if(changed.contains("consoleMaxLines") && outTextArea!=null){
+			double maxLines = cfg.getDouble("consoleMaxLines", Double.NaN);
+			if(!Double.isNaN(maxLines)){
+				outTextArea.setMaxLines((int)maxLines);
+			}
+		}
+		
+		if(opticsBox!=null){
+			updateOpticsBoxes(cfg);
+		}
+		
+		boolean profile = changed.contains("xenicsColorProfile");
+		if(changed.contains("tiltCalibFile") || profile){
+			reloadCalibration(tiltImg, tiltCalibFile, "tilt");
+		}
+		if(changed.contains("shearCalibFile") || profile){
+			reloadCalibration(shearImg, shearCalibFile, "shear");
+		}
+	}
+	
+	/** List the optical profiles of 'cfg', select the active and the compared one. */
+	private void updateOpticsBoxes(Config cfg){
+		updatingOptics = true;
+		opticsBox.removeAllItems();
+		compareBox.removeAllItems();
+		compareBox.addItem("off");
+		for(String name : cfg.getOpticalProfiles()){
+			opticsBox.addItem(name);
+			compareBox.addItem(name);
+		}
+		opticsBox.setSelectedItem(cfg.opticalProfile);
+		ModelComparison c = AlignmentMath.getComparison();
+		compareBox.setSelectedItem((c==null) ? "off":c.getModel().name);
+		updatingOptics = false;
+	}
+	
+	/** Restart a running camera with a new calibration, a stopped one loads it on the next grab. */
+	private void reloadCalibration(NativeImageImpl img, String calibFile, String name){
+		if(img==null || img.getNativeImageState()!=NativeImage.INITIALIZED_RUNNING){
+			return;
+		}
+		boolean coadd = (alignPanel!=null) && alignPanel.isCoaddOn();
+		
+		try{
+			img.stopImage();
+			img.loadCalibrationFile(calibFile);
+			img.loadColorProfile(colorProfile);
+			if(coadd){
+				img.startCoaddedImage();
+			}else{
+				img.startImage();
+			}
+			System.out.println("Reloaded "+name+" calibration "+calibFile);
+		}catch(Exception ex){
+			JOptionPane.showMessageDialog(null, "Error reloading "+name+" calibration: "+ex.getMessage());
+		}
 	}
 	
 	public void buildUI(){
@@ -155,17 +253,49 @@ final public class TiltShearUI extends JFrame implements ActionListener {
 		corrTestCB.addActionListener(this);
 		corrTestCB.setSelected(false);
 		
-		outTextArea = new JTextArea(){
-			@Override
-			public void paintComponent(Graphics G){
-				if(!scrollPaneFocus){
-					setCaretPosition(this.getDocument().getLength());
-				}
-				super.paintComponent(G);
+		stripChartCB = new JCheckBox("Strip Chart");
+		stripChartCB.addActionListener(this);
+		
+		//Camera images are painted at the display rate, not the frame rate
+		double fps = SetupData.getConfig().getDouble("displayFps", DisplayThrottle.DEFAULT_FPS);
+		displayThrottle = new DisplayThrottle(fps);
+		if(!testGUI){
+			displayThrottle.addComponent(tiltImg);
+			displayThrottle.addComponent(shearImg);
+		}
+		displayThrottle.install();
+		
+		displayFps = new JFormattedTextField(NumberFormat.getNumberInstance());
+		displayFps.setValue(new Double(displayThrottle.getFps()));
+		displayFps.setColumns(3);
+		displayFps.addPropertyChangeListener("value", new PropertyChangeListener(){
+			public void propertyChange(PropertyChangeEvent evt){
+				displayThrottle.setFps(((Number)displayFps.getValue()).doubleValue());
+				displayFps.setValue(new Double(displayThrottle.getFps()));
 			}
-		};
+		});
+		JLabel fpsLabel = new JLabel("Display FPS");
+		
+		minimizeDisplayCB = new JCheckBox("Min. display in PI loop");
+		minimizeDisplayCB.setToolTipText("Paint the camera images at "+DisplayThrottle.MINIMIZED_FPS+" FPS while the PI loop runs");
+		minimizeDisplayCB.setSelected(true);
+		
+		//optical profile of the theta correction, and one to compare against
+		opticsBox = new JComboBox();
+		compareBox = new JComboBox();
+		updateOpticsBoxes(SetupData.getConfig());
+		opticsBox.addActionListener(this);
+		compareBox.addActionListener(this);
+		compareBox.setToolTipText("Compute the corrections with this profile as well, see the 'compare' telemetry");
+		JLabel opticsLabel = new JLabel("Optics");
+		JLabel compareLabel = new JLabel("Compare");
+		
+		outTextArea = new ConsoleTextArea();
+		double maxLines = SetupData.getConfig().getDouble("consoleMaxLines", Double.NaN);
+		if(!Double.isNaN(maxLines)){
+			outTextArea.setMaxLines((int)maxLines);
+		}
 		
-		outTextArea.setEditable(false);
 		outTextArea.setFont(new Font("Times New Roman",Font.PLAIN,14));
 		
 		outScrollPane = new JScrollPane(outTextArea);
@@ -180,6 +310,7 @@ final public class TiltShearUI extends JFrame implements ActionListener {
 					}else if(vbar.getValue() == vbar.getMaximum()){
 						scrollPaneFocus = false;
 					}
+					outTextArea.setAutoScroll(!scrollPaneFocus);
 					
 					return;
 				}
@@ -189,6 +320,7 @@ final public class TiltShearUI extends JFrame implements ActionListener {
 					int cnt = e.getClickCount();
 					if(cnt==2){
 						scrollPaneFocus = false;
+						outTextArea.setAutoScroll(true);
 					}
 				}
 				
@@ -202,7 +334,12 @@ final public class TiltShearUI extends JFrame implements ActionListener {
 		outScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
 		outScrollPane.setPreferredSize(new Dimension(600,200));
 		
-		//Here we redirect stdout to the JTextArea
+		//Here we redirect stdout to the console, logger output is
+		//written by AsyncLog in batches to stdout and the console
+		AsyncLog log = AsyncLog.getDefault();
+		log.addSink(new AsyncLog.PrintStreamSink(System.out));
+		log.addSink(new TextAreaLogSink(outTextArea));
+		
 		PrintStream out;
 		try {
 			out = new PrintStream( new TextAreaOutputStream(outTextArea), true, "UTF-8" );
@@ -228,7 +365,22 @@ final public class TiltShearUI extends JFrame implements ActionListener {
 					.addComponent(actuatorPanelCB)
 					.addComponent(logPanelCB)
 					.addComponent(corrTestCB)
-					.addComponent(cameraPanelCB))
+					.addComponent(cameraPanelCB)
+					.addComponent(stripChartCB)
+					.addGroup( lplayout.createSequentialGroup()
+							.addComponent(fpsLabel)
+							.addComponent(displayFps,GroupLayout.PREFERRED_SIZE, 
+									GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE))
+					.addComponent(minimizeDisplayCB)
+					.addGroup( lplayout.createSequentialGroup()
+							.addGroup( lplayout.createParallelGroup(GroupLayout.Alignment.LEADING)
+									.addComponent(opticsLabel)
+									.addComponent(compareLabel))
+							.addGroup( lplayout.createParallelGroup(GroupLayout.Alignment.LEADING)
+									.addComponent(opticsBox,GroupLayout.PREFERRED_SIZE, 
+											GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+									.addComponent(compareBox,GroupLayout.PREFERRED_SIZE, 
+											GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE))))
 		);
 		
 		lplayout.setVerticalGroup( lplayout.createSequentialGroup()
@@ -241,6 +393,19 @@ final public class TiltShearUI extends JFrame implements ActionListener {
 			.addComponent(logPanelCB)
 			.addComponent(corrTestCB)
 			.addComponent(cameraPanelCB)
+			.addComponent(stripChartCB)
+			.addPreferredGap(LayoutStyle.ComponentPlacement.RELATED, 20, 20)
+			.addGroup( lplayout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+					.addComponent(fpsLabel)
+					.addComponent(displayFps))
+			.addComponent(minimizeDisplayCB)
+			.addPreferredGap(LayoutStyle.ComponentPlacement.RELATED, 20, 20)
+			.addGroup( lplayout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+					.addComponent(opticsLabel)
+					.addComponent(opticsBox))
+			.addGroup( lplayout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+					.addComponent(compareLabel)
+					.addComponent(compareBox))
 		);
 		
 		lpanel.setBorder( new LineBorder(Color.gray) );
@@ -450,6 +615,36 @@ final public class TiltShearUI extends JFrame implements ActionListener {
 			corrTestFrame.getContentPane().add(corrTest);
 			corrTestFrame.pack();
 			corrTestFrame.setVisible(true);
+		}else if(src == stripChartCB){
+			if(!stripChartCB.isSelected()){
+				if(stripChartFrame!=null){
+					stripChartFrame.dispose();
+				}
+				return;
+			}
+			
+			stripChartFrame = new JFrame("Strip Chart");
+			stripChartFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+			stripChartFrame.getContentPane().add(new StripChartPanel());
+			stripChartFrame.pack();
+			stripChartFrame.setVisible(true);
+		}else if(src == opticsBox){
+			Object name = opticsBox.getSelectedItem();
+			if(updatingOptics || name==null || name.equals(SetupData.getConfig().opticalProfile)){
+				return;
+			}
+			if(!SetupData.setOpticalProfile((String)name)){
+				JOptionPane.showMessageDialog(null, "Could not select optical profile "+name);
+			}
+		}else if(src == compareBox){
+			Object name = compareBox.getSelectedItem();
+			if(updatingOptics || name==null){
+				return;
+			}
+			ModelComparison old = AlignmentMath.setCompareProfile(name.equals("off") ? null:(String)name);
+			if(old!=null){
+				System.out.println(old.getStatus());
+			}
 		}
 		
 	}
@@ -562,6 +757,15 @@ final public class TiltShearUI extends JFrame implements ActionListener {
 						corrTestCB.setSelected(false);
 					}
 					
+					if(stripChartFrame != null){
+						stripChartCB.setSelected(stripChartFrame.isVisible());
+					}else{
+						stripChartCB.setSelected(false);
+					}
+					
+					displayThrottle.setMinimized(minimizeDisplayCB.isSelected() 
+							&& alignPanel!=null && alignPanel.isPILoopRunning());
+					
 					Thread.sleep(500);
 					
 				}catch(InterruptedException ex){
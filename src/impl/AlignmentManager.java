@@ -0,0 +1,454 @@
+package impl;
+
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import util.Completion;
+import util.LatencyHistogram;
+import util.MetricsRegistry;
+
+import data.BeamLineMath;
+import data.Config;
+import data.OpticalModel;
+import data.SetupData;
+
+/**<pre>
+ * Aligns the beam lines of the array concurrently.
+ *
+ * Every beam line is a {@link BeamLineContext} with its own configuration, cameras,
+ * controller and loop state.  The loops share two pools: a small scheduler for the
+ * loop computations and the pacing, sized to the processors, and an I/O pool for
+ * the moves, one thread per moving beam line.  {@link #alignAll()} starts every
+ * beam line at once, so aligning the array takes as long as the slowest beam line.
+ *
+ * The beam lines are listed in the setup value 'beamLines', a comma separated list
+ * of setup files.  Each file holds the values that differ from the main setup file,
+ * at least the device names and the reference centroids, usually the channels, the
+ * optical profile and the step sizes, see {@link BeamLineContext}; its name without
+ * extension names the beam line.
+ *
+ * Alignment parameters, setup values of the main file:
+ *   alignTolerance   largest correction of an aligned beam [deg]   (5E-3)
+ *   alignSettled     iterations in a row within the tolerance       (3)
+ *   alignIntervalMs  shortest time between iterations [ms]          (100)
+ *
+ * Usage of the simulated array:
+ *   AlignmentManager [beams=8] [msPerStep=0.5] [perController=0] [msPerCommand=5]
+ *                    [maxBypass=4] [calibrate=true]
+ *   beams          beam lines
+ *   msPerStep      time an axis moves per step [ms]
+ *   perController  beam lines sharing one simulated controller, 1 or 2 (4 channels);
+ *                  0 moves every beam line on its own without a controller
+ *   msPerCommand   time of a command on the serial link of a controller [ms]
+ *   maxBypass      fairness bound of the controller scheduler, see
+ *                  {@link ControllerScheduler#setFairness(int, long)}
+ *   calibrate      false uses the nominal step size 0.005 deg/step instead of
+ *                  measuring it
+ *</pre>
+ */
+public class AlignmentManager {
+	static final LatencyHistogram beamHist = MetricsRegistry.histogram("array.beamLine");
+	static final LatencyHistogram arrayHist = MetricsRegistry.histogram("array.all");
+
+	private final Map<String,BeamLineContext> beamLines = new TreeMap<String,BeamLineContext>();
+	private final ScheduledThreadPoolExecutor loop;
+	private final ExecutorService io;
+
+	double tolerance = 5E-3;
+	int settled = 3;
+	long intervalMs = 100;
+
+	private volatile Completion<Boolean> run;
+	private volatile long startNanos, endNanos;
+
+	public AlignmentManager(){
+		Config cfg = SetupData.getConfig();
+		tolerance = cfg.getDouble("alignTolerance", tolerance);
+		settled = (int)cfg.getDouble("alignSettled", settled);
+		intervalMs = (long)cfg.getDouble("alignIntervalMs", intervalMs);
+
+		loop = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors(),
+				daemons("BeamLineLoop"));
+		io = Executors.newCachedThreadPool(daemons("BeamLineIO"));
+	}
+
+	private static ThreadFactory daemons(final String name){
+		final AtomicInteger n = new AtomicInteger();
+		return new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r,name+"-"+n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Beam lines of the setup value 'beamLines', on their devices.
+	 * @throws IllegalArgumentException if a setup file is invalid
+	 */
+	public static AlignmentManager fromSetup(){
+		AlignmentManager m = new AlignmentManager();
+		String list = SetupData.getConfig().getString("beamLines", "");
+		for(String path : list.split(",")){
+			path = path.trim();
+			if(path.length()==0){
+				continue;
+			}
+			String name = new File(path).getName().replaceFirst("\\.[^.]*$", "");
+			Config cfg = SetupData.loadConfig(path);
+			m.add(new BeamLineContext(name, cfg, new BeamLineContext.Devices(cfg)));
+		}
+		return m;
+	}
+
+	public synchronized void add(BeamLineContext b){
+		if(beamLines.containsKey(b.name)){
+			throw new IllegalArgumentException("beam line "+b.name+" exists");
+		}
+		beamLines.put(b.name, b);
+	}
+
+	public synchronized BeamLineContext get(String name){
+		return beamLines.get(name);
+	}
+
+	public synchronized List<BeamLineContext> getBeamLines(){
+		return new ArrayList<BeamLineContext>(beamLines.values());
+	}
+
+	/**
+	 * Align every beam line at once.
+	 * @return Completes when the last beam line is done, with true if all are aligned.
+	 *  Cancelling it stops every loop.
+	 */
+	public Completion<Boolean> alignAll(){
+		final List<BeamLineContext> all = getBeamLines();
+		final Completion<Boolean> c = new Completion<Boolean>();
+		final AtomicInteger left = new AtomicInteger(all.size());
+		final AtomicInteger aligned = new AtomicInteger();
+		startNanos = System.nanoTime();
+		endNanos = 0;
+		run = c;
+		if(all.isEmpty()){
+			c.complete(true);
+			return c;
+		}
+
+		for(final BeamLineContext b : all){
+			final Completion<Boolean> bc = b.align(loop, io, tolerance, settled, intervalMs);
+			c.onAbort(new Runnable(){
+				public void run(){
+					bc.cancel(true);
+				}
+			});
+			bc.whenDone(new Runnable(){
+				public void run(){
+					beamHist.record((long)(b.getSeconds()*1E9));
+					if(bc.getNow(false)){
+						aligned.incrementAndGet();
+					}
+					if(left.decrementAndGet()==0){
+						endNanos = System.nanoTime();
+						arrayHist.record(endNanos-startNanos);
+						c.complete(aligned.get()==all.size());
+					}
+				}
+			});
+		}
+		return c;
+	}
+
+	public void stopAll(){
+		Completion<Boolean> c = run;
+		if(c!=null){
+			c.cancel(true);
+		}
+		for(BeamLineContext b : getBeamLines()){
+			b.stop();
+		}
+	}
+
+	/** Stop the loops and the pools, close the devices. */
+	public void shutdown(){
+		stopAll();
+		loop.shutdownNow();
+		io.shutdownNow();
+		for(BeamLineContext b : getBeamLines()){
+			b.hardware.close();
+		}
+	}
+
+	/**
+	 * "beamLines=N aligning= aligned= failed= stopped= seconds= slowest=name sum=",
+	 * 'seconds' is the wall time of the array, 'sum' the time the beam lines would
+	 * take one after the other.
+	 */
+	public String getStatus(){
+		int[] n = new int[BeamLineContext.State.values().length];
+		double sum = 0, slowest = -1;
+		String slowestName = "none";
+		List<BeamLineContext> all = getBeamLines();
+		for(BeamLineContext b : all){
+			n[b.getState().ordinal()]++;
+			double s = b.getSeconds();
+			sum += s;
+			if(s>slowest){
+				slowest = s;
+				slowestName = b.name;
+			}
+		}
+		long t0 = startNanos, t1 = endNanos;
+		double seconds = (t0==0) ? 0 : (((t1==0) ? System.nanoTime():t1)-t0)*1E-9;
+		return String.format("beamLines=%d aligning=%d aligned=%d failed=%d stopped=%d seconds=%.2f slowest=%s sum=%.2f",
+				all.size(), n[BeamLineContext.State.ALIGNING.ordinal()], n[BeamLineContext.State.ALIGNED.ordinal()],
+				n[BeamLineContext.State.FAILED.ordinal()], n[BeamLineContext.State.STOPPED.ordinal()],
+				seconds, slowestName, sum);
+	}
+
+	/** Status line of every beam line, see {@link BeamLineContext#getStatus()}. */
+	public List<String> getBeamLineStatus(){
+		List<String> l = new ArrayList<String>();
+		for(BeamLineContext b : getBeamLines()){
+			l.add(b.getStatus());
+		}
+		return l;
+	}
+
+/* * * * * * * * * * * * * * * */
+/* simulated array */
+
+	/**
+	 * A beam line without devices: the misalignment is the correction the loop should
+	 * find, the centroids follow from it through the inverse of the optical model, the
+	 * reference centroids are (320,256).  A move corrects by the commanded steps times
+	 * a step size of 0.005 deg/step give or take 20%, and takes 'msPerStep' per step,
+	 * or goes through the scheduler of a simulated controller shared with other beam
+	 * lines.
+	 */
+	static class Simulated implements BeamLineContext.Hardware {
+		private final double[] inv = new double[16];
+		private final double[] c = new double[4];
+		private final double[] ss = new double[4];
+		private final double msPerStep;
+		private final int chM1;
+		private final ControllerScheduler controller;
+
+		Simulated(Config cfg, double msPerStep, ControllerScheduler controller, Random r){
+			this.msPerStep = msPerStep;
+			this.chM1 = cfg.chM1;
+			this.controller = controller;
+			OpticalModel optics = cfg.optics;
+			//columns of the model, then inverted
+			double[] k = new double[16];
+			double[] col = new double[4];
+			for(int j=0;j<4;j++){
+				optics.corrections((j==0) ? 1:0, (j==1) ? 1:0, (j==2) ? 1:0, (j==3) ? 1:0, col);
+				for(int i=0;i<4;i++){
+					k[i*4+j] = col[i];
+				}
+			}
+			invert(k, inv);
+			for(int i=0;i<4;i++){
+				c[i] = (r.nextDouble()-0.5)*0.2;
+				ss[i] = 0.005*(0.8+0.4*r.nextDouble());
+			}
+		}
+
+		public void open(){
+		}
+
+		public void close(){
+		}
+
+		public synchronized void getCentroids(Point2D.Double tilt, Point2D.Double shear){
+			double[] p = new double[4];
+			for(int i=0;i<4;i++){
+				p[i] = inv[i*4]*c[0]+inv[i*4+1]*c[1]+inv[i*4+2]*c[2]+inv[i*4+3]*c[3];
+			}
+			tilt.setLocation(320+p[0], 256+p[1]);
+			shear.setLocation(320+p[2], 256+p[3]);
+		}
+
+		public void move(int channel, int ax1, int ax2) throws Exception{
+			if(controller!=null){
+				controller.step(channel, ax1, ax2);
+			}else{
+				Thread.sleep((long)((Math.abs(ax1)+Math.abs(ax2))*msPerStep));
+			}
+			synchronized(this){
+				//axes as in AlignmentMath.computeStepCorrection
+				if(channel==chM1){
+					c[0] += ax1*ss[0];
+					c[1] += ax2*ss[1];
+				}else{
+					c[3] += ax1*ss[2];
+					c[2] += ax2*ss[3];
+				}
+			}
+		}
+
+		/** Gauss-Jordan with partial pivoting, 4x4 row major. */
+		private static void invert(double[] a, double[] out){
+			double[] m = a.clone();
+			for(int i=0;i<16;i++){
+				out[i] = (i%5==0) ? 1:0;
+			}
+			for(int col=0;col<4;col++){
+				int p = col;
+				for(int r=col+1;r<4;r++){
+					if(Math.abs(m[r*4+col])>Math.abs(m[p*4+col])){
+						p = r;
+					}
+				}
+				for(int j=0;j<4;j++){
+					double t = m[col*4+j]; m[col*4+j] = m[p*4+j]; m[p*4+j] = t;
+					t = out[col*4+j]; out[col*4+j] = out[p*4+j]; out[p*4+j] = t;
+				}
+				double d = m[col*4+col];
+				for(int j=0;j<4;j++){
+					m[col*4+j] /= d;
+					out[col*4+j] /= d;
+				}
+				for(int r=0;r<4;r++){
+					if(r!=col){
+						double f = m[r*4+col];
+						for(int j=0;j<4;j++){
+							m[r*4+j] -= f*m[col*4+j];
+							out[r*4+j] -= f*out[col*4+j];
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A controller link: every command takes 'msPerCommand' on the serial line, an
+	 * axis moves for 'msPerStep' per step.
+	 */
+	static class SimulatedLink implements ControllerScheduler.Link {
+		private final double msPerStep;
+		private final long msPerCommand;
+		private final long[][] until = new long[5][3];
+		private int channel = 1;
+
+		SimulatedLink(double msPerStep, long msPerCommand){
+			this.msPerStep = msPerStep;
+			this.msPerCommand = msPerCommand;
+		}
+
+		public void setChannel(int channel) throws InterruptedException{
+			Thread.sleep(msPerCommand);
+			this.channel = channel;
+		}
+
+		public void step(int axis, int steps) throws InterruptedException{
+			Thread.sleep(msPerCommand);
+			until[channel][axis] = System.nanoTime()+(long)(Math.abs(steps)*msPerStep*1E6);
+		}
+
+		public boolean isMoving(int axis) throws InterruptedException{
+			Thread.sleep(msPerCommand);
+			return System.nanoTime()<until[channel][axis];
+		}
+
+		public int getLimitStatus() throws InterruptedException{
+			Thread.sleep(msPerCommand);
+			return 0;
+		}
+	}
+
+	public static void main(String[] args) throws Exception{
+		int beams = 8;
+		double msPerStep = 0.5;
+		int perController = 0;
+		long msPerCommand = 5;
+		int maxBypass = ControllerScheduler.MAX_BYPASS;
+		boolean calibrate = true;
+		for(String arg : args){
+			String[] kv = arg.split("=");
+			if(kv.length!=2){
+				throw new IllegalArgumentException("Bad option: "+arg);
+			}
+			if(kv[0].equals("beams")){
+				beams = Integer.parseInt(kv[1]);
+			}else if(kv[0].equals("msPerStep")){
+				msPerStep = Double.parseDouble(kv[1]);
+			}else if(kv[0].equals("perController")){
+				//beam lines on one controller, 1 or 2 (4 channels)
+				perController = Integer.parseInt(kv[1]);
+			}else if(kv[0].equals("msPerCommand")){
+				msPerCommand = Long.parseLong(kv[1]);
+			}else if(kv[0].equals("maxBypass")){
+				maxBypass = Integer.parseInt(kv[1]);
+			}else if(kv[0].equals("calibrate")){
+				calibrate = Boolean.parseBoolean(kv[1]);
+			}else{
+				throw new IllegalArgumentException("Unknown option: "+kv[0]);
+			}
+		}
+
+		Config cfg = SetupData.getConfig();
+		AlignmentManager m = new AlignmentManager();
+		Random r = new Random(1);
+		List<String> profiles = new ArrayList<String>(cfg.getOpticalProfiles());
+		Collections.sort(profiles);
+		ControllerScheduler controller = null;
+		Set<ControllerScheduler> controllers = new LinkedHashSet<ControllerScheduler>();
+		for(int i=0;i<beams;i++){
+			//beam lines on different optical setups
+			Map<String,Object> v = new HashMap<String,Object>(cfg.getValues());
+			v.put("opticalProfile", profiles.get(i%profiles.size()));
+			v.put("tiltRefX", Double.valueOf(320));
+			v.put("tiltRefY", Double.valueOf(256));
+			v.put("shearRefX", Double.valueOf(320));
+			v.put("shearRefY", Double.valueOf(256));
+			for(String key : BeamLineMath.STEP_SIZE_KEYS){
+				if(calibrate){
+					v.remove(key);
+				}else{
+					v.put(key, Double.valueOf(0.005));
+				}
+			}
+			if(perController>0){
+				int k = i%perController;
+				if(k==0){
+					controller = new ControllerScheduler(String.format("ctl%02d", i/perController),
+							new SimulatedLink(msPerStep, msPerCommand));
+					controller.setFairness(maxBypass, ControllerScheduler.MAX_WAIT_MS);
+					controllers.add(controller);
+				}
+				v.put("chM1", Double.valueOf(2*k+1));
+				v.put("chM2", Double.valueOf(2*k+2));
+			}
+			Config bc = Config.parse(v);
+			m.add(new BeamLineContext(String.format("bl%02d", i), bc, new Simulated(bc, msPerStep, controller, r)));
+		}
+
+		Completion<Boolean> c = m.alignAll();
+		System.out.println("all aligned: "+c.get());
+		for(String s : m.getBeamLineStatus()){
+			System.out.println("  "+s);
+		}
+		System.out.println(m.getStatus());
+		for(ControllerScheduler s : controllers){
+			System.out.println("  "+s.getStatus());
+		}
+		m.shutdown();
+	}
+}
@@ -0,0 +1,46 @@
+package impl;
+
+import util.Completion;
+
+/**
+ * Commands available to remote clients, implemented by {@link DefinedRoutines}
+ * on the real hardware and by {@link SimulatedRoutines} for load tests.
+ */
+public interface AlignmentRoutines {
+	/** Session of the remote client the following calls are made for, null for the GUI. */
+	public void setSession(String session);
+
+	/** @return false if the reference centroid could not be set */
+	public boolean setTiltRef();
+	public boolean setShearRef();
+	public void setReferencePoints();
+
+	public void startStepCalc();
+	public void stopStepCalc();
+	/**
+	 * Start the step size calculation.
+	 * @return Completes with true once the step sizes are measured, cancelling it
+	 *  stops the calculation.
+	 */
+	public Completion<Boolean> stepCalc();
+
+	public void startPILoop();
+	public void stepPILoop();
+	public void stopPILoop();
+
+	public void startImages(boolean tiltOn, boolean shearOn);
+	public void stopImages();
+	public void setCoaddOn(boolean b);
+	public void setupCoadd(int coaddN, int coaddT);
+	public void setAutoPILoop(boolean b);
+
+	/** Queue a relative move of both mounts. */
+	public void moveMounts(int m1ax1, int m1ax2, int m2ax1, int m2ax2);
+	public void abortMotion();
+
+	public boolean isPILoopRunning();
+	public boolean isStepCalcRunning();
+	public boolean isMotionRunning();
+	public boolean isCoaddOn();
+	public boolean isAutoPILoop();
+}
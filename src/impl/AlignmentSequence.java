@@ -0,0 +1,577 @@
+package impl;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import util.Completion;
+import util.MetricsRegistry;
+import util.TelemetryHub;
+
+/**<pre>
+ * Runs a scripted alignment, one phase per line:
+ *
+ *   images [coadd=N,T]       start grabbing, continuous or co-added
+ *   calibrate                mean step sizes, see {@link MeanStepSizeCalculator}
+ *   operator "message"       wait for {@link #confirm()}, e.g. to block a beam
+ *   reference                set the tilt and shear reference centroids
+ *   align auto|manual        start the PI loop
+ *   hold seconds             keep the loop running, fails if it stops
+ *   verify max=deg [n=10]    wait for n loop corrections below max on all axes
+ *   stop                     stop the PI loop
+ *
+ * Every phase takes the options
+ *
+ *   timeout=seconds          fail the sequence if the phase takes longer
+ *   if=condition             skip the phase unless the condition holds:
+ *                            uncalibrated, calibrated, loopRunning, loopStopped,
+ *                            coadd, noCoadd
+ *
+ * calibrate times out after 300 s, verify after 60 s and operator after 600 s unless
+ * set otherwise, so a script never waits forever for a confirm nobody can give.
+ * Text after '#' is a comment.
+ *
+ * The phases are chained {@link Completion}s, a phase starts the moment the
+ * previous one completes.  A phase that completes with false (no step sizes, no
+ * reference) ends the sequence, as do a timeout and {@link #cancel()}.  The wall
+ * time of each phase goes to the histogram "sequence.<phase>" and to
+ * {@link #getReport()}.  One sequence runs at a time, see {@link #getCurrent()}.
+ *</pre>
+ */
+public class AlignmentSequence {
+	public static final long CALIBRATE_TIMEOUT_MS = 300*1000;
+	public static final long VERIFY_TIMEOUT_MS = 60*1000;
+	public static final long OPERATOR_TIMEOUT_MS = 600*1000;
+
+	private static final String[] types = {
+		"images", "calibrate", "operator", "reference", "align", "hold", "verify", "stop"
+	};
+	private static final String[] conditions = {
+		"always", "uncalibrated", "calibrated", "loopRunning", "loopStopped", "coadd", "noCoadd"
+	};
+
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+		public Thread newThread(Runnable r){
+			Thread t = new Thread(r,"AlignmentSequence");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private static volatile AlignmentSequence current;
+	/* step sizes measured by a sequence since the program started */
+	private static volatile boolean calibrated;
+
+	/** One line of the script. */
+	static class Phase {
+		String type;
+		String arg;
+		String condition = "always";
+		long timeoutMs;
+		int line;
+		long t0;
+		double seconds = -1;
+		String outcome = "pending";
+	}
+
+	private final String name;
+	private final List<Phase> phases;
+
+	private AlignmentRoutines routines;
+	private String session;
+	private Completion<Boolean> result;
+	private volatile Completion<Boolean> operator;
+	private volatile String prompt;
+
+	private AlignmentSequence(String name, List<Phase> phases){
+		this.name = name;
+		this.phases = phases;
+	}
+
+/* * * * * * * * * * * * * * * */
+/* scripts */
+
+	/**
+	 * The old runAlign* routines: start grabbing, calibrate for the auto loop, set the
+	 * references, then run the loop.  Like the old routines it doesn't wait for the
+	 * beams to be switched, see {@link #alignScript(boolean, int, int, boolean)}.
+	 * @param coaddN Frames to co-add, 0 for continuous grabbing.
+	 */
+	public static String alignScript(boolean auto, int coaddN, int coaddT){
+		return alignScript(auto, coaddN, coaddT, false);
+	}
+
+	/**
+	 * See {@link #alignScript(boolean, int, int)}.
+	 * @param operator Wait for {@link #confirm()} before setting the references with the
+	 *                 alignment beam blocked and before running the loop on the alignment
+	 *                 beam.  Only for callers that offer a confirm, e.g. "sequence confirm".
+	 */
+	public static String alignScript(boolean auto, int coaddN, int coaddT, boolean operator){
+		return ((coaddN>0) ? "images coadd="+coaddN+","+coaddT:"images")+"\n"
+			+(auto ? "calibrate\n":"")
+			+(operator ? "operator \"Block the alignment beam, show the reference beam\"\n":"")
+			+"reference\n"
+			+(operator ? "operator \"Block the reference beam, show the alignment beam\"\n":"")
+			+"align "+(auto ? "auto":"manual")+"\n";
+	}
+
+	/**
+	 * Parse a script.
+	 * @throws IllegalArgumentException listing every bad line
+	 */
+	public static AlignmentSequence parse(String name, String script){
+		List<Phase> phases = new ArrayList<Phase>();
+		StringBuilder errors = new StringBuilder();
+		String[] lines = script.split("\n");
+		for(int i=0;i<lines.length;i++){
+			try{
+				Phase p = parseLine(lines[i]);
+				if(p!=null){
+					p.line = i+1;
+					phases.add(p);
+				}
+			}catch(IllegalArgumentException ex){
+				errors.append((errors.length()>0) ? "; ":"").append("line ").append(i+1).append(": ").append(ex.getMessage());
+			}
+		}
+		if(errors.length()>0){
+			throw new IllegalArgumentException(errors.toString());
+		}
+		if(phases.isEmpty()){
+			throw new IllegalArgumentException("no phases");
+		}
+		return new AlignmentSequence(name, phases);
+	}
+
+	public static AlignmentSequence load(String path) throws IOException{
+		StringBuilder s = new StringBuilder();
+		BufferedReader in = new BufferedReader(new FileReader(path));
+		try{
+			String line;
+			while((line = in.readLine())!=null){
+				s.append(line).append('\n');
+			}
+		}finally{
+			in.close();
+		}
+		return parse(path, s.toString());
+	}
+
+	private static Phase parseLine(String line){
+		List<String> w = words(line);
+		if(w.isEmpty()){
+			return null;
+		}
+		Phase p = new Phase();
+		p.type = w.get(0);
+		if(!contains(types, p.type)){
+			throw new IllegalArgumentException("unknown phase "+p.type);
+		}
+		if(p.type.equals("calibrate")){
+			p.timeoutMs = CALIBRATE_TIMEOUT_MS;
+		}else if(p.type.equals("verify")){
+			p.timeoutMs = VERIFY_TIMEOUT_MS;
+		}else if(p.type.equals("operator")){
+			p.timeoutMs = OPERATOR_TIMEOUT_MS;
+		}
+
+		StringBuilder arg = new StringBuilder();
+		for(String s : w.subList(1, w.size())){
+			if(s.startsWith("timeout=")){
+				p.timeoutMs = (long)(number(s)*1000);
+			}else if(s.startsWith("if=")){
+				p.condition = s.substring(3);
+				if(!contains(conditions, p.condition)){
+					throw new IllegalArgumentException("unknown condition "+p.condition);
+				}
+			}else{
+				arg.append((arg.length()>0) ? " ":"").append(s);
+			}
+		}
+		p.arg = arg.toString();
+
+		//check the arguments now rather than half way through
+		if(p.type.equals("images")){
+			if(p.arg.length()>0){
+				coadd(p.arg);
+			}
+		}else if(p.type.equals("align")){
+			if(!p.arg.equals("auto") && !p.arg.equals("manual")){
+				throw new IllegalArgumentException("expected align auto|manual");
+			}
+		}else if(p.type.equals("hold")){
+			number("seconds="+p.arg);
+		}else if(p.type.equals("verify")){
+			verifyArgs(p.arg);
+		}else if(p.type.equals("operator")){
+			if(p.arg.length()==0){
+				throw new IllegalArgumentException("expected operator \"message\"");
+			}
+		}else if(p.arg.length()>0){
+			throw new IllegalArgumentException(p.type+" takes no arguments");
+		}
+		return p;
+	}
+
+	/** Whitespace separated words, "..." is one word, '#' starts a comment. */
+	private static List<String> words(String line){
+		List<String> w = new ArrayList<String>();
+		StringBuilder s = null;
+		boolean quoted = false;
+		for(int i=0;i<line.length();i++){
+			char c = line.charAt(i);
+			if(c=='"'){
+				quoted = !quoted;
+				if(s==null){
+					s = new StringBuilder();
+				}
+			}else if(!quoted && c=='#'){
+				break;
+			}else if(!quoted && Character.isWhitespace(c)){
+				if(s!=null){
+					w.add(s.toString());
+					s = null;
+				}
+			}else{
+				if(s==null){
+					s = new StringBuilder();
+				}
+				s.append(c);
+			}
+		}
+		if(quoted){
+			throw new IllegalArgumentException("unterminated quote");
+		}
+		if(s!=null){
+			w.add(s.toString());
+		}
+		return w;
+	}
+
+	private static boolean contains(String[] a, String s){
+		for(String x : a){
+			if(x.equals(s)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Value of "key=value", must be >= 0. */
+	private static double number(String kv){
+		try{
+			double d = Double.parseDouble(kv.substring(kv.indexOf('=')+1));
+			if(d>=0){
+				return d;
+			}
+		}catch(NumberFormatException ex){
+			//below
+		}
+		throw new IllegalArgumentException("bad number "+kv);
+	}
+
+	private static int[] coadd(String arg){
+		String[] v = arg.startsWith("coadd=") ? arg.substring(6).split(",") : new String[0];
+		try{
+			if(v.length==2){
+				return new int[]{Integer.parseInt(v[0]), Integer.parseInt(v[1])};
+			}
+		}catch(NumberFormatException ex){
+			//below
+		}
+		throw new IllegalArgumentException("expected coadd=N,T");
+	}
+
+	/** {max, n} */
+	private static double[] verifyArgs(String arg){
+		double[] v = {Double.NaN, 10};
+		for(String s : arg.split(" ")){
+			if(s.startsWith("max=")){
+				v[0] = number(s);
+			}else if(s.startsWith("n=")){
+				v[1] = Math.max(1, (int)number(s));
+			}else{
+				throw new IllegalArgumentException("expected verify max=deg [n=10]");
+			}
+		}
+		if(Double.isNaN(v[0])){
+			throw new IllegalArgumentException("expected verify max=deg [n=10]");
+		}
+		return v;
+	}
+
+/* * * * * * * * * * * * * * * */
+/* running */
+
+	/**
+	 * Start the sequence on 'routines', the routines are called for 'session'.
+	 * @return Completes with true once every phase is done, false if a phase ended
+	 *  the sequence, fails if a phase timed out.
+	 * @throws IllegalStateException if a sequence is running already
+	 */
+	public Completion<Boolean> start(AlignmentRoutines routines, String session){
+		synchronized(AlignmentSequence.class){
+			AlignmentSequence c = current;
+			if(c!=null && !c.result.isDone()){
+				throw new IllegalStateException("sequence "+c.name+" running");
+			}
+			if(result!=null){
+				throw new IllegalStateException("sequence "+name+" was run already");
+			}
+			this.routines = routines;
+			this.session = session;
+			result = new Completion<Boolean>();
+			current = this;
+		}
+
+		System.out.println("Sequence "+name+" started.");
+		Completion<Boolean> c = Completion.completed(true);
+		for(final Phase p : phases){
+			c = c.then(executor, new Completion.Step<Boolean,Boolean>(){
+				public Completion<Boolean> apply(Boolean ok){
+					if(!ok){
+						p.outcome = "skipped";
+						return Completion.completed(false);
+					}
+					return run(p);
+				}
+			});
+		}
+		final Completion<Boolean> chain = c;
+		result.onAbort(new Runnable(){
+			public void run(){
+				chain.cancel(true);
+			}
+		});
+		chain.whenDone(new Runnable(){
+			public void run(){
+				finished(chain);
+			}
+		});
+		return result;
+	}
+
+	/** Start phase 'p', the returned stage completes when it is done. */
+	private Completion<Boolean> run(final Phase p){
+		if(!holds(p.condition)){
+			p.outcome = "skipped";
+			return Completion.completed(true);
+		}
+		p.t0 = System.nanoTime();
+		p.outcome = "running";
+		routines.setSession(session);
+
+		Completion<Boolean> c;
+		try{
+			c = start(p).within(p.timeoutMs);
+		}catch(RuntimeException ex){
+			c = new Completion<Boolean>();
+			c.fail(ex);
+		}
+		final Completion<Boolean> phase = c;
+		phase.whenDone(new Runnable(){
+			public void run(){
+				long dt = System.nanoTime()-p.t0;
+				MetricsRegistry.histogram("sequence."+p.type).record(dt);
+				p.seconds = dt*1E-9;
+				p.outcome = phase.isCompleted() ? (phase.getNow(false) ? "ok":"stopped") : phase.toString();
+				System.out.format("Sequence %s: %s %.1f s %s%n", name, p.type, p.seconds, p.outcome);
+			}
+		});
+		return phase;
+	}
+
+	private boolean holds(String condition){
+		if(condition.equals("uncalibrated")){
+			return !calibrated;
+		}else if(condition.equals("calibrated")){
+			return calibrated;
+		}else if(condition.equals("loopRunning")){
+			return routines.isPILoopRunning();
+		}else if(condition.equals("loopStopped")){
+			return !routines.isPILoopRunning();
+		}else if(condition.equals("coadd")){
+			return routines.isCoaddOn();
+		}else if(condition.equals("noCoadd")){
+			return !routines.isCoaddOn();
+		}
+		return true;
+	}
+
+	private Completion<Boolean> start(Phase p){
+		if(p.type.equals("images")){
+			if(p.arg.length()>0){
+				int[] v = coadd(p.arg);
+				routines.setCoaddOn(true);
+				routines.setupCoadd(v[0], v[1]);
+			}else{
+				routines.setCoaddOn(false);
+				routines.startImages(true, true);
+			}
+			return Completion.completed(true);
+		}else if(p.type.equals("calibrate")){
+			final Completion<Boolean> c = routines.stepCalc();
+			c.whenDone(new Runnable(){
+				public void run(){
+					if(c.getNow(false)){
+						calibrated = true;
+					}
+				}
+			});
+			return c;
+		}else if(p.type.equals("operator")){
+			Completion<Boolean> c = new Completion<Boolean>();
+			prompt = p.arg;
+			operator = c;
+			System.out.println("Sequence "+name+": "+p.arg+", then confirm.");
+			return c;
+		}else if(p.type.equals("reference")){
+			return Completion.completed(routines.setTiltRef() && routines.setShearRef());
+		}else if(p.type.equals("align")){
+			routines.setAutoPILoop(p.arg.equals("auto"));
+			routines.startPILoop();
+			return Completion.completed(routines.isPILoopRunning());
+		}else if(p.type.equals("hold")){
+			return Completion.after((long)(number("seconds="+p.arg)*1000), true)
+				.then(executor, new Completion.Step<Boolean,Boolean>(){
+					public Completion<Boolean> apply(Boolean b){
+						return Completion.completed(routines.isPILoopRunning());
+					}
+				});
+		}else if(p.type.equals("verify")){
+			double[] v = verifyArgs(p.arg);
+			return verify(v[0], (int)v[1]);
+		}else{
+			routines.stopPILoop();
+			return Completion.completed(true);
+		}
+	}
+
+	/** Completes with true after 'n' consecutive corrections below 'max' on every axis. */
+	private static Completion<Boolean> verify(final double max, final int n){
+		final Completion<Boolean> c = new Completion<Boolean>();
+		final TelemetryHub.Record r = new TelemetryHub.Record();
+		final int[] good = new int[1];
+		final TelemetryHub.Subscription[] sub = new TelemetryHub.Subscription[1];
+		sub[0] = TelemetryHub.subscribe(TelemetryHub.THETAS, 1, 64, new Runnable(){
+			public void run(){
+				synchronized(r){
+					while(sub[0]!=null && sub[0].poll(r)){
+						boolean ok = true;
+						for(double d : r.values){
+							ok &= Math.abs(d)<=max;
+						}
+						good[0] = ok ? good[0]+1:0;
+						if(good[0]>=n){
+							c.complete(true);
+						}
+					}
+				}
+			}
+		});
+		c.whenDone(new Runnable(){
+			public void run(){
+				TelemetryHub.unsubscribe(sub[0]);
+			}
+		});
+		return c;
+	}
+
+	private void finished(Completion<Boolean> chain){
+		synchronized(this){
+			prompt = null;
+			operator = null;
+		}
+		if(chain.isCompleted()){
+			result.complete(chain.getNow(false));
+		}else if(chain.isCancelled()){
+			result.cancel(true);
+		}else{
+			try{
+				chain.get();
+			}catch(Exception ex){
+				result.fail(ex.getCause());
+			}
+		}
+		for(Phase p : phases){
+			if(p.outcome.equals("pending")){
+				p.outcome = "skipped";
+			}else if(p.outcome.equals("running")){
+				//the chain ends before the phase it cancels
+				p.seconds = (System.nanoTime()-p.t0)*1E-9;
+				p.outcome = result.toString();
+			}
+		}
+		System.out.println("Sequence "+name+" "+result+".");
+		System.out.println(getReport());
+	}
+
+	/** Operator step done, continue with the next phase. */
+	public void confirm(){
+		Completion<Boolean> c = operator;
+		if(c==null){
+			throw new IllegalStateException("no operator step pending");
+		}
+		prompt = null;
+		c.complete(true);
+	}
+
+	/** Stop the running phase and skip the rest. */
+	public void cancel(){
+		Completion<Boolean> c = result;
+		if(c!=null){
+			c.cancel(true);
+		}
+	}
+
+	/** Message of the pending operator step, null if there is none. */
+	public String getPrompt(){
+		return prompt;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public boolean isRunning(){
+		Completion<Boolean> c = result;
+		return c!=null && !c.isDone();
+	}
+
+	/** Running or last sequence, null if none was started. */
+	public static AlignmentSequence getCurrent(){
+		return current;
+	}
+
+	/**
+	 * One line per phase: line number, phase, wall time and outcome, slowest first.
+	 */
+	public String getReport(){
+		List<Phase> sorted = new ArrayList<Phase>(phases);
+		Collections.sort(sorted, new Comparator<Phase>(){
+			public int compare(Phase a, Phase b){
+				return Double.compare(b.seconds, a.seconds);
+			}
+		});
+		double total = 0;
+		for(Phase p : phases){
+			total += Math.max(0, p.seconds);
+		}
+		StringBuilder s = new StringBuilder();
+		s.append(String.format("sequence=%s total=%.1fs", name, total));
+		for(Phase p : sorted){
+			s.append(String.format("%n  line %2d %-10s %8s %5s %s", p.line, p.type,
+					(p.seconds<0) ? "-":String.format("%.1fs", p.seconds),
+					(p.seconds<0 || total==0) ? "":String.format("%.0f%%", 100*p.seconds/total),
+					p.outcome));
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,376 @@
+package impl;
+
+import java.awt.geom.Point2D;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import util.Completion;
+
+import xenimaq.NativeImage;
+import xenimaq.NativeImageException;
+import xenimaq.NativeImageImpl;
+import agilis.Actuator;
+import agilis.ActuatorInterface;
+import agilis.AgilisException;
+import data.BeamLineMath;
+import data.Config;
+
+/**<pre>
+ * One beam line of the array: its configuration, optical model, cameras, Agilis
+ * controller and mount channels, and the state of its alignment loop.
+ *
+ * The loop is the auto loop of {@link PIControl} on {@link BeamLineMath}: fetch the
+ * centroids, compute the corrections, step both mounts, repeat.  It is not a thread
+ * of its own, every iteration is a task on the pools shared by the
+ * {@link AlignmentManager}: the computation runs on the loop scheduler, the moves,
+ * which block until the mounts stop, on the I/O pool.  The beam line is aligned once
+ * the largest correction stays below the tolerance for a number of iterations.
+ *
+ * The loop aligns the beams to the reference centroids of the beam line, its setup
+ * values tiltRefX, tiltRefY, shearRefX and shearRefY [pixel], or the centroids of a
+ * reference beam taken with {@link #acquireReferences()}.  A beam line without them
+ * does not align.  If the setup of the beam line lacks step sizes, see
+ * {@link BeamLineMath}, the loop first measures them: each mount axis moves
+ * 'alignCalibrateSteps' (50) steps out and back.
+ *
+ * Each controller is leased from the beam line's own {@link CommandArbiter}, the
+ * moves go through the {@link ControllerScheduler} of the Agilis controller, which
+ * may be shared with other beam lines.
+ *</pre>
+ */
+public class BeamLineContext {
+	public static enum State { IDLE, ALIGNING, ALIGNED, FAILED, STOPPED };
+
+	/** Default of the setup value 'alignCalibrateSteps' */
+	public static final int CALIBRATE_STEPS = 50;
+
+	/** Access to the devices of a beam line. */
+	public interface Hardware {
+		/** Connect the controller and start grabbing. */
+		public void open() throws Exception;
+		public void close();
+		/** Latest tilt and shear centroids [pixel]. */
+		public void getCentroids(Point2D.Double tilt, Point2D.Double shear);
+		/** Step both axes of one mount, returns once they stopped moving. */
+		public void move(int channel, int ax1, int ax2) throws Exception;
+	}
+
+	/**
+	 * The Xenics cameras and the Agilis controller named in the configuration.  Beam
+	 * lines naming the same controller share it through its {@link ControllerScheduler},
+	 * so it is connected once and left connected on close.
+	 */
+	public static class Devices implements Hardware {
+		final ControllerScheduler controller;
+		final ActuatorInterface ai;
+		final NativeImageImpl timg, simg;
+
+		public Devices(Config cfg){
+			controller = ControllerScheduler.forDevice(cfg.agilisControllerDevice);
+			ai = controller.getActuator();
+			timg = new NativeImageImpl(NativeImage.getNativeImageInstance(cfg.tiltCameraDevice),"Tilt");
+			simg = new NativeImageImpl(NativeImage.getNativeImageInstance(cfg.shearCameraDevice),"Shear");
+		}
+
+		public void open() throws IOException, AgilisException, NativeImageException{
+			synchronized(ai){
+				if(ai.getActuatorState()==Actuator.NOT_INITIALIZED){
+					ai.connect();
+				}
+			}
+			timg.initImage();
+			timg.startImage();
+			simg.initImage();
+			simg.startImage();
+		}
+
+		public void close(){
+			timg.termImage();
+			simg.termImage();
+		}
+
+		public void getCentroids(Point2D.Double tilt, Point2D.Double shear){
+			timg.getCentroid(tilt);
+			simg.getCentroid(shear);
+		}
+
+		public void move(int channel, int ax1, int ax2) throws Exception{
+			controller.step(channel, ax1, ax2);
+		}
+	}
+
+	public final String name;
+	public final Config config;
+	public final BeamLineMath math;
+	final Hardware hardware;
+	final CommandArbiter arbiter = new CommandArbiter();
+
+	private final Point2D.Double tref = new Point2D.Double(), sref = new Point2D.Double();
+	private final Point2D.Double tcur = new Point2D.Double(), scur = new Point2D.Double();
+
+	private volatile State state = State.IDLE;
+	private volatile int iterations;
+	private volatile long startNanos, endNanos;
+	private volatile String error;
+	private volatile Completion<Boolean> run;
+	private volatile Thread mover;
+	private CommandArbiter.Lease lease;
+
+	public BeamLineContext(String name, Config config, Hardware hardware){
+		this.name = name;
+		this.config = config;
+		this.hardware = hardware;
+		this.math = new BeamLineMath(config, config.getDouble("pGain", 1), config.getDouble("iGain", 0));
+		tref.setLocation(config.getDouble("tiltRefX", Double.NaN), config.getDouble("tiltRefY", Double.NaN));
+		sref.setLocation(config.getDouble("shearRefX", Double.NaN), config.getDouble("shearRefY", Double.NaN));
+	}
+
+	/** True if the reference centroids are known. */
+	public synchronized boolean hasReferences(){
+		return !(Double.isNaN(tref.x) || Double.isNaN(tref.y) || Double.isNaN(sref.x) || Double.isNaN(sref.y));
+	}
+
+	/**
+	 * Take the current centroids as the reference, with the reference beam on the
+	 * cameras.  The devices must be open.
+	 * @return tiltRefX, tiltRefY, shearRefX, shearRefY [pixel], to keep in the setup
+	 *  file of the beam line.
+	 * @throws IllegalStateException if the beam line is aligning
+	 */
+	public synchronized double[] acquireReferences(){
+		if(state==State.ALIGNING){
+			throw new IllegalStateException(name+" is aligning");
+		}
+		hardware.getCentroids(tref, sref);
+		return new double[]{tref.x, tref.y, sref.x, sref.y};
+	}
+
+	/**
+	 * Align the beam line on the shared pools to its reference centroids, after
+	 * measuring the step sizes if they are unknown.
+	 * @param tolerance Largest correction of an aligned beam [deg].
+	 * @param settled Iterations in a row within the tolerance.
+	 * @param intervalMs Shortest time from one iteration to the next.
+	 * @return Completes with true once aligned, false if the loop stopped without;
+	 *  cancelling it stops the loop.
+	 */
+	public synchronized Completion<Boolean> align(final ScheduledExecutorService loop, final Executor io,
+			final double tolerance, final int settled, final long intervalMs){
+		if(state==State.ALIGNING){
+			throw new IllegalStateException(name+" is aligning");
+		}
+		if(!hasReferences()){
+			throw new IllegalStateException(name+" has no reference centroids, set tiltRefX, tiltRefY, shearRefX and shearRefY");
+		}
+		final Completion<Boolean> c = new Completion<Boolean>();
+		c.onAbort(new Runnable(){
+			public void run(){
+				Thread t = mover;
+				if(t!=null){
+					t.interrupt();
+				}
+			}
+		});
+		c.whenDone(new Runnable(){
+			public void run(){
+				finished(c);
+			}
+		});
+		run = c;
+		state = State.ALIGNING;
+		iterations = 0;
+		error = null;
+		startNanos = System.nanoTime();
+
+		io.execute(new Runnable(){
+			public void run(){
+				try{
+					mover = Thread.currentThread();
+					CommandArbiter.Lease l = arbiter.acquire(name, null, CommandArbiter.Priority.LOOP,
+							CommandArbiter.DEFAULT_WAIT_MS, new Runnable(){
+								public void run(){
+									c.cancel(true);
+								}
+							});
+					if(l==null){
+						throw new IllegalStateException("controller busy: "+arbiter.getStatus());
+					}
+					setLease(l);
+					if(c.isDone()){
+						//stopped while waiting
+						setLease(null);
+						return;
+					}
+					hardware.open();
+					if(!math.hasStepSizes()){
+						calibrate(intervalMs);
+					}
+					math.resetLoops();
+				}catch(Throwable t){
+					c.fail(t);
+				}finally{
+					mover = null;
+					Thread.interrupted();
+				}
+				if(!c.isDone()){
+					loop.execute(new Iteration(loop, io, c, tolerance, settled, intervalMs, 0));
+				}
+			}
+		});
+		return c;
+	}
+
+	/**
+	 * Measure the step sizes: every mount axis moves 'alignCalibrateSteps' out and
+	 * back, the step size of a direction is the change of the axis' correction per
+	 * step.  Runs on the I/O pool before the loop.
+	 * @param settleMs Wait after a move before the centroids are read.
+	 */
+	private void calibrate(long settleMs) throws Exception{
+		int n = (int)config.getDouble("alignCalibrateSteps", CALIBRATE_STEPS);
+		int[] channels = {config.chM1, config.chM2};
+		double[] before = measure(settleMs);
+		for(int mount=1;mount<=2;mount++){
+			for(int axis=1;axis<=2;axis++){
+				int k = BeamLineMath.correctionIndex(mount, axis);
+				for(int dir=1;dir>=-1;dir-=2){
+					hardware.move(channels[mount-1], (axis==1) ? dir*n:0, (axis==2) ? dir*n:0);
+					double[] after = measure(settleMs);
+					if(!(math.setStepSize(mount, axis, after[k]-before[k], dir*n)>0)){
+						throw new IllegalStateException(String.format("%s: mount %d axis %d did not move",
+								name, mount, axis));
+					}
+					before = after;
+				}
+			}
+		}
+	}
+
+	/** Correction of the current centroids, after 'settleMs'. */
+	private double[] measure(long settleMs) throws InterruptedException{
+		Thread.sleep(settleMs);
+		hardware.getCentroids(tcur, scur);
+		math.computeThetaCorrection(tref, tcur, sref, scur);
+		return math.acm.clone();
+	}
+
+	/** One loop iteration, computes on the loop scheduler and moves on the I/O pool. */
+	private class Iteration implements Runnable {
+		final ScheduledExecutorService loop;
+		final Executor io;
+		final Completion<Boolean> c;
+		final double tolerance;
+		final int settled;
+		final long intervalMs;
+		final int good;
+
+		Iteration(ScheduledExecutorService loop, Executor io, Completion<Boolean> c,
+				double tolerance, int settled, long intervalMs, int good){
+			this.loop = loop;
+			this.io = io;
+			this.c = c;
+			this.tolerance = tolerance;
+			this.settled = settled;
+			this.intervalMs = intervalMs;
+			this.good = good;
+		}
+
+		public void run(){
+			if(c.isDone()){
+				return;
+			}
+			final long t0 = System.nanoTime();
+			hardware.getCentroids(tcur, scur);
+			math.computeThetaCorrection(tref, tcur, sref, scur);
+			iterations++;
+			final int g = (math.maxCorrection()<=tolerance) ? good+1:0;
+			if(g>=settled){
+				c.complete(true);
+				return;
+			}
+			math.computeStepCorrection();
+			final int[] s = math.steps.clone();
+
+			io.execute(new Runnable(){
+				public void run(){
+					if(c.isDone()){
+						return;
+					}
+					try{
+						mover = Thread.currentThread();
+						hardware.move(config.chM1, s[0], s[1]);
+						hardware.move(config.chM2, s[2], s[3]);
+					}catch(InterruptedException ex){
+						//stopped
+					}catch(Throwable t){
+						c.fail(t);
+					}finally{
+						mover = null;
+						Thread.interrupted();
+					}
+					if(!c.isDone()){
+						long wait = intervalMs-(System.nanoTime()-t0)/1000000;
+						loop.schedule(new Iteration(loop, io, c, tolerance, settled, intervalMs, g),
+								Math.max(0, wait), TimeUnit.MILLISECONDS);
+					}
+				}
+			});
+		}
+	}
+
+	/** Replace the lease, the old one is released. */
+	private synchronized void setLease(CommandArbiter.Lease l){
+		if(lease!=null){
+			lease.release();
+		}
+		lease = l;
+	}
+
+	private void finished(Completion<Boolean> c){
+		endNanos = System.nanoTime();
+		if(c.isCompleted()){
+			state = c.getNow(false) ? State.ALIGNED:State.STOPPED;
+		}else if(c.isCancelled()){
+			state = State.STOPPED;
+		}else{
+			state = State.FAILED;
+			error = c.toString();
+		}
+		setLease(null);
+	}
+
+	/** Stop the loop, the mounts stay where they are. */
+	public void stop(){
+		Completion<Boolean> c = run;
+		if(c!=null){
+			c.cancel(true);
+		}
+	}
+
+	public State getState(){
+		return state;
+	}
+
+	public int getIterations(){
+		return iterations;
+	}
+
+	/** Time of the last or the running alignment [s]. */
+	public double getSeconds(){
+		long t0 = startNanos;
+		if(t0==0){
+			return 0;
+		}
+		return ((state==State.ALIGNING) ? System.nanoTime()-t0 : endNanos-t0)*1E-9;
+	}
+
+	/** "name state=... iterations=... seconds=... correction=..." */
+	public String getStatus(){
+		String e = error;
+		return String.format("%s state=%s iterations=%d seconds=%.2f correction=%.2e%s", name,
+				state.name().toLowerCase(), iterations, getSeconds(), math.maxCorrection(),
+				(e==null) ? "":" error=\""+e+"\"");
+	}
+}
@@ -0,0 +1,363 @@
+package impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import util.Counter;
+import util.LatencyHistogram;
+import util.MetricsRegistry;
+
+import data.SetupData;
+
+/**<pre>
+ * Grants access to the Agilis controller to one owner at a time.
+ *
+ * Everything that moves the mounts (PI loop, step size calibration, mount moves)
+ * takes a {@link Lease} before setting the ActuatorInterface exclusive access lock and
+ * releases it when done.  Requests that can't be granted wait in a queue ordered by
+ * {@link Priority}, then by arrival.  A request with a higher priority than the
+ * current holder preempts it: the holder's lease is revoked, which runs its revoke
+ * action (stop the loop, interrupt the thread), and the actuator passes to the
+ * waiting request as soon as the holder releases.
+ *
+ * Revoke actions run on the arbiter's own thread, never on the thread that caused
+ * the revoke, so an abort answered on the command server's selector thread or a
+ * request made on the EDT never waits for a loop to shut down.
+ *
+ * Remote clients can hold a session lease to keep other clients and the GUI off the
+ * mounts between their commands.  Leases taken by routines started for that session
+ * are nested in the session lease and granted right away.  Session leases expire
+ * after their time to live unless renewed.
+ *
+ * Metrics: arbiter.wait (time to grant), arbiter.granted, arbiter.preempted,
+ * arbiter.timeouts and arbiter.expired.
+ *</pre>
+ */
+public class CommandArbiter {
+	/** Lowest first, a request preempts holders with a lower priority. */
+	public static enum Priority { CALIBRATION, MOTION, LOOP, ABORT };
+
+	/** Wait of requests made from the GUI or the command server. */
+	public static final long DEFAULT_WAIT_MS = 3000;
+	/** Wait of routines running in their own thread, they queue rather than fail. */
+	public static final long QUEUE_WAIT_MS = 600000;
+
+	static final LatencyHistogram waitHist = MetricsRegistry.histogram("arbiter.wait");
+	static final Counter grantedCounter = MetricsRegistry.counter("arbiter.granted");
+	static final Counter preemptedCounter = MetricsRegistry.counter("arbiter.preempted");
+	static final Counter timeoutCounter = MetricsRegistry.counter("arbiter.timeouts");
+	static final Counter expiredCounter = MetricsRegistry.counter("arbiter.expired");
+
+	private static CommandArbiter defaultArbiter;
+
+	/** Access to the actuator, granted or waiting. */
+	public class Lease {
+		private final String owner;
+		private final String session;
+		private final Priority priority;
+		private final Runnable onRevoke;
+		private final boolean sessionLease;
+
+		private Lease parent;
+		private final List<Lease> nested = new ArrayList<Lease>(2);
+		private boolean granted, released, revoked, cancelled;
+		private ScheduledFuture<?> expiry;
+
+		private Lease(String owner, String session, Priority priority, Runnable onRevoke,
+				boolean sessionLease){
+			this.owner = owner;
+			this.session = session;
+			this.priority = priority;
+			this.onRevoke = onRevoke;
+			this.sessionLease = sessionLease;
+		}
+
+		public String getOwner(){
+			return owner;
+		}
+
+		public Priority getPriority(){
+			return priority;
+		}
+
+		/** True once a higher priority request, an abort or the expiry took the actuator away. */
+		public boolean isRevoked(){
+			synchronized(CommandArbiter.this){
+				return revoked;
+			}
+		}
+
+		/** Give the actuator back, can be called more than once. */
+		public void release(){
+			CommandArbiter.this.release(this);
+		}
+
+		@Override
+		public String toString(){
+			return owner+"("+priority.name().toLowerCase()+")";
+		}
+	}
+
+	private Lease holder;
+	private final List<Lease> waiting = new ArrayList<Lease>();
+	private ScheduledThreadPoolExecutor timer;
+
+	public CommandArbiter(){
+	}
+
+	/** Arbiter of the single Agilis controller. */
+	public static synchronized CommandArbiter getDefault(){
+		if(defaultArbiter==null){
+			defaultArbiter = new CommandArbiter();
+		}
+		return defaultArbiter;
+	}
+
+	/**
+	 * Wait for the actuator.
+	 * @param owner Name shown in status and error messages.
+	 * @param session Session the request is made for, null for the GUI.
+	 * @param waitMs Give up after this time, 0 to fail right away if not free.
+	 * @param onRevoke Run when the lease is revoked, must make the owner release it soon,
+	 *                 may be null.
+	 * @return null if not granted within 'waitMs' or cancelled by {@link #abort(String)}.
+	 */
+	public Lease acquire(String owner, String session, Priority priority, long waitMs, Runnable onRevoke)
+			throws InterruptedException{
+		return acquire(new Lease(owner, session, priority, onRevoke, false), waitMs);
+	}
+
+	/**
+	 * Take or renew the session lease of a remote client, see {@link #acquire}.
+	 * @param ttlMs Revoked when not renewed within this time.
+	 */
+	public Lease acquireSession(String session, Priority priority, long waitMs, long ttlMs)
+			throws InterruptedException{
+		synchronized(this){
+			if(holder!=null && holder.sessionLease && holder.session.equals(session) && !holder.revoked){
+				scheduleExpiry(holder, ttlMs);
+				return holder;
+			}
+		}
+		Lease l = acquire(new Lease(session, session, priority, null, true), waitMs);
+		if(l!=null){
+			synchronized(this){
+				scheduleExpiry(l, ttlMs);
+			}
+		}
+		return l;
+	}
+
+	private Lease acquire(Lease lease, long waitMs) throws InterruptedException{
+		long t0 = System.nanoTime();
+		Lease revoke = null;
+
+		synchronized(this){
+			if(holder==null){
+				grant(lease);
+			}else if(!lease.sessionLease && holder.sessionLease && !holder.revoked && !holder.released
+					&& holder.session.equals(lease.session)){
+				//routine started by the session holding the actuator
+				lease.parent = holder;
+				holder.nested.add(lease);
+				lease.granted = true;
+				grantedCounter.increment();
+			}else{
+				enqueue(lease);
+				if(lease.priority.compareTo(holder.priority)>0 && !holder.revoked){
+					revoke = holder;
+				}
+			}
+		}
+
+		if(revoke!=null){
+			preemptedCounter.increment();
+			revoke(revoke);
+		}
+
+		synchronized(this){
+			long deadline = System.currentTimeMillis()+waitMs;
+			try{
+				while(!lease.granted && !lease.cancelled){
+					long left = deadline-System.currentTimeMillis();
+					if(left<=0){
+						break;
+					}
+					wait(left);
+				}
+			}catch(InterruptedException ex){
+				if(!lease.granted){
+					waiting.remove(lease);
+					throw ex;
+				}
+			}
+
+			if(!lease.granted){
+				waiting.remove(lease);
+				if(!lease.cancelled){
+					timeoutCounter.increment();
+				}
+				return null;
+			}
+		}
+		waitHist.recordSince(t0);
+		return lease;
+	}
+
+	/** Behind all waiting requests of the same or a higher priority. */
+	private void enqueue(Lease l){
+		int i = 0;
+		while(i<waiting.size() && waiting.get(i).priority.compareTo(l.priority)>=0){
+			i++;
+		}
+		waiting.add(i, l);
+	}
+
+	private void grant(Lease l){
+		holder = l;
+		l.granted = true;
+		grantedCounter.increment();
+		notifyAll();
+	}
+
+	/**
+	 * Revoke 'l' and everything nested in it.  The leases are marked revoked right away,
+	 * their revoke actions run on the arbiter thread.
+	 */
+	private void revoke(final Lease l){
+		final List<Lease> all = new ArrayList<Lease>();
+		synchronized(this){
+			if(l.revoked || l.released){
+				return;
+			}
+			l.revoked = true;
+			all.add(l);
+			for(Lease n : l.nested){
+				n.revoked = true;
+				all.add(n);
+			}
+		}
+
+		executor().execute(new Runnable(){
+			public void run(){
+				for(Lease r : all){
+					if(r.onRevoke==null){
+						continue;
+					}
+					try{
+						r.onRevoke.run();
+					}catch(RuntimeException ex){
+						System.err.println("[CommandArbiter]: revoking "+r+": "+ex.getMessage());
+					}
+				}
+				if(l.sessionLease){
+					//nobody to react, the session is over
+					release(l);
+				}
+			}
+		});
+	}
+
+	/** Thread running the revoke actions and the session expiries. */
+	private synchronized ScheduledThreadPoolExecutor executor(){
+		if(timer==null){
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r,"CommandArbiter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return timer;
+	}
+
+	private synchronized void release(Lease l){
+		if(l.released || !l.granted){
+			return;
+		}
+		l.released = true;
+		if(l.expiry!=null){
+			l.expiry.cancel(false);
+		}
+
+		if(l.parent!=null){
+			l.parent.nested.remove(l);
+			l = l.parent;
+			if(!l.released){
+				return;
+			}
+		}
+		if(l==holder && l.nested.isEmpty()){
+			holder = null;
+			if(!waiting.isEmpty()){
+				grant(waiting.remove(0));
+			}
+		}
+	}
+
+	private void scheduleExpiry(final Lease l, long ttlMs){
+		if(l.expiry!=null){
+			l.expiry.cancel(false);
+		}
+		l.expiry = executor().schedule(new Runnable(){
+			public void run(){
+				expiredCounter.increment();
+				revoke(l);
+			}
+		}, ttlMs, TimeUnit.MILLISECONDS);
+	}
+
+	/** Release the session lease of 'session', e.g. when the client disconnects. */
+	public void releaseSession(String session){
+		Lease l;
+		synchronized(this){
+			l = holder;
+			if(l==null || !l.sessionLease || !l.session.equals(session)){
+				return;
+			}
+		}
+		release(l);
+	}
+
+	/**
+	 * Operator abort: revoke the current holder and cancel every waiting request.
+	 * Returns right away, the holder's revoke action runs on the arbiter thread.
+	 * @return the lease that was revoked, null if the actuator was free
+	 */
+	public Lease abort(String owner){
+		Lease l;
+		synchronized(this){
+			for(Lease w : waiting){
+				w.cancelled = true;
+			}
+			waiting.clear();
+			notifyAll();
+			l = holder;
+		}
+		if(l!=null){
+			if(SetupData.debug) System.out.println("Abort by "+owner+", revoking "+l);
+			preemptedCounter.increment();
+			revoke(l);
+		}
+		return l;
+	}
+
+	/** Current holder, null if the actuator is free. */
+	public synchronized Lease getHolder(){
+		return holder;
+	}
+
+	public synchronized int getQueueLength(){
+		return waiting.size();
+	}
+
+	/** "holder=owner(priority) waiting=n" */
+	public synchronized String getStatus(){
+		return "holder="+((holder==null) ? "none":holder.toString())+" waiting="+waiting.size();
+	}
+}
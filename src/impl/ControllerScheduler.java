@@ -0,0 +1,585 @@
+package impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import util.Completion;
+import util.Counter;
+import util.EventTrace;
+import util.LatencyHistogram;
+import util.MetricsRegistry;
+
+import agilis.Actuator;
+import agilis.ActuatorInterface;
+
+/**<pre>
+ * Command queue of one Agilis controller, shared by every loop that steps a mount
+ * on it.
+ *
+ * The controller drives several channels (mounts) over a single serial link and
+ * only talks to the selected channel, so loops that switch channels on their own
+ * spend much of the link on setChannel and wait for each other's moves.  Here the
+ * loops queue channel tagged commands and one link thread sends them:
+ *  - commands for the selected channel go first, the channel is switched only once
+ *  nothing on it is queued or moving, so loops on the same mount share one switch.
+ *  - both axes of the selected channel move at once, while one axis moves the
+ *  thread sends the next command for the other, and it polls all moving axes.
+ *  - a command passed over 'maxBypass' times, or queued longer than 'maxWaitMs',
+ *  is sent next: its channel is drained and switched to even if other commands
+ *  for the current channel are waiting.
+ *  - commands for the same axis, or a limit query and the moves of its channel,
+ *  are sent in the order they were queued.
+ *
+ * Homing and other work that talks to the controller directly is queued as an
+ * {@link #exclusive(Callable)} job: it runs on the link thread once the commands
+ * queued before it are sent and no axis moves, and the commands queued after it
+ * wait for it.  The channel is selected again after a job.  The selected channel
+ * is only trusted while the queue is busy, the first command after an idle moment
+ * selects its channel again, so direct ActuatorInterface calls while the queue is
+ * idle stay safe.
+ *
+ * Timing goes to "agilis.queue" (queued to sent), "agilis.switch",
+ * "agilis.command" (step command) and "agilis.settle" (sent to stopped).
+ *</pre>
+ */
+public class ControllerScheduler {
+	/** The serial link to a controller, only used by the link thread. */
+	public interface Link {
+		public void setChannel(int channel) throws Exception;
+		/** Start a relative move of 'axis' (1 or 2) of the selected channel. */
+		public void step(int axis, int steps) throws Exception;
+		public boolean isMoving(int axis) throws Exception;
+		/** Limit switches of the selected channel. */
+		public int getLimitStatus() throws Exception;
+	}
+
+	/** A Link over an ActuatorInterface. */
+	static class AgilisLink implements Link {
+		final ActuatorInterface ai;
+
+		AgilisLink(ActuatorInterface ai){
+			this.ai = ai;
+		}
+
+		public void setChannel(int channel) throws Exception{
+			ai.setChannel(channel);
+		}
+
+		public void step(int axis, int steps) throws Exception{
+			if(axis==1){
+				ai.stepAxis1(steps);
+			}else{
+				ai.stepAxis2(steps);
+			}
+		}
+
+		public boolean isMoving(int axis) throws Exception{
+			return ai.isMoving(axis);
+		}
+
+		public int getLimitStatus() throws Exception{
+			return ai.getLimitStatus();
+		}
+	}
+
+	/** A finished move of one axis with its timing. */
+	public static class Move {
+		public final int channel, axis, steps;
+		long queued, sent, stopped;
+		/** Channel switch the move waited for, 0 if none [ns] */
+		long switchNanos, commandNanos;
+
+		Move(int channel, int axis, int steps){
+			this.channel = channel;
+			this.axis = axis;
+			this.steps = steps;
+		}
+
+		/** Queued until stopped [ns] */
+		public long getNanos(){
+			return stopped-queued;
+		}
+
+		public long getSwitchNanos(){
+			return switchNanos;
+		}
+
+		/** Step command [ns] */
+		public long getCommandNanos(){
+			return commandNanos;
+		}
+
+		/** Command sent until stopped [ns] */
+		public long getSettleNanos(){
+			return stopped-sent;
+		}
+	}
+
+	/** A queued command: a move, a limit query if 'axis' is 0, or an exclusive job. */
+	private static class Command {
+		final int channel, axis;
+		final long queued = System.nanoTime();
+		Move move;
+		Completion<Move> moved;
+		Completion<Integer> limits;
+		Runnable job;
+		Completion<?> ran;
+		int bypassed;
+
+		Command(int channel, int axis){
+			this.channel = channel;
+			this.axis = axis;
+		}
+
+		void fail(Throwable t){
+			if(moved!=null){
+				moved.fail(t);
+			}else if(limits!=null){
+				limits.fail(t);
+			}else{
+				ran.fail(t);
+			}
+		}
+	}
+
+	static final LatencyHistogram queueHist = MetricsRegistry.histogram("agilis.queue");
+	static final LatencyHistogram switchHist = MetricsRegistry.histogram("agilis.switch");
+	static final LatencyHistogram commandHist = MetricsRegistry.histogram("agilis.command");
+	static final LatencyHistogram settleHist = MetricsRegistry.histogram("agilis.settle");
+	static final Counter commandCount = MetricsRegistry.counter("agilis.commands");
+	static final Counter switchCount = MetricsRegistry.counter("agilis.switches");
+	static final int channelEvent = EventTrace.defineType("Channel switch",
+			new String[]{"channel"}, new String[0]);
+	static final int moveEvent = EventTrace.defineType("Axis move",
+			new String[]{"channel","axis","steps"}, new String[]{"commandMs","settleMs"});
+
+	public static final int MAX_BYPASS = 4;
+	public static final long MAX_WAIT_MS = 2000;
+	static final long POLL_MS = 50;
+
+	private static final Map<Object,ControllerScheduler> schedulers = new HashMap<Object,ControllerScheduler>();
+
+	private final String name;
+	private final Link link;
+	private final ActuatorInterface ai;
+	/* guarded by 'this' */
+	private final LinkedList<Command> queue = new LinkedList<Command>();
+	private final Command[] moving = new Command[3];
+	private int channel;
+	private long lastPoll;
+	private long commands, switches, forced;
+	private Thread thread;
+	private volatile int maxBypass = MAX_BYPASS;
+	private volatile long maxWaitNanos = MAX_WAIT_MS*1000000;
+
+	public ControllerScheduler(String name, Link link){
+		this.name = name;
+		this.link = link;
+		this.ai = (link instanceof AgilisLink) ? ((AgilisLink)link).ai:null;
+	}
+
+	/** The scheduler of 'ai', made on first use. */
+	public static synchronized ControllerScheduler of(ActuatorInterface ai){
+		ControllerScheduler s = schedulers.get(ai);
+		if(s==null){
+			s = new ControllerScheduler("agilis"+schedulers.size(), new AgilisLink(ai));
+			schedulers.put(ai, s);
+		}
+		return s;
+	}
+
+	/** The scheduler of the controller at 'device', beam lines on one controller share it. */
+	public static synchronized ControllerScheduler forDevice(String device){
+		ControllerScheduler s = schedulers.get(device);
+		if(s==null){
+			ActuatorInterface ai = new ActuatorInterface(Actuator.getActuatorInstance(device));
+			s = new ControllerScheduler(device, new AgilisLink(ai));
+			schedulers.put(device, s);
+			schedulers.put(ai, s);
+		}
+		return s;
+	}
+
+	/** The controller, null if the link is not an Agilis controller. */
+	public ActuatorInterface getActuator(){
+		return ai;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	/**
+	 * Fairness bound: a command is sent next once passed over 'maxBypass' times or
+	 * queued for 'maxWaitMs'.  Lower values switch channels more often.
+	 */
+	public void setFairness(int maxBypass, long maxWaitMs){
+		this.maxBypass = maxBypass;
+		this.maxWaitNanos = maxWaitMs*1000000;
+	}
+
+	/**
+	 * Queue a move of one axis.
+	 * @return Completes once the axis stopped, cancelling it before the move is sent
+	 *  removes it from the queue.
+	 */
+	public Completion<Move> move(int channel, int axis, int steps){
+		if(axis!=1 && axis!=2){
+			throw new IllegalArgumentException("axis "+axis);
+		}
+		Move m = new Move(channel, axis, steps);
+		if(steps==0){
+			m.queued = m.sent = m.stopped = System.nanoTime();
+			return Completion.completed(m);
+		}
+		Command c = new Command(channel, axis);
+		c.move = m;
+		m.queued = c.queued;
+		c.moved = new Completion<Move>();
+		submit(c, c.moved);
+		return c.moved;
+	}
+
+	/** Queue a query of the limit switches of 'channel'. */
+	public Completion<Integer> getLimitStatus(int channel){
+		Command c = new Command(channel, 0);
+		c.limits = new Completion<Integer>();
+		submit(c, c.limits);
+		return c.limits;
+	}
+
+	/**
+	 * Queue a job that uses the controller directly, e.g. homing.  It runs on the link
+	 * thread after the commands queued before it, with no axis moving, and the
+	 * commands queued after it wait until it returns.
+	 * @return Completes with the result of the job.  Cancelling it before the job
+	 *  started removes it from the queue, a running job is not interrupted.
+	 */
+	public <T> Completion<T> exclusive(final Callable<T> job){
+		final Completion<T> done = new Completion<T>();
+		Command c = new Command(0, 0);
+		c.job = new Runnable(){
+			public void run(){
+				try{
+					done.complete(job.call());
+				}catch(Exception ex){
+					done.fail(ex);
+				}
+			}
+		};
+		c.ran = done;
+		submit(c, done);
+		return done;
+	}
+
+	/** Move both axes of a mount at once and wait until they stopped. */
+	public void step(int channel, int ax1, int ax2) throws Exception{
+		awaitAll(move(channel, 1, ax1), move(channel, 2, ax2));
+	}
+
+	/**
+	 * Wait for all commands, an interrupt cancels the ones still queued.
+	 * @throws Exception The first failure.
+	 */
+	public static void awaitAll(Completion<?>... cs) throws Exception{
+		try{
+			for(Completion<?> c : cs){
+				c.get();
+			}
+		}catch(InterruptedException ex){
+			for(Completion<?> c : cs){
+				c.cancel(true);
+			}
+			throw ex;
+		}catch(ExecutionException ex){
+			Throwable t = ex.getCause();
+			throw (t instanceof Exception) ? (Exception)t : new RuntimeException(t);
+		}
+	}
+
+	private void submit(final Command c, Completion<?> done){
+		done.onAbort(new Runnable(){
+			public void run(){
+				synchronized(ControllerScheduler.this){
+					queue.remove(c);
+				}
+			}
+		});
+		synchronized(this){
+			if(thread==null){
+				thread = new Thread(new Runnable(){
+					public void run(){
+						work();
+					}
+				}, "Agilis-"+name);
+				thread.setDaemon(true);
+				thread.start();
+			}
+			queue.add(c);
+			notifyAll();
+		}
+	}
+
+	/** Stop the link thread, queued commands fail. */
+	public void close(){
+		Thread t;
+		synchronized(this){
+			t = thread;
+		}
+		if(t!=null){
+			t.interrupt();
+		}
+	}
+
+	private void work(){
+		try{
+			while(true){
+				Command c;
+				synchronized(this){
+					c = pick();
+					if(c==null){
+						if(moving[1]==null && moving[2]==null){
+							//idle, the channel may be switched behind our back
+							channel = 0;
+							wait();
+							continue;
+						}
+						long w = POLL_MS-(System.nanoTime()-lastPoll)/1000000;
+						if(w>0){
+							wait(w);
+							continue;
+						}
+					}else{
+						queue.remove(c);
+					}
+				}
+				if(c!=null){
+					send(c);
+				}else{
+					poll();
+				}
+			}
+		}catch(InterruptedException ex){
+			//closed
+		}finally{
+			List<Command> left = new ArrayList<Command>();
+			synchronized(this){
+				left.addAll(queue);
+				queue.clear();
+				for(int i=1;i<moving.length;i++){
+					if(moving[i]!=null){
+						left.add(moving[i]);
+						moving[i] = null;
+					}
+				}
+				thread = null;
+			}
+			for(Command c : left){
+				c.fail(new IllegalStateException(name+" closed"));
+			}
+		}
+	}
+
+	/** Next command to send, null if none can be sent now. */
+	private Command pick(){
+		if(queue.isEmpty()){
+			return null;
+		}
+		boolean idle = moving[1]==null && moving[2]==null;
+		Command oldest = queue.getFirst();
+		if(oldest.job!=null){
+			return idle ? oldest:null;
+		}
+		if(oldest.bypassed>=maxBypass || System.nanoTime()-oldest.queued>=maxWaitNanos){
+			if(idle || (oldest.channel==channel && sendable(oldest))){
+				if(oldest.channel!=channel && waiting(channel)){
+					forced++;
+				}
+				return oldest;
+			}
+			if(oldest.channel!=channel){
+				//drain the channel for the switch
+				return null;
+			}
+		}
+
+		Set<Integer> blocked = new HashSet<Integer>();
+		Command best = null;
+		for(Command c : queue){
+			if(c.job!=null){
+				//the commands after a job wait for it
+				break;
+			}
+			boolean first = c.axis==0
+					? !blocked.contains(c.channel*4) && !blocked.contains(c.channel*4+1) && !blocked.contains(c.channel*4+2)
+					: !blocked.contains(c.channel*4+c.axis) && !blocked.contains(c.channel*4);
+			if(first){
+				if(c.channel==channel && sendable(c)){
+					best = c;
+					break;
+				}
+				if(best==null && idle){
+					best = c;
+				}
+			}
+			blocked.add(c.channel*4+c.axis);
+		}
+		if(best!=null){
+			for(Command c : queue){
+				if(c==best){
+					break;
+				}
+				c.bypassed++;
+			}
+		}
+		return best;
+	}
+
+	/** True if a command for 'ch' is queued. */
+	private boolean waiting(int ch){
+		for(Command c : queue){
+			if(c.channel==ch){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** True if 'c' on the selected channel can be sent now. */
+	private boolean sendable(Command c){
+		return c.axis==0 || moving[c.axis]==null;
+	}
+
+	private void send(Command c){
+		long t = System.nanoTime();
+		queueHist.record(t-c.queued);
+		if(c.job!=null){
+			synchronized(this){
+				channel = 0;
+			}
+			c.job.run();
+			return;
+		}
+		try{
+			int ch;
+			synchronized(this){
+				ch = channel;
+			}
+			if(c.channel!=ch){
+				synchronized(this){
+					channel = 0;
+				}
+				link.setChannel(c.channel);
+				long t1 = System.nanoTime();
+				switchHist.record(t1-t);
+				switchCount.increment();
+				if(EventTrace.enabled) EventTrace.record(channelEvent, t, c.channel, 0, 0);
+				synchronized(this){
+					channel = c.channel;
+					switches++;
+				}
+				if(c.move!=null){
+					c.move.switchNanos = t1-t;
+				}
+				t = t1;
+			}
+			commandCount.increment();
+			synchronized(this){
+				commands++;
+			}
+			if(c.axis==0){
+				c.limits.complete(link.getLimitStatus());
+				return;
+			}
+			link.step(c.axis, c.move.steps);
+			long t1 = System.nanoTime();
+			c.move.sent = t;
+			c.move.commandNanos = t1-t;
+			commandHist.record(t1-t);
+			synchronized(this){
+				moving[c.axis] = c;
+			}
+		}catch(Exception ex){
+			c.fail(ex);
+		}
+	}
+
+	/** Complete the moves of axes that stopped. */
+	private void poll(){
+		for(int axis=1;axis<=2;axis++){
+			Command c;
+			synchronized(this){
+				c = moving[axis];
+			}
+			if(c==null){
+				continue;
+			}
+			try{
+				if(link.isMoving(axis)){
+					continue;
+				}
+				Move m = c.move;
+				m.stopped = System.nanoTime();
+				settleHist.record(m.stopped-m.sent);
+				if(EventTrace.enabled){
+					EventTrace.record(moveEvent, m.sent, m.channel, m.axis, m.steps,
+							m.commandNanos*1E-6, (m.stopped-m.sent)*1E-6, 0, 0);
+				}
+				synchronized(this){
+					moving[axis] = null;
+				}
+				c.moved.complete(m);
+			}catch(Exception ex){
+				synchronized(this){
+					moving[axis] = null;
+				}
+				c.fail(ex);
+			}
+		}
+		synchronized(this){
+			lastPoll = System.nanoTime();
+		}
+	}
+
+	/** Commands queued or moving. */
+	public synchronized int getPending(){
+		int n = queue.size();
+		for(int i=1;i<moving.length;i++){
+			if(moving[i]!=null){
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/** "name channel=... queued=... moving=... commands=... switches=... forced=..." */
+	public synchronized String getStatus(){
+		int m = 0;
+		for(int i=1;i<moving.length;i++){
+			if(moving[i]!=null){
+				m++;
+			}
+		}
+		return String.format("%s channel=%d queued=%d moving=%d commands=%d switches=%d forced=%d",
+				name, channel, queue.size(), m, commands, switches, forced);
+	}
+
+	/** Status of every controller in use. */
+	public static synchronized List<String> getAllStatus(){
+		List<String> l = new ArrayList<String>();
+		Set<ControllerScheduler> seen = new HashSet<ControllerScheduler>();
+		for(ControllerScheduler s : schedulers.values()){
+			if(seen.add(s)){
+				l.add(s.getStatus());
+			}
+		}
+		return l;
+	}
+}
@@ -1,6 +1,12 @@
 package impl;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+import util.Completion;
 
 import javax.swing.JOptionPane;
 
@@ -10,6 +16,7 @@ import agilis.Actuator;
 import agilis.ActuatorInterface;
 import agilis.AgilisException;
 import data.AlignmentMath;
+import data.Config;
 import data.SetupData;
 
 /**<pre>
@@ -29,9 +36,14 @@ import data.SetupData;
  *  startPILoop
  *  stopPILoop
  * ____________________________
+ * 
+ * The alignment routines are scripts run by {@link AlignmentSequence}, see
+ * {@link AlignmentSequence#alignScript(boolean, int, int)}.  The run* methods wait
+ * for the sequence, the align* methods return it so it can be waited on with a
+ * timeout or cancelled, see {@link #abortSequence()}.
  *</pre>
  */
-public class DefinedRoutines {
+public class DefinedRoutines implements AlignmentRoutines {
 	ActuatorInterface ai;
 	NativeImageImpl tiltImg;
 	NativeImageImpl shearImg;
@@ -43,7 +55,10 @@ public class DefinedRoutines {
 	boolean coadd=false;
 	boolean autoPILoop=false;
 	
-	Thread motionThread;
+	/* mount moves running or waiting for the actuator */
+	final List<Thread> motionThreads = new CopyOnWriteArrayList<Thread>();
+	
+	String session;
 	
 	public DefinedRoutines(ActuatorInterface ai){
 		this.ai = ai;
@@ -65,92 +80,76 @@ public class DefinedRoutines {
 	 * Continuous image grab from both images, no-coaddition, auto alignment 
 	 */
 	public void runAlignAutoNoCoadd(){
-		startImages(true,true);
-		startStepCalc();
+		await(alignAutoNoCoadd());
+	}
 	
-		try{
-			while(sscalc.isRunning())
-				Thread.sleep(500);
-		}catch(InterruptedException ex){
-			
-		}
-		
-		//At this point; the alignment beam should be blocked
-		//and the reference beam should be shown
-		setRef(tiltImg);
-		setRef(shearImg);
-		
-		//Now the reference beam should be blocked and the
-		//alignment beam should be shown
-		autoPILoop = true;
-		startPILoop();
+	public Completion<Boolean> alignAutoNoCoadd(){
+		return align(true,0,0);
 	}
 	
 	/** Co-add image grab, non-continous, auto alignment */
 	public void runAlignAutoCoadd(int coaddN, int coaddT){
-		coadd = true;
-		
-		setupCoadd(coaddN,coaddT);
-		startStepCalc();
-		
-		//At this point; the alignment beam should be blocked
-		//and the reference beam should be shown
-		setRef(tiltImg);
-		setRef(shearImg);
-		
-		//Now the reference beam should be blocked and the
-		//alignment beam should be shown
-		autoPILoop = true;
-		startPILoop();
+		await(alignAutoCoadd(coaddN,coaddT));
+	}
+	
+	public Completion<Boolean> alignAutoCoadd(int coaddN, int coaddT){
+		return align(true,coaddN,coaddT);
 	}
 	
 	/** Continuous image grab, manual alignment */
 	public void runAlignManualNoCoadd(){
-		coadd = false;
-		autoPILoop = false;
-		
-		startImages(true,true);
-		//At this point; the alignment beam should be blocked
-		//and the reference beam should be shown
-		setRef(tiltImg);
-		setRef(shearImg);
-		
-		//Now the reference beam should be blocked and the
-		//alignment beam should be shown
-		startPILoop();
+		await(alignManualNoCoadd());
+	}
+	
+	public Completion<Boolean> alignManualNoCoadd(){
+		return align(false,0,0);
 	}
 	
 	/** Coadd image grab, manual alignment */
 	public void runAlignManualCoadd(int coaddN, int coaddT){
-		coadd = true;
-		
-		setupCoadd(coaddN,coaddT);
-		startStepCalc();
-		
-		//At this point; the alignment beam should be blocked
-		//and the reference beam should be shown
-		setRef(tiltImg);
-		setRef(shearImg);
-		
-		//Now the reference beam should be blocked and the
-		//alignment beam should be shown
-		autoPILoop = true;
-		startPILoop();
+		await(alignManualCoadd(coaddN,coaddT));
+	}
+	
+	public Completion<Boolean> alignManualCoadd(int coaddN, int coaddT){
+		return align(false,coaddN,coaddT);
+	}
+	
+	Completion<Boolean> align(boolean auto, int coaddN, int coaddT){
+		String name = (auto ? "auto":"manual")+((coaddN>0) ? "Coadd":"NoCoadd");
+		return AlignmentSequence.parse(name, AlignmentSequence.alignScript(auto,coaddN,coaddT))
+			.start(this, session);
 	}
 	
 	/** Compute step sizes, no coadd */
 	public void getStepSizesNoCoadd(){
 		coadd = false;
-		
-		startStepCalc();
-		while(sscalc.isRunning()){
-			try{
-				Thread.sleep(100);
-			}catch(InterruptedException ex){
-				break;
-			}
+		await(stepCalc().within(AlignmentSequence.CALIBRATE_TIMEOUT_MS));
+	}
+	
+	public Completion<Boolean> stepCalc(){
+		return sscalc.startCalc();
+	}
+	
+	/** Wait for a sequence, print why it did not complete. */
+	private static boolean await(Completion<Boolean> c){
+		try{
+			return c.get();
+		}catch(InterruptedException ex){
+			c.cancel(true);
+		}catch(CancellationException ex){
+			System.err.println("Sequence cancelled");
+		}catch(ExecutionException ex){
+			System.err.println("Sequence failed: "+ex.getCause());
+		}
+		return false;
+	}
+	
+	/** Cancel the running sequence and stop its current phase. */
+	public void abortSequence(){
+		AlignmentSequence s = AlignmentSequence.getCurrent();
+		if(s!=null){
+			s.cancel();
 		}
-			
 	}
 	
 	public void agilisTest(){
@@ -196,6 +195,46 @@ public class DefinedRoutines {
 		coadd = b;
 	}
 	
+	public boolean isCoaddOn(){
+		return coadd;
+	}
+	
+	/** Use the auto loop instead of the manual loop on the next startPILoop() */
+	public void setAutoPILoop(boolean b){
+		autoPILoop = b;
+	}
+	
+	public boolean isAutoPILoop(){
+		return autoPILoop;
+	}
+	
+	public boolean isPILoopRunning(){
+		return pictrl!=null && pictrl.isLoopRunning();
+	}
+	
+	public boolean isStepCalcRunning(){
+		return sscalc!=null && sscalc.isRunning();
+	}
+	
+	public boolean isMotionRunning(){
+		return !motionThreads.isEmpty();
+	}
+	
+	/**
+	 * Session of the remote client the following calls are made for, null for
+	 * the GUI.  Passed on to the routines so their actuator leases nest in the
+	 * session's lease, see {@link CommandArbiter}.
+	 */
+	public void setSession(String session){
+		this.session = session;
+		if(pictrl!=null){
+			pictrl.setSession(session);
+		}
+		if(sscalc!=null){
+			sscalc.setSession(session);
+		}
+	}
+	
 	public void setupCoadd(int coaddN, int coaddT){
 		tiltImg.setupCoadd(coaddN, coaddT);
 		shearImg.setupCoadd(coaddN, coaddT);
@@ -252,9 +291,10 @@ public class DefinedRoutines {
 		}
 	}
 	
-	public void setRef(NativeImageImpl img){
+	/** @return false if the reference centroid could not be set */
+	public boolean setRef(NativeImageImpl img){
 		if(img==null){
-			return;
+			return false;
 		}
 		
 		try{
@@ -263,12 +303,30 @@ public class DefinedRoutines {
 			}
 			
 			img.setRefCentroid();
+			return true;
 		}catch(NativeImageException ex){
 			//TODO
 			System.err.println(ex.getMessage());
 		}catch(InterruptedException ex){
 			//Do nothing
 		}
+		return false;
+	}
+	
+	public boolean setTiltRef(){
+		return setRef(tiltImg);
+	}
+	
+	public boolean setShearRef(){
+		return setRef(shearImg);
+	}
+	
+	public NativeImageImpl getTiltImage(){
+		return tiltImg;
+	}
+	
+	public NativeImageImpl getShearImage(){
+		return shearImg;
 	}
 	
 	public void startStepCalc(){
@@ -312,24 +370,30 @@ public class DefinedRoutines {
 		pictrl.stopLoop();
 	}
 	
+	/** Stop the mount moves started here, including the ones still waiting. */
 	public void abortMotion(){
-		if(motionThread!=null){
-			motionThread.interrupt();
+		for(Thread t : motionThreads){
+			t.interrupt();
 		}
 	}
 	
+	/** Operator abort: stop whatever holds the actuator and cancel all waiting requests. */
+	public void abort(){
+		abortSequence();
+		abortMotion();
+		CommandArbiter.getDefault().abort("abort");
+	}
+	
 	public void setReferencePoints(){
 		tiltImg.setRefCentroid();
 		shearImg.setRefCentroid();	
 	}
 	
+	/** Moves are queued, a move waits until the previous one is done. */
 	public void moveMounts(int m1ax1, int m1ax2, int m2ax1, int m2ax2){
-		if(motionThread==null || !motionThread.isAlive() ){
-			motionThread = new MoveMountsThread(m1ax1,m1ax2,m2ax1,m2ax2);
-			motionThread.start();
-		}else{
-			throw new RuntimeException("Motion currently executing by: "+motionThread.getName());
-		}
+		Thread t = new MoveMountsThread(m1ax1,m1ax2,m2ax1,m2ax2);
+		motionThreads.add(t);
+		t.start();
 	}
 	
 	public class MoveMountsThread extends Thread{
@@ -337,6 +401,7 @@ public class DefinedRoutines {
 		int m1ax2;
 		int m2ax1;
 		int m2ax2;
+		String session;
 		
 		public MoveMountsThread(int m1ax1, int m1ax2, int m2ax1, int m2ax2){
 			super("MoveMountsThread");
@@ -344,17 +409,43 @@ public class DefinedRoutines {
 			this.m1ax2 = m1ax2;
 			this.m2ax1 = m2ax1;
 			this.m2ax2 = m2ax2;
+			this.session = DefinedRoutines.this.session;
 		}
 		
 		@Override
 		public void run(){
+			CommandArbiter.Lease lease = null;
+			try{
+				lease = CommandArbiter.getDefault().acquire(getName(), session, CommandArbiter.Priority.MOTION,
+						CommandArbiter.QUEUE_WAIT_MS, new Runnable(){
+							public void run(){
+								MoveMountsThread.this.interrupt();
+							}
+						});
+				if(lease!=null){
+					move();
+				}else{
+					System.err.println("Mount move dropped, actuator busy: "+CommandArbiter.getDefault().getStatus());
+				}
+			}catch(InterruptedException ex){
+				//aborted while waiting
+			}finally{
+				if(lease!=null){
+					lease.release();
+				}
+				motionThreads.remove(this);
+			}
+		}
+		
+		private void move(){
+			Config cfg = SetupData.getConfig();
 			try{
 				ai.setExclusiveAccessLock(true,this.getName());
 				if(ai.getActuatorState()==Actuator.NOT_INITIALIZED){
 					ai.connect();
 				}	
 				
-				ai.setChannel( ((Double)SetupData.vart.get("chM1")).intValue() );
+				ai.setChannel( cfg.chM1 );
 				ai.setEqualStepSize( SetupData.currentMountStepAmplitude );
 				
 				ai.stepAxis1(m1ax1);
@@ -367,7 +458,7 @@ public class DefinedRoutines {
 					Thread.sleep(500);
 				}
 				
-				ai.setChannel( ((Double)SetupData.vart.get("chM2")).intValue() );
+				ai.setChannel( cfg.chM2 );
 				ai.setEqualStepSize( SetupData.currentMountStepAmplitude );
 				
 				ai.stepAxis1(m2ax1);
@@ -384,6 +475,10 @@ public class DefinedRoutines {
 						shearImg.getRefCentroid(),shearImg.getCentroid());
 				
 				ai.setExclusiveAccessLock(false,this.getName());
+			}catch(InterruptedException ex){
+				//revoked or aborted, the lease is released by run()
+				ai.setExclusiveAccessLock(false,this.getName());
+				System.out.println("Mount move stopped.");
 			}catch(Exception ex){
 				ai.setExclusiveAccessLock(false,this.getName());
 				if(ex instanceof IOException || ex instanceof AgilisException) {
@@ -3,22 +3,28 @@ package impl;
 import gui.ReportTable;
 
 import java.awt.geom.Point2D;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Vector;
 
+import util.AsyncLog;
+import util.EventTrace;
+import util.MetricsRegistry;
 import util.NumberObserver;
 
 import xenimaq.NativeImageImpl;
 import data.AlignmentMath;
+import data.SetupData;
 
 /**
  * Logger class is used to implement methods for starting threads that
  * print information to stdout.
  * 
- * TODO In the future this class should implement methods for threads that log
- * information to files.
+ * Log lines are queued on {@link AsyncLog} instead of being printed by the
+ * timer threads, the AsyncLog consumer thread formats them and writes them in
+ * batches to the console, the UI and optionally a log file.
  */
 public class Logger {
 	NativeImageImpl timg;
@@ -27,6 +33,9 @@ public class Logger {
 	
 	Timer centroidsT, thetaCorrsT, pixOffsT;
 	
+	AsyncLog log = AsyncLog.getDefault();
+	AsyncLog.FileSink fileSink;
+	
 	ReportTable rtable;
 	boolean guiMode = false;
 	
@@ -152,21 +161,85 @@ public class Logger {
 	}
 	
 	public void getPIStatus() {
-		System.out.format("[PI Loop] SY1(X)  SY1(Y)  SY2(X)  SY2(Y) [deg]%n");
-		System.out.format("%10.7f %10.7f %10.7f %10.7f%n",
+		log.println("[PI Loop] SY1(X)  SY1(Y)  SY2(X)  SY2(Y) [deg]");
+		log.format("%10.7f %10.7f %10.7f %10.7f%n",
 				AlignmentMath.m1Xloop.getCurrentError(), AlignmentMath.m1Yloop.getCurrentError(),
 				AlignmentMath.m2Xloop.getCurrentError(), AlignmentMath.m2Yloop.getCurrentError());
 	}
 	
+	public void getMetrics() {
+		for(String line : MetricsRegistry.report()){
+			log.println("[metrics] "+line);
+		}
+	}
+	
 	public void getStepSizes() {
-		System.out.format("     M1AX1-    M1AX1+    M1AX2-    M1AX2+%n");
-		System.out.format("%10.7f %10.7f %10.7f %10.7f%n",AlignmentMath.ssm1ax1n,AlignmentMath.ssm1ax1p,AlignmentMath.ssm1ax2n,AlignmentMath.ssm1ax2p);
+		log.println("     M1AX1-    M1AX1+    M1AX2-    M1AX2+");
+		log.format("%10.7f %10.7f %10.7f %10.7f%n",AlignmentMath.ssm1ax1n,AlignmentMath.ssm1ax1p,AlignmentMath.ssm1ax2n,AlignmentMath.ssm1ax2p);
+		
+		log.println("     M2AX1-    M2AX1+    M2AX2-    M2AX2+");
+		log.format("%10.7f %10.7f %10.7f %10.7f%n",AlignmentMath.ssm2ax1n,AlignmentMath.ssm2ax1p,AlignmentMath.ssm2ax2n,AlignmentMath.ssm2ax2p);		
+	}
+	
+	/** Turn on/off copying of all log output to a file in {@link SetupData#dataDir}.
+	 * @param on on/off switch
+	 * */
+	public void setupLogFile(boolean on) {
+		if(on){
+			if(fileSink!=null){
+				return;
+			}
+			
+			SetupData.makeDir(SetupData.dataDir);
+			String path = String.format("%s%stiltshear_%tH%<tM%<tS.log",
+					SetupData.dataDir,SetupData.pathsep,System.currentTimeMillis());
+			try{
+				fileSink = new AsyncLog.FileSink(path);
+				log.addSink(fileSink);
+				log.println("[log] writing to "+path);
+			}catch(IOException ex){
+				System.err.format("[Logger.setupLogFile(%s)]: Error opening file: %s%n",path,ex.getMessage());
+				fileSink = null;
+			}
+		}else{
+			if(fileSink!=null){
+				log.removeSink(fileSink);
+				fileSink.close();
+				fileSink = null;
+			}
+		}
+	}
+	
+	/** Start/stop an {@link EventTrace} recording.  When stopped the recording is
+	 * dumped to the data directory as a Chrome trace JSON file. 
+	 * @param on on/off switch
+	 * */
+	public void setupTrace(boolean on) {
+		if(on){
+			EventTrace.startRecording();
+			log.println("[trace] recording started");
+			return;
+		}
+		
+		if(!EventTrace.isEnabled()){
+			return;
+		}
+		EventTrace.stopRecording();
 		
-		System.out.format("     M2AX1-    M2AX1+    M2AX2-    M2AX2+%n");
-		System.out.format("%10.7f %10.7f %10.7f %10.7f%n",AlignmentMath.ssm2ax1n,AlignmentMath.ssm2ax1p,AlignmentMath.ssm2ax2n,AlignmentMath.ssm2ax2p);		
+		SetupData.makeDir(SetupData.dataDir);
+		String path = String.format("%s%stiltshear_%tH%<tM%<tS.trace.json",
+				SetupData.dataDir,SetupData.pathsep,System.currentTimeMillis());
+		try{
+			int n = EventTrace.dumpTo(path);
+			log.println(String.format("[trace] %d events written to %s",n,path));
+		}catch(IOException ex){
+			System.err.format("[Logger.setupTrace(%s)]: Error writing file: %s%n",path,ex.getMessage());
+		}
 	}
 	
 	/** Turn on/off thread for logging latest centroid position values.  
+	 * In GUI mode the values are shown in the table as well, the log keeps the
+	 * [refs] and [centroids] records in both modes so the session can be replayed.
 	 * @param dT  Time interval, in seconds, to print data.
 	 * @param on on/off switch
 	 * */
@@ -179,34 +252,47 @@ public class Logger {
 			}
 			
 			handleTableDataSetup(dT);			
-			return;
 		}
 		
 	
 		if(on){
 			if(centroidsT !=null){
+				if(guiMode){
+					//table interval changed, the log keeps its own
+					return;
+				}
 				throw new RuntimeException("Centroid logging already on.");
 			}
 		
-			System.out.println("[centroids]    TiltX    TiltY    ShearX    ShearY");
+			log.println("[centroids]    TiltX    TiltY    ShearX    ShearY");
 		
 		
 			TimerTask task = new TimerTask(){
 				long startt=System.currentTimeMillis();
 				Point2D.Double tcent = new Point2D.Double();
 				Point2D.Double scent = new Point2D.Double();
+				Point2D.Double tr = new Point2D.Double(Double.NaN,Double.NaN);
+				Point2D.Double sr = new Point2D.Double(Double.NaN,Double.NaN);
 				
 				public void run(){
 					timg.getCentroid(tcent);
 					simg.getCentroid(scent);
 					
-					if(guiMode){
-					
-					}else{
-						System.out.format("[centroids] %9.4f %9.4f %9.4f %9.4f %9.4f%n",
+					//Reference centroids are logged whenever they change so the
+					//session can be replayed later, see SessionReplay
+					Point2D.Double t = timg.getRefCentroid();
+					Point2D.Double s = simg.getRefCentroid();
+					if(!t.equals(tr) || !s.equals(sr)){
+						tr.setLocation(t);
+						sr.setLocation(s);
+						log.format("[refs] %9.4f %9.4f %9.4f %9.4f %9.4f%n",
 								(System.currentTimeMillis()-startt)*1E-3,
-								tcent.x,tcent.y,scent.x,scent.y);
+								tr.x,tr.y,sr.x,sr.y);
 					}
+					
+					log.format("[centroids] %9.4f %9.4f %9.4f %9.4f %9.4f%n",
+							(System.currentTimeMillis()-startt)*1E-3,
+							tcent.x,tcent.y,scent.x,scent.y);
 				}
 				
 			};
@@ -244,14 +330,14 @@ public class Logger {
 				throw new RuntimeException("Angular correction logging already on.");
 			}
 			
-			System.out.println("[thetas] SY1X    SY1Y    SY2X    SY2Y");
+			log.println("[thetas] SY1X    SY1Y    SY2X    SY2Y");
 			TimerTask task = new TimerTask(){
 				long startt=System.currentTimeMillis();
 				
 				public void run(){
 					AlignmentMath.computeThetaCorrection(timg.getRefCentroid(),timg.getCentroid(),
 							simg.getRefCentroid(),simg.getCentroid());
-					System.out.format("[thetas] %9.4f %9.7f %9.7f %9.7f %9.7f%n",
+					log.format("[thetas] %9.4f %9.7f %9.7f %9.7f %9.7f%n",
 						(System.currentTimeMillis()-startt)*1E-3,
 						AlignmentMath.acm1x,AlignmentMath.acm1y,
 						AlignmentMath.acm2x,AlignmentMath.acm2y);
@@ -286,7 +372,7 @@ public class Logger {
 		}
 		
 		if(on){
-			System.out.println("[offsets] Hdxt    Hdyt    Hdxs    Hdys");
+			log.println("[offsets] Hdxt    Hdyt    Hdxs    Hdys");
 			
 			TimerTask task = new TimerTask(){
 				long startt=System.currentTimeMillis();
@@ -295,7 +381,7 @@ public class Logger {
 					AlignmentMath.computeThetaCorrection( timg.getRefCentroid(),timg.getCentroid(),
 							simg.getRefCentroid(),simg.getCentroid() );
 					
-					System.out.format("[offsets] %9.4f %9.4f %9.4f %9.4f %9.4f%n",
+					log.format("[offsets] %9.4f %9.4f %9.4f %9.4f %9.4f%n",
 							(System.currentTimeMillis()-startt)*1E-3,
 							AlignmentMath.Hdt.x,AlignmentMath.Hdt.y,
 							AlignmentMath.Hds.x,AlignmentMath.Hds.y);
@@ -4,35 +4,53 @@ import gui.ReportTable;
 
 import java.awt.geom.Point2D;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import util.Completion;
+import util.EventTrace;
 import util.NumberObserver;
 
 import agilis.ActuatorInterface;
 import agilis.AgilisException;
 import data.AlignmentMath;
+import data.Config;
 import data.SetupData;
 import xenimaq.NativeImageException;
 import xenimaq.NativeImageImpl;
 
 /**
  * <pre>
+ * Measures the mean step sizes of both mounts, see {@link #runNoCoadd(int)}.
  * 
+ * One calculation at a time for all instances, the GUI and the routines each have
+ * their own.  {@link #startCalc()} returns a {@link Completion} that completes when
+ * the thread is done, so a sequence continues right after the calculation.
  * </pre>
  */
 final public class MeanStepSizeCalculator implements Runnable {
-	static boolean theLock;
+	static final int legEvent = EventTrace.defineType("Step size leg",
+			new String[]{"channel","axis","steps"},
+			new String[]{"acm1x","acm1y","acm2x","acm2y"});
+
+	/** Claimed by startCalc(), released when the thread ends */
+	static final AtomicBoolean theLock = new AtomicBoolean();
 	
 	ActuatorInterface ai;
 	NativeImageImpl timg, simg;
 		
-	boolean coaddRoutine=false;
+	static final String COADD_NOT_IMPLEMENTED = "coadd calibration not implemented";
+	
+	volatile boolean coaddRoutine=false;
 	
 	int nsteps=100, stepAmpl=50;
-	Thread thisThread;
+	volatile Thread thisThread;
+	private Completion<Boolean> done;
 	
 	ReportTable reportTable;
 	boolean guiMode = false;
 	
+	private String session;
+	
 	public MeanStepSizeCalculator(ActuatorInterface ai,
 			NativeImageImpl simg, NativeImageImpl timg, ReportTable reportTable){
 		this.ai = ai;
@@ -51,42 +69,104 @@ final public class MeanStepSizeCalculator implements Runnable {
 		this.stepAmpl = stepAmpl;
 	}
 	
-	public void startCalc(){
-		if(!theLock){
-			thisThread = new Thread(this,"MeanStepSizeCalculator");
-			thisThread.start();
+	/**
+	 * Start the calculation thread.
+	 * @return Completes with true once the step sizes are measured, false if the
+	 *  calculation was stopped, the actuator was busy or a calculation was running
+	 *  already.  Fails with UnsupportedOperationException in coadd mode, which has no
+	 *  calculation yet.  Cancelling it stops the calculation.
+	 */
+	public Completion<Boolean> startCalc(){
+		if(coaddRoutine){
+			System.err.println("MeanStepSizeCalculator not started, "+COADD_NOT_IMPLEMENTED);
+			Completion<Boolean> c = new Completion<Boolean>();
+			c.fail(new UnsupportedOperationException(COADD_NOT_IMPLEMENTED));
+			return c;
+		}
+		if(!theLock.compareAndSet(false, true)){
+			return Completion.completed(false);
 		}
+		Completion<Boolean> c = new Completion<Boolean>();
+		c.onAbort(new Runnable(){
+			public void run(){
+				stopCalc();
+			}
+		});
+		done = c;
+		thisThread = new Thread(this,"MeanStepSizeCalculator");
+		thisThread.start();
+		return c;
 	}
 	
 	public void stopCalc(){
-		if(thisThread!=null){
-			thisThread.interrupt();
+		Thread t = thisThread;
+		if(t!=null){
+			t.interrupt();
 		}
 	}
 	
+	/** True from startCalc() until the step sizes are measured, including the wait for the actuator. */
 	public boolean isRunning(){
-		if(theLock){
-			return true;
-		}else{
-			return false;
-		}
+		return theLock.get();
 	}
 	
+	/** Session of the remote client that starts the calculation, null for the GUI. */
+	public void setSession(String session){
+		this.session = session;
+	}
+	
+	/** Waits in the {@link CommandArbiter} queue until the actuator is free. */
 	@Override 
 	public void run(){
-		int chM1;
-		int chM2;
-		
-		ai.setExclusiveAccessLock(true,thisThread.getName());
+		boolean measured = false;
+		try{
+			measured = runQueued();
+		}catch(RuntimeException ex){
+			done.fail(ex);
+			throw ex;
+		}finally{
+			thisThread = null;
+			theLock.set(false);
+			done.complete(measured);
+		}
+	}
+	
+	private boolean runQueued(){
+		CommandArbiter arbiter = CommandArbiter.getDefault();
+		CommandArbiter.Lease lease;
+		try{
+			lease = arbiter.acquire(Thread.currentThread().getName(), session, CommandArbiter.Priority.CALIBRATION,
+					CommandArbiter.QUEUE_WAIT_MS, new Runnable(){
+						public void run(){
+							stopCalc();
+						}
+					});
+		}catch(InterruptedException ex){
+			return false;
+		}
+		if(lease==null){
+			System.err.println("MeanStepSizeCalculator not started, actuator busy: "+arbiter.getStatus());
+			return false;
+		}
 		
-		if(theLock){
-			throw new RuntimeException("MeanStepSizeCalculator already running!");
+		try{
+			return runLeased();
+		}finally{
+			lease.release();
 		}
+	}
+	
+	private boolean runLeased(){
+		int chM1;
+		int chM2;
+		boolean measured = false;
+		String name = Thread.currentThread().getName();
 		
-		theLock = true;
+		ai.setExclusiveAccessLock(true,name);
 		
-		chM1=((Double)SetupData.vart.get("chM1")).intValue();
-		chM2=((Double)SetupData.vart.get("chM2")).intValue();
+		Config cfg=SetupData.getConfig();
+		chM1=cfg.chM1;
+		chM2=cfg.chM2;
 		
 		if(guiMode){
 			reportTable.resetTable(new String[] 
@@ -112,7 +192,8 @@ final public class MeanStepSizeCalculator implements Runnable {
 			System.out.format("steps=%d, ampl=%d%n",nsteps,stepAmpl);
 			
 			if(coaddRoutine){
-//				runCoadd(chM1);
+				//switched on after startCalc()
+				throw new UnsupportedOperationException(COADD_NOT_IMPLEMENTED);
 			}else{
 				runNoCoadd(chM1);
 			}
@@ -123,7 +204,7 @@ final public class MeanStepSizeCalculator implements Runnable {
 					AlignmentMath.ssm1ax2n,AlignmentMath.ssm1ax2p);
 			
 			if(coaddRoutine){
-//				runCoadd(chM2);
+				throw new UnsupportedOperationException(COADD_NOT_IMPLEMENTED);
 			}else{
 				runNoCoadd(chM2);
 			}
@@ -132,7 +213,10 @@ final public class MeanStepSizeCalculator implements Runnable {
 			System.out.format("%8.7f, %8.7f, %8.7f, %8.7f%n",
 					AlignmentMath.ssm2ax1n,AlignmentMath.ssm2ax1p,
 					AlignmentMath.ssm2ax2n,AlignmentMath.ssm2ax2p);
+			measured = true;
 
+		}catch(InterruptedException ex){
+			System.out.println("MeanStepSizeCalculator stopped.");
 		}catch(Exception ex){
 			if(ex instanceof IOException){
 				ai.disconnect();
@@ -145,13 +229,14 @@ final public class MeanStepSizeCalculator implements Runnable {
 				simg.termImage();
 				System.err.println(ex.getMessage());
 			}else{
+				ai.setExclusiveAccessLock(false,name);
 				throw new RuntimeException(ex);
 			}							
 		}
 		
 		System.out.println("%%%%");
-		theLock = false;
-		ai.setExclusiveAccessLock(false,thisThread.getName());
+		ai.setExclusiveAccessLock(false,name);
+		return measured;
 	}
 	
 	public void runCoadd(int M) {
@@ -163,6 +248,7 @@ final public class MeanStepSizeCalculator implements Runnable {
 		Point2D.Double toff;
 		Point2D.Double sref;
 		Point2D.Double soff;
+		long t0;
 
 		tref = timg.getRefCentroid();
 		toff = timg.getCentroid();
@@ -181,6 +267,7 @@ final public class MeanStepSizeCalculator implements Runnable {
 		Thread.sleep(500);		
 		
 		//Measure 1- direction
+		t0 = EventTrace.enabled ? System.nanoTime():0;
 		ai.stepAxis1(-nsteps);
 		while(ai.isMoving(1))
 			Thread.sleep(1000);
@@ -188,10 +275,12 @@ final public class MeanStepSizeCalculator implements Runnable {
 		AlignmentMath.computeAngularExtent(tref, toff);
 		AlignmentMath.computeStepSize(M, -nsteps, 0);
 		if(guiMode) reportTable.updateTable("1-");
+		if(EventTrace.enabled) recordLeg(t0, M, 1, -nsteps);
 		timg.setRefCentroid();
 		simg.setRefCentroid();
 		
 		//Measure 1+ direction
+		t0 = EventTrace.enabled ? System.nanoTime():0;
 		ai.stepAxis1(nsteps);
 		while(ai.isMoving(1))
 			Thread.sleep(1000);
@@ -199,10 +288,12 @@ final public class MeanStepSizeCalculator implements Runnable {
 		AlignmentMath.computeAngularExtent(tref, toff);
 		AlignmentMath.computeStepSize(M, nsteps, 0);
 		if(guiMode) reportTable.updateTable("1+");
+		if(EventTrace.enabled) recordLeg(t0, M, 1, nsteps);
 		timg.setRefCentroid();
 		simg.setRefCentroid();
 		
 		//Measure 2- direction
+		t0 = EventTrace.enabled ? System.nanoTime():0;
 		ai.stepAxis2(-nsteps);
 		while(ai.isMoving(2))
 			Thread.sleep(1000);
@@ -210,10 +301,12 @@ final public class MeanStepSizeCalculator implements Runnable {
 		AlignmentMath.computeAngularExtent(tref, toff);
 		AlignmentMath.computeStepSize(M, 0, -nsteps);
 		if(guiMode) reportTable.updateTable("2-");
+		if(EventTrace.enabled) recordLeg(t0, M, 2, -nsteps);
 		timg.setRefCentroid();
 		simg.setRefCentroid();
 					
 		//Measure 2+ direction
+		t0 = EventTrace.enabled ? System.nanoTime():0;
 		ai.stepAxis2(nsteps);
 		while(ai.isMoving(2))
 			Thread.sleep(1000);
@@ -221,6 +314,7 @@ final public class MeanStepSizeCalculator implements Runnable {
 		AlignmentMath.computeAngularExtent(tref, toff);
 		AlignmentMath.computeStepSize(M, 0, nsteps);
 		if(guiMode) reportTable.updateTable("2+");
+		if(EventTrace.enabled) recordLeg(t0, M, 2, nsteps);
 		
 		//Move back to starting position, this attempts to correct
 		//for one direction being more sensitive than another,
@@ -230,6 +324,11 @@ final public class MeanStepSizeCalculator implements Runnable {
 		
 	}
 
+	private static void recordLeg(long t0, int M, int axis, int steps){
+		EventTrace.record(legEvent, t0, M, axis, steps,
+				AlignmentMath.acm1x, AlignmentMath.acm1y, AlignmentMath.acm2x, AlignmentMath.acm2y);
+	}
+
 //	public void runNoCoadd(int M) throws IOException, AgilisException, InterruptedException{
 //		Point2D.Double tref;
 //		Point2D.Double toff;
@@ -4,10 +4,21 @@ import gui.ReportTable;
 
 import java.awt.geom.Point2D;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import javax.swing.SwingUtilities;
 
 import sun.util.calendar.BaseCalendar.Date;
 
+import util.Completion;
+import util.Counter;
+import util.EventTrace;
+import util.LatencyHistogram;
+import util.MetricsRegistry;
+import util.TelemetryHub;
+
 import data.AlignmentMath;
+import data.Config;
 import data.PIDMath;
 import data.SetupData;
 import xenimaq.NativeImageException;
@@ -44,6 +55,13 @@ import agilis.AgilisException;
  * PIControl does not change image related settings.  So setup for coaddition should
  * be done prior to starting a coadd alignment routine. 
  * 
+ * The actuator is leased from the {@link CommandArbiter} while a loop runs, a higher
+ * priority request (operator abort) stops the loop.
+ * 
+ * The mounts are stepped through the {@link ControllerScheduler} of the controller,
+ * which moves both axes of a mount at once and shares the serial link with other
+ * loops on the same controller.
+ * 
  * Step procedure:
  *  - Regardless of the method used (automated or single step) the method stepLoop() is used to position
  *  the alignment beam on top of the reference beam. 'stepLoop()' computes the angular correction angles, 
@@ -53,10 +71,44 @@ import agilis.AgilisException;
  *  apply the correction steps for SY1 and ignore the correction for SY2.  The next call will apply the
  *  correction to SY2 and ignore the correction for SY1.  The cycle is repeated until loop is ended.
  *   
+ * Instrumentation:
+ *  - Every phase of an iteration is timed into a latency histogram in {@link MetricsRegistry}
+ *  ("pi.*"), steps commanded per axis are counted in "steps.*".  The "pi.move.*" times
+ *  run from queueing the move to the stopped axis, the channel switches and the
+ *  settling are timed by the {@link ControllerScheduler} ("agilis.*").
+ *  - Centroid fetches, PI updates and coadds, and through the scheduler channel
+ *  switches and axis moves, are also recorded as {@link EventTrace} events when a
+ *  trace recording is running.
+ *  - Centroids, loop status and (through AlignmentMath) offsets, angles and steps are
+ *  published to {@link TelemetryHub} for remote subscribers.
  * </pre>
  */
 public class PIControl{
+	static final LatencyHistogram iterationHist = MetricsRegistry.histogram("pi.iteration");
+	static final LatencyHistogram centroidFetchHist = MetricsRegistry.histogram("pi.centroidFetch");
+	static final LatencyHistogram thetaComputeHist = MetricsRegistry.histogram("pi.thetaCompute");
+	static final LatencyHistogram pidUpdateHist = MetricsRegistry.histogram("pi.pidUpdate");
+	static final LatencyHistogram moveM1Ax1Hist = MetricsRegistry.histogram("pi.move.m1ax1");
+	static final LatencyHistogram moveM1Ax2Hist = MetricsRegistry.histogram("pi.move.m1ax2");
+	static final LatencyHistogram moveM2Ax1Hist = MetricsRegistry.histogram("pi.move.m2ax1");
+	static final LatencyHistogram moveM2Ax2Hist = MetricsRegistry.histogram("pi.move.m2ax2");
+	static final LatencyHistogram coaddHist = MetricsRegistry.histogram("pi.coadd");
+	static final Counter stepsM1Ax1 = MetricsRegistry.counter("steps.m1ax1");
+	static final Counter stepsM1Ax2 = MetricsRegistry.counter("steps.m1ax2");
+	static final Counter stepsM2Ax1 = MetricsRegistry.counter("steps.m2ax1");
+	static final Counter stepsM2Ax2 = MetricsRegistry.counter("steps.m2ax2");
+	static final Counter iterations = MetricsRegistry.counter("pi.iterations");
+	static final int centroidEvent = EventTrace.defineType("Centroid fetch",
+			new String[0], new String[]{"tiltX","tiltY","shearX","shearY"});
+	static final int computeEvent = EventTrace.defineType("PI compute",
+			new String[]{"step"}, new String[]{"em1X","em1Y","em2X","em2Y"});
+	static final int iterationEvent = EventTrace.defineType("PI iteration",
+			new String[]{"step"}, new String[0]);
+	static final int coaddEvent = EventTrace.defineType("Coadd",
+			new String[0], new String[0]);
+	
 	ActuatorInterface ai;
+	final ControllerScheduler controller;
 	NativeImageImpl timg;
 	NativeImageImpl simg;
 	PIRules errorChecker;
@@ -65,6 +117,13 @@ public class PIControl{
 	Point2D.Double toff;
 	Point2D.Double sref;
 	Point2D.Double soff;
+	
+	/* Centroids copied at the start of each iteration */
+	Point2D.Double tcur = new Point2D.Double();
+	Point2D.Double scur = new Point2D.Double();
+	
+	/* Report table row, copied by the table */
+	private final double[] rowValues = new double[8];
 
 	double pgain, igain;
 	
@@ -79,12 +138,15 @@ public class PIControl{
 	int stepCnt;
 	
 	long loopStartTime;
+	volatile long iterationStart;
 	
 	private static enum AlignState { SY1, SY2 };
 	AlignState alignState = AlignState.SY1;
 	
 	private boolean errorChecking = false;
-	private boolean loopLock=false;
+	private volatile boolean loopLock=false;
+	private volatile CommandArbiter.Lease lease;
+	private String session;
 	private boolean stepLock=false;
 	
 	private ReportTable rtable;
@@ -95,12 +157,14 @@ public class PIControl{
 	public PIControl(ActuatorInterface ai, 
 			NativeImageImpl simg, NativeImageImpl timg, ReportTable rtable){
 		this.ai = ai;
+		this.controller = ControllerScheduler.of(ai);
 		this.timg = timg;
 		this.simg = simg;
 		errorChecker =  new PIRules(timg, simg, ai);
 		
-		chM1 = ((Double)SetupData.vart.get("chM1")).intValue();
-		chM2 = ((Double)SetupData.vart.get("chM2")).intValue();
+		Config cfg = SetupData.getConfig();
+		chM1 = cfg.chM1;
+		chM2 = cfg.chM2;
 	
 		this.rtable = rtable;
 		if(rtable!=null){
@@ -108,34 +172,58 @@ public class PIControl{
 		}
 	}
 	
+	/** Read the home positions, as an exclusive job of the {@link ControllerScheduler}. */
 	public void setHome()  throws IOException, AgilisException,InterruptedException{
-		int chai = ai.getChannel();
-		Integer[] home1 = {0,0,0,0};
-		Integer[] home2 = {0,0,0,0};
-		ai.setChannel(1);
-		home1[0] = ai.getHomeAxis1();
-		while(ai.isMoving(1)){
-			Thread.sleep(500);
-		}
-		Thread.sleep(0);
-		home2[0] = ai.getHomeAxis2();
-		while(ai.isMoving(2)){
-			Thread.sleep(500);
-		}
-		Thread.sleep(0);
-		ai.setChannel(2);
-		home1[1] = ai.getHomeAxis1();
-		while(ai.isMoving(1)){
-			Thread.sleep(500);
-		}
-		Thread.sleep(0);
-		home2[1] = ai.getHomeAxis2();
-		while(ai.isMoving(2)){
-			Thread.sleep(500);
+		exclusive(new Callable<Void>(){
+			public Void call() throws Exception{
+				int chai = ai.getChannel();
+				Integer[] home1 = {0,0,0,0};
+				Integer[] home2 = {0,0,0,0};
+				ai.setChannel(1);
+				home1[0] = ai.getHomeAxis1();
+				while(ai.isMoving(1)){
+					Thread.sleep(500);
+				}
+				Thread.sleep(0);
+				home2[0] = ai.getHomeAxis2();
+				while(ai.isMoving(2)){
+					Thread.sleep(500);
+				}
+				Thread.sleep(0);
+				ai.setChannel(2);
+				home1[1] = ai.getHomeAxis1();
+				while(ai.isMoving(1)){
+					Thread.sleep(500);
+				}
+				Thread.sleep(0);
+				home2[1] = ai.getHomeAxis2();
+				while(ai.isMoving(2)){
+					Thread.sleep(500);
+				}
+				Thread.sleep(0);
+				ai.setChannel(chai);
+				ai.setHomePositions(home1, home2);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Run 'job' on the controller once the commands queued before it are done, the
+	 * commands of other loops on the controller wait for it.
+	 */
+	private void exclusive(Callable<Void> job) throws IOException, AgilisException,InterruptedException{
+		try{
+			ControllerScheduler.awaitAll(controller.exclusive(job));
+		}catch(IOException ex){
+			throw ex;
+		}catch(AgilisException ex){
+			throw ex;
+		}catch(InterruptedException ex){
+			throw ex;
+		}catch(Exception ex){
+			throw new RuntimeException(ex);
 		}
-		Thread.sleep(0);
-		ai.setChannel(chai);
-		ai.setHomePositions(home1, home2);
 	}
 	
 	public void setupLoop(double pgain, double igain){
@@ -151,9 +239,60 @@ public class PIControl{
 		return errorChecking;
 	}
 	
+	/** Session of the remote client that starts the loop, null for the GUI. */
+	public void setSession(String session){
+		this.session = session;
+	}
+	
+	private CommandArbiter.Lease acquireLease(long waitMs) throws InterruptedException{
+		return CommandArbiter.getDefault().acquire("PIControl", session,
+				CommandArbiter.Priority.LOOP, waitMs, new Runnable(){
+					public void run(){
+						stopLoop();
+					}
+				});
+	}
+	
+	/**
+	 * Take the actuator lease for the next loop start, waits up to
+	 * CommandArbiter.DEFAULT_WAIT_MS so the GUI calls it off the EDT.
+	 * @return false if the actuator stayed busy.
+	 */
+	public boolean takeLease() throws InterruptedException{
+		if(lease==null){
+			lease = acquireLease(CommandArbiter.DEFAULT_WAIT_MS);
+		}
+		return lease!=null;
+	}
+	
+	/** Give back a lease taken by takeLease() when the loop doesn't start after all. */
+	public void releaseLease(){
+		if(loopLock){
+			return;
+		}
+		CommandArbiter.Lease l = lease;
+		lease = null;
+		if(l!=null){
+			l.release();
+		}
+	}
+	
 	private void initLoops(int stepAmpl){
+		if(lease==null){
+			//never keep the EDT waiting, the GUI takes the lease beforehand with takeLease()
+			long waitMs = SwingUtilities.isEventDispatchThread() ? 0:CommandArbiter.DEFAULT_WAIT_MS;
+			try{
+				lease = acquireLease(waitMs);
+			}catch(InterruptedException ex){
+				Thread.currentThread().interrupt();
+			}
+			if(lease==null){
+				throw new IllegalStateException("Actuator busy: "+CommandArbiter.getDefault().getStatus());
+			}
+		}
 		loopLock = true;
 		stepCnt=0;
+		loopStartTime = System.currentTimeMillis();
 		
 		AlignmentMath.m1Xloop=new PIDMath(pgain,igain);
 		AlignmentMath.m1Yloop=new PIDMath(pgain,igain);
@@ -194,10 +333,20 @@ public class PIControl{
 		this.stepInterval = stepInterval;
 	}
 	
+	private void publishStatus(double iterationMs){
+		TelemetryHub.publish(TelemetryHub.PISTATUS, loopLock ? 1:0, stepCnt-1, iterationMs,
+				(System.currentTimeMillis()-loopStartTime)*1E-3);
+	}
+	
+	/** True from the start of a manual or automatic loop until stopLoop(). */
+	public boolean isLoopRunning(){
+		return loopLock;
+	}
+	
 	public void startManualLoop(int stepAmpl, boolean coadd)
 		throws NativeImageException {
 		if(loopLock){
-			throw new RuntimeException("A PI control loop is already started!");
+			throw new IllegalStateException("A PI control loop is already started!");
 		}
 		
 		this.coadd=coadd;
@@ -215,7 +364,6 @@ public class PIControl{
 	}
 	
 	public void startAutoLoop(int stepAmpl, boolean coadd){
-		System.out.println(System.currentTimeMillis());
 		AlignmentMath.Hxdt_r.setNumber(0);
 		AlignmentMath.Hydt_r.setNumber(0);
 		AlignmentMath.Hxds_r.setNumber(0);
@@ -268,10 +416,17 @@ public class PIControl{
 		}
 		
 		loopLock = false;
+		publishStatus(0);
 		//TODO this will throw a runtime exception if 'stopLoop()' is called
 		//before initLoops() is called. Which happens if stop button is pressed before start button
 		ai.setExclusiveAccessLock(false,"PIControl");
-		System.out.println(System.currentTimeMillis());
+		CommandArbiter.Lease l = lease;
+		lease = null;
+		if(l!=null){
+			l.release();
+		}
+		if(SetupData.debug) System.out.format("PI loop ran %d ms, %d iterations%n",
+				System.currentTimeMillis()-loopStartTime, stepCnt);
 	}
 	
 	/**
@@ -315,8 +470,17 @@ public class PIControl{
 
 	public void stepLoop() {
 		double em1X, em1Y, em2X, em2Y;
+		long t = System.nanoTime();
+		iterationStart = t;
 
-		AlignmentMath.computeThetaCorrection(tref, toff, sref, soff); 
+		timg.getCentroid(tcur);
+		simg.getCentroid(scur);
+		if(EventTrace.enabled) EventTrace.record(centroidEvent, t, tcur.x, tcur.y, scur.x, scur.y);
+		TelemetryHub.publish(TelemetryHub.CENTROIDS, tcur.x, tcur.y, scur.x, scur.y);
+		long tc = t = centroidFetchHist.recordSince(t);
+		
+		AlignmentMath.computeThetaCorrection(tref, tcur, sref, scur); 
+		t = thetaComputeHist.recordSince(t);
 		
 		em1X=-1*AlignmentMath.m1Xloop.updatePID(0, AlignmentMath.acm1x);
 		em1Y=-1*AlignmentMath.m1Yloop.updatePID(0, AlignmentMath.acm1y);
@@ -324,21 +488,15 @@ public class PIControl{
 		em2Y=-1*AlignmentMath.m2Yloop.updatePID(0, AlignmentMath.acm2y);
 		
 		AlignmentMath.computeStepCorrection(em1X,em1Y,em2X,em2Y); 
+		pidUpdateHist.recordSince(t);
+		iterations.increment();
+		if(EventTrace.enabled) EventTrace.record(computeEvent, tc, stepCnt, 0, 0, em1X, em1Y, em2X, em2Y);
 
-		if(autoThread!=null){
-			if(guiMode){
-				rtable.updateTable(new Object[]{
-						stepCnt,em1X,em1Y,em2X,em2Y,AlignmentMath.scm1ax1,AlignmentMath.scm1ax2,
-						AlignmentMath.scm2ax1,AlignmentMath.scm2ax2 
-				});
-			}
-		}else{
-			if(guiMode){
-				rtable.updateTable(new Object[]{
-						stepCnt,em1X,em1Y,em2X,em2Y,AlignmentMath.scm1ax1,AlignmentMath.scm1ax2,
-						AlignmentMath.scm2ax1,AlignmentMath.scm2ax2 
-				});
-			}
+		if(guiMode){
+			rowValues[0]=em1X; rowValues[1]=em1Y; rowValues[2]=em2X; rowValues[3]=em2Y;
+			rowValues[4]=AlignmentMath.scm1ax1; rowValues[5]=AlignmentMath.scm1ax2;
+			rowValues[6]=AlignmentMath.scm2ax1; rowValues[7]=AlignmentMath.scm2ax2;
+			rtable.updateTable(Integer.valueOf(stepCnt), rowValues);
 		}
 		stepCnt++;
 		
@@ -363,8 +521,11 @@ public class PIControl{
 				//Keep stepLock set to true until coadded images are obtained.
 				stepLock=true;
 
+				long t = System.nanoTime();
 				timg.singleCoaddedImage(false);
 				simg.singleCoaddedImage(false);
+				coaddHist.recordSince(t);
+				if(EventTrace.enabled) EventTrace.record(coaddEvent, t);
 				
 				stepLock = false;
 			}catch(Exception ex){
@@ -390,36 +551,21 @@ public class PIControl{
 			stepLock=true;
 			
 			try {
+				//both mounts at once, the controller orders them
+				Completion<ControllerScheduler.Move> m1ax1 = controller.move(chM1, 1, AlignmentMath.scm1ax1);
+				Completion<ControllerScheduler.Move> m1ax2 = controller.move(chM1, 2, AlignmentMath.scm1ax2);
+				Completion<ControllerScheduler.Move> m2ax1 = controller.move(chM2, 1, AlignmentMath.scm2ax1);
+				Completion<ControllerScheduler.Move> m2ax2 = controller.move(chM2, 2, AlignmentMath.scm2ax2);
+				ControllerScheduler.awaitAll(m1ax1, m1ax2, m2ax1, m2ax2);
+				moved(m1ax1, moveM1Ax1Hist, stepsM1Ax1);
+				moved(m1ax2, moveM1Ax2Hist, stepsM1Ax2);
+				moved(m2ax1, moveM2Ax1Hist, stepsM2Ax1);
+				moved(m2ax2, moveM2Ax2Hist, stepsM2Ax2);
 				
-				ai.setChannel(chM1);
-				ai.stepAxis1(AlignmentMath.scm1ax1);
-				while(ai.isMoving(1)){
-					Thread.sleep(500);
-				}
-				
-				Thread.sleep(0);
+				long tn = iterationHist.recordSince(iterationStart);
+				if(EventTrace.enabled) EventTrace.record(iterationEvent, iterationStart, stepCnt-1, 0, 0);
+				publishStatus((tn-iterationStart)*1E-6);
 
-				ai.stepAxis2(AlignmentMath.scm1ax2);
-				while(ai.isMoving(2)){
-					Thread.sleep(500);
-				}
-
-				Thread.sleep(0);
-				 
-				ai.setChannel(chM2);
-				ai.stepAxis1(AlignmentMath.scm2ax1);
-				while(ai.isMoving(1)){
-					Thread.sleep(500);
-				}
-
-				Thread.sleep(0);
-
-				ai.stepAxis2(AlignmentMath.scm2ax2);
-				while(ai.isMoving(2)){
-					Thread.sleep(500);
-				}
-
-				Thread.sleep(0);
 				if (errorChecking){
 					if(errorChecker.checkBeam(timg, simg)!=0){
 						homeAll();
@@ -443,31 +589,43 @@ public class PIControl{
 			}
 			stepLock=false;
 		}
+		private void moved(Completion<ControllerScheduler.Move> c, LatencyHistogram moveHist, Counter stepCounter){
+			ControllerScheduler.Move m = c.getNow(null);
+			moveHist.record(m.getNanos());
+			stepCounter.add(Math.abs(m.steps));
+		}
+		
+		/** Home both mounts, as an exclusive job of the {@link ControllerScheduler}. */
 		public void homeAll()  throws IOException, AgilisException,InterruptedException{
-			int chai = ai.getChannel();
-			ai.setChannel(1);
-			ai.homeAxis1();
-			while(ai.isMoving(1)){
-				Thread.sleep(500);
-			}
-			Thread.sleep(0);
-			ai.homeAxis2();
-			while(ai.isMoving(2)){
-				Thread.sleep(500);
-			}
-			Thread.sleep(0);
-			ai.setChannel(2);
-			ai.homeAxis1();
-			while(ai.isMoving(1)){
-				Thread.sleep(500);
-			}
-			Thread.sleep(0);
-			ai.homeAxis2();
-			while(ai.isMoving(2)){
-				Thread.sleep(500);
-			}
-			Thread.sleep(0);
-			ai.setChannel(chai);
+			exclusive(new Callable<Void>(){
+				public Void call() throws Exception{
+					int chai = ai.getChannel();
+					ai.setChannel(1);
+					ai.homeAxis1();
+					while(ai.isMoving(1)){
+						Thread.sleep(500);
+					}
+					Thread.sleep(0);
+					ai.homeAxis2();
+					while(ai.isMoving(2)){
+						Thread.sleep(500);
+					}
+					Thread.sleep(0);
+					ai.setChannel(2);
+					ai.homeAxis1();
+					while(ai.isMoving(1)){
+						Thread.sleep(500);
+					}
+					Thread.sleep(0);
+					ai.homeAxis2();
+					while(ai.isMoving(2)){
+						Thread.sleep(500);
+					}
+					Thread.sleep(0);
+					ai.setChannel(chai);
+					return null;
+				}
+			});
 		}
 		
 	}
@@ -507,8 +665,11 @@ public class PIControl{
 				 */
 				if(coadd){
 					try{
+						long t = System.nanoTime();
 						timg.singleCoaddedImage(false);
 						simg.singleCoaddedImage(false);
+						coaddHist.recordSince(t);
+						if(EventTrace.enabled) EventTrace.record(coaddEvent, t);
 					}catch(NativeImageException ex){
 						timg.termImage();
 						simg.termImage();
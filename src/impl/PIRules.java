@@ -3,6 +3,8 @@ package impl;
 import java.awt.geom.Point2D;
 import java.io.IOException;
 
+import util.Completion;
+
 import agilis.Actuator;
 import agilis.ActuatorInterface;
 import agilis.AgilisException;
@@ -17,13 +19,16 @@ public class PIRules {
 	private NativeImageImpl prevTimg; 
 	private NativeImageImpl prevSimg;
 	private ActuatorInterface ai;
+	private ControllerScheduler controller;
 	
 	public PIRules(NativeImageImpl timg, NativeImageImpl simg, ActuatorInterface ai){
 		prevSimg = simg;
 		prevTimg = timg;
 		this.ai = ai;
+		this.controller = ControllerScheduler.of(ai);
 	}
-	public int checkBeam(NativeImageImpl timg, NativeImageImpl simg) throws IOException, AgilisException{
+	public int checkBeam(NativeImageImpl timg, NativeImageImpl simg)
+			throws IOException, AgilisException, InterruptedException{
 		int result = 0;
         if (simg.getCentroid().x == 0 && simg.getCentroid().y == 0){
 			result = result + 1;
@@ -32,13 +37,21 @@ public class PIRules {
 			result = result + 2;
 		}
 
-		int ch = ai.getChannel();
-		ai.setChannel(1);
-		int b = ai.getLimitStatus();
-		ai.setChannel(2);
-		int c = ai.getLimitStatus();
-		ai.setChannel(ch);
-		result = result + 4*b + 16*c;
+		//queued with the moves of other loops on the controller, no channel to restore
+		Completion<Integer> b = controller.getLimitStatus(1);
+		Completion<Integer> c = controller.getLimitStatus(2);
+		try{
+			ControllerScheduler.awaitAll(b, c);
+		}catch(IOException ex){
+			throw ex;
+		}catch(AgilisException ex){
+			throw ex;
+		}catch(InterruptedException ex){
+			throw ex;
+		}catch(Exception ex){
+			throw new RuntimeException(ex);
+		}
+		result = result + 4*b.getNow(0) + 16*c.getNow(0);
 		
 		prevSimg = simg;
 		prevTimg = timg;
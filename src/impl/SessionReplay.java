@@ -0,0 +1,280 @@
+package impl;
+
+import java.awt.geom.Point2D;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import data.AlignmentMath;
+import data.BeamLineMath;
+import data.Config;
+import data.SetupData;
+
+/**<pre>
+ * Replays centroid data recorded by {@link Logger} through the alignment stack
+ * without any hardware attached.
+ *
+ * The input is a Logger output file containing "[refs]" and "[centroids]" lines:
+ *   [refs]      t  tiltRefX  tiltRefY  shearRefX  shearRefY
+ *   [centroids] t  tiltX     tiltY     shearX     shearY
+ *
+ * Each centroid record is pushed through the same sequence PIControl.stepLoop() uses:
+ * the theta correction, one PIDMath loop per angle and the step correction, on a
+ * {@link BeamLineMath} of the profile's own configuration.  The setup values, step
+ * sizes and observers of the running program are not touched.  No sleeps are done
+ * so a night of data replays in a fraction of a second.
+ *
+ * Several replay profiles can be given, each one is replayed over the whole recording
+ * and the commanded corrections are written as CSV rows tagged with the profile name.
+ * A profile is written as a comma separated list:
+ *   name[,setup=file][,kp=value][,ki=value][,ss=value]
+ *
+ *   setup : setup file with the optical constants to use (default: current setup)
+ *   kp,ki : PI loop gains (default: 1, 0)
+ *   ss    : step size in deg/step used for all axes (default: the step sizes of the
+ *           setup file, else the current step sizes)
+ *
+ * Usage:
+ *   SessionReplay logFile outFile|- profile [profile ...]
+ *
+ * Note that the replay is open loop: the recorded centroids are what the real mounts
+ * did, the output is what each profile would have commanded given those centroids.
+ *</pre>
+ */
+public class SessionReplay {
+
+	/** One replay configuration. */
+	public static class Profile {
+		String name;
+		String setupFile;
+		double pgain=1, igain=0;
+		double stepSize=Double.NaN;
+
+		long records;
+		long elapsedNanos;
+		double sumSqSteps;
+
+		public Profile(String name){
+			this.name = name;
+		}
+
+		/** Parse a profile from its command line form, see class description. */
+		public static Profile parse(String arg){
+			String[] tkns = arg.split(",");
+			Profile p = new Profile(tkns[0].trim());
+
+			for(int i=1;i<tkns.length;i++){
+				String[] kv = tkns[i].split("=");
+				if(kv.length!=2){
+					throw new IllegalArgumentException("Bad profile option: "+tkns[i]);
+				}
+				String key = kv[0].trim();
+				String val = kv[1].trim();
+
+				if(key.equals("setup")){
+					p.setupFile = val;
+				}else if(key.equals("kp")){
+					p.pgain = Double.parseDouble(val);
+				}else if(key.equals("ki")){
+					p.igain = Double.parseDouble(val);
+				}else if(key.equals("ss")){
+					p.stepSize = Double.parseDouble(val);
+				}else{
+					throw new IllegalArgumentException("Unknown profile option: "+key);
+				}
+			}
+
+			return p;
+		}
+	}
+
+	/* Recorded session, one entry per centroid record */
+	double[] time = new double[0];
+	double[] tx, ty, sx, sy;
+	double[] trx, try_, srx, sry;
+	int nrec;
+
+	/** Read all "[refs]" and "[centroids]" records from a Logger output file.
+	 * Centroid records logged before the first reference record are skipped.
+	 * @return number of centroid records read.
+	 */
+	public int load(String path) throws IOException{
+		BufferedReader in = new BufferedReader(new FileReader(path));
+		double[] ref = null;
+		int cap = 1024;
+		allocate(cap);
+		nrec = 0;
+
+		try{
+			String s;
+			while((s=in.readLine())!=null){
+				s = s.trim();
+				boolean isRef = s.startsWith("[refs]");
+				boolean isCent = s.startsWith("[centroids]");
+				if(!isRef && !isCent){
+					continue;
+				}
+
+				String[] tkns = s.substring(s.indexOf(']')+1).trim().split("\\s+");
+				double[] v = new double[5];
+				try{
+					for(int i=0;i<5;i++){
+						v[i] = Double.parseDouble(tkns[i]);
+					}
+				}catch(RuntimeException ex){
+					//header or truncated line
+					continue;
+				}
+
+				if(isRef){
+					ref = v;
+				}else if(ref!=null){
+					if(nrec==cap){
+						cap*=2;
+						allocate(cap);
+					}
+					time[nrec]=v[0];
+					tx[nrec]=v[1]; ty[nrec]=v[2]; sx[nrec]=v[3]; sy[nrec]=v[4];
+					trx[nrec]=ref[1]; try_[nrec]=ref[2]; srx[nrec]=ref[3]; sry[nrec]=ref[4];
+					nrec++;
+				}
+			}
+		}finally{
+			in.close();
+		}
+
+		return nrec;
+	}
+
+	private void allocate(int cap){
+		time = copy(time,cap);
+		tx = copy(tx,cap); ty = copy(ty,cap); sx = copy(sx,cap); sy = copy(sy,cap);
+		trx = copy(trx,cap); try_ = copy(try_,cap); srx = copy(srx,cap); sry = copy(sry,cap);
+	}
+
+	private static double[] copy(double[] a, int cap){
+		double[] b = new double[cap];
+		if(a!=null){
+			System.arraycopy(a,0,b,0,Math.min(a.length,cap));
+		}
+		return b;
+	}
+
+	/**
+	 * Replay the loaded session with the given profile and write one CSV row
+	 * per centroid record to 'out'.  The profile runs on its own configuration,
+	 * the setup file over the current setup values, nothing global changes.
+	 * @throws IllegalArgumentException if the setup file can't be read
+	 */
+	public void replay(Profile p, PrintWriter out){
+		Config cfg = (p.setupFile!=null) ? SetupData.loadConfig(p.setupFile) : SetupData.getConfig();
+		BeamLineMath math = new BeamLineMath(cfg, p.pgain, p.igain);
+		double[] current = currentStepSizes();
+		for(int i=0;i<math.stepSizes.length;i++){
+			if(!Double.isNaN(p.stepSize)){
+				math.stepSizes[i] = p.stepSize;
+			}else if(Double.isNaN(math.stepSizes[i])){
+				math.stepSizes[i] = current[i];
+			}
+		}
+
+		Point2D.Double tref = new Point2D.Double();
+		Point2D.Double toff = new Point2D.Double();
+		Point2D.Double sref = new Point2D.Double();
+		Point2D.Double soff = new Point2D.Double();
+		double[] acm = math.acm, em = math.em;
+		int[] s = math.steps;
+
+		long t0 = System.nanoTime();
+
+		for(int i=0;i<nrec;i++){
+			tref.setLocation(trx[i],try_[i]);
+			sref.setLocation(srx[i],sry[i]);
+			toff.setLocation(tx[i],ty[i]);
+			soff.setLocation(sx[i],sy[i]);
+
+			math.computeThetaCorrection(tref, toff, sref, soff);
+			math.computeStepCorrection();
+
+			p.sumSqSteps += (double)s[0]*s[0] + (double)s[1]*s[1] + (double)s[2]*s[2] + (double)s[3]*s[3];
+
+			if(out!=null){
+				out.format("%s,%.4f,%.4f,%.4f,%.4f,%.4f,%.7f,%.7f,%.7f,%.7f,%.7f,%.7f,%.7f,%.7f,%d,%d,%d,%d%n",
+						p.name,time[i],
+						toff.x-tref.x,toff.y-tref.y,soff.x-sref.x,soff.y-sref.y,
+						acm[0],acm[1],acm[2],acm[3],
+						em[0],em[1],em[2],em[3],
+						s[0],s[1],s[2],s[3]);
+			}
+		}
+
+		p.elapsedNanos += System.nanoTime()-t0;
+		p.records += nrec;
+	}
+
+	/** Column names of the rows written by {@link #replay(Profile, PrintWriter)}. */
+	public static String csvHeader(){
+		return "profile,t,Hxdt_px,Hydt_px,Hxds_px,Hyds_px,acm1x,acm1y,acm2x,acm2y,"+
+				"em1x,em1y,em2x,em2y,N_s1ax1,N_s1ax2,N_s2ax1,N_s2ax2";
+	}
+
+	/** The step sizes of the running program, in the order of {@link BeamLineMath#stepSizes}. */
+	private static double[] currentStepSizes(){
+		return new double[]{
+				AlignmentMath.ssm1ax1p,AlignmentMath.ssm1ax1n,AlignmentMath.ssm1ax2p,AlignmentMath.ssm1ax2n,
+				AlignmentMath.ssm2ax1p,AlignmentMath.ssm2ax1n,AlignmentMath.ssm2ax2p,AlignmentMath.ssm2ax2n};
+	}
+
+	public static void main(String[] args){
+		if(args.length<3){
+			System.err.println("Usage: SessionReplay logFile outFile|- name[,setup=file][,kp=value][,ki=value][,ss=value] ...");
+			System.exit(1);
+		}
+
+		List<Profile> profiles = new ArrayList<Profile>();
+		for(int i=2;i<args.length;i++){
+			profiles.add(Profile.parse(args[i]));
+		}
+
+		SessionReplay replay = new SessionReplay();
+		PrintWriter out = null;
+
+		try{
+			int n = replay.load(args[0]);
+			System.err.format("Loaded %d centroid records from %s%n",n,args[0]);
+
+			if(args[1].equals("-")){
+				out = new PrintWriter(new OutputStreamWriter(System.out));
+			}else{
+				out = new PrintWriter(new BufferedWriter(new FileWriter(args[1])));
+			}
+			out.println(csvHeader());
+
+			for(Profile p : profiles){
+				replay.replay(p,out);
+			}
+			out.flush();
+		}catch(IOException ex){
+			System.err.format("[SessionReplay.main()]: %s%n",ex.getMessage());
+			System.exit(1);
+		}finally{
+			if(out!=null){
+				out.close();
+			}
+		}
+
+		System.err.println("profile      records   time [ms]   rate [rec/s]   rms steps");
+		for(Profile p : profiles){
+			double ms = p.elapsedNanos*1E-6;
+			System.err.format("%-12s %7d %11.2f %14.0f %11.2f%n",p.name,p.records,ms,
+					(ms>0) ? p.records/(ms*1E-3):0,
+					(p.records>0) ? Math.sqrt(p.sumSqSteps/(4*p.records)):0);
+		}
+	}
+}
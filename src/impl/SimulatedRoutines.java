@@ -0,0 +1,340 @@
+package impl;
+
+import java.awt.geom.Point2D;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import util.Completion;
+import util.TelemetryHub;
+
+import data.AlignmentMath;
+
+/**<pre>
+ * Stand-in for the cameras and the Agilis controller, used by the command server
+ * load test.
+ *
+ * The beam position drifts in a random walk and is pulled back by the mount moves.
+ * The PI loop runs at the camera frame rate through the real AlignmentMath, so the
+ * loop publishes the same telemetry as on the hardware.  Moves take
+ * {@link #MS_PER_STEP} per step, calibration takes {@link #CALIBRATION_MS}.  All
+ * motion goes through the {@link CommandArbiter} like the real routines.
+ *
+ * Routine threads are named "Sim*" so the load test can account their CPU time to
+ * the server.
+ *</pre>
+ */
+public class SimulatedRoutines implements AlignmentRoutines {
+	public static final long FRAME_MS = 33;
+	public static final double MS_PER_STEP = 0.2;
+	public static final long CALIBRATION_MS = 2000;
+
+	private final CommandArbiter arbiter = CommandArbiter.getDefault();
+	private final ThreadPoolExecutor pool;
+	private final Random random = new Random(1);
+
+	/* simulated beam, guarded by 'this' */
+	private final Point2D.Double tref = new Point2D.Double(320, 256);
+	private final Point2D.Double sref = new Point2D.Double(320, 256);
+	private final Point2D.Double tcur = new Point2D.Double(320, 256);
+	private final Point2D.Double scur = new Point2D.Double(320, 256);
+
+	private volatile String session;
+	private volatile boolean coadd, autoLoop;
+	private volatile CommandArbiter.Lease loopLease;
+	private volatile Thread loopThread;		//auto loop only
+	private volatile boolean stepCalcRunning;
+	private volatile Thread stepCalcThread;
+	private final List<Thread> motionThreads = new CopyOnWriteArrayList<Thread>();
+	private final AtomicInteger motions = new AtomicInteger();
+	private int iteration;
+
+	public SimulatedRoutines(){
+		AlignmentMath.updateVars();
+
+		final AtomicInteger n = new AtomicInteger();
+		pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+					public Thread newThread(Runnable r){
+						Thread t = new Thread(r,"SimRoutine-"+n.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	public void setSession(String session){
+		this.session = session;
+	}
+
+	/** Advance the drift by one frame and copy the centroids. */
+	private synchronized void frame(Point2D.Double t, Point2D.Double s){
+		tcur.x += random.nextGaussian()*0.2;
+		tcur.y += random.nextGaussian()*0.2;
+		scur.x += random.nextGaussian()*0.2;
+		scur.y += random.nextGaussian()*0.2;
+		t.setLocation(tcur);
+		s.setLocation(scur);
+	}
+
+	/** Steps pull the beam back towards the reference. */
+	private synchronized void applySteps(int n){
+		double k = Math.min(1, Math.abs(n)*0.01);
+		tcur.x += (tref.x-tcur.x)*k;
+		tcur.y += (tref.y-tcur.y)*k;
+		scur.x += (sref.x-scur.x)*k;
+		scur.y += (sref.y-scur.y)*k;
+	}
+
+	public synchronized boolean setTiltRef(){
+		tref.setLocation(tcur);
+		return true;
+	}
+
+	public synchronized boolean setShearRef(){
+		sref.setLocation(scur);
+		return true;
+	}
+
+	public void setReferencePoints(){
+		setTiltRef();
+		setShearRef();
+	}
+
+	/** One PI iteration, including the simulated moves. */
+	private void iterate(Point2D.Double t, Point2D.Double s) throws InterruptedException{
+		Point2D.Double tr, sr;
+		synchronized(this){
+			tr = (Point2D.Double)tref.clone();
+			sr = (Point2D.Double)sref.clone();
+		}
+		frame(t, s);
+		TelemetryHub.publish(TelemetryHub.CENTROIDS, t.x, t.y, s.x, s.y);
+
+		AlignmentMath.computeThetaCorrection(tr, t, sr, s);
+		AlignmentMath.computeStepCorrection(-0.5*AlignmentMath.acm1x, -0.5*AlignmentMath.acm1y,
+				-0.5*AlignmentMath.acm2x, -0.5*AlignmentMath.acm2y);
+		int steps = Math.abs(AlignmentMath.scm1ax1)+Math.abs(AlignmentMath.scm1ax2)
+				+Math.abs(AlignmentMath.scm2ax1)+Math.abs(AlignmentMath.scm2ax2);
+
+		long t0 = System.currentTimeMillis();
+		Thread.sleep((long)(steps*MS_PER_STEP));
+		applySteps(steps);
+		iteration++;
+		TelemetryHub.publish(TelemetryHub.PISTATUS, 1, iteration, System.currentTimeMillis()-t0, 0);
+	}
+
+	public void startStepCalc(){
+		stepCalc();
+	}
+	
+	public synchronized Completion<Boolean> stepCalc(){
+		if(stepCalcRunning){
+			return Completion.completed(false);
+		}
+		stepCalcRunning = true;
+		final Completion<Boolean> done = new Completion<Boolean>();
+		done.onAbort(new Runnable(){
+			public void run(){
+				stopStepCalc();
+			}
+		});
+		pool.execute(new Runnable(){
+			public void run(){
+				stepCalcThread = Thread.currentThread();
+				if(done.isDone()){
+					//cancelled before it started
+					stepCalcThread.interrupt();
+				}
+				CommandArbiter.Lease lease = null;
+				boolean measured = false;
+				try{
+					lease = arbiter.acquire("SimStepCalc", session, CommandArbiter.Priority.CALIBRATION,
+							CommandArbiter.QUEUE_WAIT_MS, new Runnable(){
+								public void run(){
+									stopStepCalc();
+								}
+							});
+					if(lease!=null){
+						Thread.sleep(CALIBRATION_MS);
+						measured = true;
+					}
+				}catch(InterruptedException ex){
+					//stopped
+				}finally{
+					if(lease!=null){
+						lease.release();
+					}
+					stepCalcThread = null;
+					stepCalcRunning = false;
+					Thread.interrupted();
+					done.complete(measured);
+				}
+			}
+		});
+		return done;
+	}
+
+	public void stopStepCalc(){
+		Thread t = stepCalcThread;
+		if(t!=null){
+			t.interrupt();
+		}
+	}
+
+	public void startPILoop(){
+		if(loopLease!=null){
+			return;
+		}
+		try{
+			loopLease = arbiter.acquire("SimPIControl", session, CommandArbiter.Priority.LOOP,
+					CommandArbiter.DEFAULT_WAIT_MS, new Runnable(){
+						public void run(){
+							stopPILoop();
+						}
+					});
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if(loopLease==null){
+			throw new RuntimeException("Actuator busy: "+arbiter.getStatus());
+		}
+		if(!autoLoop){
+			//manual loop, stepped by stepPILoop()
+			return;
+		}
+
+		Thread t = new Thread("SimPILoop"){
+			public void run(){
+				Point2D.Double tc = new Point2D.Double(), sc = new Point2D.Double();
+				try{
+					while(loopThread==this){
+						long t0 = System.currentTimeMillis();
+						iterate(tc, sc);
+						Thread.sleep(Math.max(1, FRAME_MS-(System.currentTimeMillis()-t0)));
+					}
+				}catch(InterruptedException ex){
+					//stopped
+				}
+			}
+		};
+		t.setDaemon(true);
+		loopThread = t;
+		t.start();
+	}
+
+	public void stepPILoop(){
+		if(loopLease==null || loopThread!=null){
+			return;
+		}
+		try{
+			iterate(new Point2D.Double(), new Point2D.Double());
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void stopPILoop(){
+		Thread t = loopThread;
+		loopThread = null;
+		if(t!=null){
+			t.interrupt();
+		}
+		CommandArbiter.Lease l = loopLease;
+		loopLease = null;
+		if(l!=null){
+			l.release();
+			TelemetryHub.publish(TelemetryHub.PISTATUS, 0, iteration, 0, 0);
+		}
+	}
+
+	public void startImages(boolean tiltOn, boolean shearOn){
+	}
+
+	public void stopImages(){
+	}
+
+	public void setCoaddOn(boolean b){
+		coadd = b;
+	}
+
+	public void setupCoadd(int coaddN, int coaddT){
+	}
+
+	public void setAutoPILoop(boolean b){
+		autoLoop = b;
+	}
+
+	public void moveMounts(final int m1ax1, final int m1ax2, final int m2ax1, final int m2ax2){
+		final String s = session;
+		motions.incrementAndGet();
+		pool.execute(new Runnable(){
+			public void run(){
+				final Thread self = Thread.currentThread();
+				motionThreads.add(self);
+				CommandArbiter.Lease lease = null;
+				try{
+					lease = arbiter.acquire("SimMoveMounts", s, CommandArbiter.Priority.MOTION,
+							CommandArbiter.QUEUE_WAIT_MS, new Runnable(){
+								public void run(){
+									self.interrupt();
+								}
+							});
+					if(lease!=null){
+						int n = Math.abs(m1ax1)+Math.abs(m1ax2)+Math.abs(m2ax1)+Math.abs(m2ax2);
+						Thread.sleep((long)(n*MS_PER_STEP));
+						applySteps(n);
+					}
+				}catch(InterruptedException ex){
+					//aborted
+				}finally{
+					if(lease!=null){
+						lease.release();
+					}
+					motionThreads.remove(self);
+					motions.decrementAndGet();
+					Thread.interrupted();
+				}
+			}
+		});
+	}
+
+	public void abortMotion(){
+		for(Thread t : motionThreads){
+			t.interrupt();
+		}
+	}
+
+	public boolean isPILoopRunning(){
+		return loopLease!=null;
+	}
+
+	public boolean isStepCalcRunning(){
+		return stepCalcRunning;
+	}
+
+	public boolean isMotionRunning(){
+		return motions.get()>0;
+	}
+
+	public boolean isCoaddOn(){
+		return coadd;
+	}
+
+	public boolean isAutoPILoop(){
+		return autoLoop;
+	}
+
+	/** Stop the routine threads. */
+	public void shutdown(){
+		stopPILoop();
+		stopStepCalc();
+		pool.shutdownNow();
+	}
+}
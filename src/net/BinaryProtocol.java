@@ -0,0 +1,280 @@
+package net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import util.TelemetryHub;
+
+/**<pre>
+ * Binary framing of the CommandServer protocol.
+ *
+ * A client selects binary mode by sending the 4 byte {@link #MAGIC} right after
+ * connecting, the server answers with the same 4 bytes.  Any other first bytes
+ * select the text protocol.
+ *
+ * After that both sides exchange frames, all numbers big endian:
+ *
+ *   int length       number of bytes following, type included
+ *   byte type
+ *   payload
+ *
+ *   COMMAND    client to server, ASCII command line as in the text protocol
+ *   REPLY      server to client, ASCII reply line as in the text protocol
+ *   TELEMETRY  byte stream, long sequence, long timeMs, double v0..v3
+ *   LOST       byte stream, long n
+ *
+ * Commands and replies stay text, they are rare.  Telemetry records have a fixed
+ * layout of {@link #TELEMETRY_FRAME} bytes and are put field by field into
+ * a direct buffer, no per record objects or formatting.
+ *
+ * main() is a loopback benchmark of telemetry streaming: it starts a CommandServer,
+ * subscribes one client to the offsets stream and publishes records into it,
+ * then prints the received rate and the number of records lost:
+ *
+ *   BinaryProtocol [records=2000000] [rate=0] [mode=both]
+ *
+ *   rate : records per second to publish, 0 publishes as fast as possible
+ *   mode : binary, text or both
+ *</pre>
+ */
+final public class BinaryProtocol {
+	public static final byte[] MAGIC = {'T','S','B','1'};
+
+	public static final byte COMMAND = 1;
+	public static final byte REPLY = 2;
+	public static final byte TELEMETRY = 3;
+	public static final byte LOST = 4;
+
+	/** Size of the length field. */
+	public static final int HEADER = 4;
+	public static final int TELEMETRY_FRAME = HEADER+1+1+8+8+8*TelemetryHub.FIELDS;
+	public static final int LOST_FRAME = HEADER+1+1+8;
+
+	private BinaryProtocol(){
+	}
+
+	/** True if 'b' starts with the magic, as far as 'n' bytes go. */
+	static boolean isMagicPrefix(byte[] b, int n){
+		for(int i=0;i<n && i<MAGIC.length;i++){
+			if(b[i]!=MAGIC[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Frame holding one ASCII line, used for commands and replies. */
+	public static ByteBuffer textFrame(byte type, String line){
+		int n = line.length();
+		ByteBuffer b = ByteBuffer.allocate(HEADER+1+n);
+		b.putInt(1+n);
+		b.put(type);
+		for(int i=0;i<n;i++){
+			b.put((byte)line.charAt(i));
+		}
+		b.flip();
+		return b;
+	}
+
+	public static void putTelemetry(ByteBuffer b, TelemetryHub.Record r){
+		b.putInt(TELEMETRY_FRAME-HEADER);
+		b.put(TELEMETRY);
+		b.put((byte)r.stream);
+		b.putLong(r.sequence);
+		b.putLong(r.time);
+		for(int k=0;k<TelemetryHub.FIELDS;k++){
+			b.putDouble(r.values[k]);
+		}
+	}
+
+	public static void putLost(ByteBuffer b, int stream, long n){
+		b.putInt(LOST_FRAME-HEADER);
+		b.put(LOST);
+		b.put((byte)stream);
+		b.putLong(n);
+	}
+
+	/** Counts the records received by a benchmark client. */
+	private static class Receiver extends Thread {
+		final boolean binary;
+		final int port;
+		volatile boolean subscribed = false;
+		volatile long received, lost, bytes;
+		volatile long lastNanos;
+		volatile IOException error;
+
+		Receiver(boolean binary, int port){
+			super("BenchReceiver");
+			this.binary = binary;
+			this.port = port;
+			setDaemon(true);
+		}
+
+		public void run(){
+			Socket s = null;
+			try{
+				s = new Socket("localhost", port);
+				s.setSoTimeout(2000);
+				s.setReceiveBufferSize(1<<20);
+				OutputStream out = s.getOutputStream();
+				if(binary){
+					out.write(MAGIC);
+					out.write(textFrame(COMMAND, "subscribe offsets").array());
+					readFrames(new DataInputStream(new BufferedInputStream(s.getInputStream(),1<<16)));
+				}else{
+					out.write("subscribe offsets\n".getBytes("US-ASCII"));
+					readLines(new BufferedReader(new InputStreamReader(s.getInputStream(),"US-ASCII"),1<<16));
+				}
+			}catch(SocketTimeoutException ex){
+				//no more records
+			}catch(IOException ex){
+				error = ex;
+			}finally{
+				if(s!=null){
+					try{
+						s.close();
+					}catch(IOException ex){
+						//done anyway
+					}
+				}
+			}
+		}
+
+		private void readFrames(DataInputStream in) throws IOException{
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			byte[] payload = new byte[1024];
+			long n = 0, l = 0, b = magic.length;
+			while(true){
+				int len = in.readInt();
+				byte type = in.readByte();
+				in.readFully(payload, 0, len-1);
+				b += HEADER+len;
+				if(type==TELEMETRY){
+					n++;
+				}else if(type==LOST){
+					l += ByteBuffer.wrap(payload, 1, 8).getLong();
+				}else if(type==REPLY){
+					subscribed = true;
+				}
+				update(n, l, b);
+			}
+		}
+
+		private void readLines(BufferedReader in) throws IOException{
+			long n = 0, l = 0, b = 0;
+			String line;
+			while((line = in.readLine())!=null){
+				b += line.length()+1;
+				if(line.startsWith("TLM")){
+					n++;
+				}else if(line.startsWith("LOST")){
+					l += Long.parseLong(line.substring(line.lastIndexOf(' ')+1));
+				}else if(line.startsWith("OK")){
+					subscribed = true;
+				}
+				update(n, l, b);
+			}
+		}
+
+		private void update(long n, long l, long b){
+			received = n;
+			lost = l;
+			bytes = b;
+			lastNanos = System.nanoTime();
+		}
+	}
+
+	/** Stream 'records' records to one client and print the received rate if 'report' is set. */
+	private static void bench(boolean binary, int port, long records, double rate, boolean report) throws InterruptedException{
+		Receiver r = new Receiver(binary, port);
+		r.start();
+		while(!r.subscribed && r.isAlive()){
+			Thread.sleep(10);
+		}
+
+		long t0 = System.nanoTime();
+		for(long i=0;i<records;i++){
+			TelemetryHub.publish(TelemetryHub.OFFSETS, i, i*0.5, -i, 1E-3*i);
+			if(rate>0 && (i & 255)==0){
+				long due = t0+(long)(i*1E9/rate);
+				long wait = due-System.nanoTime();
+				if(wait>0){
+					LockSupport.parkNanos(wait);
+				}
+			}
+		}
+		long published = System.nanoTime()-t0;
+		r.join();
+
+		if(!report){
+			return;
+		}
+		if(r.error!=null){
+			System.out.println((binary ? "binary":"text")+": "+r.error.getMessage());
+			return;
+		}
+		double secs = (r.lastNanos-t0)*1E-9;
+		System.out.format("%-6s published=%d in %.2f s  received=%d lost=%d  %.0f records/s  %.1f MB/s%n",
+				binary ? "binary":"text", records, published*1E-9, r.received, r.lost,
+				r.received/secs, r.bytes/secs/1E6);
+	}
+
+	public static void main(String[] args) throws Exception{
+		long records = 2000000;
+		double rate = 0;
+		String mode = "both";
+		for(String a : args){
+			String[] kv = a.split("=",2);
+			if(kv.length!=2){
+				System.out.println("expected key=value: "+a);
+				return;
+			}
+			if(kv[0].equals("records")){
+				records = Long.parseLong(kv[1]);
+			}else if(kv[0].equals("rate")){
+				rate = Double.parseDouble(kv[1]);
+			}else if(kv[0].equals("mode")){
+				mode = kv[1];
+			}else{
+				System.out.println("unknown option: "+a);
+				return;
+			}
+		}
+
+		CommandServer server = new CommandServer(0, new CommandServer.Handler(){
+			public String[] getCommands(){
+				return new String[0];
+			}
+			public boolean isImmediate(String cmd){
+				return true;
+			}
+			public String execute(String session, String cmd, String[] args){
+				throw new IllegalArgumentException("unknown command");
+			}
+			public void sessionClosed(String session){
+			}
+		});
+		server.start();
+
+		//first pass warms up the JIT, not reported
+		bench(true, server.getPort(), Math.min(records,100000), rate, false);
+		bench(false, server.getPort(), Math.min(records,100000), rate, false);
+
+		if(!mode.equals("text")){
+			bench(true, server.getPort(), records, rate, true);
+		}
+		if(!mode.equals("binary")){
+			bench(false, server.getPort(), records, rate, true);
+		}
+		server.stop();
+	}
+}
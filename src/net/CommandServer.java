@@ -1,18 +1,754 @@
 package net;
 
-/**
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import util.Counter;
+import util.LatencyHistogram;
+import util.MetricsRegistry;
+import util.TelemetryHub;
+
+/**<pre>
  * The purpose of this class is to implement a server that can accept
- * commands for executing the Tilt/Shear alignment procedure without 
+ * commands for executing the Tilt/Shear alignment procedure without
  * relying on GUI controls.
- * 
+ *
  * The command server uses commands to emulate GUI buttons/fields for
  * setting up alignment and executing the correction.
- * 
+ *
  * The only feedback available for the tilt and shear images obtained from the camera
- * is text based (i.e. printed to stdout or to a data file).  No GUI components are painted 
+ * is text based (i.e. printed to stdout or to a data file).  No GUI components are painted
  * to the screen and image updates will happen only in memory.
- * 
+ *
+ * Protocol, one ASCII line per request and reply:
+ *
+ *   request:  [#tag] command [arg ...]
+ *   reply:    OK [#tag] command [key=value ...]
+ *             ERR [#tag] command message
+ *
+ * The optional tag is copied into the reply so a client can send several requests
+ * without waiting for each reply.  The server itself handles ping, help and quit,
+ * all other commands go to the {@link Handler}.
+ *
+ * All sockets are served by one selector thread.  Commands that change the state of
+ * the hardware run one at a time, in arrival order, on a single worker thread; at most
+ * {@link #MAX_QUEUED} may wait, further ones are answered with "ERR cmd busy".
+ * Commands the handler marks immediate (status queries, stop and abort) are answered on
+ * the selector thread, so they don't wait behind the queued commands they stop and
+ * their replies may overtake replies of earlier queued commands.
+ *
+ * A client that stops reading its replies is disconnected once {@link #MAX_PENDING_REPLIES}
+ * replies are waiting for it.  The worker never touches a socket or its write queue,
+ * it hands its replies to the selector thread, which does all the writing.
+ *
+ * Telemetry, see {@link TelemetryHub} for the streams and their fields:
+ *
+ *   streams                     list the stream names
+ *   subscribe stream [every]    push every n-th record of 'stream', default all
+ *   unsubscribe stream|all
+ *
+ * Records are pushed as lines between the replies:
+ *
+ *   TLM stream sequence timeMs v0 v1 v2 v3
+ *   LOST stream n               n records were dropped before the next one
+ *
+ * Each subscription buffers {@link TelemetryHub#DEFAULT_CAPACITY} records, when a client
+ * reads too slowly the oldest records are dropped, the control loop never waits.
+ *
+ * A client that starts with {@link BinaryProtocol#MAGIC} uses length prefixed frames
+ * instead of lines and gets telemetry as fixed layout binary records, see
+ * {@link BinaryProtocol}.
+ *</pre>
  */
-public class CommandServer {
-	
+public class CommandServer implements Runnable {
+	public static final int DEFAULT_PORT = 5555;
+	public static final int MAX_LINE = 1024;
+	public static final int MAX_QUEUED = 256;
+	public static final int MAX_PENDING_REPLIES = 1024;
+	private static final int TELEMETRY_BUFFER = 8192;
+	private static final int MAX_RECORD_LINE = 200;
+
+	static final Charset ASCII = Charset.forName("US-ASCII");
+
+	static final LatencyHistogram commandLatency = MetricsRegistry.histogram("cmd.latency");
+	static final Counter requestsCounter = MetricsRegistry.counter("cmd.requests");
+	static final Counter errorsCounter = MetricsRegistry.counter("cmd.errors");
+	static final Counter connectionsCounter = MetricsRegistry.counter("cmd.connections");
+	static final Counter telemetryCounter = MetricsRegistry.counter("cmd.telemetry.sent");
+	static final Counter telemetryLostCounter = MetricsRegistry.counter("cmd.telemetry.lost");
+
+	/** Executes the commands not handled by the server itself. */
+	public interface Handler {
+		/** Names of the supported commands, listed by 'help'. */
+		public String[] getCommands();
+
+		/**
+		 * True if 'cmd' returns right away: it reads state, signals a stop or an abort,
+		 * or changes state in memory only, and neither blocks nor does I/O.  It is then
+		 * run on the selector thread, ahead of the queued commands.
+		 */
+		public boolean isImmediate(String cmd);
+
+		/**
+		 * Execute a command.
+		 * @param session Identifies the client connection, "host:port".
+		 * @return Reply fields, "key=value ..." or an empty string.
+		 * @throws IllegalArgumentException Unknown command or bad arguments.
+		 * @throws Exception Command failed, the message is sent to the client.
+		 */
+		public String execute(String session, String cmd, String[] args) throws Exception;
+
+		/** The client of 'session' disconnected, called on the selector thread. */
+		public void sessionClosed(String session);
+	}
+
+	/** State of one client connection. */
+	private class Connection {
+		final SocketChannel channel;
+		final String session;
+		SelectionKey key;
+		final ByteBuffer in = ByteBuffer.allocate(MAX_LINE);
+		boolean discarding = false;		//rest of an overlong line
+		boolean negotiated = false;
+		volatile boolean binary = false;
+
+		/* replies handed over by the worker, moved to 'out' by the selector thread */
+		final ConcurrentLinkedQueue<ByteBuffer> replies = new ConcurrentLinkedQueue<ByteBuffer>();
+		final AtomicInteger pending = new AtomicInteger();
+		volatile boolean overflow = false;
+		volatile boolean closing = false;
+
+		/* write queue, selector thread only */
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+
+		/* telemetry, selector thread only */
+		final TelemetryHub.Subscription[] subs = new TelemetryHub.Subscription[TelemetryHub.getStreamCount()];
+		ByteBuffer tlm;
+		final StringBuilder tlmLine = new StringBuilder(MAX_RECORD_LINE);
+		final TelemetryHub.Record rec = new TelemetryHub.Record();
+
+		/* run by the publishing thread when a subscription has new records */
+		final Runnable wake = new Runnable(){
+			public void run(){
+				flushRequests.add(Connection.this);
+				selector.wakeup();
+			}
+		};
+
+		Connection(SocketChannel channel){
+			this.channel = channel;
+			session = channel.socket().getInetAddress().getHostAddress()+":"+channel.socket().getPort();
+		}
+	}
+
+	private final int port;
+	private final Handler handler;
+
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private ThreadPoolExecutor worker;
+	private volatile Thread thread;
+
+	/* connections with replies queued from the worker, flushed by the selector thread */
+	private final ConcurrentLinkedQueue<Connection> flushRequests = new ConcurrentLinkedQueue<Connection>();
+	private final AtomicInteger clients = new AtomicInteger();
+
+	public CommandServer(int port, Handler handler){
+		this.port = port;
+		this.handler = handler;
+	}
+
+	/** Bind the port and start the selector and worker threads. */
+	public synchronized void start() throws IOException{
+		if(thread!=null){
+			return;
+		}
+
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory(){
+					public Thread newThread(Runnable r){
+						Thread t = new Thread(r,"CommandWorker");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+
+		thread = new Thread(this,"CommandServer");
+		thread.start();
+		System.out.println("CommandServer listening on port "+getPort());
+	}
+
+	/** Close all connections and stop, commands still queued are discarded. */
+	public void stop(){
+		Thread t;
+		synchronized(this){
+			t = thread;
+			thread = null;
+		}
+		if(t==null){
+			return;
+		}
+
+		selector.wakeup();
+		try{
+			t.join(1000);
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+		}
+		worker.shutdownNow();
+	}
+
+	public boolean isRunning(){
+		return thread!=null;
+	}
+
+	/** Bound port, differs from the requested one if that was 0. */
+	public int getPort(){
+		ServerSocketChannel ch = serverChannel;
+		return (ch!=null) ? ch.socket().getLocalPort():port;
+	}
+
+	public int getClientCount(){
+		return clients.get();
+	}
+
+	public void run(){
+		try{
+			while(thread==Thread.currentThread()){
+				selector.select();
+
+				Connection c;
+				while((c = flushRequests.poll())!=null){
+					flush(c);
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()){
+					SelectionKey key = it.next();
+					it.remove();
+					if(!key.isValid()){
+						continue;
+					}
+
+					try{
+						if(key.isAcceptable()){
+							accept();
+						}else{
+							c = (Connection)key.attachment();
+							if(key.isReadable()){
+								read(c);
+							}
+							if(key.isValid() && key.isWritable()){
+								flush(c);
+							}
+						}
+					}catch(IOException ex){
+						if(key.attachment()!=null){
+							close((Connection)key.attachment());
+						}
+					}
+				}
+			}
+		}catch(IOException ex){
+			System.err.println("[CommandServer]: "+ex.getMessage());
+		}finally{
+			for(SelectionKey key : selector.keys()){
+				if(key.attachment()!=null){
+					close((Connection)key.attachment());
+				}
+			}
+			try{
+				serverChannel.close();
+				selector.close();
+			}catch(IOException ex){
+				//closing anyway
+			}
+		}
+	}
+
+	private void accept() throws IOException{
+		SocketChannel ch = serverChannel.accept();
+		if(ch==null){
+			return;
+		}
+		ch.configureBlocking(false);
+		ch.socket().setTcpNoDelay(true);
+
+		Connection c = new Connection(ch);
+		c.key = ch.register(selector, SelectionKey.OP_READ, c);
+		clients.incrementAndGet();
+		connectionsCounter.increment();
+	}
+
+	private void close(Connection c){
+		for(int i=0;i<c.subs.length;i++){
+			if(c.subs[i]!=null){
+				TelemetryHub.unsubscribe(c.subs[i]);
+				c.subs[i] = null;
+			}
+		}
+		if(c.key.isValid()){
+			clients.decrementAndGet();
+			handler.sessionClosed(c.session);
+		}
+		c.key.cancel();
+		try{
+			c.channel.close();
+		}catch(IOException ex){
+			//already gone
+		}
+	}
+
+	/** Read what is available and handle every complete line. */
+	private void read(Connection c) throws IOException{
+		if(c.channel.read(c.in)<0){
+			close(c);
+			return;
+		}
+
+		if(!c.negotiated){
+			int n = c.in.position();
+			if(!BinaryProtocol.isMagicPrefix(c.in.array(), n)){
+				c.negotiated = true;
+			}else if(n>=BinaryProtocol.MAGIC.length){
+				c.negotiated = true;
+				c.binary = true;
+				c.in.flip();
+				c.in.position(BinaryProtocol.MAGIC.length);
+				c.in.compact();
+				c.pending.incrementAndGet();
+				c.out.add(ByteBuffer.wrap(BinaryProtocol.MAGIC.clone()));
+				flush(c);
+			}else{
+				return;
+			}
+		}
+
+		if(c.binary){
+			readFrames(c);
+		}else{
+			readLines(c);
+		}
+	}
+
+	private void readLines(Connection c){
+		byte[] buf = c.in.array();
+		int end = c.in.position();
+		int start = 0;
+		for(int i=0;i<end;i++){
+			if(buf[i]=='\n'){
+				if(!c.discarding){
+					int len = i-start;
+					if(len>0 && buf[start+len-1]=='\r'){
+						len--;
+					}
+					handleLine(c, new String(buf, start, len, ASCII));
+				}
+				c.discarding = false;
+				start = i+1;
+			}
+		}
+
+		if(start>0){
+			c.in.flip();
+			c.in.position(start);
+			c.in.compact();
+		}else if(!c.in.hasRemaining()){
+			c.in.clear();
+			if(!c.discarding){
+				c.discarding = true;
+				reply(c, "ERR - line longer than "+MAX_LINE+" characters");
+			}
+		}
+	}
+
+	private void readFrames(Connection c){
+		ByteBuffer in = c.in;
+		int end = in.position();
+		int start = 0;
+		while(end-start>=BinaryProtocol.HEADER){
+			int len = in.getInt(start);
+			if(len<1 || len>MAX_LINE-BinaryProtocol.HEADER){
+				//out of sync, nothing sensible can follow
+				close(c);
+				return;
+			}
+			if(end-start<BinaryProtocol.HEADER+len){
+				break;
+			}
+
+			int p = start+BinaryProtocol.HEADER;
+			if(in.get(p)==BinaryProtocol.COMMAND){
+				handleLine(c, new String(in.array(), p+1, len-1, ASCII));
+			}
+			start = p+len;
+		}
+
+		if(start>0){
+			in.flip();
+			in.position(start);
+			in.compact();
+		}
+	}
+
+	private void handleLine(final Connection c, String line){
+		if(c.closing){
+			return;
+		}
+		line = line.trim();
+		if(line.length()==0){
+			return;
+		}
+
+		final long t0 = System.nanoTime();
+		requestsCounter.increment();
+
+		String[] tkns = line.split("\\s+");
+		int first = 0;
+		final String tag;
+		if(tkns[0].startsWith("#")){
+			tag = tkns[0];
+			first = 1;
+		}else{
+			tag = null;
+		}
+		if(first>=tkns.length){
+			error(c, tag, "-", "missing command", t0);
+			return;
+		}
+
+		final String cmd = tkns[first];
+		final String[] args = new String[tkns.length-first-1];
+		System.arraycopy(tkns, first+1, args, 0, args.length);
+
+		if(cmd.equals("ping")){
+			ok(c, tag, cmd, "", t0);
+		}else if(cmd.equals("help")){
+			StringBuilder sb = new StringBuilder("commands=ping,help,quit,streams,subscribe,unsubscribe");
+			for(String s : handler.getCommands()){
+				sb.append(',').append(s);
+			}
+			ok(c, tag, cmd, sb.toString(), t0);
+		}else if(cmd.equals("streams")){
+			StringBuilder sb = new StringBuilder("names=");
+			for(int i=0;i<TelemetryHub.getStreamCount();i++){
+				if(i>0) sb.append(',');
+				sb.append(TelemetryHub.getStreamName(i));
+			}
+			ok(c, tag, cmd, sb.toString(), t0);
+		}else if(cmd.equals("subscribe")){
+			subscribe(c, tag, cmd, args, t0);
+		}else if(cmd.equals("unsubscribe")){
+			unsubscribe(c, tag, cmd, args, t0);
+		}else if(cmd.equals("quit")){
+			ok(c, tag, cmd, "", t0);
+			c.closing = true;
+			flush(c);
+		}else if(handler.isImmediate(cmd)){
+			execute(c, tag, cmd, args, t0);
+		}else{
+			try{
+				worker.execute(new Runnable(){
+					public void run(){
+						execute(c, tag, cmd, args, t0);
+					}
+				});
+			}catch(RejectedExecutionException ex){
+				error(c, tag, cmd, "busy", t0);
+			}
+		}
+	}
+
+	private void subscribe(Connection c, String tag, String cmd, String[] args, long t0){
+		int stream = (args.length>0) ? TelemetryHub.getStream(args[0]):-1;
+		if(stream<0 || args.length>2){
+			error(c, tag, cmd, "expected stream [every]", t0);
+			return;
+		}
+		int every = 1;
+		if(args.length==2){
+			try{
+				every = Integer.parseInt(args[1]);
+			}catch(NumberFormatException ex){
+				every = 0;
+			}
+			if(every<1){
+				error(c, tag, cmd, "expected stream [every]", t0);
+				return;
+			}
+		}
+
+		if(c.subs[stream]!=null){
+			TelemetryHub.unsubscribe(c.subs[stream]);
+		}
+		c.subs[stream] = TelemetryHub.subscribe(stream, every, TelemetryHub.DEFAULT_CAPACITY, c.wake);
+		if(c.tlm==null){
+			c.tlm = c.binary ? ByteBuffer.allocateDirect(TELEMETRY_BUFFER):ByteBuffer.allocate(TELEMETRY_BUFFER);
+			c.tlm.flip();
+		}
+
+		StringBuilder sb = new StringBuilder(64);
+		sb.append("stream=").append(args[0]).append(" every=").append(every).append(" fields=");
+		String[] names = TelemetryHub.getFieldNames(stream);
+		for(int i=0;i<names.length;i++){
+			if(i>0) sb.append(',');
+			sb.append(names[i]);
+		}
+		ok(c, tag, cmd, sb.toString(), t0);
+	}
+
+	private void unsubscribe(Connection c, String tag, String cmd, String[] args, long t0){
+		boolean all = args.length==1 && args[0].equals("all");
+		int stream = (args.length==1) ? TelemetryHub.getStream(args[0]):-1;
+		if(!all && stream<0){
+			error(c, tag, cmd, "expected stream|all", t0);
+			return;
+		}
+
+		long lost = 0;
+		for(int i=0;i<c.subs.length;i++){
+			if((all || i==stream) && c.subs[i]!=null){
+				TelemetryHub.unsubscribe(c.subs[i]);
+				lost += c.subs[i].getLostTotal();
+				c.subs[i] = null;
+			}
+		}
+		ok(c, tag, cmd, "stream="+args[0]+" lost="+lost, t0);
+	}
+
+	private void execute(Connection c, String tag, String cmd, String[] args, long t0){
+		try{
+			ok(c, tag, cmd, handler.execute(c.session, cmd, args), t0);
+		}catch(Exception ex){
+			String msg = ex.getMessage();
+			if(msg==null){
+				msg = ex.getClass().getSimpleName();
+			}
+			error(c, tag, cmd, msg, t0);
+		}
+	}
+
+	private void ok(Connection c, String tag, String cmd, String fields, long t0){
+		StringBuilder sb = new StringBuilder(64);
+		sb.append("OK ");
+		if(tag!=null){
+			sb.append(tag).append(' ');
+		}
+		sb.append(cmd);
+		if(fields!=null && fields.length()>0){
+			sb.append(' ').append(fields);
+		}
+		reply(c, sb.toString());
+		commandLatency.recordSince(t0);
+	}
+
+	private void error(Connection c, String tag, String cmd, String msg, long t0){
+		StringBuilder sb = new StringBuilder(64);
+		sb.append("ERR ");
+		if(tag!=null){
+			sb.append(tag).append(' ');
+		}
+		sb.append(cmd).append(' ').append(msg.replace('\n',' '));
+		reply(c, sb.toString());
+		errorsCounter.increment();
+		commandLatency.recordSince(t0);
+	}
+
+	/**
+	 * Queue a reply line, can be called from any thread.  Other threads only hand the
+	 * reply to the selector thread, which is the only one using the write queue.
+	 */
+	private void reply(Connection c, String line){
+		if(c.pending.incrementAndGet()>MAX_PENDING_REPLIES){
+			//client doesn't read its replies
+			c.overflow = true;
+			c.closing = true;
+		}else{
+			ByteBuffer b = c.binary ? BinaryProtocol.textFrame(BinaryProtocol.REPLY, line)
+					: ByteBuffer.wrap((line+"\n").getBytes(ASCII));
+			if(Thread.currentThread()==thread){
+				c.out.add(b);
+			}else{
+				c.replies.add(b);
+			}
+		}
+
+		if(Thread.currentThread()==thread){
+			flush(c);
+		}else{
+			flushRequests.add(c);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Write queued replies and telemetry, selector thread only.  A partly written
+	 * telemetry buffer is finished first, so lines are never interleaved.
+	 */
+	private void flush(Connection c){
+		if(!c.key.isValid()){
+			return;
+		}
+		if(c.overflow){
+			c.out.clear();
+			c.replies.clear();
+			close(c);
+			return;
+		}
+
+		ByteBuffer b;
+		while((b = c.replies.poll())!=null){
+			c.out.add(b);
+		}
+
+		try{
+			if(!writeTelemetry(c, false)){
+				c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+
+			while((b = c.out.peek())!=null){
+				c.channel.write(b);
+				if(b.hasRemaining()){
+					c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				c.out.poll();
+				c.pending.decrementAndGet();
+			}
+
+			if(!c.closing && !writeTelemetry(c, true)){
+				c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+
+			c.key.interestOps(SelectionKey.OP_READ);
+			if(c.closing){
+				close(c);
+			}
+		}catch(IOException ex){
+			close(c);
+		}
+	}
+
+	/**
+	 * Write the telemetry buffer, refilled from the subscriptions while 'fill' is set.
+	 * @return false if the socket is full
+	 */
+	private boolean writeTelemetry(Connection c, boolean fill) throws IOException{
+		if(c.tlm==null){
+			return true;
+		}
+		while(true){
+			if(c.tlm.hasRemaining()){
+				c.channel.write(c.tlm);
+				if(c.tlm.hasRemaining()){
+					return false;
+				}
+			}
+			if(!fill || !fillTelemetry(c)){
+				return true;
+			}
+		}
+	}
+
+	/** Format buffered records into the telemetry buffer. @return false if there were none */
+	private boolean fillTelemetry(Connection c){
+		if(c.binary){
+			return fillBinaryTelemetry(c);
+		}
+		ByteBuffer buf = c.tlm;
+		StringBuilder sb = c.tlmLine;
+		TelemetryHub.Record r = c.rec;
+		buf.clear();
+
+		for(int i=0;i<c.subs.length;i++){
+			TelemetryHub.Subscription s = c.subs[i];
+			if(s==null){
+				continue;
+			}
+			String name = TelemetryHub.getStreamName(i);
+
+			while(buf.remaining()>=MAX_RECORD_LINE){
+				long lost = s.takeLost();
+				if(lost>0){
+					sb.setLength(0);
+					sb.append("LOST ").append(name).append(' ').append(lost).append('\n');
+					put(buf, sb);
+					telemetryLostCounter.add(lost);
+				}
+				if(!s.poll(r)){
+					break;
+				}
+
+				sb.setLength(0);
+				sb.append("TLM ").append(name).append(' ').append(r.sequence).append(' ').append(r.time);
+				for(int k=0;k<TelemetryHub.FIELDS;k++){
+					sb.append(' ').append(r.values[k]);
+				}
+				sb.append('\n');
+				put(buf, sb);
+				telemetryCounter.increment();
+			}
+		}
+
+		buf.flip();
+		return buf.hasRemaining();
+	}
+
+	private boolean fillBinaryTelemetry(Connection c){
+		ByteBuffer buf = c.tlm;
+		TelemetryHub.Record r = c.rec;
+		buf.clear();
+
+		for(int i=0;i<c.subs.length;i++){
+			TelemetryHub.Subscription s = c.subs[i];
+			if(s==null){
+				continue;
+			}
+			while(buf.remaining()>=BinaryProtocol.TELEMETRY_FRAME+BinaryProtocol.LOST_FRAME){
+				long lost = s.takeLost();
+				if(lost>0){
+					BinaryProtocol.putLost(buf, i, lost);
+					telemetryLostCounter.add(lost);
+				}
+				if(!s.poll(r)){
+					break;
+				}
+				BinaryProtocol.putTelemetry(buf, r);
+				telemetryCounter.increment();
+			}
+		}
+
+		buf.flip();
+		return buf.hasRemaining();
+	}
+
+	private static void put(ByteBuffer buf, StringBuilder sb){
+		for(int i=0,n=sb.length();i<n;i++){
+			buf.put((byte)sb.charAt(i));
+		}
+	}
 }
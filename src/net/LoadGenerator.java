@@ -0,0 +1,388 @@
+package net;
+
+import impl.SimulatedRoutines;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.LatencyHistogram;
+import util.MetricsRegistry;
+
+/**<pre>
+ * Loopback load test of the CommandServer.
+ *
+ * Starts a CommandServer on SimulatedRoutines, connects a number of clients on
+ * localhost and lets each of them send a mix of commands resembling an operator
+ * console or a sequencer, with exponentially distributed gaps at the given rate per
+ * client.  Optional telemetry clients subscribe to all streams.  At the end the
+ * command latency percentiles, the CPU time of the server threads and the memory
+ * they allocated are printed.
+ *
+ * The server threads are sampled every {@link #SAMPLE_MS} ms during the run, so the
+ * short lived threads of the routines are counted up to their last sample.  As a
+ * total that misses nothing, the CPU time of the whole process less the load clients
+ * is printed too, it includes GC and JIT compilation.
+ *
+ * Usage:
+ *   LoadGenerator [clients=8] [seconds=10] [rate=20] [subscribers=0] [port=0]
+ *
+ *   rate        : commands per second per client
+ *   subscribers : clients subscribed to all telemetry streams
+ *   port        : load an already running server instead, no CPU accounting
+ *
+ * Latency is measured from sending a command to reading its reply, so it includes
+ * the time commands spend queued behind the hardware commands of other clients.
+ *</pre>
+ */
+public class LoadGenerator {
+	/* command mix, weights in percent */
+	private static final String[] mix = {
+		"status", "arbiter", "ping", "setTiltRef", "setShearRef", "moveMounts",
+		"stepPILoop", "startPILoop", "stopPILoop", "setAutoLoop", "startStepCalc",
+		"stopStepCalc", "lease", "release"
+	};
+	private static final int[] weights = {
+		40, 5, 5, 5, 5, 15,
+		5, 3, 3, 2, 2,
+		2, 4, 4
+	};
+
+	static final long SAMPLE_MS = 10;
+
+	int clients = 8;
+	double seconds = 10;
+	double rate = 20;
+	int subscribers = 0;
+	int port = 0;
+
+	private final Map<String,LatencyHistogram> latency = new HashMap<String,LatencyHistogram>();
+	private final Map<String,AtomicLong> errors = new HashMap<String,AtomicLong>();
+	private final LatencyHistogram total = MetricsRegistry.histogram("load.all");
+	private final AtomicLong telemetryLines = new AtomicLong();
+	private final AtomicLong telemetryLost = new AtomicLong();
+	private final AtomicLong clientCpu = new AtomicLong();
+	private volatile boolean running;
+
+	public LoadGenerator(){
+		for(String cmd : mix){
+			latency.put(cmd, MetricsRegistry.histogram("load."+cmd));
+			errors.put(cmd, new AtomicLong());
+		}
+	}
+
+	/** Text of one command of the mix. */
+	private static String command(String cmd, Random r){
+		if(cmd.equals("moveMounts")){
+			return cmd+" "+(r.nextInt(21)-10)+" "+(r.nextInt(21)-10)+" "+(r.nextInt(21)-10)+" "+(r.nextInt(21)-10);
+		}else if(cmd.equals("setAutoLoop")){
+			return cmd+(r.nextBoolean() ? " on":" off");
+		}else if(cmd.equals("lease")){
+			return cmd+" motion 2";
+		}
+		return cmd;
+	}
+
+	private static String pick(Random r){
+		int x = r.nextInt(100);
+		for(int i=0;i<mix.length;i++){
+			x -= weights[i];
+			if(x<0){
+				return mix[i];
+			}
+		}
+		return mix[0];
+	}
+
+	/** Sends commands until the test ends. */
+	private class Client extends Thread {
+		private final int id;
+
+		Client(int id){
+			super("LoadClient-"+id);
+			this.id = id;
+		}
+
+		public void run(){
+			Random r = new Random(id);
+			try{
+				Socket s = new Socket("localhost", port);
+				s.setTcpNoDelay(true);
+				OutputStream out = s.getOutputStream();
+				BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(),"US-ASCII"));
+
+				long next = System.nanoTime();
+				int tag = 0;
+				while(running){
+					String cmd = pick(r);
+					String line = "#"+(++tag)+" "+command(cmd, r)+"\n";
+
+					long t0 = System.nanoTime();
+					out.write(line.getBytes("US-ASCII"));
+					String reply = in.readLine();
+					if(reply==null){
+						break;
+					}
+					long dt = System.nanoTime()-t0;
+					latency.get(cmd).record(dt);
+					total.record(dt);
+					if(reply.startsWith("ERR")){
+						errors.get(cmd).incrementAndGet();
+					}
+
+					next += (long)(-Math.log(1-r.nextDouble())/rate*1E9);
+					long wait = next-System.nanoTime();
+					if(wait>0){
+						Thread.sleep(wait/1000000, (int)(wait%1000000));
+					}
+				}
+				s.close();
+			}catch(IOException ex){
+				System.err.println(getName()+": "+ex.getMessage());
+			}catch(InterruptedException ex){
+				//done
+			}
+			addClientCpu();
+		}
+	}
+
+	/** Subscribes to every stream and counts the records. */
+	private class Subscriber extends Thread {
+		Subscriber(int id){
+			super("LoadSubscriber-"+id);
+		}
+
+		public void run(){
+			try{
+				Socket s = new Socket("localhost", port);
+				OutputStream out = s.getOutputStream();
+				BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(),"US-ASCII"));
+				out.write("subscribe centroids\nsubscribe offsets\nsubscribe thetas\nsubscribe steps\nsubscribe pistatus\n"
+						.getBytes("US-ASCII"));
+
+				String line;
+				while(running && (line = in.readLine())!=null){
+					if(line.startsWith("TLM")){
+						telemetryLines.incrementAndGet();
+					}else if(line.startsWith("LOST")){
+						telemetryLost.addAndGet(Long.parseLong(line.substring(line.lastIndexOf(' ')+1)));
+					}
+				}
+				s.close();
+			}catch(IOException ex){
+				if(running){
+					System.err.println(getName()+": "+ex.getMessage());
+				}
+			}
+			addClientCpu();
+		}
+	}
+
+	/** CPU time and allocated bytes of the server threads, by thread id. */
+	private static Map<Long,long[]> serverThreads(){
+		ThreadMXBean tm = ManagementFactory.getThreadMXBean();
+		Map<Long,long[]> m = new HashMap<Long,long[]>();
+		for(ThreadInfo ti : tm.getThreadInfo(tm.getAllThreadIds())){
+			if(ti==null){
+				continue;
+			}
+			String n = ti.getThreadName();
+			if(n.startsWith("Command") || n.startsWith("Sim")){
+				long id = ti.getThreadId();
+				long alloc = -1;
+				if(tm instanceof com.sun.management.ThreadMXBean){
+					alloc = ((com.sun.management.ThreadMXBean)tm).getThreadAllocatedBytes(id);
+				}
+				m.put(id, new long[]{tm.getThreadCpuTime(id), alloc});
+			}
+		}
+		return m;
+	}
+
+	/** Count the CPU time of the calling load thread, so it can be taken off the process total. */
+	private void addClientCpu(){
+		long t = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+		if(t>0){
+			clientCpu.addAndGet(t);
+		}
+	}
+
+	/** CPU time of the whole process, -1 if the JVM doesn't tell. */
+	private static long processCpu(){
+		Object os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.OperatingSystemMXBean){
+			return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+		}
+		return -1;
+	}
+
+	/**
+	 * Samples the server threads during the run.  'first' holds the threads alive at
+	 * the start, 'last' the latest values of every server thread seen, so threads that
+	 * came and went during the run are counted up to their last sample.
+	 */
+	private static class ThreadSampler extends Thread {
+		final Map<Long,long[]> first = serverThreads();
+		final Map<Long,long[]> last = new HashMap<Long,long[]>(first);
+		private volatile boolean done = false;
+		volatile long cpu;	//of the sampler itself
+
+		ThreadSampler(){
+			super("LoadSampler");
+			setDaemon(true);
+		}
+
+		public void run(){
+			while(!done){
+				last.putAll(serverThreads());
+				try{
+					Thread.sleep(SAMPLE_MS);
+				}catch(InterruptedException ex){
+					break;
+				}
+			}
+			cpu = Math.max(0, ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime());
+		}
+
+		/** Stop sampling, @return cpu and allocation of the server threads since the start. */
+		long[] finish() throws InterruptedException{
+			done = true;
+			interrupt();
+			join();
+			last.putAll(serverThreads());
+			return delta(first, last);
+		}
+	}
+
+	/** Sum of the differences, threads not present in 'before' count from zero. */
+	private static long[] delta(Map<Long,long[]> before, Map<Long,long[]> after){
+		long cpu = 0, alloc = 0;
+		for(Map.Entry<Long,long[]> e : after.entrySet()){
+			long[] b = before.get(e.getKey());
+			long[] a = e.getValue();
+			cpu += a[0]-((b==null) ? 0:b[0]);
+			alloc += a[1]-((b==null) ? 0:b[1]);
+		}
+		return new long[]{cpu, alloc};
+	}
+
+	public void run() throws IOException, InterruptedException{
+		CommandServer server = null;
+		SimulatedRoutines sim = null;
+		if(port==0){
+			sim = new SimulatedRoutines();
+			server = new CommandServer(0, new RoutineCommands(sim));
+			server.start();
+			port = server.getPort();
+		}
+
+		running = true;
+		Thread[] threads = new Thread[clients+subscribers];
+		for(int i=0;i<subscribers;i++){
+			threads[i] = new Subscriber(i);
+		}
+		for(int i=0;i<clients;i++){
+			threads[subscribers+i] = new Client(i);
+		}
+
+		ThreadSampler sampler = new ThreadSampler();
+		long cpu0 = processCpu();
+		long t0 = System.nanoTime();
+		sampler.start();
+		for(Thread t : threads){
+			t.start();
+		}
+		Thread.sleep((long)(seconds*1000));
+		long[] cpu = sampler.finish();
+		double elapsed = (System.nanoTime()-t0)*1E-9;
+
+		running = false;
+		for(Thread t : threads){
+			t.join(2000);
+		}
+		//clients are done, the rest of the process time went to the server, GC and JIT
+		long cpu1 = processCpu();
+		if(server!=null){
+			server.stop();
+			sim.shutdown();
+		}
+
+		long process = (cpu0>=0 && cpu1>=0) ? cpu1-cpu0-clientCpu.get()-sampler.cpu:-1;
+		report(elapsed, (server!=null) ? cpu:null, (server!=null) ? process:-1);
+	}
+
+	private void report(double elapsed, long[] cpu, long process){
+		long n = total.getCount();
+		long nerr = 0;
+		for(AtomicLong e : errors.values()){
+			nerr += e.get();
+		}
+
+		System.out.format("clients=%d rate=%.1f/s seconds=%.1f subscribers=%d%n", clients, rate, elapsed, subscribers);
+		System.out.format("commands=%d (%.0f/s) errors=%d%n%n", n, n/elapsed, nerr);
+		System.out.format("%-14s %8s %7s %9s %9s %9s %9s [us]%n", "command", "count", "errors", "p50", "p90", "p99", "max");
+		for(String cmd : mix){
+			row(cmd, latency.get(cmd), errors.get(cmd).get());
+		}
+		row("all", total, nerr);
+
+		if(cpu!=null){
+			System.out.format("%nserver cpu: %.1f ms (%.1f%% of one core), %.1f us/command%n",
+					cpu[0]*1E-6, cpu[0]*1E-7/elapsed, (n>0) ? cpu[0]*1E-3/n:0.0);
+			if(cpu[1]>=0){
+				System.out.format("server allocation: %.2f MB, %.0f bytes/command%n",
+						cpu[1]/1048576.0, (n>0) ? (double)cpu[1]/n:0.0);
+			}
+		}
+		if(process>=0){
+			System.out.format("process cpu without load clients: %.1f ms (%.1f%% of one core), incl. GC and JIT%n",
+					process*1E-6, process*1E-7/elapsed);
+		}
+		if(subscribers>0){
+			System.out.format("telemetry: %d records received, %d lost%n", telemetryLines.get(), telemetryLost.get());
+		}
+	}
+
+	private static void row(String name, LatencyHistogram h, long err){
+		System.out.format("%-14s %8d %7d %9.1f %9.1f %9.1f %9.1f%n", name, h.getCount(), err,
+				h.getQuantileNanos(0.5)*1E-3, h.getQuantileNanos(0.9)*1E-3,
+				h.getQuantileNanos(0.99)*1E-3, h.getMaxMicros());
+	}
+
+	public static void main(String[] args) throws Exception{
+		LoadGenerator g = new LoadGenerator();
+		for(String arg : args){
+			String[] kv = arg.split("=");
+			if(kv.length!=2){
+				throw new IllegalArgumentException("Bad option: "+arg);
+			}
+			String key = kv[0].trim();
+			String val = kv[1].trim();
+
+			if(key.equals("clients")){
+				g.clients = Integer.parseInt(val);
+			}else if(key.equals("seconds")){
+				g.seconds = Double.parseDouble(val);
+			}else if(key.equals("rate")){
+				g.rate = Double.parseDouble(val);
+			}else if(key.equals("subscribers")){
+				g.subscribers = Integer.parseInt(val);
+			}else if(key.equals("port")){
+				g.port = Integer.parseInt(val);
+			}else{
+				throw new IllegalArgumentException("Unknown option: "+key);
+			}
+		}
+		g.run();
+		System.exit(0);
+	}
+}
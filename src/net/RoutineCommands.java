@@ -0,0 +1,292 @@
+package net;
+
+import impl.AlignmentSequence;
+import impl.CommandArbiter;
+import impl.AlignmentRoutines;
+
+import data.AlignmentMath;
+import data.Config;
+import data.ModelComparison;
+import data.SetupData;
+
+/**<pre>
+ * CommandServer handler that maps the commands onto AlignmentRoutines.
+ *
+ *  setTiltRef, setShearRef      set the reference centroid of one camera
+ *  setReferencePoints           set both reference centroids
+ *  startStepCalc, stopStepCalc  mean step size calibration
+ *  startPILoop, stepPILoop, stopPILoop
+ *  startImages [tilt|shear]     start grabbing, both cameras without argument
+ *  stopImages
+ *  setCoadd on|off
+ *  setupCoadd N T               arguments of NativeImageImpl.setupCoadd
+ *  setAutoLoop on|off           auto or manual loop on the next startPILoop
+ *  moveMounts m1ax1 m1ax2 m2ax1 m2ax2
+ *  abortMotion
+ *  abort                        operator abort, stops the sequence and whatever
+ *                               moves the mounts
+ *  lease priority [ttl]         take or renew a session lease for ttl seconds (60),
+ *                               priority calibration|motion|loop|abort
+ *  release                      give the session lease back
+ *  sequence [args]              alignment sequence, see sequence()
+ *  optics [profile]             show or select the optical profile
+ *  compare profile|off          A/B compare a profile against the active one
+ *  status, arbiter              answered immediately, like abort, compare and the
+ *                               stop commands stopStepCalc, stopPILoop, abortMotion
+ *
+ * Routines started by a client run under its session, see CommandArbiter.  The
+ * session lease is released when the client disconnects.  A lease that can't be
+ * granted right away fails with "busy" and the client retries, waiting would hold
+ * up the commands of every other client.
+ *</pre>
+ */
+public class RoutineCommands implements CommandServer.Handler {
+	private static final String[] commands = {
+		"setTiltRef", "setShearRef", "setReferencePoints",
+		"startStepCalc", "stopStepCalc",
+		"startPILoop", "stepPILoop", "stopPILoop",
+		"startImages", "stopImages", "setCoadd", "setupCoadd", "setAutoLoop",
+		"moveMounts", "abortMotion", "abort", "lease", "release", "status", "arbiter",
+		"optics", "compare", "sequence"
+	};
+	public static final long DEFAULT_LEASE_TTL_MS = 60000;
+
+	private final AlignmentRoutines routines;
+
+	public RoutineCommands(AlignmentRoutines routines){
+		this.routines = routines;
+	}
+
+	public String[] getCommands(){
+		return commands.clone();
+	}
+
+	/** Queries, and the stop commands so they don't wait behind what they stop. */
+	public boolean isImmediate(String cmd){
+		return cmd.equals("status") || cmd.equals("arbiter") || cmd.equals("abort")
+			|| cmd.equals("compare") || cmd.equals("stopStepCalc") || cmd.equals("stopPILoop")
+			|| cmd.equals("abortMotion");
+	}
+
+	public void sessionClosed(String session){
+		CommandArbiter.getDefault().releaseSession(session);
+	}
+
+	public String execute(String session, String cmd, String[] args) throws Exception{
+		CommandArbiter arbiter = CommandArbiter.getDefault();
+
+		if(cmd.equals("status")){
+			return status();
+		}else if(cmd.equals("arbiter")){
+			return arbiter.getStatus();
+		}else if(cmd.equals("abort")){
+			AlignmentSequence seq = AlignmentSequence.getCurrent();
+			if(seq!=null){
+				seq.cancel();
+			}
+			CommandArbiter.Lease l = arbiter.abort(session);
+			return "revoked="+((l==null) ? "none":l.toString());
+		}else if(cmd.equals("stopStepCalc")){
+			routines.stopStepCalc();
+			return status();
+		}else if(cmd.equals("stopPILoop")){
+			routines.stopPILoop();
+			return status();
+		}else if(cmd.equals("abortMotion")){
+			routines.abortMotion();
+			return status();
+		}else if(cmd.equals("lease")){
+			return lease(session, args);
+		}else if(cmd.equals("release")){
+			arbiter.releaseSession(session);
+			return arbiter.getStatus();
+		}else if(cmd.equals("optics")){
+			if(args.length>1){
+				throw new IllegalArgumentException("expected [profile]");
+			}
+			if(args.length==1 && !SetupData.setOpticalProfile(args[0])){
+				throw new IllegalArgumentException("no profile "+args[0]);
+			}
+			return optics();
+		}else if(cmd.equals("compare")){
+			if(args.length!=1){
+				throw new IllegalArgumentException("expected profile|off");
+			}
+			ModelComparison old = AlignmentMath.setCompareProfile(args[0].equals("off") ? null:args[0]);
+			return optics()+((old==null) ? "":" "+old.getStatus().replaceFirst("compare=", "previous="));
+		}
+
+		if(cmd.equals("sequence")){
+			return sequence(session, args);
+		}
+		
+		routines.setSession(session);
+		if(cmd.equals("setTiltRef")){
+			if(!routines.setTiltRef()){
+				throw new Exception("tilt reference not set");
+			}
+		}else if(cmd.equals("setShearRef")){
+			if(!routines.setShearRef()){
+				throw new Exception("shear reference not set");
+			}
+		}else if(cmd.equals("setReferencePoints")){
+			routines.setReferencePoints();
+		}else if(cmd.equals("startStepCalc")){
+			routines.startStepCalc();
+		}else if(cmd.equals("startPILoop")){
+			routines.startPILoop();
+		}else if(cmd.equals("stepPILoop")){
+			routines.stepPILoop();
+		}else if(cmd.equals("startImages")){
+			if(args.length==0){
+				routines.startImages(true, true);
+			}else if(args.length==1 && (args[0].equals("tilt") || args[0].equals("shear"))){
+				routines.startImages(args[0].equals("tilt"), args[0].equals("shear"));
+			}else{
+				throw new IllegalArgumentException("expected tilt|shear");
+			}
+		}else if(cmd.equals("stopImages")){
+			routines.stopImages();
+		}else if(cmd.equals("setCoadd")){
+			routines.setCoaddOn(parseSwitch(args));
+		}else if(cmd.equals("setupCoadd")){
+			int[] v = parseInts(args, 2);
+			routines.setupCoadd(v[0], v[1]);
+		}else if(cmd.equals("setAutoLoop")){
+			routines.setAutoPILoop(parseSwitch(args));
+		}else if(cmd.equals("moveMounts")){
+			int[] v = parseInts(args, 4);
+			routines.moveMounts(v[0], v[1], v[2], v[3]);
+		}else{
+			throw new IllegalArgumentException("unknown command");
+		}
+		return status();
+	}
+
+	private String lease(String session, String[] args) throws Exception{
+		if(args.length<1 || args.length>2){
+			throw new IllegalArgumentException("expected priority [ttl]");
+		}
+		CommandArbiter.Priority p;
+		try{
+			p = CommandArbiter.Priority.valueOf(args[0].toUpperCase());
+		}catch(IllegalArgumentException ex){
+			throw new IllegalArgumentException("priority must be calibration|motion|loop|abort");
+		}
+		long ttl = DEFAULT_LEASE_TTL_MS;
+		if(args.length==2){
+			try{
+				ttl = (long)(Double.parseDouble(args[1])*1000);
+			}catch(NumberFormatException ex){
+				throw new IllegalArgumentException("expected priority [ttl]");
+			}
+		}
+
+		CommandArbiter arbiter = CommandArbiter.getDefault();
+		if(arbiter.acquireSession(session, p, 0, ttl)==null){
+			throw new Exception("busy "+arbiter.getStatus());
+		}
+		return "ttl="+ttl/1000.0+" "+arbiter.getStatus();
+	}
+
+	/**
+	 * sequence                          state of the current sequence
+	 * sequence align auto|manual [N T]  the standard alignment, co-added with N T, waits
+	 *                                   for a confirm before each beam switch
+	 * sequence run path                 script file on the server
+	 * sequence confirm                  operator step done
+	 * sequence abort
+	 * sequence report                   wall time of each phase, slowest first
+	 */
+	private String sequence(String session, String[] args) throws Exception{
+		AlignmentSequence seq = AlignmentSequence.getCurrent();
+		String sub = (args.length>0) ? args[0]:"";
+		if(sub.equals("align")){
+			if(args.length!=2 && args.length!=4 || !args[1].equals("auto") && !args[1].equals("manual")){
+				throw new IllegalArgumentException("expected align auto|manual [N T]");
+			}
+			int[] v = (args.length==4) ? parseInts(new String[]{args[2], args[3]}, 2):new int[2];
+			boolean auto = args[1].equals("auto");
+			seq = AlignmentSequence.parse(args[1]+((v[0]>0) ? "Coadd":"NoCoadd"),
+					AlignmentSequence.alignScript(auto, v[0], v[1], true));
+			seq.start(routines, session);
+		}else if(sub.equals("run")){
+			if(args.length!=2){
+				throw new IllegalArgumentException("expected run path");
+			}
+			seq = AlignmentSequence.load(args[1]);
+			seq.start(routines, session);
+		}else if(sub.equals("confirm")){
+			if(seq==null){
+				throw new IllegalStateException("no sequence");
+			}
+			seq.confirm();
+		}else if(sub.equals("abort")){
+			if(seq!=null){
+				seq.cancel();
+			}
+		}else if(sub.equals("report")){
+			if(seq==null){
+				throw new IllegalStateException("no sequence");
+			}
+			return seq.getReport().replaceAll("\\s+", " ");
+		}else if(args.length>0){
+			throw new IllegalArgumentException("expected align|run|confirm|abort|report");
+		}
+		if(seq==null){
+			return "sequence=none";
+		}
+		String prompt = seq.getPrompt();
+		return "sequence="+seq.getName()+" running="+seq.isRunning()
+			+((prompt==null) ? "":" prompt=\""+prompt+"\"");
+	}
+
+	/** "profile=name profiles=a,b,c compare=..." */
+	private static String optics(){
+		Config cfg = SetupData.getConfig();
+		StringBuilder s = new StringBuilder("profile=").append(cfg.opticalProfile).append(" profiles=");
+		String sep = "";
+		for(String name : cfg.getOpticalProfiles()){
+			s.append(sep).append(name);
+			sep = ",";
+		}
+		ModelComparison c = AlignmentMath.getComparison();
+		s.append(' ').append((c==null) ? "compare=off":c.getStatus());
+		return s.toString();
+	}
+
+	private String status(){
+		return "piLoop="+routines.isPILoopRunning()
+			+" stepCalc="+routines.isStepCalcRunning()
+			+" motion="+routines.isMotionRunning()
+			+" coadd="+routines.isCoaddOn()
+			+" autoLoop="+routines.isAutoPILoop()
+			+" "+CommandArbiter.getDefault().getStatus();
+	}
+
+	private static boolean parseSwitch(String[] args){
+		if(args.length==1){
+			if(args[0].equals("on")){
+				return true;
+			}else if(args[0].equals("off")){
+				return false;
+			}
+		}
+		throw new IllegalArgumentException("expected on|off");
+	}
+
+	private static int[] parseInts(String[] args, int n){
+		if(args.length!=n){
+			throw new IllegalArgumentException("expected "+n+" integer arguments");
+		}
+		int[] v = new int[n];
+		try{
+			for(int i=0;i<n;i++){
+				v[i] = Integer.parseInt(args[i]);
+			}
+		}catch(NumberFormatException ex){
+			throw new IllegalArgumentException("expected "+n+" integer arguments");
+		}
+		return v;
+	}
+}
@@ -0,0 +1,303 @@
+package util;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Formatter;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**<pre>
+ * Asynchronous log pipeline used by the logging tasks.
+ *
+ * Producers (timer tasks, loop threads) never format or print anything themselves.
+ * They claim a slot in a fixed size ring buffer, copy the format string and the raw
+ * double arguments into the slot and return.  Claiming a slot is a single CAS, no locks
+ * are taken.  If the ring is full the record is dropped and counted, so a slow sink can
+ * never stall a producer.
+ *
+ * A single consumer thread drains the ring every {@link #FLUSH_INTERVAL_MS}, formats all
+ * pending records into one batch and hands the batch to every registered {@link Sink}
+ * (console, file, UI).  If no sink is registered the batch is written to System.out.
+ *</pre>
+ */
+public class AsyncLog implements Runnable {
+	/** Destination for formatted log batches, called only from the consumer thread. */
+	public interface Sink {
+		public void write(CharSequence batch);
+		public void flush();
+	}
+
+	public static final int DEFAULT_CAPACITY = 4096;
+	public static final long FLUSH_INTERVAL_MS = 50;
+
+	private static final int MAX_ARGS = 8;
+	private static final String NL = System.getProperty("line.separator");
+
+	private static AsyncLog defaultLog;
+
+	/** Pre-allocated ring slot. */
+	private static final class Entry {
+		String format;
+		final double[] args = new double[MAX_ARGS];
+		int nargs;
+	}
+
+	private final Entry[] ring;
+	private final int mask;
+
+	/** Next sequence number to be claimed by a producer. */
+	private final AtomicLong claimed = new AtomicLong(0);
+	/** Sequence number published in each slot, -1 when empty. */
+	private final AtomicLongArray published;
+	/** Next sequence number the consumer will read. */
+	private final AtomicLong consumed = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	/** Dropped records already reported in the log, guarded by drain() */
+	private long droppedReported;
+
+	private final CopyOnWriteArrayList<Sink> sinks = new CopyOnWriteArrayList<Sink>();
+
+	private final StringBuilder batch = new StringBuilder(8192);
+	private final Formatter formatter = new Formatter(batch);
+	private final Object[] boxed = new Object[MAX_ARGS];
+
+	private final Thread consumer;
+	private volatile boolean running = true;
+
+	/**
+	 * @param capacity Number of ring slots, rounded up to a power of two.
+	 */
+	public AsyncLog(int capacity){
+		int size = Integer.highestOneBit(Math.max(2, capacity-1))<<1;
+		ring = new Entry[size];
+		for(int i=0;i<size;i++){
+			ring[i] = new Entry();
+		}
+		mask = size-1;
+
+		published = new AtomicLongArray(size);
+		for(int i=0;i<size;i++){
+			published.set(i,-1);
+		}
+
+		consumer = new Thread(this,"AsyncLog");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	/** Log shared by all logging tasks, created on first use. */
+	public static synchronized AsyncLog getDefault(){
+		if(defaultLog==null){
+			defaultLog = new AsyncLog(DEFAULT_CAPACITY);
+
+			final AsyncLog log = defaultLog;
+			Runtime.getRuntime().addShutdownHook(new Thread("AsyncLogShutdown"){
+				@Override
+				public void run(){
+					log.close();
+				}
+			});
+		}
+		return defaultLog;
+	}
+
+	public void addSink(Sink sink){
+		sinks.addIfAbsent(sink);
+	}
+
+	public void removeSink(Sink sink){
+		if(sinks.remove(sink)){
+			sink.flush();
+		}
+	}
+
+	/** Total number of records dropped because the ring was full, since the log was made. */
+	public long getDroppedCount(){
+		return dropped.get();
+	}
+
+	/** Queue a single line of text. */
+	public void println(String line){
+		publish(line,null,0);
+	}
+
+	public void format(String fmt, double a0, double a1, double a2, double a3){
+		long seq = claim();
+		if(seq<0) return;
+		Entry e = ring[(int)seq & mask];
+		e.format = fmt;
+		e.args[0]=a0; e.args[1]=a1; e.args[2]=a2; e.args[3]=a3;
+		e.nargs = 4;
+		published.lazySet((int)seq & mask, seq);
+	}
+
+	public void format(String fmt, double a0, double a1, double a2, double a3, double a4){
+		long seq = claim();
+		if(seq<0) return;
+		Entry e = ring[(int)seq & mask];
+		e.format = fmt;
+		e.args[0]=a0; e.args[1]=a1; e.args[2]=a2; e.args[3]=a3; e.args[4]=a4;
+		e.nargs = 5;
+		published.lazySet((int)seq & mask, seq);
+	}
+
+	/** Queue a formatted record, at most {@link #MAX_ARGS} arguments are kept. */
+	public void format(String fmt, double... args){
+		publish(fmt,args,Math.min(args.length,MAX_ARGS));
+	}
+
+	private void publish(String fmt, double[] args, int nargs){
+		long seq = claim();
+		if(seq<0) return;
+		Entry e = ring[(int)seq & mask];
+		e.format = fmt;
+		if(args!=null){
+			System.arraycopy(args,0,e.args,0,nargs);
+		}
+		e.nargs = (args==null) ? -1:nargs;
+		published.lazySet((int)seq & mask, seq);
+	}
+
+	/** @return claimed sequence number or -1 if the ring is full. */
+	private long claim(){
+		while(true){
+			long seq = claimed.get();
+			if(seq - consumed.get() >= ring.length){
+				dropped.incrementAndGet();
+				return -1;
+			}
+			if(claimed.compareAndSet(seq,seq+1)){
+				return seq;
+			}
+		}
+	}
+
+	public void run(){
+		while(running){
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS));
+			drain();
+		}
+		drain();
+	}
+
+	/** Format every published record and hand the batch to the sinks. */
+	private synchronized void drain(){
+		long seq = consumed.get();
+		long total = dropped.get();
+		long lost = total-droppedReported;
+		droppedReported = total;
+
+		while(published.get((int)seq & mask)==seq){
+			Entry e = ring[(int)seq & mask];
+			if(e.nargs<0){
+				batch.append(e.format).append(NL);
+			}else{
+				for(int i=0;i<e.nargs;i++){
+					boxed[i] = e.args[i];
+				}
+				try{
+					formatter.format(e.format, boxed);
+				}catch(RuntimeException ex){
+					batch.append(e.format).append(NL);
+				}
+				for(int i=0;i<e.nargs;i++){
+					boxed[i] = null;
+				}
+			}
+			e.format = null;
+			seq++;
+			consumed.lazySet(seq);
+		}
+
+		if(lost>0){
+			batch.append("[AsyncLog] ").append(lost).append(" records dropped").append(NL);
+		}
+
+		if(batch.length()==0){
+			return;
+		}
+
+		if(sinks.isEmpty()){
+			System.out.print(batch);
+			System.out.flush();
+		}else{
+			for(Sink s : sinks){
+				s.write(batch);
+				s.flush();
+			}
+		}
+		batch.setLength(0);
+	}
+
+	/** Stop the consumer thread after writing out all queued records. */
+	public void close(){
+		running = false;
+		LockSupport.unpark(consumer);
+		try{
+			consumer.join(1000);
+		}catch(InterruptedException ex){
+			//give up waiting
+		}
+		drain();
+		for(Sink s : sinks){
+			s.flush();
+		}
+	}
+
+	/** Writes batches to a PrintStream, e.g. the console. */
+	public static class PrintStreamSink implements Sink {
+		private final PrintStream out;
+
+		public PrintStreamSink(PrintStream out){
+			this.out = out;
+		}
+
+		public void write(CharSequence text){
+			out.append(text);
+		}
+
+		public void flush(){
+			out.flush();
+		}
+	}
+
+	/** Appends batches to a text file. */
+	public static class FileSink implements Sink {
+		private final BufferedWriter out;
+		private final String path;
+
+		public FileSink(String path) throws IOException{
+			this.path = path;
+			out = new BufferedWriter(new FileWriter(path,true));
+		}
+
+		public void write(CharSequence text){
+			try{
+				out.append(text);
+			}catch(IOException ex){
+				System.err.format("[AsyncLog.FileSink(%s)]: Error writing file: %s%n",path,ex.getMessage());
+			}
+		}
+
+		public void flush(){
+			try{
+				out.flush();
+			}catch(IOException ex){
+				System.err.format("[AsyncLog.FileSink(%s)]: Error writing file: %s%n",path,ex.getMessage());
+			}
+		}
+
+		public void close(){
+			try{
+				out.close();
+			}catch(IOException ex){
+				//nothing left to do
+			}
+		}
+	}
+}
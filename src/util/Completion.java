@@ -0,0 +1,277 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**<pre>
+ * Result of a routine that finishes on another thread, with completion callbacks.
+ *
+ * The routine completes it with {@link #complete(Object)} or {@link #fail(Throwable)}
+ * when it is done, waiting callers are woken at once instead of polling a flag.
+ * Stages are chained with {@link #then(Executor, Step)}: the next stage starts the
+ * moment this one completes, a failure or cancellation skips the remaining stages.
+ *
+ * {@link #cancel(boolean)} and an expired {@link #within(long)} timeout run the
+ * {@link #onAbort(Runnable)} hooks, which stop the work behind the stage, e.g.
+ * interrupt its thread.  On a chain they are passed on to the stage that runs.
+ *
+ * A small subset of java.util.concurrent.CompletableFuture, which needs Java 8.
+ *</pre>
+ */
+public class Completion<T> implements Future<T> {
+	/** Next stage of a chain, started with the result of the previous one. */
+	public interface Step<T,U> {
+		public Completion<U> apply(T value) throws Exception;
+	}
+
+	private static final int RUNNING=0, DONE=1, FAILED=2, CANCELLED=3;
+
+	private static ScheduledThreadPoolExecutor timer;
+
+	private final CountDownLatch latch = new CountDownLatch(1);
+	private volatile int state = RUNNING;
+	private T value;
+	private Throwable error;
+	/* guarded by 'this', null once done */
+	private List<Runnable> callbacks = new ArrayList<Runnable>();
+	private List<Runnable> abortHooks = new ArrayList<Runnable>();
+
+	/** An already completed stage. */
+	public static <T> Completion<T> completed(T value){
+		Completion<T> c = new Completion<T>();
+		c.complete(value);
+		return c;
+	}
+
+	/** A stage that completes with 'value' after 'ms', cancelling it stops the wait. */
+	public static <T> Completion<T> after(long ms, final T value){
+		final Completion<T> c = new Completion<T>();
+		final ScheduledFuture<?> f = timer().schedule(new Runnable(){
+			public void run(){
+				c.complete(value);
+			}
+		}, ms, TimeUnit.MILLISECONDS);
+		c.onAbort(new Runnable(){
+			public void run(){
+				f.cancel(false);
+			}
+		});
+		return c;
+	}
+
+	/** @return false if already done */
+	public boolean complete(T value){
+		return finish(DONE, value, null);
+	}
+
+	/** @return false if already done */
+	public boolean fail(Throwable t){
+		return finish(FAILED, null, t);
+	}
+
+	/** Cancel and run the abort hooks, 'mayInterrupt' is ignored, the hooks decide. */
+	public boolean cancel(boolean mayInterrupt){
+		return abort(CANCELLED, null);
+	}
+
+	private boolean abort(int s, Throwable t){
+		List<Runnable> hooks;
+		synchronized(this){
+			hooks = abortHooks;
+		}
+		if(!finish(s, null, t)){
+			return false;
+		}
+		for(Runnable r : hooks){
+			run(r);
+		}
+		return true;
+	}
+
+	private boolean finish(int s, T v, Throwable t){
+		List<Runnable> cb;
+		synchronized(this){
+			if(state!=RUNNING){
+				return false;
+			}
+			value = v;
+			error = t;
+			state = s;
+			cb = callbacks;
+			callbacks = null;
+			abortHooks = null;
+		}
+		latch.countDown();
+		for(Runnable r : cb){
+			run(r);
+		}
+		return true;
+	}
+
+	private static void run(Runnable r){
+		try{
+			r.run();
+		}catch(RuntimeException ex){
+			ex.printStackTrace();
+		}
+	}
+
+	/** Run 'r' when done, right away if already done. */
+	public void whenDone(Runnable r){
+		synchronized(this){
+			if(callbacks!=null){
+				callbacks.add(r);
+				return;
+			}
+		}
+		run(r);
+	}
+
+	/** Run 'r' if the stage is cancelled or times out before it completes. */
+	public Completion<T> onAbort(Runnable r){
+		synchronized(this){
+			if(abortHooks!=null){
+				abortHooks.add(r);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Fail with a TimeoutException and run the abort hooks if not done within 'ms'.
+	 * @return this
+	 */
+	public Completion<T> within(final long ms){
+		if(ms<=0 || isDone()){
+			return this;
+		}
+		final ScheduledFuture<?> f = timer().schedule(new Runnable(){
+			public void run(){
+				abort(FAILED, new TimeoutException("not done within "+ms+" ms"));
+			}
+		}, ms, TimeUnit.MILLISECONDS);
+		whenDone(new Runnable(){
+			public void run(){
+				f.cancel(false);
+			}
+		});
+		return this;
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor timer(){
+		if(timer==null){
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r,"CompletionTimer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return timer;
+	}
+
+	/**
+	 * Start 'next' on 'executor' with the result of this stage once it completes.
+	 * The returned stage completes with the result of 'next', or fails or is cancelled
+	 * like this stage.  Cancelling it cancels whichever of the two is running.
+	 */
+	public <U> Completion<U> then(final Executor executor, final Step<? super T,U> next){
+		final Completion<U> r = new Completion<U>();
+		r.onAbort(new Runnable(){
+			public void run(){
+				cancel(true);
+			}
+		});
+		whenDone(new Runnable(){
+			public void run(){
+				if(state!=DONE){
+					r.finish(state, null, error);
+					return;
+				}
+				executor.execute(new Runnable(){
+					public void run(){
+						if(r.isDone()){
+							return;
+						}
+						try{
+							final Completion<U> c = next.apply(value);
+							r.onAbort(new Runnable(){
+								public void run(){
+									c.cancel(true);
+								}
+							});
+							if(r.isDone()){
+								//aborted while 'next' was starting
+								c.cancel(true);
+							}
+							c.whenDone(new Runnable(){
+								public void run(){
+									r.finish(c.state, c.value, c.error);
+								}
+							});
+						}catch(Throwable t){
+							r.fail(t);
+						}
+					}
+				});
+			}
+		});
+		return r;
+	}
+
+	public boolean isCancelled(){
+		return state==CANCELLED;
+	}
+
+	public boolean isDone(){
+		return state!=RUNNING;
+	}
+
+	/** True if completed normally. */
+	public boolean isCompleted(){
+		return state==DONE;
+	}
+
+	/** Result if completed normally, else 'def', doesn't wait. */
+	public T getNow(T def){
+		return (state==DONE) ? value:def;
+	}
+
+	public T get() throws InterruptedException, ExecutionException{
+		latch.await();
+		return result();
+	}
+
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException{
+		if(!latch.await(timeout, unit)){
+			throw new TimeoutException();
+		}
+		return result();
+	}
+
+	private T result() throws ExecutionException{
+		if(state==CANCELLED){
+			throw new CancellationException();
+		}else if(state==FAILED){
+			throw new ExecutionException(error);
+		}
+		return value;
+	}
+
+	@Override
+	public String toString(){
+		String[] s = {"running", "done", "failed", "cancelled"};
+		return s[state]+((state==FAILED) ? ": "+error:"");
+	}
+}
@@ -0,0 +1,33 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Monotonic event counter, see {@link MetricsRegistry}. */
+public class Counter implements CounterMBean {
+	private final String name;
+	private final AtomicLong count = new AtomicLong();
+
+	Counter(String name){
+		this.name = name;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public void increment(){
+		count.incrementAndGet();
+	}
+
+	public void add(long n){
+		count.addAndGet(n);
+	}
+
+	public long getCount(){
+		return count.get();
+	}
+
+	public void reset(){
+		count.set(0);
+	}
+}
@@ -0,0 +1,7 @@
+package util;
+
+/** JMX view of a {@link Counter}. */
+public interface CounterMBean {
+	public long getCount();
+	public void reset();
+}
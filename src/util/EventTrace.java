@@ -0,0 +1,326 @@
+package util;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.ObjectName;
+
+/**<pre>
+ * Low overhead flight recorder for control loop events.
+ *
+ * Event types are defined once with {@link #defineType(String, String[], String[])},
+ * each event carries a start time, a duration, the recording thread, up to three int
+ * fields and up to four double fields.  Events are written into a fixed size ring that
+ * overwrites the oldest entries, so a recording can be left running for a whole night
+ * and dumped when a lag spike is seen.
+ *
+ * While recording, a sampler thread adds the JVM side of the picture to the same
+ * timeline: one "GC" event per garbage collection and one "Stall" event every time
+ * the sampler, parked for half of {@link #STALL_THRESHOLD_MS} at a time, could not run
+ * for more than {@link #STALL_THRESHOLD_MS} (safepoints, swapping, CPU starvation).
+ *
+ * Every slot of the ring is a small seqlock: the writer marks it -1, fills it in and
+ * publishes its sequence number; a dump copies the slot and only keeps the copy if
+ * the sequence number is still the same afterwards, so it never emits torn events.
+ *
+ * Call sites must guard event creation with {@link #enabled}:
+ *   long t0 = EventTrace.enabled ? System.nanoTime():0;
+ *   ...
+ *   if(EventTrace.enabled) EventTrace.record(TYPE, t0, ...);
+ * so with recording off an event costs a single volatile read.
+ *
+ * Dumps are written in the Chrome trace event JSON format and can be opened in
+ * chrome://tracing or https://ui.perfetto.dev.  Recording can be controlled from the
+ * Log Panel or over JMX (TiltShearTool:type=EventTrace).
+ *</pre>
+ */
+final public class EventTrace implements EventTraceMBean {
+	public static final int CAPACITY = 1<<16;
+	public static final long STALL_THRESHOLD_MS = 5;
+
+	/** True while recording, read by every call site before creating an event. */
+	public static volatile boolean enabled = false;
+
+	private static final List<String> typeNames = new ArrayList<String>();
+	private static final List<String[]> intNames = new ArrayList<String[]>();
+	private static final List<String[]> doubleNames = new ArrayList<String[]>();
+
+	/* event ring */
+	private static final int MASK = CAPACITY-1;
+	private static final AtomicLong next = new AtomicLong();
+	private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+	private static final int[] type = new int[CAPACITY];
+	private static final long[] start = new long[CAPACITY];
+	private static final long[] duration = new long[CAPACITY];
+	private static final Thread[] thread = new Thread[CAPACITY];
+	private static final int[] ints = new int[CAPACITY*3];
+	private static final double[] doubles = new double[CAPACITY*4];
+
+	private static final int GC = defineType("GC", new String[]{"count"}, new String[0]);
+	private static final int STALL = defineType("Stall", new String[0], new String[]{"ms"});
+
+	private static Thread sampler;
+
+	private static final EventTrace instance = new EventTrace();
+
+	private EventTrace(){
+	}
+
+	/**
+	 * Define a new event type.
+	 * @param name Event name shown on the timeline.
+	 * @param ints Names of the int fields, at most 3.
+	 * @param dbls Names of the double fields, at most 4.
+	 * @return type id passed to record().
+	 */
+	public static synchronized int defineType(String name, String[] ints, String[] dbls){
+		typeNames.add(name);
+		intNames.add(ints);
+		doubleNames.add(dbls);
+		return typeNames.size()-1;
+	}
+
+	public static void record(int t, long startNanos){
+		record(t,startNanos,0,0,0,0,0,0,0);
+	}
+
+	public static void record(int t, long startNanos, int i0, int i1, int i2){
+		record(t,startNanos,i0,i1,i2,0,0,0,0);
+	}
+
+	public static void record(int t, long startNanos, double d0, double d1, double d2, double d3){
+		record(t,startNanos,0,0,0,d0,d1,d2,d3);
+	}
+
+	/** Record an event that started at 'startNanos' and ends now. */
+	public static void record(int t, long startNanos, int i0, int i1, int i2,
+			double d0, double d1, double d2, double d3){
+		recordSpan(t,startNanos,System.nanoTime()-startNanos,i0,i1,i2,d0,d1,d2,d3);
+	}
+
+	private static void recordSpan(int t, long startNanos, long durNanos, int i0, int i1, int i2,
+			double d0, double d1, double d2, double d3){
+		if(!enabled){
+			return;
+		}
+
+		long seq = next.getAndIncrement();
+		int slot = (int)seq & MASK;
+
+		published.set(slot,-1);
+		type[slot] = t;
+		start[slot] = startNanos;
+		duration[slot] = durNanos;
+		thread[slot] = Thread.currentThread();
+		ints[slot*3] = i0; ints[slot*3+1] = i1; ints[slot*3+2] = i2;
+		doubles[slot*4] = d0; doubles[slot*4+1] = d1; doubles[slot*4+2] = d2; doubles[slot*4+3] = d3;
+		published.lazySet(slot,seq);
+	}
+
+	/** Clear the ring and start recording. */
+	public static synchronized void startRecording(){
+		if(enabled){
+			return;
+		}
+
+		for(int i=0;i<CAPACITY;i++){
+			published.set(i,-1);
+			thread[i] = null;
+		}
+		next.set(0);
+		enabled = true;
+
+		sampler = new Thread(new Sampler(),"EventTraceSampler");
+		sampler.setDaemon(true);
+		sampler.start();
+	}
+
+	public static synchronized void stopRecording(){
+		enabled = false;
+		if(sampler!=null){
+			sampler.interrupt();
+			sampler = null;
+		}
+	}
+
+	public static boolean isEnabled(){
+		return enabled;
+	}
+
+	/** Write the events currently in the ring to 'path' as Chrome trace JSON.
+	 * @return number of events written. */
+	public static int dumpTo(String path) throws IOException{
+		Writer out = new BufferedWriter(new FileWriter(path));
+		try{
+			return dump(out);
+		}finally{
+			out.close();
+		}
+	}
+
+	private static int dump(Writer out) throws IOException{
+		//nanoTime has no fixed origin, convert to wall clock micro seconds
+		double offsetMicros = System.currentTimeMillis()*1E3 - System.nanoTime()*1E-3;
+		long last = next.get();
+		long first = Math.max(0,last-CAPACITY);
+		int n = 0;
+
+		int[] iv = new int[3];
+		double[] dv = new double[4];
+
+		out.write("{\"traceEvents\":[\n");
+		for(long seq=first;seq<last;seq++){
+			int slot = (int)seq & MASK;
+			if(published.get(slot)!=seq){
+				continue;
+			}
+
+			int t = type[slot];
+			Thread th = thread[slot];
+			long st = start[slot];
+			long dur = duration[slot];
+			System.arraycopy(ints,slot*3,iv,0,3);
+			System.arraycopy(doubles,slot*4,dv,0,4);
+			if(published.get(slot)!=seq){
+				continue;	//overwritten while copying
+			}
+
+			String tname;
+			String[] in, dn;
+			synchronized(EventTrace.class){
+				tname = typeNames.get(t);
+				in = intNames.get(t);
+				dn = doubleNames.get(t);
+			}
+
+			StringBuilder sb = new StringBuilder(160);
+			if(n>0){
+				sb.append(",\n");
+			}
+			sb.append("{\"name\":\"").append(tname).append("\",\"ph\":\"X\",\"pid\":1");
+			sb.append(",\"tid\":").append(th!=null ? th.getId():0);
+			sb.append(String.format(Locale.US,",\"ts\":%.3f,\"dur\":%.3f",
+					st*1E-3+offsetMicros, dur*1E-3));
+			sb.append(",\"args\":{");
+			boolean comma = false;
+			for(int i=0;i<in.length;i++){
+				if(comma) sb.append(',');
+				sb.append('"').append(in[i]).append("\":").append(iv[i]);
+				comma = true;
+			}
+			for(int i=0;i<dn.length;i++){
+				if(comma) sb.append(',');
+				sb.append('"').append(dn[i]).append("\":");
+				sb.append(String.format(Locale.US,"%.9g",dv[i]));
+				comma = true;
+			}
+			sb.append("}}");
+			out.write(sb.toString());
+			n++;
+		}
+
+		//thread names as metadata events
+		for(Thread th : liveThreads(first,last)){
+			out.write(String.format(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":\"%s\"}}",
+					th.getId(),th.getName().replace("\"","'")));
+		}
+		out.write("\n]}\n");
+
+		return n;
+	}
+
+	private static List<Thread> liveThreads(long first, long last){
+		List<Thread> list = new ArrayList<Thread>();
+		for(long seq=first;seq<last;seq++){
+			Thread th = thread[(int)seq & MASK];
+			if(th!=null && !list.contains(th)){
+				list.add(th);
+			}
+		}
+		return list;
+	}
+
+	/** Register the JMX control bean as TiltShearTool:type=EventTrace. */
+	public static void registerMBean(){
+		try{
+			ObjectName on = new ObjectName(MetricsRegistry.DOMAIN+":type=EventTrace");
+			if(!ManagementFactory.getPlatformMBeanServer().isRegistered(on)){
+				ManagementFactory.getPlatformMBeanServer().registerMBean(instance,on);
+			}
+		}catch(Exception ex){
+			System.err.format("[EventTrace.registerMBean()]: %s%n",ex.getMessage());
+		}
+	}
+
+	/* EventTraceMBean */
+	public void start(){
+		startRecording();
+	}
+
+	public void stop(){
+		stopRecording();
+	}
+
+	public boolean isRecording(){
+		return enabled;
+	}
+
+	public long getEventCount(){
+		return next.get();
+	}
+
+	public int dump(String path) throws IOException{
+		return dumpTo(path);
+	}
+
+	/** Records GC and thread stall events while recording is on. */
+	private static class Sampler implements Runnable {
+		public void run(){
+			List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+			long[] gcCount = new long[gcs.size()];
+			long[] gcTime = new long[gcs.size()];
+			for(int i=0;i<gcCount.length;i++){
+				gcCount[i] = gcs.get(i).getCollectionCount();
+				gcTime[i] = gcs.get(i).getCollectionTime();
+			}
+
+			long period = STALL_THRESHOLD_MS*1000000L/2;
+			long gcPoll = 20000000L;
+			long last = System.nanoTime();
+			long nextGc = last+gcPoll;
+			while(enabled && !Thread.currentThread().isInterrupted()){
+				LockSupport.parkNanos(period);
+				long now = System.nanoTime();
+				long gap = now-last;
+				if(gap > STALL_THRESHOLD_MS*1000000L){
+					recordSpan(STALL,last,gap,0,0,0,gap*1E-6,0,0,0);
+				}
+				last = now;
+
+				if(now-nextGc >= 0){
+					nextGc = now+gcPoll;
+					for(int i=0;i<gcCount.length;i++){
+						long c = gcs.get(i).getCollectionCount();
+						long t = gcs.get(i).getCollectionTime();
+						if(c!=gcCount[i]){
+							long dur = (t-gcTime[i])*1000000L;
+							recordSpan(GC,System.nanoTime()-dur,dur,(int)(c-gcCount[i]),0,0,0,0,0,0);
+							gcCount[i] = c;
+							gcTime[i] = t;
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package util;
+
+import java.io.IOException;
+
+/** JMX control of the {@link EventTrace} flight recorder. */
+public interface EventTraceMBean {
+	public void start();
+	public void stop();
+	public boolean isRecording();
+	public long getEventCount();
+	/** Write the recorded events to a Chrome trace JSON file, returns the number of events. */
+	public int dump(String path) throws IOException;
+}
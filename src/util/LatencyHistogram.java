@@ -0,0 +1,145 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**<pre>
+ * Lock free latency histogram with a high dynamic range.
+ *
+ * Values are recorded in nanoseconds into log-linear buckets: every power of two
+ * is split into 16 sub-buckets, so any value from 1 ns up to several years is
+ * kept with a relative error below 1/16.  Recording is a couple of shifts and
+ * one atomic increment, so it can be used on the control loop threads.
+ *</pre>
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1<<SUB_BITS;
+	private static final int LINEAR = 2*SUB_COUNT;
+	private static final int NBUCKETS = LINEAR + (63-SUB_BITS)*SUB_COUNT;
+
+	private final String name;
+	private final AtomicLongArray buckets = new AtomicLongArray(NBUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	LatencyHistogram(String name){
+		this.name = name;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	/** Record a latency in nanoseconds, negative values are recorded as zero. */
+	public void record(long nanos){
+		if(nanos<0){
+			nanos = 0;
+		}
+
+		buckets.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long m;
+		while(nanos>(m=max.get())){
+			if(max.compareAndSet(m,nanos)){
+				break;
+			}
+		}
+	}
+
+	/** Record the time elapsed since 't0', a value returned by System.nanoTime().
+	 * @return the current System.nanoTime(), handy for timing consecutive phases. */
+	public long recordSince(long t0){
+		long t = System.nanoTime();
+		record(t-t0);
+		return t;
+	}
+
+	static int bucketOf(long v){
+		if(v<LINEAR){
+			return (int)v;
+		}
+		int msb = 63-Long.numberOfLeadingZeros(v);
+		int shift = msb-SUB_BITS;
+		int top = (int)(v>>>shift);
+		return LINEAR + (shift-1)*SUB_COUNT + (top-SUB_COUNT);
+	}
+
+	/** Upper edge of a bucket in nanoseconds. */
+	static long bucketTop(int idx){
+		if(idx<LINEAR){
+			return idx;
+		}
+		int shift = (idx-LINEAR)/SUB_COUNT + 1;
+		long top = (idx-LINEAR)%SUB_COUNT + SUB_COUNT;
+		return ((top+1)<<shift)-1;
+	}
+
+	/** Value in nanoseconds below which the fraction 'q' of the recorded values lie. */
+	public long getQuantileNanos(double q){
+		long n = count.get();
+		if(n==0){
+			return 0;
+		}
+
+		long rank = (long)Math.ceil(q*n);
+		if(rank<1){
+			rank = 1;
+		}
+
+		long seen = 0;
+		for(int i=0;i<NBUCKETS;i++){
+			seen += buckets.get(i);
+			if(seen>=rank){
+				return Math.min(bucketTop(i),max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public long getCount(){
+		return count.get();
+	}
+
+	public double getMeanMicros(){
+		long n = count.get();
+		return (n==0) ? 0:sum.get()*1E-3/n;
+	}
+
+	public double getMaxMicros(){
+		return max.get()*1E-3;
+	}
+
+	public double getP50Micros(){
+		return getQuantileNanos(0.5)*1E-3;
+	}
+
+	public double getP90Micros(){
+		return getQuantileNanos(0.9)*1E-3;
+	}
+
+	public double getP99Micros(){
+		return getQuantileNanos(0.99)*1E-3;
+	}
+
+	public double getP999Micros(){
+		return getQuantileNanos(0.999)*1E-3;
+	}
+
+	public void reset(){
+		for(int i=0;i<NBUCKETS;i++){
+			buckets.set(i,0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	public String toString(){
+		return String.format("%s: n=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f [us]",
+				name,getCount(),getMeanMicros(),getP50Micros(),getP90Micros(),getP99Micros(),getMaxMicros());
+	}
+}
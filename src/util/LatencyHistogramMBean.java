@@ -0,0 +1,13 @@
+package util;
+
+/** JMX view of a {@link LatencyHistogram}, all times are in microseconds. */
+public interface LatencyHistogramMBean {
+	public long getCount();
+	public double getMeanMicros();
+	public double getMaxMicros();
+	public double getP50Micros();
+	public double getP90Micros();
+	public double getP99Micros();
+	public double getP999Micros();
+	public void reset();
+}
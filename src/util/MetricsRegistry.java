@@ -0,0 +1,120 @@
+package util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**<pre>
+ * Global registry of the latency histograms and counters used to instrument
+ * the control loop.
+ *
+ * Like AlignmentMath all methods are static.  Metrics are created on first use
+ * and live for the lifetime of the program, callers should keep a reference in a
+ * static field instead of looking them up on every iteration.
+ *
+ * Once {@link #registerMBeans()} has been called every metric, existing or created
+ * later, is also registered with the platform MBeanServer as
+ *   TiltShearTool:type=Latency,name=...
+ *   TiltShearTool:type=Counter,name=...
+ * so they can be watched with jconsole/VisualVM next to the memory pools
+ * watched by MemoryWarningSystem.
+ *</pre>
+ */
+final public class MetricsRegistry {
+	public static final String DOMAIN = "TiltShearTool";
+
+	private static final ConcurrentHashMap<String,LatencyHistogram> histograms =
+			new ConcurrentHashMap<String,LatencyHistogram>();
+	private static final ConcurrentHashMap<String,Counter> counters =
+			new ConcurrentHashMap<String,Counter>();
+
+	private static volatile boolean jmxEnabled = false;
+
+	private MetricsRegistry(){
+	}
+
+	public static LatencyHistogram histogram(String name){
+		LatencyHistogram h = histograms.get(name);
+		if(h==null){
+			LatencyHistogram nh = new LatencyHistogram(name);
+			h = histograms.putIfAbsent(name,nh);
+			if(h==null){
+				h = nh;
+				if(jmxEnabled){
+					register("Latency",name,h);
+				}
+			}
+		}
+		return h;
+	}
+
+	public static Counter counter(String name){
+		Counter c = counters.get(name);
+		if(c==null){
+			Counter nc = new Counter(name);
+			c = counters.putIfAbsent(name,nc);
+			if(c==null){
+				c = nc;
+				if(jmxEnabled){
+					register("Counter",name,c);
+				}
+			}
+		}
+		return c;
+	}
+
+	/** Register all current and future metrics with the platform MBeanServer. */
+	public static synchronized void registerMBeans(){
+		if(jmxEnabled){
+			return;
+		}
+		jmxEnabled = true;
+
+		for(LatencyHistogram h : histograms.values()){
+			register("Latency",h.getName(),h);
+		}
+		for(Counter c : counters.values()){
+			register("Counter",c.getName(),c);
+		}
+	}
+
+	private static void register(String type, String name, Object mbean){
+		try{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName on = new ObjectName(DOMAIN+":type="+type+",name="+ObjectName.quote(name));
+			if(!server.isRegistered(on)){
+				server.registerMBean(mbean,on);
+			}
+		}catch(Exception ex){
+			System.err.format("[MetricsRegistry.register(%s)]: %s%n",name,ex.getMessage());
+		}
+	}
+
+	/** Reset every histogram and counter. */
+	public static void resetAll(){
+		for(LatencyHistogram h : histograms.values()){
+			h.reset();
+		}
+		for(Counter c : counters.values()){
+			c.reset();
+		}
+	}
+
+	/** One line per metric, sorted by name. */
+	public static List<String> report(){
+		List<String> lines = new ArrayList<String>();
+		for(LatencyHistogram h : histograms.values()){
+			lines.add(h.toString());
+		}
+		for(Counter c : counters.values()){
+			lines.add(String.format("%s: %d",c.getName(),c.getCount()));
+		}
+		Collections.sort(lines);
+		return lines;
+	}
+}
@@ -5,9 +5,13 @@ import java.util.ArrayList;
 /**
  * This class implements an observer that can register viewers
  * and update them on the state of an internal number value. 
+ * 
+ * Every call to setNumber() increments a version counter, viewers can compare
+ * {@link #getVersion()} with the version they last displayed to skip unchanged values.
  */
 public class NumberObserver {
-	private Number value;
+	private volatile Number value;
+	private volatile int version;
 	
 	public NumberObserver(){
 		super();
@@ -25,16 +29,24 @@ public class NumberObserver {
 	
 	public void setNumber(int num){
 		value = new Integer(num);
+		version++;
 	}
 	
 	public void setNumber(float num){
 		value = new Float(num);
+		version++;
 	}
 	
 	public void setNumber(double num){
 		value = new Double(num);
+		version++;
 	}
 
+	/** Number of times the value has been set. */
+	public int getVersion(){
+		return version;
+	}
+	
 	public double getDouble(){
 		return value.doubleValue();
 	}
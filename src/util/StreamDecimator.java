@@ -0,0 +1,307 @@
+package util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**<pre>
+ * Streaming decimator for long running telemetry.
+ *
+ * Every sample added is folded into the current window of each resolution level
+ * (by default 1 s, 10 s, 1 min and 10 min).  When a window closes its min, max,
+ * mean and standard deviation are stored per channel in a fixed size ring of
+ * primitive arrays, so memory use is bounded regardless of how long the session runs.
+ *
+ * Views and exports should use {@link #selectLevel(long, int)} to find the coarsest
+ * level that still gives enough points for the span they show, then read that level
+ * with {@link #query(int, int, boolean, long[], int[], double[], double[], double[], double[])}.
+ * The window still being accumulated can be included so the newest samples are not lost.
+ *
+ * NaN values (missing samples) are left out of the statistics of their channel, a
+ * window with no value at all for a channel reports NaN for it.
+ *
+ * All methods are synchronized, add() only does a few arithmetic operations per
+ * channel and level and never allocates.
+ *</pre>
+ */
+public class StreamDecimator {
+	public static final long[] DEFAULT_WINDOWS_MS = {1000, 10000, 60000, 600000};
+	public static final String[] DEFAULT_WINDOW_NAMES = {"1 s", "10 s", "1 min", "10 min"};
+	public static final int DEFAULT_CAPACITY = 3600;
+
+	private final int nch;
+	private final Level[] levels;
+	private long firstTime = Long.MIN_VALUE, lastTime;
+
+	/** One resolution level. */
+	private static final class Level {
+		final long windowMs;
+		final int capacity;
+
+		/* completed windows, ring indexed by slot*nch+channel */
+		final long[] start;
+		final int[] count;
+		final double[] min, max, mean, std;
+		int head;	//next slot to write
+		int size;
+
+		/* window currently being accumulated */
+		long curStart = Long.MIN_VALUE;
+		int curN;
+		final int[] curCount;	//values per channel, without NaN
+		final double[] curMin, curMax, curMean, curM2;
+
+		Level(long windowMs, int capacity, int nch){
+			this.windowMs = windowMs;
+			this.capacity = capacity;
+			start = new long[capacity];
+			count = new int[capacity];
+			min = new double[capacity*nch];
+			max = new double[capacity*nch];
+			mean = new double[capacity*nch];
+			std = new double[capacity*nch];
+			curCount = new int[nch];
+			curMin = new double[nch];
+			curMax = new double[nch];
+			curMean = new double[nch];
+			curM2 = new double[nch];
+		}
+	}
+
+	public StreamDecimator(int channels){
+		this(channels, DEFAULT_WINDOWS_MS, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param channels Number of values per sample.
+	 * @param windowsMs Window length of each level in milliseconds, finest first.
+	 * @param capacity Number of completed windows kept per level.
+	 */
+	public StreamDecimator(int channels, long[] windowsMs, int capacity){
+		nch = channels;
+		levels = new Level[windowsMs.length];
+		for(int i=0;i<levels.length;i++){
+			levels[i] = new Level(windowsMs[i],capacity,nch);
+		}
+	}
+
+	public int getChannelCount(){
+		return nch;
+	}
+
+	public int getLevelCount(){
+		return levels.length;
+	}
+
+	public long getWindowMs(int level){
+		return levels[level].windowMs;
+	}
+
+	/** Number of completed windows currently stored for a level. */
+	public synchronized int size(int level){
+		return levels[level].size;
+	}
+
+	/** Time from the first to the latest sample in milliseconds, 0 if empty. */
+	public synchronized long getSpanMs(){
+		return (firstTime==Long.MIN_VALUE) ? 0:(lastTime-firstTime);
+	}
+
+	/** Discard all data. */
+	public synchronized void clear(){
+		firstTime = Long.MIN_VALUE;
+		for(Level l : levels){
+			l.head = 0;
+			l.size = 0;
+			l.curStart = Long.MIN_VALUE;
+			l.curN = 0;
+		}
+	}
+
+	/**
+	 * Fold a sample into all levels.
+	 * @param timeMs Sample time in milliseconds, expected to be non-decreasing.
+	 * @param values One value per channel, extra values are ignored.
+	 */
+	public synchronized void add(long timeMs, double[] values){
+		int n = Math.min(nch,values.length);
+		if(firstTime==Long.MIN_VALUE){
+			firstTime = timeMs;
+		}
+		lastTime = timeMs;
+
+		for(Level l : levels){
+			long ws = timeMs - (timeMs % l.windowMs);
+			if(ws!=l.curStart){
+				closeWindow(l);
+				l.curStart = ws;
+				l.curN = 0;
+				for(int c=0;c<nch;c++){
+					l.curCount[c] = 0;
+				}
+			}
+
+			l.curN++;
+			for(int c=0;c<n;c++){
+				double v = values[c];
+				if(v!=v){
+					continue;	//NaN, no value for this channel
+				}
+
+				int k = ++l.curCount[c];
+				if(k==1){
+					l.curMin[c] = v;
+					l.curMax[c] = v;
+					l.curMean[c] = v;
+					l.curM2[c] = 0;
+				}else{
+					if(v<l.curMin[c]) l.curMin[c] = v;
+					if(v>l.curMax[c]) l.curMax[c] = v;
+					double d = v - l.curMean[c];
+					l.curMean[c] += d/k;
+					l.curM2[c] += d*(v - l.curMean[c]);
+				}
+			}
+		}
+	}
+
+	private void closeWindow(Level l){
+		if(l.curN==0){
+			return;
+		}
+
+		int slot = l.head;
+		l.start[slot] = l.curStart;
+		l.count[slot] = l.curN;
+		current(l, l.min, l.max, l.mean, l.std, slot*nch);
+
+		l.head = (l.head+1) % l.capacity;
+		if(l.size<l.capacity){
+			l.size++;
+		}
+		l.curN = 0;
+	}
+
+	/** Statistics of the open window of a level into the arrays at 'off', arrays can be null. */
+	private void current(Level l, double[] min, double[] max, double[] mean, double[] std, int off){
+		for(int c=0;c<nch;c++){
+			int k = l.curCount[c];
+			if(min!=null) min[off+c] = (k>0) ? l.curMin[c]:Double.NaN;
+			if(max!=null) max[off+c] = (k>0) ? l.curMax[c]:Double.NaN;
+			if(mean!=null) mean[off+c] = (k>0) ? l.curMean[c]:Double.NaN;
+			if(std!=null) std[off+c] = (k>1) ? Math.sqrt(l.curM2[c]/(k-1)):((k>0) ? 0:Double.NaN);
+		}
+	}
+
+	/**
+	 * Pick the coarsest level whose windows still give at least 'points' samples
+	 * over 'spanMs', falls back to the finest level.
+	 */
+	public int selectLevel(long spanMs, int points){
+		for(int i=levels.length-1;i>=0;i--){
+			if(spanMs/levels[i].windowMs >= points){
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Copy the windows of a level, oldest first.  Channel values are stored as
+	 * [window*channels+channel].  Any of the arrays can be null.
+	 * @param maxWindows Only the latest 'maxWindows' windows are copied.
+	 * @param open Also copy the window still being accumulated, as the latest one.
+	 * @param count Number of samples in each window.
+	 * @return Number of windows copied.
+	 */
+	public synchronized int query(int level, int maxWindows, boolean open, long[] start, int[] count,
+			double[] min, double[] max, double[] mean, double[] std){
+		Level l = levels[level];
+		boolean cur = open && l.curN>0 && maxWindows>0;
+		int n = Math.min(l.size, cur ? maxWindows-1:maxWindows);
+		int first = (l.head - n + l.capacity) % l.capacity;
+
+		for(int i=0;i<n;i++){
+			int slot = (first+i) % l.capacity;
+			if(start!=null) start[i] = l.start[slot];
+			if(count!=null) count[i] = l.count[slot];
+			if(min!=null) System.arraycopy(l.min,slot*nch,min,i*nch,nch);
+			if(max!=null) System.arraycopy(l.max,slot*nch,max,i*nch,nch);
+			if(mean!=null) System.arraycopy(l.mean,slot*nch,mean,i*nch,nch);
+			if(std!=null) System.arraycopy(l.std,slot*nch,std,i*nch,nch);
+		}
+
+		if(cur){
+			if(start!=null) start[n] = l.curStart;
+			if(count!=null) count[n] = l.curN;
+			current(l, min, max, mean, std, n*nch);
+			n++;
+		}
+
+		return n;
+	}
+
+	/** Copy the latest completed windows, see {@link #query(int, int, boolean, long[], int[], double[], double[], double[], double[])}. */
+	public int query(int level, int maxWindows, long[] start,
+			double[] min, double[] max, double[] mean, double[] std){
+		return query(level, maxWindows, false, start, null, min, max, mean, std);
+	}
+
+	/** Copy all completed windows of a level, see {@link #query(int, int, long[], double[], double[], double[], double[])}. */
+	public int query(int level, long[] start, double[] min, double[] max, double[] mean, double[] std){
+		return query(level, Integer.MAX_VALUE, start, min, max, mean, std);
+	}
+
+	/**
+	 * Write a level as CSV, one row per window:
+	 * window start [ms], sample count, then min,max,mean,std for every channel.
+	 * The last row is the window still open, so it can hold fewer samples.
+	 */
+	public void writeCsv(int level, String[] channelNames, Writer out) throws IOException{
+		int cap = levels[level].capacity+1;
+		long[] start = new long[cap];
+		int[] count = new int[cap];
+		double[] min = new double[cap*nch];
+		double[] max = new double[cap*nch];
+		double[] mean = new double[cap*nch];
+		double[] std = new double[cap*nch];
+		int n = query(level, cap, true, start, count, min, max, mean, std);
+
+		StringBuilder sb = new StringBuilder("start_ms,n");
+		for(int c=0;c<nch;c++){
+			String name = (channelNames!=null && c<channelNames.length) ? channelNames[c]:("ch"+c);
+			sb.append(',').append(name).append("_min");
+			sb.append(',').append(name).append("_max");
+			sb.append(',').append(name).append("_mean");
+			sb.append(',').append(name).append("_std");
+		}
+		out.write(sb.toString());
+		out.write('\n');
+
+		for(int i=0;i<n;i++){
+			sb.setLength(0);
+			sb.append(start[i]).append(',').append(count[i]);
+			for(int c=0;c<nch;c++){
+				int k = i*nch+c;
+				sb.append(String.format(Locale.US,",%.7g,%.7g,%.7g,%.7g",min[k],max[k],mean[k],std[k]));
+			}
+			out.write(sb.toString());
+			out.write('\n');
+		}
+		out.flush();
+	}
+
+	public static void main(String[] args) throws IOException{
+		StreamDecimator d = new StreamDecimator(2, new long[]{1000,10000}, 8);
+		double[] v = new double[2];
+		for(long t=0;t<25000;t+=100){
+			v[0] = t*1E-3;
+			v[1] = (t%700==0) ? Double.NaN:Math.sin(t*1E-3);
+			d.add(t,v);
+		}
+
+		java.io.PrintWriter w = new java.io.PrintWriter(System.out);
+		d.writeCsv(0,new String[]{"t","sin"},w);
+		d.writeCsv(1,new String[]{"t","sin"},w);
+	}
+}
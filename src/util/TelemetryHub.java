@@ -0,0 +1,216 @@
+package util;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**<pre>
+ * Publishes control loop values to subscribers, e.g. remote CommandServer clients.
+ *
+ * Every stream carries records of {@link #FIELDS} doubles with a per stream
+ * sequence number and a time stamp:
+ *
+ *   centroids  tiltX, tiltY, shearX, shearY            [pixel]
+ *   offsets    Hxdt, Hydt, Hxds, Hyds                  [mm]
+ *   thetas     acm1x, acm1y, acm2x, acm2y              [deg]
+ *   steps      scm1ax1, scm1ax2, scm2ax1, scm2ax2
+ *   pistatus   running, iteration, iterationMs, loopS
+ *   compare    acm1x, acm1y, acm2x, acm2y of the compared optical profile [deg]
+ *
+ * A subscriber gets every n-th record of a stream in its own fixed size ring.  When
+ * the ring is full the oldest record is overwritten and counted as lost, so a slow
+ * subscriber never blocks the publishing thread.  Publishing to a stream without
+ * subscribers costs one counter increment.
+ *</pre>
+ */
+final public class TelemetryHub {
+	public static final int CENTROIDS = 0;
+	public static final int OFFSETS = 1;
+	public static final int THETAS = 2;
+	public static final int STEPS = 3;
+	public static final int PISTATUS = 4;
+	public static final int COMPARE = 5;
+
+	public static final int FIELDS = 4;
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private static final String[] streamNames = {"centroids", "offsets", "thetas", "steps", "pistatus", "compare"};
+	private static final String[][] fieldNames = {
+		{"tiltX", "tiltY", "shearX", "shearY"},
+		{"Hxdt", "Hydt", "Hxds", "Hyds"},
+		{"acm1x", "acm1y", "acm2x", "acm2y"},
+		{"scm1ax1", "scm1ax2", "scm2ax1", "scm2ax2"},
+		{"running", "iteration", "iterationMs", "loopS"},
+		{"acm1x", "acm1y", "acm2x", "acm2y"}
+	};
+
+	private static final AtomicLong[] sequence = new AtomicLong[streamNames.length];
+	@SuppressWarnings("unchecked")
+	private static final CopyOnWriteArrayList<Subscription>[] subscribers =
+		new CopyOnWriteArrayList[streamNames.length];
+	static{
+		for(int i=0;i<streamNames.length;i++){
+			sequence[i] = new AtomicLong();
+			subscribers[i] = new CopyOnWriteArrayList<Subscription>();
+		}
+	}
+
+	private TelemetryHub(){
+	}
+
+	public static int getStreamCount(){
+		return streamNames.length;
+	}
+
+	public static String getStreamName(int stream){
+		return streamNames[stream];
+	}
+
+	/** @return stream id, -1 if there is no stream 'name' */
+	public static int getStream(String name){
+		for(int i=0;i<streamNames.length;i++){
+			if(streamNames[i].equals(name)){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public static String[] getFieldNames(int stream){
+		return fieldNames[stream].clone();
+	}
+
+	/** Publish a record, called by the control loop. */
+	public static void publish(int stream, double v0, double v1, double v2, double v3){
+		long seq = sequence[stream].incrementAndGet();
+		CopyOnWriteArrayList<Subscription> subs = subscribers[stream];
+		if(subs.isEmpty()){
+			return;
+		}
+
+		long time = System.currentTimeMillis();
+		for(Subscription s : subs){
+			s.offer(seq, time, v0, v1, v2, v3);
+		}
+	}
+
+	/**
+	 * Subscribe to a stream.
+	 * @param every Keep every n-th record, 1 for all.
+	 * @param capacity Records buffered before the oldest are dropped.
+	 * @param listener Run by the publishing thread when a record is added to an empty
+	 *                 buffer, must return right away.  May be null.
+	 */
+	public static Subscription subscribe(int stream, int every, int capacity, Runnable listener){
+		Subscription s = new Subscription(stream, Math.max(1,every), Math.max(1,capacity), listener);
+		subscribers[stream].add(s);
+		return s;
+	}
+
+	public static void unsubscribe(Subscription s){
+		subscribers[s.stream].remove(s);
+	}
+
+	public static int getSubscriberCount(int stream){
+		return subscribers[stream].size();
+	}
+
+	/** One record, filled by {@link Subscription#poll(Record)}. */
+	public static class Record {
+		public int stream;
+		public long sequence;
+		public long time;
+		public final double[] values = new double[FIELDS];
+	}
+
+	/** Buffered records of one stream for one subscriber. */
+	public static class Subscription {
+		private final int stream;
+		private final int every;
+		private final Runnable listener;
+
+		private final int capacity;
+		private final long[] seq;
+		private final long[] time;
+		private final double[] values;
+		private int head, count, skip;
+		private long lost, lostTotal;
+
+		private Subscription(int stream, int every, int capacity, Runnable listener){
+			this.stream = stream;
+			this.every = every;
+			this.listener = listener;
+			this.capacity = capacity;
+			seq = new long[capacity];
+			time = new long[capacity];
+			values = new double[capacity*FIELDS];
+		}
+
+		public int getStream(){
+			return stream;
+		}
+
+		public int getEvery(){
+			return every;
+		}
+
+		private void offer(long sq, long t, double v0, double v1, double v2, double v3){
+			boolean wasEmpty;
+			synchronized(this){
+				if(++skip<every){
+					return;
+				}
+				skip = 0;
+
+				if(count==capacity){
+					head = (head+1) % capacity;
+					count--;
+					lost++;
+					lostTotal++;
+				}
+				wasEmpty = (count==0);
+
+				int slot = (head+count) % capacity;
+				seq[slot] = sq;
+				time[slot] = t;
+				int k = slot*FIELDS;
+				values[k] = v0;
+				values[k+1] = v1;
+				values[k+2] = v2;
+				values[k+3] = v3;
+				count++;
+			}
+			if(wasEmpty && listener!=null){
+				listener.run();
+			}
+		}
+
+		/** Take the oldest record. @return false if there is none */
+		public synchronized boolean poll(Record r){
+			if(count==0){
+				return false;
+			}
+			r.stream = stream;
+			r.sequence = seq[head];
+			r.time = time[head];
+			System.arraycopy(values, head*FIELDS, r.values, 0, FIELDS);
+			head = (head+1) % capacity;
+			count--;
+			return true;
+		}
+
+		public synchronized boolean isEmpty(){
+			return count==0;
+		}
+
+		/** Records dropped since the last call. */
+		public synchronized long takeLost(){
+			long n = lost;
+			lost = 0;
+			return n;
+		}
+
+		public synchronized long getLostTotal(){
+			return lostTotal;
+		}
+	}
+}